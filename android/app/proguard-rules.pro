@@ -131,4 +131,9 @@
     public int getTimeout();
     public int getMaxTransceiveLength();
     public boolean isExtendedLengthApduSupported();
-}
\ No newline at end of file
+}
+# Scan debug logging (ScanLog) only goes to logcat in debug builds; this rule file is only used
+# by minified release builds, so let R8 drop the logcat branches there
+-assumevalues class com.forumonline.nfcpass.BuildConfig {
+    public static boolean DEBUG return false;
+}
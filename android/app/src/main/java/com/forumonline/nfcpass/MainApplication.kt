@@ -11,6 +11,7 @@ import com.facebook.react.defaults.DefaultReactHost.getDefaultReactHost
 import com.facebook.react.defaults.DefaultReactNativeHost
 import com.facebook.react.soloader.OpenSourceMergedSoMapping
 import com.facebook.soloader.SoLoader
+import com.forumonline.nfcpass.mlkit.text.TextRecognizerHolder
 
 class MainApplication : Application(), ReactApplication {
 
@@ -38,5 +39,7 @@ class MainApplication : Application(), ReactApplication {
         if (BuildConfig.IS_NEW_ARCHITECTURE_ENABLED) {
             load()
         }
+        // Load the MRZ text recognizer while React Native starts, not when the scanner opens
+        TextRecognizerHolder.warmUp()
     }
 }
@@ -2,42 +2,32 @@ package com.forumonline.nfcpass.mlkit.camera;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.content.res.Configuration;
 import android.util.AttributeSet;
-import android.util.Log;
-import android.view.SurfaceHolder;
-import android.view.SurfaceView;
 import android.view.ViewGroup;
 
-import com.forumonline.nfcpass.mlkit.other.GraphicOverlay;
-import com.google.android.gms.common.images.Size;
+import androidx.camera.view.PreviewView;
 
-import java.io.IOException;
+import com.forumonline.nfcpass.mlkit.other.GraphicOverlay;
 
 /** Preview the camera image in the screen. */
 public class CameraSourcePreview extends ViewGroup {
-    private static final String TAG = "MIDemoApp:Preview";
-
-    private Context context;
-    private SurfaceView surfaceView;
-    private boolean startRequested;
-    private boolean surfaceAvailable;
+    private final PreviewView previewView;
     private CameraSource cameraSource;
 
     private GraphicOverlay overlay;
 
     public CameraSourcePreview(Context context, AttributeSet attrs) {
         super(context, attrs);
-        this.context = context;
-        startRequested = false;
-        surfaceAvailable = false;
 
-        surfaceView = new SurfaceView(context);
-        surfaceView.getHolder().addCallback(new SurfaceCallback());
-        addView(surfaceView);
+        previewView = new PreviewView(context);
+        // Fill the screen and crop, the overlay and the MRZ frame cover the whole view
+        previewView.setScaleType(PreviewView.ScaleType.FILL_CENTER);
+        previewView.setImplementationMode(PreviewView.ImplementationMode.PERFORMANCE);
+        addView(previewView);
     }
 
-    public void start(CameraSource cameraSource) throws IOException {
+    @SuppressLint("MissingPermission")
+    public void start(CameraSource cameraSource) {
         if (cameraSource == null) {
             stop();
         }
@@ -45,12 +35,15 @@ public class CameraSourcePreview extends ViewGroup {
         this.cameraSource = cameraSource;
 
         if (this.cameraSource != null) {
-            startRequested = true;
-            startIfReady();
+            if (overlay != null) {
+                overlay.clear();
+            }
+            // The overlay learns the frame size from the camera source with the first frame
+            this.cameraSource.start(previewView);
         }
     }
 
-    public void start(CameraSource cameraSource, GraphicOverlay overlay) throws IOException {
+    public void start(CameraSource cameraSource, GraphicOverlay overlay) {
         this.overlay = overlay;
         start(cameraSource);
     }
@@ -68,117 +61,11 @@ public class CameraSourcePreview extends ViewGroup {
         }
     }
 
-    @SuppressLint("MissingPermission")
-    private void startIfReady() throws IOException {
-        if (startRequested && surfaceAvailable) {
-            cameraSource.start(surfaceView.getHolder());
-            if (overlay != null) {
-                Size size = cameraSource.getPreviewSize();
-                int min = Math.min(size.getWidth(), size.getHeight());
-                int max = Math.max(size.getWidth(), size.getHeight());
-                if (isPortraitMode()) {
-                    // Swap width and height sizes when in portrait, since it will be rotated by
-                    // 90 degrees
-                    overlay.setCameraInfo(min, max, cameraSource.getCameraFacing());
-                } else {
-                    overlay.setCameraInfo(max, min, cameraSource.getCameraFacing());
-                }
-                overlay.clear();
-            }
-            startRequested = false;
-        }
-    }
-
-    private class SurfaceCallback implements SurfaceHolder.Callback {
-        @Override
-        public void surfaceCreated(SurfaceHolder surface) {
-            surfaceAvailable = true;
-            try {
-                startIfReady();
-            } catch (IOException e) {
-                Log.e(TAG, "Could not start camera source.", e);
-            }
-        }
-
-        @Override
-        public void surfaceDestroyed(SurfaceHolder surface) {
-            surfaceAvailable = false;
-        }
-
-        @Override
-        public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {}
-    }
-
     @Override
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
-        int width = 320;
-        int height = 240;
-        if (cameraSource != null) {
-            Size size = cameraSource.getPreviewSize();
-            if (size != null) {
-                width = size.getWidth();
-                height = size.getHeight();
-            }
-        }
-
-        // Swap width and height sizes when in portrait, since it will be rotated 90 degrees
-        if (isPortraitMode()) {
-            int tmp = width;
-            width = height;
-            height = tmp;
-        }
-
-        final int layoutWidth = right - left;
-        final int layoutHeight = bottom - top;
-
-        // Computes height and width for potentially doing fit width.
-        int childWidth;
-        int childHeight;
-        int childXOffset = 0;
-        int childYOffset = 0;
-        float widthRatio = (float) layoutWidth / (float) width;
-        float heightRatio = (float) layoutHeight / (float) height;
-
-        // To fill the view with the camera preview, while also preserving the correct aspect ratio,
-        // it is usually necessary to slightly oversize the child and to crop off portions along one
-        // of the dimensions.  We scale up based on the dimension requiring the most correction, and
-        // compute a crop offset for the other dimension.
-        if (widthRatio > heightRatio) {
-            childWidth = layoutWidth;
-            childHeight = (int) ((float) height * widthRatio);
-            childYOffset = (childHeight - layoutHeight) / 2;
-        } else {
-            childWidth = (int) ((float) width * heightRatio);
-            childHeight = layoutHeight;
-            childXOffset = (childWidth - layoutWidth) / 2;
-        }
-
+        // PreviewView keeps the aspect ratio itself
         for (int i = 0; i < getChildCount(); ++i) {
-            // One dimension will be cropped.  We shift child over or up by this offset and adjust
-            // the size to maintain the proper aspect ratio.
-            getChildAt(i).layout(
-                    -1 * childXOffset, -1 * childYOffset,
-                    childWidth - childXOffset, childHeight - childYOffset);
-        }
-
-        try {
-            startIfReady();
-        } catch (IOException e) {
-            Log.e(TAG, "Could not start camera source.", e);
+            getChildAt(i).layout(0, 0, right - left, bottom - top);
         }
     }
-
-    private boolean isPortraitMode() {
-        int orientation = context.getResources().getConfiguration().orientation;
-        if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-            return false;
-        }
-        if (orientation == Configuration.ORIENTATION_PORTRAIT) {
-            return true;
-        }
-
-        Log.d(TAG, "isPortraitMode returning false by default");
-        return false;
-    }
 }
-
@@ -0,0 +1,253 @@
+package com.forumonline.nfcpass.mlkit.camera;
+
+import android.util.Log;
+import android.util.Size;
+
+import com.forumonline.nfcpass.mlkit.other.Frame;
+import com.forumonline.nfcpass.mlkit.text.TextRecognitionProcessor;
+
+/**
+ * Adapts camera frame rate and analysis resolution to what the recognizer can use.
+ *
+ * <p>Only a fixed number of recognitions run at a time, so frames arriving while all of them are
+ * busy are dropped. Once a second the governor compares the recognizers' throughput with the frame
+ * rate and picks the lowest frame rate that still has a fresh frame ready when a recognition
+ * finishes. The resolution
+ * follows the height of the MRZ lines, as measured by ML Kit or the OCR-B templates: it goes up
+ * when the text is too small to read and down when recognition stays slow at the lowest frame rate
+ * and the text would still be large enough.
+ * Changes are rate limited so the camera is not reconfigured on every small fluctuation.
+ */
+public class CaptureGovernor implements TextRecognitionProcessor.RecognitionObserver {
+    private static final String TAG = "CaptureGovernor";
+
+    /** Receives the camera settings to apply, on any thread. */
+    public interface Listener {
+        void onFrameRateChanged(int fps);
+
+        void onAnalysisSizeChanged(Size size);
+    }
+
+    private static final int[] FRAME_RATES = {10, 15, 20, 24, 30};
+
+    private static final int DEFAULT_FRAME_RATE_INDEX = 2;
+
+    private static final Size[] ANALYSIS_SIZES = {
+            new Size(640, 480),
+            new Size(960, 720),
+            new Size(1280, 960),
+            new Size(1600, 1200),
+            new Size(1920, 1440),
+    };
+
+    private static final int DEFAULT_ANALYSIS_SIZE_INDEX = 2;
+
+    /** Frames per recognition the frame rate should offer, so the next frame is never far off. */
+    private static final float FRAME_RATE_HEADROOM = 1.5f;
+
+    /**
+     * Line heights in pixels; ML Kit wants characters of 16 to 24 pixels, and the templates start
+     * mixing up look-alikes such as B and 8 in noisy frames below about 20.
+     */
+    private static final int MIN_TEXT_HEIGHT = 20;
+    private static final int COMFORTABLE_TEXT_HEIGHT = 32;
+
+    /** Recognition slower than this at the lowest frame rate asks for a smaller resolution. */
+    private static final long SLOW_RECOGNITION_NANOS = 250_000_000L;
+
+    private static final long EVALUATION_INTERVAL_NANOS = 1_000_000_000L;
+    private static final long FRAME_RATE_DWELL_NANOS = 2_000_000_000L;
+    private static final long RESOLUTION_DWELL_NANOS = 3_000_000_000L;
+
+    private static final int MIN_RECOGNITIONS_PER_EVALUATION = 3;
+
+    private final Listener listener;
+
+    private int concurrentRecognitions = 1;
+
+    private int frameRateIndex = DEFAULT_FRAME_RATE_INDEX;
+    private int analysisSizeIndex = DEFAULT_ANALYSIS_SIZE_INDEX;
+
+    private long windowStartNanos;
+    private int windowFrames;
+    private int windowDropped;
+    private int windowRecognized;
+    private long windowLatencyNanos;
+    private int windowTextHeight;
+
+    private long lastFrameRateChangeNanos;
+    private long lastResolutionChangeNanos;
+
+    private long deliveredFrames;
+    private long droppedFrames;
+    private long recognizedFrames;
+    private long totalLatencyNanos;
+    private long maxLatencyNanos;
+    private int frameRateChanges;
+    private int resolutionChanges;
+    private int textHeight;
+    private long firstFrameNanos;
+    private long lastFrameNanos;
+
+    public CaptureGovernor(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Sets how many frames the processor recognizes at the same time. */
+    public synchronized void setConcurrentRecognitions(int concurrentRecognitions) {
+        this.concurrentRecognitions = Math.max(1, concurrentRecognitions);
+    }
+
+    public synchronized int getFrameRate() {
+        return FRAME_RATES[frameRateIndex];
+    }
+
+    public synchronized Size getAnalysisSize() {
+        return ANALYSIS_SIZES[analysisSizeIndex];
+    }
+
+    @Override
+    public synchronized void onFrameDropped(Frame frame) {
+        countFrame();
+        droppedFrames++;
+        windowDropped++;
+        evaluate();
+    }
+
+    @Override
+    public synchronized void onFrameRecognized(Frame frame, long latencyNanos, int textHeight) {
+        countFrame();
+        recognizedFrames++;
+        totalLatencyNanos += latencyNanos;
+        maxLatencyNanos = Math.max(maxLatencyNanos, latencyNanos);
+        windowRecognized++;
+        windowLatencyNanos += latencyNanos;
+
+        if (textHeight > 0) {
+            windowTextHeight = Math.max(windowTextHeight, textHeight);
+            this.textHeight = textHeight;
+        }
+        evaluate();
+    }
+
+    /** Returns the counters collected since the governor was created. */
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+        stats.deliveredFrames = deliveredFrames;
+        stats.droppedFrames = droppedFrames;
+        stats.recognizedFrames = recognizedFrames;
+        stats.averageLatencyMillis = recognizedFrames == 0 ? 0 : totalLatencyNanos / recognizedFrames / 1_000_000;
+        stats.maxLatencyMillis = maxLatencyNanos / 1_000_000;
+        long elapsed = lastFrameNanos - firstFrameNanos;
+        stats.deliveredFps = elapsed <= 0 ? 0 : (deliveredFrames - 1) * 1e9f / elapsed;
+        stats.frameRate = getFrameRate();
+        stats.analysisSize = getAnalysisSize();
+        stats.frameRateChanges = frameRateChanges;
+        stats.resolutionChanges = resolutionChanges;
+        stats.textHeight = textHeight;
+        return stats;
+    }
+
+    /** Snapshot of what the governor measured since it was created. */
+    public static class Stats {
+        public long deliveredFrames;
+        public long droppedFrames;
+        public long recognizedFrames;
+        public long averageLatencyMillis;
+        public long maxLatencyMillis;
+        public float deliveredFps;
+        public int frameRate;
+        public Size analysisSize;
+        public int frameRateChanges;
+        public int resolutionChanges;
+        public int textHeight;
+    }
+
+    private void countFrame() {
+        long now = System.nanoTime();
+        if (deliveredFrames == 0) {
+            firstFrameNanos = now;
+            windowStartNanos = now;
+            lastFrameRateChangeNanos = now;
+            lastResolutionChangeNanos = now;
+        }
+        lastFrameNanos = now;
+        deliveredFrames++;
+        windowFrames++;
+    }
+
+    private void evaluate() {
+        long now = lastFrameNanos;
+        if (now - windowStartNanos < EVALUATION_INTERVAL_NANOS || windowRecognized < MIN_RECOGNITIONS_PER_EVALUATION) {
+            return;
+        }
+        long averageLatency = windowLatencyNanos / windowRecognized;
+
+        if (now - lastResolutionChangeNanos >= RESOLUTION_DWELL_NANOS) {
+            int sizeIndex = chooseAnalysisSize(averageLatency);
+            if (sizeIndex != analysisSizeIndex) {
+                Log.i(TAG, "Analysis size " + ANALYSIS_SIZES[analysisSizeIndex] + " -> " + ANALYSIS_SIZES[sizeIndex]
+                        + ", text height " + windowTextHeight + ", latency " + averageLatency / 1_000_000 + " ms");
+                analysisSizeIndex = sizeIndex;
+                lastResolutionChangeNanos = now;
+                resolutionChanges++;
+                listener.onAnalysisSizeChanged(ANALYSIS_SIZES[sizeIndex]);
+                // Latency and text height depend on the size, start measuring afresh
+                resetWindow(now);
+                return;
+            }
+        }
+
+        if (now - lastFrameRateChangeNanos >= FRAME_RATE_DWELL_NANOS) {
+            int rateIndex = chooseFrameRate(averageLatency);
+            if (rateIndex != frameRateIndex) {
+                Log.i(TAG, "Frame rate " + FRAME_RATES[frameRateIndex] + " -> " + FRAME_RATES[rateIndex]
+                        + " fps, latency " + averageLatency / 1_000_000 + " ms, dropped "
+                        + windowDropped + "/" + windowFrames);
+                frameRateIndex = rateIndex;
+                lastFrameRateChangeNanos = now;
+                frameRateChanges++;
+                listener.onFrameRateChanged(FRAME_RATES[rateIndex]);
+            }
+        }
+        resetWindow(now);
+    }
+
+    /** Lowest frame rate offering {@link #FRAME_RATE_HEADROOM} frames per recognition. */
+    private int chooseFrameRate(long averageLatencyNanos) {
+        float wantedFps = FRAME_RATE_HEADROOM * concurrentRecognitions * 1e9f / Math.max(averageLatencyNanos, 1);
+        for (int i = 0; i < FRAME_RATES.length; i++) {
+            if (FRAME_RATES[i] >= wantedFps) {
+                return i;
+            }
+        }
+        return FRAME_RATES.length - 1;
+    }
+
+    private int chooseAnalysisSize(long averageLatencyNanos) {
+        if (windowTextHeight == 0) {
+            // No MRZ in view, nothing to size the frames for
+            return analysisSizeIndex;
+        }
+        if (windowTextHeight < MIN_TEXT_HEIGHT && analysisSizeIndex < ANALYSIS_SIZES.length - 1) {
+            return analysisSizeIndex + 1;
+        }
+        if (analysisSizeIndex > 0 && frameRateIndex == 0 && averageLatencyNanos > SLOW_RECOGNITION_NANOS) {
+            float scale = (float) ANALYSIS_SIZES[analysisSizeIndex - 1].getWidth()
+                    / ANALYSIS_SIZES[analysisSizeIndex].getWidth();
+            if (windowTextHeight * scale >= COMFORTABLE_TEXT_HEIGHT) {
+                return analysisSizeIndex - 1;
+            }
+        }
+        return analysisSizeIndex;
+    }
+
+    private void resetWindow(long now) {
+        windowStartNanos = now;
+        windowFrames = 0;
+        windowDropped = 0;
+        windowRecognized = 0;
+        windowLatencyNanos = 0;
+        windowTextHeight = 0;
+    }
+}
@@ -0,0 +1,167 @@
+package com.forumonline.nfcpass.mlkit.camera;
+
+import androidx.camera.core.ImageProxy;
+
+import com.forumonline.nfcpass.mlkit.other.Frame;
+import com.forumonline.nfcpass.mlkit.other.FrameMetadata;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Rejects frames that cannot yield an MRZ before they reach the recognizer.
+ *
+ * <p>Only the luminance plane is read, on a grid of every {@link #GRID_STEP}th pixel in both
+ * directions, and nothing is allocated per frame. Three scores are computed:
+ * <ul>
+ *     <li>sharpness, the variance of the 4-neighbour Laplacian at the grid points; out of focus
+ *     and motion blurred frames have little high frequency content,</li>
+ *     <li>glare, the share of grid points at or near full brightness,</li>
+ *     <li>motion, the mean absolute difference to the grid of the previous frame.</li>
+ * </ul>
+ * Thresholds are deliberately lenient: a rejected frame costs one frame interval, a recognized bad
+ * frame a whole recognition. After {@link #MAX_CONSECUTIVE_REJECTS} rejections in a row a frame
+ * is let through anyway, so that an unusual scene cannot stall scanning.
+ */
+public class FrameQualityFilter {
+
+    private static final int GRID_STEP = 4;
+
+    private static final int MIN_SHARPNESS = 100;
+
+    private static final int SATURATED_LUMA = 250;
+    private static final float MAX_SATURATED_RATIO = 0.08f;
+
+    private static final int MAX_MEAN_DIFFERENCE = 18;
+
+    private static final int MAX_CONSECUTIVE_REJECTS = 15;
+
+    /** Grid of the previous frame, reused while the frame size stays the same. */
+    private byte[] previousGrid = new byte[0];
+    private int previousWidth;
+    private int previousHeight;
+    private boolean hasPrevious;
+
+    private int consecutiveRejects;
+
+    private float sharpness;
+    private float saturatedRatio;
+    private float meanDifference;
+
+    private long acceptedFrames;
+    private long blurryFrames;
+    private long glaredFrames;
+    private long movingFrames;
+
+    /** Scores the frame and returns whether it is worth recognizing. */
+    public synchronized boolean accept(Frame frame) {
+        FrameMetadata metadata = frame.getMetadata();
+        ByteBuffer luma;
+        int rowStride;
+        ImageProxy image = frame.getImage();
+        if (image != null) {
+            ImageProxy.PlaneProxy plane = image.getPlanes()[0];
+            luma = plane.getBuffer();
+            rowStride = plane.getRowStride();
+        } else {
+            luma = frame.getNv21();
+            rowStride = metadata.getWidth();
+        }
+        measure(luma, rowStride, metadata.getWidth(), metadata.getHeight());
+
+        boolean blurry = sharpness < MIN_SHARPNESS;
+        boolean glared = saturatedRatio > MAX_SATURATED_RATIO;
+        boolean moving = meanDifference > MAX_MEAN_DIFFERENCE;
+        if ((blurry || glared || moving) && consecutiveRejects < MAX_CONSECUTIVE_REJECTS) {
+            consecutiveRejects++;
+            if (moving) {
+                movingFrames++;
+            } else if (blurry) {
+                blurryFrames++;
+            } else {
+                glaredFrames++;
+            }
+            return false;
+        }
+        consecutiveRejects = 0;
+        acceptedFrames++;
+        return true;
+    }
+
+    public synchronized float getSharpness() {
+        return sharpness;
+    }
+
+    public synchronized float getSaturatedRatio() {
+        return saturatedRatio;
+    }
+
+    public synchronized float getMeanDifference() {
+        return meanDifference;
+    }
+
+    public synchronized long getAcceptedFrames() {
+        return acceptedFrames;
+    }
+
+    public synchronized long getBlurryFrames() {
+        return blurryFrames;
+    }
+
+    public synchronized long getGlaredFrames() {
+        return glaredFrames;
+    }
+
+    public synchronized long getMovingFrames() {
+        return movingFrames;
+    }
+
+    private void measure(ByteBuffer luma, int rowStride, int width, int height) {
+        int columns = (width - 2) / GRID_STEP;
+        int rows = (height - 2) / GRID_STEP;
+        int count = columns * rows;
+        if (count <= 0) {
+            sharpness = 0;
+            saturatedRatio = 0;
+            meanDifference = 0;
+            return;
+        }
+        boolean compare = hasPrevious && previousWidth == width && previousHeight == height;
+        if (previousGrid.length < count) {
+            previousGrid = new byte[count];
+        }
+
+        long laplacianSum = 0;
+        long laplacianSquareSum = 0;
+        int saturated = 0;
+        long differenceSum = 0;
+        int index = 0;
+        for (int row = 0; row < rows; row++) {
+            int offset = (1 + row * GRID_STEP) * rowStride + 1;
+            for (int column = 0; column < columns; column++, offset += GRID_STEP) {
+                int center = luma.get(offset) & 0xFF;
+                int laplacian = 4 * center
+                        - (luma.get(offset - 1) & 0xFF)
+                        - (luma.get(offset + 1) & 0xFF)
+                        - (luma.get(offset - rowStride) & 0xFF)
+                        - (luma.get(offset + rowStride) & 0xFF);
+                laplacianSum += laplacian;
+                laplacianSquareSum += laplacian * laplacian;
+                if (center >= SATURATED_LUMA) {
+                    saturated++;
+                }
+                if (compare) {
+                    differenceSum += Math.abs(center - (previousGrid[index] & 0xFF));
+                }
+                previousGrid[index++] = (byte) center;
+            }
+        }
+
+        float mean = (float) laplacianSum / count;
+        sharpness = (float) laplacianSquareSum / count - mean * mean;
+        saturatedRatio = (float) saturated / count;
+        meanDifference = compare ? (float) differenceSum / count : 0;
+        previousWidth = width;
+        previousHeight = height;
+        hasPrevious = true;
+    }
+}
@@ -0,0 +1,27 @@
+package com.forumonline.nfcpass.mlkit.camera;
+
+import com.forumonline.nfcpass.mlkit.other.Frame;
+
+import java.io.IOException;
+
+/**
+ * Produces frames for OCR, from the live camera ({@link CameraSource}) or from recordings
+ * ({@link Nv21FileFrameSource}, {@link ImageDirectoryFrameSource}), so that processors run the same
+ * way on recorded input as on the camera.
+ */
+public interface FrameSource {
+
+    /** Receives frames on the source's thread. Every frame must be closed by the listener. */
+    interface FrameListener {
+        void onFrame(Frame frame);
+
+        /** Called once after the last frame of a finite source. */
+        default void onEnd() {}
+    }
+
+    /** Starts delivering frames to {@code listener}. */
+    void start(FrameListener listener) throws IOException;
+
+    /** Stops delivering frames; a stopped source may be started again. */
+    void stop();
+}
@@ -0,0 +1,189 @@
+package com.forumonline.nfcpass.mlkit.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.forumonline.nfcpass.mlkit.other.FrameMetadata;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Replays the still images of a directory in file name order, converted to NV21.
+ *
+ * <p>Binary PGM (P5) and PPM (P6) files are read in plain Java, so the source also runs on a JVM.
+ * JPEG and PNG files are decoded with {@link BitmapFactory} and therefore only on Android. Images
+ * are treated as upright and cropped to even dimensions as NV21 requires.
+ */
+public class ImageDirectoryFrameSource extends RecordedFrameSource {
+    private final File directory;
+
+    private final List<File> files = new ArrayList<>();
+    private int nextIndex;
+
+    /** The image announced by {@link #nextFrame()}, already converted. */
+    private byte[] pending = new byte[0];
+    private FrameMetadata pendingMetadata;
+
+    public ImageDirectoryFrameSource(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    protected void open() throws IOException {
+        File[] entries = directory.listFiles((dir, name) -> isSupported(name));
+        if (entries == null) {
+            throw new IOException("Not a directory: " + directory);
+        }
+        Arrays.sort(entries);
+        files.clear();
+        files.addAll(Arrays.asList(entries));
+        nextIndex = 0;
+    }
+
+    @Override
+    protected FrameMetadata nextFrame() throws IOException {
+        if (nextIndex >= files.size()) {
+            return null;
+        }
+        File file = files.get(nextIndex++);
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".pgm") || name.endsWith(".ppm")) {
+            readNetpbm(file);
+        } else {
+            decodeBitmap(file);
+        }
+        return pendingMetadata;
+    }
+
+    @Override
+    protected void readFrame(ByteBuffer buffer) {
+        buffer.put(pending, 0, buffer.remaining());
+    }
+
+    @Override
+    protected void skipFrame() {
+        // Already read by nextFrame()
+    }
+
+    @Override
+    protected void close() {
+        pending = new byte[0];
+        pendingMetadata = null;
+    }
+
+    private static boolean isSupported(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        return lower.endsWith(".pgm") || lower.endsWith(".ppm") || lower.endsWith(".png")
+                || lower.endsWith(".jpg") || lower.endsWith(".jpeg");
+    }
+
+    private void readNetpbm(File file) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            String magic = readToken(input);
+            boolean color = "P6".equals(magic);
+            if (!color && !"P5".equals(magic)) {
+                throw new IOException("Unsupported Netpbm format " + magic + " in " + file);
+            }
+            int width = Integer.parseInt(readToken(input));
+            int height = Integer.parseInt(readToken(input));
+            if (Integer.parseInt(readToken(input)) > 255) {
+                throw new IOException("Only 8 bit Netpbm images are supported: " + file);
+            }
+
+            int channels = color ? 3 : 1;
+            byte[] row = new byte[width * channels];
+            int frameWidth = width & ~1;
+            int frameHeight = height & ~1;
+            prepare(frameWidth, frameHeight);
+            for (int y = 0; y < frameHeight; y++) {
+                input.readFully(row);
+                for (int x = 0; x < frameWidth; x++) {
+                    int offset = x * channels;
+                    if (color) {
+                        setPixel(x, y, row[offset] & 0xFF, row[offset + 1] & 0xFF, row[offset + 2] & 0xFF);
+                    } else {
+                        int gray = row[offset] & 0xFF;
+                        setPixel(x, y, gray, gray, gray);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Reads a header token, skipping white space and comments, and the white space after it. */
+    private static String readToken(InputStream input) throws IOException {
+        StringBuilder token = new StringBuilder();
+        int c;
+        while ((c = input.read()) != -1) {
+            if (c == '#' && token.length() == 0) {
+                while ((c = input.read()) != -1 && c != '\n') {
+                    // Comment
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (token.length() > 0) {
+                    return token.toString();
+                }
+            } else {
+                token.append((char) c);
+            }
+        }
+        throw new EOFException("Truncated Netpbm header");
+    }
+
+    private void decodeBitmap(File file) throws IOException {
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + file);
+        }
+        try {
+            int frameWidth = bitmap.getWidth() & ~1;
+            int frameHeight = bitmap.getHeight() & ~1;
+            int[] row = new int[frameWidth];
+            prepare(frameWidth, frameHeight);
+            for (int y = 0; y < frameHeight; y++) {
+                bitmap.getPixels(row, 0, frameWidth, 0, y, frameWidth, 1);
+                for (int x = 0; x < frameWidth; x++) {
+                    int argb = row[x];
+                    setPixel(x, y, (argb >> 16) & 0xFF, (argb >> 8) & 0xFF, argb & 0xFF);
+                }
+            }
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private void prepare(int width, int height) {
+        int length = width * height * 3 / 2;
+        if (pending.length < length) {
+            pending = new byte[length];
+        }
+        pendingMetadata = new FrameMetadata.Builder()
+                .setWidth(width)
+                .setHeight(height)
+                .setRotation(0)
+                .setCameraFacing(CameraSource.CAMERA_FACING_BACK)
+                .build();
+    }
+
+    /** Writes one pixel as BT.601 YUV; chroma is taken from the top left pixel of each 2x2 block. */
+    private void setPixel(int x, int y, int r, int g, int b) {
+        int width = pendingMetadata.getWidth();
+        pending[y * width + x] = (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+        if ((x & 1) == 0 && (y & 1) == 0) {
+            int offset = width * pendingMetadata.getHeight() + (y >> 1) * width + x;
+            pending[offset] = (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+            pending[offset + 1] = (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+        }
+    }
+}
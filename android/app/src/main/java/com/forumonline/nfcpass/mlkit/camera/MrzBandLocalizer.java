@@ -0,0 +1,288 @@
+package com.forumonline.nfcpass.mlkit.camera;
+
+import android.graphics.Rect;
+
+import androidx.camera.core.ImageProxy;
+
+import com.forumonline.nfcpass.mlkit.other.Frame;
+import com.forumonline.nfcpass.mlkit.other.FrameMetadata;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the machine readable zone in the luma plane so that only that band has to be recognized.
+ *
+ * <p>Edges are sampled on a grid of every {@link #CELL}th pixel. Summing them along the text
+ * direction gives a profile across the lines in which every line of text is a dense band. An MRZ
+ * is two or three such bands of equal thickness and even spacing whose text runs for many times
+ * the line height; the best group is returned with a margin of one line height. Text direction
+ * follows the frame rotation, so the bands run across the sensor image in portrait. Buffers are
+ * kept between frames and only reallocated when the frame size changes.
+ *
+ * <p>The localizer only reads a {@link ByteBuffer}, so it also runs on synthetic frames on a JVM.
+ */
+public class MrzBandLocalizer {
+
+    private static final int CELL = 4;
+
+    /** Summed horizontal and vertical luma difference for a grid point to count as an edge. */
+    private static final int EDGE_THRESHOLD = 48;
+
+    /** Share of a profile row that has to be edges for the row to belong to a text line. */
+    private static final float MIN_LINE_DENSITY = 0.12f;
+
+    private static final int MAX_BANDS = 48;
+
+    private static final float MAX_THICKNESS_RATIO = 1.8f;
+
+    /** MRZ lines run for 30 and more line heights; other text on a document is mostly shorter. */
+    private static final int MIN_LINE_ASPECT = 15;
+
+    /** A crop larger than this share of the frame is not worth the copy. */
+    private static final float MAX_CROP_AREA = 0.7f;
+
+    private boolean[] edges = new boolean[0];
+    private int[] acrossProfile = new int[0];
+    private int[] alongProfile = new int[0];
+    private final int[] bandStart = new int[MAX_BANDS];
+    private final int[] bandEnd = new int[MAX_BANDS];
+
+    private int gridWidth;
+    private int gridHeight;
+    private boolean transposed;
+
+    /** Result of {@link #findTextExtent}. */
+    private int extentStart;
+    private int extentEnd;
+
+    /**
+     * Looks for the MRZ in {@code frame} and stores its bounds in sensor pixels in {@code band},
+     * with even coordinates as NV21 cropping needs. Returns false if there is no MRZ-like group of
+     * lines or if it covers most of the frame anyway.
+     */
+    public boolean locate(Frame frame, Rect band) {
+        FrameMetadata metadata = frame.getMetadata();
+        ImageProxy image = frame.getImage();
+        if (image != null) {
+            ImageProxy.PlaneProxy plane = image.getPlanes()[0];
+            return locate(plane.getBuffer(), plane.getRowStride(), metadata.getWidth(), metadata.getHeight(),
+                    metadata.getRotation(), band);
+        }
+        return locate(frame.getNv21(), metadata.getWidth(), metadata.getWidth(), metadata.getHeight(),
+                metadata.getRotation(), band);
+    }
+
+    /** As {@link #locate(Frame, Rect)}, for a luma plane with the given row stride. */
+    public synchronized boolean locate(ByteBuffer luma, int rowStride, int width, int height, int rotation, Rect band) {
+        gridWidth = (width - 2) / CELL;
+        gridHeight = (height - 2) / CELL;
+        if (gridWidth < 8 || gridHeight < 8) {
+            return false;
+        }
+        transposed = rotation == 90 || rotation == 270;
+        int alongLength = transposed ? gridHeight : gridWidth;
+        int acrossLength = transposed ? gridWidth : gridHeight;
+
+        detectEdges(luma, rowStride);
+        buildAcrossProfile(alongLength, acrossLength);
+        int bandCount = findBands(acrossLength, Math.max(1, (int) (alongLength * MIN_LINE_DENSITY)));
+
+        int bestScore = 0;
+        int bestAcrossStart = 0;
+        int bestAcrossEnd = 0;
+        int bestAlongStart = 0;
+        int bestAlongEnd = 0;
+        for (int first = 0; first < bandCount; first++) {
+            for (int lines = 3; lines >= 2; lines--) {
+                int last = first + lines - 1;
+                if (last >= bandCount || !isEvenlySpaced(first, last)) {
+                    continue;
+                }
+                int thickness = (bandEnd[last] - bandStart[first] + 1 - gapSum(first, last)) / lines;
+                if (!findTextExtent(bandStart[first], bandEnd[last], alongLength, thickness)) {
+                    continue;
+                }
+                int length = extentEnd - extentStart + 1;
+                if (length < MIN_LINE_ASPECT * thickness) {
+                    continue;
+                }
+                int score = length * lines;
+                if (score > bestScore) {
+                    bestScore = score;
+                    int margin = Math.max(1, thickness);
+                    bestAcrossStart = bandStart[first] - margin;
+                    bestAcrossEnd = bandEnd[last] + margin;
+                    bestAlongStart = extentStart - margin;
+                    bestAlongEnd = extentEnd + margin;
+                }
+            }
+        }
+        if (bestScore == 0) {
+            return false;
+        }
+
+        int left;
+        int top;
+        int right;
+        int bottom;
+        if (transposed) {
+            left = toPixel(bestAcrossStart);
+            right = toPixel(bestAcrossEnd + 1);
+            top = toPixel(bestAlongStart);
+            bottom = toPixel(bestAlongEnd + 1);
+        } else {
+            left = toPixel(bestAlongStart);
+            right = toPixel(bestAlongEnd + 1);
+            top = toPixel(bestAcrossStart);
+            bottom = toPixel(bestAcrossEnd + 1);
+        }
+        left = Math.max(0, left) & ~1;
+        top = Math.max(0, top) & ~1;
+        right = Math.min(width, right + 1) & ~1;
+        bottom = Math.min(height, bottom + 1) & ~1;
+        if (right <= left || bottom <= top
+                || (float) (right - left) * (bottom - top) > MAX_CROP_AREA * width * height) {
+            return false;
+        }
+        band.set(left, top, right, bottom);
+        return true;
+    }
+
+    private static int toPixel(int cell) {
+        return 1 + cell * CELL;
+    }
+
+    private void detectEdges(ByteBuffer luma, int rowStride) {
+        int count = gridWidth * gridHeight;
+        if (edges.length < count) {
+            edges = new boolean[count];
+        }
+        int index = 0;
+        for (int gy = 0; gy < gridHeight; gy++) {
+            int offset = (1 + gy * CELL) * rowStride + 1;
+            for (int gx = 0; gx < gridWidth; gx++, offset += CELL) {
+                int horizontal = (luma.get(offset + 1) & 0xFF) - (luma.get(offset - 1) & 0xFF);
+                int vertical = (luma.get(offset + rowStride) & 0xFF) - (luma.get(offset - rowStride) & 0xFF);
+                edges[index++] = Math.abs(horizontal) + Math.abs(vertical) >= EDGE_THRESHOLD;
+            }
+        }
+    }
+
+    private boolean isEdge(int along, int across) {
+        return transposed
+                ? edges[along * gridWidth + across]
+                : edges[across * gridWidth + along];
+    }
+
+    private void buildAcrossProfile(int alongLength, int acrossLength) {
+        if (acrossProfile.length < acrossLength) {
+            acrossProfile = new int[acrossLength];
+        }
+        for (int across = 0; across < acrossLength; across++) {
+            int sum = 0;
+            for (int along = 0; along < alongLength; along++) {
+                if (isEdge(along, across)) {
+                    sum++;
+                }
+            }
+            acrossProfile[across] = sum;
+        }
+    }
+
+    /** Splits the profile into runs at or above {@code threshold}, bridging single-cell dips. */
+    private int findBands(int acrossLength, int threshold) {
+        int count = 0;
+        int across = 0;
+        while (across < acrossLength && count < MAX_BANDS) {
+            if (acrossProfile[across] < threshold) {
+                across++;
+                continue;
+            }
+            int start = across;
+            int end = across;
+            while (++across < acrossLength) {
+                if (acrossProfile[across] >= threshold) {
+                    end = across;
+                } else if (across + 1 >= acrossLength || acrossProfile[across + 1] < threshold) {
+                    break;
+                }
+            }
+            if (end - start + 1 >= 2) {
+                bandStart[count] = start;
+                bandEnd[count] = end;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int gapSum(int first, int last) {
+        int sum = 0;
+        for (int i = first; i < last; i++) {
+            sum += bandStart[i + 1] - bandEnd[i] - 1;
+        }
+        return sum;
+    }
+
+    /** Bands of similar thickness separated by similar gaps of at most two line heights. */
+    private boolean isEvenlySpaced(int first, int last) {
+        int minThickness = Integer.MAX_VALUE;
+        int maxThickness = 0;
+        int minGap = Integer.MAX_VALUE;
+        int maxGap = 0;
+        for (int i = first; i <= last; i++) {
+            int thickness = bandEnd[i] - bandStart[i] + 1;
+            minThickness = Math.min(minThickness, thickness);
+            maxThickness = Math.max(maxThickness, thickness);
+            if (i < last) {
+                int gap = bandStart[i + 1] - bandEnd[i] - 1;
+                minGap = Math.min(minGap, gap);
+                maxGap = Math.max(maxGap, gap);
+            }
+        }
+        if (maxThickness > MAX_THICKNESS_RATIO * minThickness || maxGap > 2 * maxThickness) {
+            return false;
+        }
+        return maxGap - minGap <= Math.max(2, maxGap / 2);
+    }
+
+    /**
+     * Finds the longest run along the lines in which edges are at most two line heights apart, the
+     * spacing of words and filler characters, and stores it in {@link #extentStart} and
+     * {@link #extentEnd}.
+     */
+    private boolean findTextExtent(int acrossStart, int acrossEnd, int alongLength, int thickness) {
+        if (alongProfile.length < alongLength) {
+            alongProfile = new int[alongLength];
+        }
+        for (int along = 0; along < alongLength; along++) {
+            int sum = 0;
+            for (int across = acrossStart; across <= acrossEnd; across++) {
+                if (isEdge(along, across)) {
+                    sum++;
+                }
+            }
+            alongProfile[along] = sum;
+        }
+
+        int maxGap = 2 * Math.max(1, thickness);
+        int bestLength = 0;
+        int runStart = -1;
+        int lastEdge = -1;
+        for (int along = 0; along <= alongLength; along++) {
+            boolean edge = along < alongLength && alongProfile[along] > 0;
+            if (edge) {
+                if (runStart < 0 || along - lastEdge > maxGap) {
+                    runStart = along;
+                }
+                lastEdge = along;
+                if (lastEdge - runStart + 1 > bestLength) {
+                    bestLength = lastEdge - runStart + 1;
+                    extentStart = runStart;
+                    extentEnd = lastEdge;
+                }
+            }
+        }
+        return bestLength > 0;
+    }
+}
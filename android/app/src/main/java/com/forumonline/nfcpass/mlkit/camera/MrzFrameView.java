@@ -0,0 +1,209 @@
+package com.forumonline.nfcpass.mlkit.camera;
+
+import android.animation.ObjectAnimator;
+import android.animation.ValueAnimator;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RecordingCanvas;
+import android.graphics.RectF;
+import android.graphics.RenderNode;
+import android.graphics.drawable.GradientDrawable;
+import android.os.Build;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.animation.AccelerateDecelerateInterpolator;
+
+/**
+ * Darkens the screen around the area the MRZ should be held in and frames that area.
+ *
+ * <p>The frame does not change while scanning, so it is drawn once per size: on Android 10 and
+ * later into a {@link RenderNode} that each draw replays, before that straight from paths and paints
+ * prepared in {@link #onSizeChanged}. The shade is a path with a hole for the window, so the window
+ * stays see-through without clearing pixels. What moves is done with property animations of child
+ * views, which the render thread applies without drawing anything again: a line sweeping over the
+ * window while scanning and a highlight that fades in when an MRZ was found.
+ */
+public class MrzFrameView extends ViewGroup {
+    private static final int SHADE_COLOR = 0x88000000;
+    private static final int FRAME_COLOR = 0xFF00FF00;
+    private static final float BORDER_WIDTH = 4;
+    private static final float CORNER_WIDTH = 8;
+    private static final float CORNER_LENGTH = 40;
+    private static final int SWEEP_HEIGHT = 4;
+    private static final int SWEEP_COLOR = 0xCC00FF00;
+    private static final long SWEEP_DURATION_MS = 1500;
+    private static final long DETECTED_DURATION_MS = 200;
+
+    /** Size of the window as a share of the view, centred; the MRZ band of a page held in portrait. */
+    private static final float WINDOW_WIDTH = 0.9f;
+    private static final float WINDOW_HEIGHT = 0.2f;
+
+    private final Paint shadePaint = new Paint();
+    private final Paint borderPaint = new Paint();
+    private final Paint cornerPaint = new Paint();
+    private final Path shade = new Path();
+    private final RectF window = new RectF();
+    private float[] corners = new float[0];
+    private RenderNode frameNode;
+
+    private final View sweepLine;
+    private final View detectedFrame;
+    private ObjectAnimator sweepAnimator;
+
+    public MrzFrameView(Context context) {
+        super(context);
+        setWillNotDraw(false);
+
+        shadePaint.setColor(SHADE_COLOR);
+        shade.setFillType(Path.FillType.EVEN_ODD);
+        borderPaint.setColor(FRAME_COLOR);
+        borderPaint.setStyle(Paint.Style.STROKE);
+        borderPaint.setStrokeWidth(BORDER_WIDTH);
+        cornerPaint.setColor(FRAME_COLOR);
+        cornerPaint.setStrokeWidth(CORNER_WIDTH);
+
+        sweepLine = new View(context);
+        sweepLine.setBackgroundColor(SWEEP_COLOR);
+        sweepLine.setVisibility(INVISIBLE);
+        addView(sweepLine);
+
+        GradientDrawable highlight = new GradientDrawable();
+        highlight.setColor(0x3300FF00);
+        highlight.setStroke((int) CORNER_WIDTH, FRAME_COLOR);
+        detectedFrame = new View(context);
+        detectedFrame.setBackground(highlight);
+        detectedFrame.setAlpha(0);
+        addView(detectedFrame);
+    }
+
+    /** Starts sweeping the line over the window, until {@link #stopScanning()}. */
+    public void startScanning() {
+        detectedFrame.animate().cancel();
+        detectedFrame.setAlpha(0);
+        if (sweepAnimator == null) {
+            sweepAnimator = ObjectAnimator.ofFloat(sweepLine, View.TRANSLATION_Y, 0, 1);
+            sweepAnimator.setDuration(SWEEP_DURATION_MS);
+            sweepAnimator.setInterpolator(new AccelerateDecelerateInterpolator());
+            sweepAnimator.setRepeatCount(ValueAnimator.INFINITE);
+            sweepAnimator.setRepeatMode(ValueAnimator.REVERSE);
+        }
+        updateSweepRange();
+        sweepLine.setVisibility(VISIBLE);
+        if (!sweepAnimator.isStarted()) {
+            sweepAnimator.start();
+        }
+    }
+
+    public void stopScanning() {
+        if (sweepAnimator != null) {
+            sweepAnimator.cancel();
+        }
+        sweepLine.setVisibility(INVISIBLE);
+    }
+
+    /** Stops the sweep and fades in a highlight over the window. */
+    public void showDetected() {
+        stopScanning();
+        detectedFrame.animate().alpha(1).setDuration(DETECTED_DURATION_MS);
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = getDefaultSize(getSuggestedMinimumWidth(), widthMeasureSpec);
+        int height = getDefaultSize(getSuggestedMinimumHeight(), heightMeasureSpec);
+        setMeasuredDimension(width, height);
+
+        int windowWidth = (int) (width * WINDOW_WIDTH);
+        int windowHeight = (int) (height * WINDOW_HEIGHT);
+        sweepLine.measure(MeasureSpec.makeMeasureSpec(windowWidth, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(SWEEP_HEIGHT, MeasureSpec.EXACTLY));
+        detectedFrame.measure(MeasureSpec.makeMeasureSpec(windowWidth, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(windowHeight, MeasureSpec.EXACTLY));
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        int left = (int) window.left;
+        int top = (int) window.top;
+        sweepLine.layout(left, top, left + sweepLine.getMeasuredWidth(), top + SWEEP_HEIGHT);
+        detectedFrame.layout(left, top, left + detectedFrame.getMeasuredWidth(), top + detectedFrame.getMeasuredHeight());
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+
+        int windowWidth = (int) (width * WINDOW_WIDTH);
+        int windowHeight = (int) (height * WINDOW_HEIGHT);
+        int left = (width - windowWidth) / 2;
+        int top = (height - windowHeight) / 2;
+        window.set(left, top, left + windowWidth, top + windowHeight);
+
+        shade.rewind();
+        shade.addRect(0, 0, width, height, Path.Direction.CW);
+        shade.addRect(window, Path.Direction.CW);
+        setCorners();
+        updateSweepRange();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && frameNode != null) {
+            // Recorded again with the new geometry on the next draw
+            frameNode.discardDisplayList();
+        }
+    }
+
+    /** Two lines per corner along the edges of the window, four coordinates each. */
+    private void setCorners() {
+        float l = window.left;
+        float t = window.top;
+        float r = window.right;
+        float b = window.bottom;
+        corners = new float[] {
+            l, t, l + CORNER_LENGTH, t,   l, t, l, t + CORNER_LENGTH,
+            r - CORNER_LENGTH, t, r, t,   r, t, r, t + CORNER_LENGTH,
+            l, b - CORNER_LENGTH, l, b,   l, b, l + CORNER_LENGTH, b,
+            r - CORNER_LENGTH, b, r, b,   r, b - CORNER_LENGTH, r, b,
+        };
+    }
+
+    private void updateSweepRange() {
+        if (sweepAnimator != null) {
+            sweepAnimator.setFloatValues(0, Math.max(0, window.height() - SWEEP_HEIGHT));
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && canvas.isHardwareAccelerated()) {
+            if (frameNode == null) {
+                frameNode = new RenderNode("MrzFrame");
+            }
+            if (!frameNode.hasDisplayList()) {
+                frameNode.setPosition(0, 0, getWidth(), getHeight());
+                RecordingCanvas recordingCanvas = frameNode.beginRecording();
+                drawFrame(recordingCanvas);
+                frameNode.endRecording();
+            }
+            canvas.drawRenderNode(frameNode);
+        } else {
+            drawFrame(canvas);
+        }
+    }
+
+    private void drawFrame(Canvas canvas) {
+        canvas.drawPath(shade, shadePaint);
+        canvas.drawRect(window, borderPaint);
+        canvas.drawLines(corners, cornerPaint);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        stopScanning();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && frameNode != null) {
+            frameNode.discardDisplayList();
+        }
+        super.onDetachedFromWindow();
+    }
+}
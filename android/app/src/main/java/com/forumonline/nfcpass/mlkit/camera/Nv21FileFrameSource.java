@@ -0,0 +1,84 @@
+package com.forumonline.nfcpass.mlkit.camera;
+
+import com.forumonline.nfcpass.mlkit.other.FrameMetadata;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Replays a dump of equally sized NV21 frames written back to back, as recorded by
+ * {@link Nv21FrameRecorder}. Width, height and rotation are not part of the dump and are given to
+ * the constructor. Frames are read through a {@link FileChannel}, straight into direct buffers if
+ * the source uses them.
+ */
+public class Nv21FileFrameSource extends RecordedFrameSource {
+    private final File file;
+    private final FrameMetadata metadata;
+    private final int frameLength;
+
+    private FileInputStream input;
+    private FileChannel channel;
+    private long remainingFrames;
+
+    public Nv21FileFrameSource(File file, int width, int height, int rotation) {
+        this.file = file;
+        this.metadata = new FrameMetadata.Builder()
+                .setWidth(width)
+                .setHeight(height)
+                .setRotation(rotation)
+                .setCameraFacing(CameraSource.CAMERA_FACING_BACK)
+                .build();
+        this.frameLength = width * height * 3 / 2;
+    }
+
+    /** Number of complete frames in the dump. */
+    public long getFrameCount() {
+        return file.length() / frameLength;
+    }
+
+    @Override
+    protected void open() throws IOException {
+        close();
+        input = new FileInputStream(file);
+        channel = input.getChannel();
+        remainingFrames = getFrameCount();
+    }
+
+    @Override
+    protected FrameMetadata nextFrame() {
+        return remainingFrames > 0 ? metadata : null;
+    }
+
+    @Override
+    protected void readFrame(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Truncated NV21 dump " + file);
+            }
+        }
+        remainingFrames--;
+    }
+
+    @Override
+    protected void skipFrame() throws IOException {
+        channel.position(channel.position() + frameLength);
+        remainingFrames--;
+    }
+
+    @Override
+    protected void close() {
+        if (input != null) {
+            try {
+                input.close();
+            } catch (IOException ignored) {
+                // Nothing left to read from it
+            }
+            input = null;
+            channel = null;
+        }
+    }
+}
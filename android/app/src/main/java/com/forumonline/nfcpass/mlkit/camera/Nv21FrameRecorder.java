@@ -0,0 +1,100 @@
+package com.forumonline.nfcpass.mlkit.camera;
+
+import android.util.Log;
+
+import com.forumonline.nfcpass.mlkit.other.Frame;
+import com.forumonline.nfcpass.mlkit.other.FrameMetadata;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Passes frames on to another listener and appends them as NV21 to a dump that
+ * {@link Nv21FileFrameSource} can replay. Only frames of the size of the first one are recorded,
+ * and at most {@code maxFrames} of them. Recording costs a copy per frame and is meant for
+ * collecting test input, not for production scanning.
+ */
+public class Nv21FrameRecorder implements FrameSource.FrameListener {
+    private static final String TAG = "Nv21FrameRecorder";
+
+    private final File file;
+    private final FrameSource.FrameListener delegate;
+    private final int maxFrames;
+
+    private OutputStream output;
+    private byte[] nv21 = new byte[0];
+    private int width;
+    private int height;
+    private int recordedFrames;
+
+    public Nv21FrameRecorder(File file, int maxFrames, FrameSource.FrameListener delegate) {
+        this.file = file;
+        this.maxFrames = maxFrames;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void onFrame(Frame frame) {
+        if (recordedFrames < maxFrames) {
+            try {
+                record(frame);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not record frame", e);
+                recordedFrames = maxFrames;
+                closeOutput();
+            }
+        }
+        delegate.onFrame(frame);
+    }
+
+    @Override
+    public void onEnd() {
+        closeOutput();
+        delegate.onEnd();
+    }
+
+    /** Finishes the dump; call when the source is stopped. */
+    public synchronized void close() {
+        closeOutput();
+    }
+
+    private synchronized void record(Frame frame) throws IOException {
+        FrameMetadata metadata = frame.getMetadata();
+        if (output == null) {
+            width = metadata.getWidth();
+            height = metadata.getHeight();
+            output = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+            Log.i(TAG, "Recording " + width + "x" + height + " NV21 frames, rotation "
+                    + metadata.getRotation() + ", to " + file);
+        }
+        if (metadata.getWidth() != width || metadata.getHeight() != height) {
+            return;
+        }
+
+        int length = width * height * 3 / 2;
+        if (nv21.length < length) {
+            nv21 = new byte[length];
+        }
+        frame.copyNv21(null, nv21);
+        output.write(nv21, 0, length);
+
+        if (++recordedFrames == maxFrames) {
+            closeOutput();
+        }
+    }
+
+    private synchronized void closeOutput() {
+        if (output != null) {
+            try {
+                output.close();
+                Log.i(TAG, "Recorded " + recordedFrames + " frames to " + file);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not finish recording", e);
+            }
+            output = null;
+        }
+    }
+}
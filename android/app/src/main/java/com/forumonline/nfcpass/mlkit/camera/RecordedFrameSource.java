@@ -0,0 +1,180 @@
+package com.forumonline.nfcpass.mlkit.camera;
+
+import android.util.Log;
+
+import com.forumonline.nfcpass.mlkit.other.Frame;
+import com.forumonline.nfcpass.mlkit.other.FrameMetadata;
+import com.forumonline.nfcpass.mlkit.other.FrameRing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays recorded NV21 frames on a thread of its own.
+ *
+ * <p>With a frame interval of 0 the next frame is delivered as soon as the listener has closed the
+ * previous one, which measures pure processing time. With an interval the source behaves like the
+ * camera with {@code STRATEGY_KEEP_ONLY_LATEST}: frames are due at a fixed rate and a frame is
+ * dropped when the listener still holds both buffers at its due time.
+ *
+ * <p>Buffers are handed over through a {@link FrameRing}, so the listener releasing a frame never
+ * takes a lock. They are heap buffers unless {@link #setDirectBuffers(boolean)} asks for direct
+ * ones.
+ */
+public abstract class RecordedFrameSource implements FrameSource {
+    private static final String TAG = "RecordedFrameSource";
+
+    private static final int BUFFER_COUNT = 2;
+
+    private static final int END_TIMEOUT_SECONDS = 10;
+
+    private int frameIntervalMillis;
+    private boolean directBuffers;
+    private Thread replayThread;
+    private volatile boolean running;
+
+    private volatile long deliveredFrames;
+    private volatile long droppedFrames;
+
+    /** Sets the delay between due frames, 0 to wait for each frame to be processed instead. */
+    public synchronized void setFrameIntervalMillis(int frameIntervalMillis) {
+        this.frameIntervalMillis = frameIntervalMillis;
+    }
+
+    /** Reads frames into direct buffers, for listeners that take them without copying. */
+    public synchronized void setDirectBuffers(boolean directBuffers) {
+        this.directBuffers = directBuffers;
+    }
+
+    public long getDeliveredFrames() {
+        return deliveredFrames;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    @Override
+    public synchronized void start(FrameListener listener) throws IOException {
+        if (running) {
+            return;
+        }
+        open();
+        running = true;
+        deliveredFrames = 0;
+        droppedFrames = 0;
+        int interval = frameIntervalMillis;
+        // Waiting for each frame means a single buffer, a fixed rate lets the camera run ahead
+        FrameRing ring = new FrameRing(interval == 0 ? 1 : BUFFER_COUNT, directBuffers);
+        replayThread = new Thread(() -> replay(listener, interval, ring), "FrameReplay");
+        replayThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        if (replayThread != null) {
+            replayThread.interrupt();
+            try {
+                replayThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            replayThread = null;
+        }
+    }
+
+    /** Blocks until a started source has delivered its last frame or was stopped. */
+    public void awaitEnd() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = replayThread;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    /** Rewinds to the first frame. */
+    protected abstract void open() throws IOException;
+
+    /** Returns the metadata of the next frame, or null after the last one. */
+    protected abstract FrameMetadata nextFrame() throws IOException;
+
+    /**
+     * Reads the frame announced by {@link #nextFrame()} as NV21 into {@code buffer}, from its
+     * position up to its limit.
+     */
+    protected abstract void readFrame(ByteBuffer buffer) throws IOException;
+
+    /** Skips the frame announced by {@link #nextFrame()}. */
+    protected abstract void skipFrame() throws IOException;
+
+    protected abstract void close();
+
+    private void replay(FrameListener listener, int frameIntervalMillis, FrameRing ring) {
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(frameIntervalMillis);
+        long endTimeoutNanos = TimeUnit.SECONDS.toNanos(END_TIMEOUT_SECONDS);
+        long dueTime = System.nanoTime();
+        long sequenceNumber = 0;
+
+        try {
+            FrameMetadata metadata;
+            while (running && (metadata = nextFrame()) != null) {
+                int slot;
+                if (intervalNanos == 0) {
+                    slot = ring.acquire(endTimeoutNanos);
+                    if (slot < 0) {
+                        if (!Thread.currentThread().isInterrupted()) {
+                            Log.w(TAG, "Listener did not close the last frame, stopping replay");
+                        }
+                        break;
+                    }
+                } else {
+                    long wait = dueTime - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    dueTime += intervalNanos;
+                    slot = ring.tryAcquire();
+                    if (slot < 0) {
+                        skipFrame();
+                        sequenceNumber++;
+                        droppedFrames++;
+                        continue;
+                    }
+                }
+
+                int length = metadata.getWidth() * metadata.getHeight() * 3 / 2;
+                try {
+                    readFrame(ring.prepare(slot, length));
+                } catch (IOException e) {
+                    ring.cancel(slot);
+                    throw e;
+                }
+                ring.publish(slot);
+
+                int taken = ring.take();
+                ByteBuffer buffer = ring.getBuffer(taken);
+                buffer.rewind();
+                listener.onFrame(Frame.fromNv21(sequenceNumber++, System.nanoTime(), buffer, metadata,
+                        () -> ring.release(taken)));
+                deliveredFrames++;
+            }
+
+            // Report the end only once the listener is done with the last frames
+            if (running && !ring.awaitIdle(endTimeoutNanos)) {
+                Log.w(TAG, "Listener did not close the last frames");
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Frame replay interrupted");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read recorded frame", e);
+        } finally {
+            close();
+            running = false;
+        }
+        listener.onEnd();
+    }
+}
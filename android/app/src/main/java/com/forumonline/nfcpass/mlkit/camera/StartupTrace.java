@@ -0,0 +1,108 @@
+package com.forumonline.nfcpass.mlkit.camera;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Times the milestones between a scan being requested and the MRZ being found.
+ *
+ * <p>Each milestone is recorded once, the first time it is reached, as
+ * {@link SystemClock#elapsedRealtimeNanos()}, which keeps counting across threads and does not
+ * jump with the wall clock. The origin is normally the moment JS asked for the scanner, taken in
+ * the native module and handed to the activity in the intent. Marking a milestone that has already
+ * been reached is a single array read, so the trace stays on in production and can be marked from
+ * per-frame code.
+ */
+public class StartupTrace {
+
+    public enum Milestone {
+        /** {@code CaptureActivity.onCreate} started. */
+        ACTIVITY_CREATED("activityCreated"),
+        /** The text recognition processor was created; fast when its recognizers were warm. */
+        PROCESSOR_CREATED("processorCreated"),
+        /** {@link CameraSource} was asked to start. */
+        CAMERA_STARTING("cameraStarting"),
+        /** The CameraX provider became available. */
+        CAMERA_PROVIDER_READY("cameraProviderReady"),
+        /** Use cases were bound: the camera is open and the stream sizes are selected. */
+        CAMERA_BOUND("cameraBound"),
+        /** The preview started streaming to the screen. */
+        FIRST_PREVIEW_FRAME("firstPreviewFrame"),
+        /** The first frame reached the analyzer. */
+        FIRST_ANALYSIS_FRAME("firstAnalysisFrame"),
+        /** The first frame passed the quality filter. */
+        FIRST_ACCEPTED_FRAME("firstAcceptedFrame"),
+        /** The first frame was handed to a recognizer. */
+        FIRST_RECOGNITION_STARTED("firstRecognitionStarted"),
+        /** The first recognition finished, with or without text. */
+        FIRST_RECOGNITION_DONE("firstRecognitionDone"),
+        /** The first recognition that found any text finished. */
+        FIRST_TEXT("firstText"),
+        /** An MRZ was parsed from the recognized text. */
+        MRZ_FOUND("mrzFound");
+
+        private final String key;
+
+        Milestone(String key) {
+            this.key = key;
+        }
+
+        /** Name of the milestone in the summary sent to JS. */
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private static final Milestone[] MILESTONES = Milestone.values();
+
+    private final long originNanos;
+    private final AtomicLongArray reachedNanos = new AtomicLongArray(MILESTONES.length);
+
+    /** Starts a trace at {@code originNanos}, in {@link SystemClock#elapsedRealtimeNanos()} time. */
+    public StartupTrace(long originNanos) {
+        this.originNanos = originNanos;
+    }
+
+    /** Starts a trace now. */
+    public StartupTrace() {
+        this(SystemClock.elapsedRealtimeNanos());
+    }
+
+    /** Records that {@code milestone} has been reached, unless it was reached before. */
+    public void mark(Milestone milestone) {
+        int index = milestone.ordinal();
+        if (reachedNanos.get(index) == 0) {
+            reachedNanos.compareAndSet(index, 0, SystemClock.elapsedRealtimeNanos());
+        }
+    }
+
+    public boolean isReached(Milestone milestone) {
+        return reachedNanos.get(milestone.ordinal()) != 0;
+    }
+
+    /** Milliseconds from the origin to {@code milestone}, or -1 if it has not been reached. */
+    public double getMillis(Milestone milestone) {
+        long nanos = reachedNanos.get(milestone.ordinal());
+        return nanos == 0 ? -1 : (nanos - originNanos) / 1e6;
+    }
+
+    /** One line with every reached milestone in milliseconds, for the log. */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("StartupTrace{");
+        boolean first = true;
+        for (Milestone milestone : MILESTONES) {
+            if (!isReached(milestone)) {
+                continue;
+            }
+            if (!first) {
+                builder.append(", ");
+            }
+            first = false;
+            builder.append(milestone.getKey()).append('=')
+                    .append(Math.round(getMillis(milestone))).append("ms");
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,130 @@
+package com.forumonline.nfcpass.mlkit.other;
+
+import android.graphics.Rect;
+
+import androidx.camera.core.ImageProxy;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One frame handed from a {@link com.forumonline.nfcpass.mlkit.camera.FrameSource} to a processor:
+ * either an NV21 buffer or a CameraX {@link ImageProxy}, together with its {@link FrameMetadata}.
+ *
+ * <p>The pixels belong to the source until the frame is {@link #close() closed}. Processors close
+ * every frame they are given exactly once, also when they drop it, so that the source can reuse the
+ * buffer or hand out the next camera image.
+ */
+public final class Frame {
+    private final long sequenceNumber;
+    private final long timestampNanos;
+    private final FrameMetadata metadata;
+    private final ByteBuffer nv21;
+    private final ImageProxy image;
+    private final Runnable onClose;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private Frame(long sequenceNumber, long timestampNanos, FrameMetadata metadata, ByteBuffer nv21,
+                  ImageProxy image, Runnable onClose) {
+        this.sequenceNumber = sequenceNumber;
+        this.timestampNanos = timestampNanos;
+        this.metadata = metadata;
+        this.nv21 = nv21;
+        this.image = image;
+        this.onClose = onClose;
+    }
+
+    /** Wraps NV21 pixels; {@code onClose} runs once when the frame is closed and may be null. */
+    public static Frame fromNv21(long sequenceNumber, long timestampNanos, ByteBuffer nv21,
+                                 FrameMetadata metadata, Runnable onClose) {
+        return new Frame(sequenceNumber, timestampNanos, metadata, nv21, null, onClose);
+    }
+
+    /** Wraps a CameraX image; closing the frame closes the image. */
+    public static Frame fromImageProxy(long sequenceNumber, ImageProxy image, FrameMetadata metadata) {
+        return new Frame(sequenceNumber, image.getImageInfo().getTimestamp(), metadata, null, image, image::close);
+    }
+
+    /** Position of the frame in its source, starting at 0. */
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    public FrameMetadata getMetadata() {
+        return metadata;
+    }
+
+    /** NV21 pixels, or null for a camera image. */
+    public ByteBuffer getNv21() {
+        return nv21;
+    }
+
+    /** Camera image in YUV_420_888, or null for an NV21 frame. */
+    public ImageProxy getImage() {
+        return image;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /** Gives the pixels back to the source. Further calls do nothing. */
+    public void close() {
+        if (closed.compareAndSet(false, true) && onClose != null) {
+            onClose.run();
+        }
+    }
+
+    /**
+     * Copies the pixels of {@code region}, or of the whole frame if it is null, into {@code out} in
+     * NV21 layout. The region must have even bounds; {@code out} must hold width * height * 3 / 2
+     * bytes of the region.
+     */
+    public void copyNv21(Rect region, byte[] out) {
+        int left = region != null ? region.left : 0;
+        int top = region != null ? region.top : 0;
+        int width = region != null ? region.width() : metadata.getWidth();
+        int height = region != null ? region.height() : metadata.getHeight();
+
+        if (image == null) {
+            int frameWidth = metadata.getWidth();
+            int chromaStart = frameWidth * metadata.getHeight();
+            ByteBuffer buffer = nv21.duplicate();
+            for (int y = 0; y < height; y++) {
+                buffer.position((top + y) * frameWidth + left);
+                buffer.get(out, y * width, width);
+            }
+            for (int y = 0; y < height / 2; y++) {
+                buffer.position(chromaStart + (top / 2 + y) * frameWidth + left);
+                buffer.get(out, width * height + y * width, width);
+            }
+            return;
+        }
+
+        ImageProxy.PlaneProxy[] planes = image.getPlanes();
+        ByteBuffer yBuffer = planes[0].getBuffer().duplicate();
+        int yRowStride = planes[0].getRowStride();
+        for (int y = 0; y < height; y++) {
+            yBuffer.position((top + y) * yRowStride + left);
+            yBuffer.get(out, y * width, width);
+        }
+
+        ByteBuffer uBuffer = planes[1].getBuffer();
+        ByteBuffer vBuffer = planes[2].getBuffer();
+        int uRowStride = planes[1].getRowStride();
+        int uPixelStride = planes[1].getPixelStride();
+        int vRowStride = planes[2].getRowStride();
+        int vPixelStride = planes[2].getPixelStride();
+        int offset = width * height;
+        for (int y = top / 2; y < (top + height) / 2; y++) {
+            for (int x = left / 2; x < (left + width) / 2; x++) {
+                out[offset++] = vBuffer.get(y * vRowStride + x * vPixelStride);
+                out[offset++] = uBuffer.get(y * uRowStride + x * uPixelStride);
+            }
+        }
+    }
+}
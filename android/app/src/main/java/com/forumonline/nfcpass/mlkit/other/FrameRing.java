@@ -0,0 +1,223 @@
+package com.forumonline.nfcpass.mlkit.other;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed set of frame buffers handed between one producer and its consumers without locks.
+ *
+ * <p>Every slot is in one of four states, changed only by compare-and-set:
+ * <pre>
+ *   FREE --acquire--> FILLING --publish--> PENDING --take--> PROCESSING --release--> FREE
+ *                                            |
+ *                                            +-- replaced by a newer frame --> FREE
+ * </pre>
+ * Only the owner of a slot in FILLING or PROCESSING touches its buffer; the atomic state change
+ * publishes the pixels to the next owner. At most one slot is PENDING: publishing a frame while an
+ * older one is still pending frees the older one, like {@code STRATEGY_KEEP_ONLY_LATEST} does for
+ * camera frames, and counts it as dropped.
+ *
+ * <p>A producer that finds no free slot either drops its frame ({@link #tryAcquire()}) or parks
+ * until a consumer releases one ({@link #acquire(long)}). Buffers are direct if the consumer can
+ * read them without a copy, else heap buffers with an accessible array.
+ */
+public final class FrameRing {
+    public static final int FREE = 0;
+    /** Held by the producer (the camera or a recording) while it writes pixels. */
+    public static final int FILLING = 1;
+    /** Complete and waiting for a consumer. */
+    public static final int PENDING = 2;
+    /** Held by a consumer until it releases the slot. */
+    public static final int PROCESSING = 3;
+
+    private static final int NONE = -1;
+
+    private final AtomicIntegerArray states;
+    private final ByteBuffer[] buffers;
+    private final boolean direct;
+
+    /** The pending slot, or {@link #NONE}. */
+    private final AtomicInteger pending = new AtomicInteger(NONE);
+    /** Where the next search for a free slot starts, so slots are used round robin. */
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final AtomicReference<Thread> waiter = new AtomicReference<>();
+
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    public FrameRing(int slotCount, boolean direct) {
+        states = new AtomicIntegerArray(slotCount);
+        buffers = new ByteBuffer[slotCount];
+        this.direct = direct;
+        for (int i = 0; i < slotCount; i++) {
+            buffers[i] = allocate(0);
+        }
+    }
+
+    public int getSlotCount() {
+        return buffers.length;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public int getState(int slot) {
+        return states.get(slot);
+    }
+
+    /** Pending frames that were replaced by newer ones before a consumer took them. */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /** Moves a free slot to FILLING and returns it, or returns -1 if every slot is in use. */
+    public int tryAcquire() {
+        int count = buffers.length;
+        int start = cursor.get();
+        for (int i = 0; i < count; i++) {
+            int slot = (start + i) % count;
+            if (states.compareAndSet(slot, FREE, FILLING)) {
+                cursor.set((slot + 1) % count);
+                return slot;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * As {@link #tryAcquire()}, but parks for up to {@code timeoutNanos} until a slot is released.
+     * Only one thread may wait at a time, normally the producer. Returns -1 on timeout or interrupt.
+     */
+    public int acquire(long timeoutNanos) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        Thread current = Thread.currentThread();
+        while (true) {
+            int slot = tryAcquire();
+            if (slot != NONE) {
+                return slot;
+            }
+            waiter.set(current);
+            // A release between the failed attempt and setting the waiter must not be missed
+            slot = tryAcquire();
+            if (slot != NONE) {
+                waiter.compareAndSet(current, null);
+                return slot;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || current.isInterrupted()) {
+                waiter.compareAndSet(current, null);
+                return NONE;
+            }
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    /**
+     * Returns the buffer of a slot held in FILLING, grown to at least {@code capacity} bytes, with
+     * position 0 and limit {@code capacity}.
+     */
+    public ByteBuffer prepare(int slot, int capacity) {
+        checkState(slot, FILLING);
+        ByteBuffer buffer = buffers[slot];
+        if (buffer.capacity() < capacity) {
+            buffer = allocate(capacity);
+            buffers[slot] = buffer;
+        }
+        buffer.clear();
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    /** Hands a filled slot to consumers, freeing a still pending older frame. */
+    public void publish(int slot) {
+        if (!states.compareAndSet(slot, FILLING, PENDING)) {
+            throw new IllegalStateException("Slot " + slot + " is not being filled");
+        }
+        int replaced = pending.getAndSet(slot);
+        // Whoever swaps an index out of pending owns its transition, so these cannot fail
+        if (replaced != NONE && states.compareAndSet(replaced, PENDING, FREE)) {
+            droppedFrames.incrementAndGet();
+            wakeWaiter();
+        }
+    }
+
+    /** Gives a slot in FILLING back without publishing it, e.g. when reading the frame failed. */
+    public void cancel(int slot) {
+        if (!states.compareAndSet(slot, FILLING, FREE)) {
+            throw new IllegalStateException("Slot " + slot + " is not being filled");
+        }
+        wakeWaiter();
+    }
+
+    /** Moves the pending slot to PROCESSING and returns it, or returns -1 if none is pending. */
+    public int take() {
+        int slot = pending.getAndSet(NONE);
+        if (slot != NONE && !states.compareAndSet(slot, PENDING, PROCESSING)) {
+            throw new IllegalStateException("Slot " + slot + " was taken twice");
+        }
+        return slot;
+    }
+
+    /** The buffer of a slot in PROCESSING, positioned as it was published. */
+    public ByteBuffer getBuffer(int slot) {
+        return buffers[slot];
+    }
+
+    /** Returns a processed slot to the producer. */
+    public void release(int slot) {
+        if (!states.compareAndSet(slot, PROCESSING, FREE)) {
+            throw new IllegalStateException("Slot " + slot + " is not being processed");
+        }
+        wakeWaiter();
+    }
+
+    /** True when no slot is held or pending. */
+    public boolean isIdle() {
+        for (int i = 0; i < buffers.length; i++) {
+            if (states.get(i) != FREE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Parks until {@link #isIdle()} or the timeout passes; returns whether the ring is idle. */
+    public boolean awaitIdle(long timeoutNanos) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        Thread current = Thread.currentThread();
+        while (true) {
+            waiter.set(current);
+            if (isIdle()) {
+                waiter.compareAndSet(current, null);
+                return true;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || current.isInterrupted()) {
+                waiter.compareAndSet(current, null);
+                return false;
+            }
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    private void wakeWaiter() {
+        Thread thread = waiter.get();
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void checkState(int slot, int expected) {
+        if (states.get(slot) != expected) {
+            throw new IllegalStateException("Slot " + slot + " is in state " + states.get(slot));
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+}
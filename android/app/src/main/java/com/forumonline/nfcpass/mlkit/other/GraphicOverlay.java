@@ -95,6 +95,10 @@ public class GraphicOverlay extends View {
     /** Removes all graphics from the overlay. */
     public void clear() {
         synchronized (lock) {
+            // The live scanner clears on every frame and draws nothing, don't redraw for nothing
+            if (graphics.isEmpty()) {
+                return;
+            }
             graphics.clear();
         }
         postInvalidate();
@@ -0,0 +1,145 @@
+package com.forumonline.nfcpass.mlkit.other;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.forumonline.nfcpass.BuildConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Debug logging for the per-frame scan path: recognized text, MRZ parsing steps and the like.
+ *
+ * <p>Debug builds write to logcat. Release builds do not: R8 takes {@link BuildConfig#DEBUG} as false
+ * (see proguard-rules.pro) and removes the logcat branch, so {@link #d} and {@link #w} come down to a
+ * volatile read once the message is built. Building it is the cost on the per-frame path, so messages
+ * with values in them use the format overloads of {@link #d}, which format only if
+ * {@link #isEnabled()}; the arguments themselves are still evaluated, and numbers boxed. A block that
+ * does more work to produce messages, such as splitting the recognized text, or a message with more
+ * values than the overloads take, is guarded with {@link #isEnabled()} instead.
+ *
+ * <p>In any build, scan diagnostics can be switched on at run time; messages are then also kept in a
+ * bounded in-memory buffer of the last {@link #CAPACITY} entries, to be fetched with
+ * {@link #getDiagnostics()}, e.g. from JS for a support report. As that report leaves the device,
+ * the buffer has document numbers, dates and the MRZ lines holding them masked; see {@link #redact}.
+ */
+public final class ScanLog {
+
+    private static final int CAPACITY = 500;
+
+    /** A run of MRZ characters with a digit in it: a document number, a date or a whole MRZ line. */
+    private static final Pattern MRZ_DATA = Pattern.compile("[A-Za-z0-9<]*[0-9][A-Za-z0-9<]*");
+    private static final int MIN_MRZ_DATA_LENGTH = 6;
+
+    private static final String[] messages = new String[CAPACITY];
+    private static final long[] times = new long[CAPACITY];
+    private static int next;
+    private static int count;
+    private static long startMillis;
+
+    private static volatile boolean diagnostics;
+
+    private ScanLog() {}
+
+    /** Whether debug messages are read at all; false in release builds unless diagnostics are on. */
+    public static boolean isEnabled() {
+        return BuildConfig.DEBUG || diagnostics;
+    }
+
+    public static void d(String tag, String message) {
+        if (BuildConfig.DEBUG) {
+            Log.d(tag, message);
+        }
+        if (diagnostics) {
+            record(tag, message);
+        }
+    }
+
+    /** As {@link #d(String, String)}, formatting {@code format} with {@link String#format} only if enabled. */
+    public static void d(String tag, String format, Object arg) {
+        if (isEnabled()) {
+            d(tag, String.format(Locale.ROOT, format, arg));
+        }
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        if (isEnabled()) {
+            d(tag, String.format(Locale.ROOT, format, arg1, arg2));
+        }
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled()) {
+            d(tag, String.format(Locale.ROOT, format, arg1, arg2, arg3));
+        }
+    }
+
+    public static void w(String tag, String message) {
+        if (BuildConfig.DEBUG) {
+            Log.w(tag, message);
+        }
+        if (diagnostics) {
+            record(tag, message);
+        }
+    }
+
+    /** Starts or stops collecting diagnostics; starting clears what was collected before. */
+    public static synchronized void setDiagnosticsEnabled(boolean enabled) {
+        if (enabled && !diagnostics) {
+            next = 0;
+            count = 0;
+            startMillis = SystemClock.elapsedRealtime();
+        }
+        diagnostics = enabled;
+    }
+
+    public static boolean isDiagnosticsEnabled() {
+        return diagnostics;
+    }
+
+    /** The collected messages, oldest first, each prefixed with milliseconds since collection started. */
+    public static synchronized List<String> getDiagnostics() {
+        List<String> result = new ArrayList<>(count);
+        int first = (next - count + CAPACITY) % CAPACITY;
+        for (int i = 0; i < count; i++) {
+            int index = (first + i) % CAPACITY;
+            result.add("+" + (times[index] - startMillis) + "ms " + messages[index]);
+        }
+        return result;
+    }
+
+    /**
+     * Masks the letters and digits of every run of at least six MRZ characters that holds a digit,
+     * keeping fillers and length so that OCR problems still show. Shorter numbers, such as counts
+     * and timings, and words without digits are kept.
+     */
+    static String redact(String message) {
+        Matcher matcher = MRZ_DATA.matcher(message);
+        StringBuilder redacted = null;
+        while (matcher.find()) {
+            if (matcher.end() - matcher.start() < MIN_MRZ_DATA_LENGTH) {
+                continue;
+            }
+            if (redacted == null) {
+                redacted = new StringBuilder(message);
+            }
+            for (int i = matcher.start(); i < matcher.end(); i++) {
+                if (message.charAt(i) != '<') {
+                    redacted.setCharAt(i, '*');
+                }
+            }
+        }
+        return redacted != null ? redacted.toString() : message;
+    }
+
+    private static synchronized void record(String tag, String message) {
+        messages[next] = tag + ": " + redact(message);
+        times[next] = SystemClock.elapsedRealtime();
+        next = (next + 1) % CAPACITY;
+        count = Math.min(count + 1, CAPACITY);
+    }
+}
@@ -0,0 +1,168 @@
+package com.forumonline.nfcpass.mlkit.text;
+
+import android.graphics.Rect;
+
+import com.google.mlkit.vision.text.Text;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rebuilds the rows of printed text from the geometry of ML Kit's elements and keeps the ones that
+ * can be MRZ lines.
+ *
+ * <p>ML Kit groups text into blocks and lines by its own layout analysis, which for an MRZ often
+ * splits one line over several blocks or puts two lines into one block, so the order of
+ * {@link Text#getText()} does not follow the rows on the document. Here every element is placed by
+ * its bounding box instead: taken from left to right, an element continues the row whose last
+ * element has a baseline within half a character height of its own, which follows a document that
+ * is held at a slight angle. Each row is then read left to right without spaces, and rows whose
+ * length is close to 30, 36 or 44 characters, the line lengths of TD1, TD2 and TD3 documents, are
+ * returned top to bottom. Missing fillers at the end of a short row are added back.
+ *
+ * <p>Not thread safe; the processor uses it from the main thread only.
+ */
+final class MrzLineAssembler {
+
+    private static final int[] LINE_LENGTHS = {30, 36, 44};
+
+    /** How many characters a row may be off from a line length, less than half the gap between them. */
+    private static final int LENGTH_TOLERANCE = 2;
+
+    /** Share of characters a row may have that do not occur in an MRZ, like spaces inside an element. */
+    private static final float MAX_FOREIGN_SHARE = 0.1f;
+
+    private final List<Text.Element> elements = new ArrayList<>();
+    private final List<Row> rows = new ArrayList<>();
+    private final List<Row> freeRows = new ArrayList<>();
+    private final StringBuilder builder = new StringBuilder(128);
+
+    /**
+     * The candidate MRZ lines in {@code text}, top to bottom and separated by new lines; empty if
+     * there are none. Null if ML Kit gave no element a bounding box, so the rows cannot be rebuilt.
+     */
+    String assemble(Text text) {
+        collectElements(text);
+        if (elements.isEmpty()) {
+            return null;
+        }
+        // Left to right, so that each element is compared with its neighbour in the row
+        elements.sort((a, b) -> Integer.compare(a.getBoundingBox().left, b.getBoundingBox().left));
+        for (int i = 0; i < elements.size(); i++) {
+            addToRow(elements.get(i));
+        }
+        rows.sort((a, b) -> Float.compare(a.baselineSum / a.elements.size(), b.baselineSum / b.elements.size()));
+
+        builder.setLength(0);
+        for (int i = 0; i < rows.size(); i++) {
+            appendCandidate(rows.get(i));
+        }
+        recycleRows();
+        elements.clear();
+        return builder.toString();
+    }
+
+    private void collectElements(Text text) {
+        elements.clear();
+        List<Text.TextBlock> blocks = text.getTextBlocks();
+        for (int i = 0; i < blocks.size(); i++) {
+            List<Text.Line> lines = blocks.get(i).getLines();
+            for (int j = 0; j < lines.size(); j++) {
+                List<Text.Element> lineElements = lines.get(j).getElements();
+                for (int k = 0; k < lineElements.size(); k++) {
+                    Text.Element element = lineElements.get(k);
+                    Rect box = element.getBoundingBox();
+                    if (box != null && box.height() > 0 && element.getText() != null) {
+                        elements.add(element);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addToRow(Text.Element element) {
+        Rect box = element.getBoundingBox();
+        Row best = null;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = rows.get(i);
+            int distance = Math.abs(row.lastBaseline - box.bottom);
+            int tolerance = Math.min(row.lastHeight, box.height()) / 2;
+            if (distance <= tolerance && distance < bestDistance) {
+                best = row;
+                bestDistance = distance;
+            }
+        }
+        if (best == null) {
+            best = freeRows.isEmpty() ? new Row() : freeRows.remove(freeRows.size() - 1);
+            rows.add(best);
+        }
+        best.add(element, box);
+    }
+
+    private void appendCandidate(Row row) {
+        int start = builder.length();
+        int foreign = 0;
+        int total = 0;
+        for (int i = 0; i < row.elements.size(); i++) {
+            String elementText = row.elements.get(i).getText();
+            for (int j = 0; j < elementText.length(); j++) {
+                char c = Character.toUpperCase(elementText.charAt(j));
+                total++;
+                if ((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '<') {
+                    builder.append(c);
+                } else if (c == '«') {
+                    // Two fillers are sometimes read as one guillemet
+                    builder.append("<<");
+                } else {
+                    foreign++;
+                }
+            }
+        }
+
+        int length = builder.length() - start;
+        int lineLength = lineLengthFor(length);
+        if (lineLength < 0 || foreign > total * MAX_FOREIGN_SHARE) {
+            builder.setLength(start);
+            return;
+        }
+        for (int i = length; i < lineLength; i++) {
+            builder.append('<');
+        }
+        builder.append('\n');
+    }
+
+    private static int lineLengthFor(int length) {
+        for (int lineLength : LINE_LENGTHS) {
+            if (Math.abs(length - lineLength) <= LENGTH_TOLERANCE) {
+                return lineLength;
+            }
+        }
+        return -1;
+    }
+
+    private void recycleRows() {
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = rows.get(i);
+            row.elements.clear();
+            row.baselineSum = 0;
+            freeRows.add(row);
+        }
+        rows.clear();
+    }
+
+    private static final class Row {
+        final List<Text.Element> elements = new ArrayList<>();
+        float baselineSum;
+        int lastBaseline;
+        int lastHeight;
+
+        void add(Text.Element element, Rect box) {
+            elements.add(element);
+            // MRZ characters have no descenders, so the bottom of the box is the baseline
+            baselineSum += box.bottom;
+            lastBaseline = box.bottom;
+            lastHeight = box.height();
+        }
+    }
+}
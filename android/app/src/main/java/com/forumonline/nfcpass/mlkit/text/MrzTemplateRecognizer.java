@@ -0,0 +1,625 @@
+package com.forumonline.nfcpass.mlkit.text;
+
+import android.graphics.Rect;
+
+import androidx.camera.core.ImageProxy;
+
+import com.forumonline.nfcpass.mlkit.other.Frame;
+import com.forumonline.nfcpass.mlkit.other.FrameMetadata;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads an MRZ band without ML Kit by matching characters against templates of the OCR-B font.
+ *
+ * <p>An MRZ is printed in one monospaced font with 37 symbols, so a general text recognizer is not
+ * needed. The band found by {@link com.forumonline.nfcpass.mlkit.camera.MrzBandLocalizer} is read
+ * upright from the luma plane and split into ink and paper with Otsu's threshold. Lines are the
+ * runs of inked rows. The number of characters per line follows from the number of lines (30 for
+ * three, 36 or 44 for two, whichever puts less ink on the cell boundaries), and each boundary is
+ * moved to the emptiest column near it. Every cell is sampled into a {@link #GRID_WIDTH} by
+ * {@link #GRID_HEIGHT} grid and given the symbol whose template correlates best.
+ *
+ * <p>Recognizing a band takes a few milliseconds and allocates nothing but the result once the
+ * buffers have grown to the band size. Like the localizer it only reads a {@link ByteBuffer}, so it also runs on
+ * rendered samples on a JVM.
+ */
+public class MrzTemplateRecognizer {
+
+    private static final int GRID_WIDTH = 8;
+    private static final int GRID_HEIGHT = 12;
+
+    /** Lines lower than this many pixels are too coarse to tell the symbols apart. */
+    private static final int MIN_LINE_HEIGHT = 10;
+
+    private static final int MAX_LINES = 16;
+
+    /** A line has to be at least this share of the highest one, the rest is stray print. */
+    private static final float MIN_LINE_HEIGHT_RATIO = 0.6f;
+
+    /** Character pitch to line height of OCR-B and similar fonts, with room for perspective. */
+    private static final float MIN_PITCH_RATIO = 0.5f;
+    private static final float MAX_PITCH_RATIO = 1.5f;
+
+    /** Share of the pitch between two glyphs; the last glyph ends that much before its cell. */
+    private static final float GAP_RATIO = 0.2f;
+
+    /** Mean correlation below which the band is taken not to be an MRZ at all. */
+    private static final float MIN_MEAN_SCORE = 0.45f;
+
+    private static final char FILLER = '<';
+
+    private static final int[] THREE_LINE_LENGTHS = {30};
+    private static final int[] TWO_LINE_LENGTHS = {44, 36};
+
+    static final char[] SYMBOLS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ<".toCharArray();
+    private static final int FIRST_LETTER = 10;
+
+    /**
+     * What may stand at each position of the lines of a TD1, TD2 and TD3 MRZ (ICAO 9303): D a digit,
+     * L a letter, X either; the filler may stand anywhere. Restricting the choice keeps look-alikes
+     * such as 0 and O, 1 and I, 5 and S or 8 and B apart in dates, check digits and names.
+     */
+    private static final String[] TD1_LAYOUT = {
+            "XXLLLXXXXXXXXXDXXXXXXXXXXXXXXX",
+            "DDDDDDDLDDDDDDDLLLXXXXXXXXXXXD",
+            "LLLLLLLLLLLLLLLLLLLLLLLLLLLLLL"};
+    private static final String[] TD2_LAYOUT = {
+            "XXLLLLLLLLLLLLLLLLLLLLLLLLLLLLLLLLLL",
+            "XXXXXXXXXDLLLDDDDDDDLDDDDDDDXXXXXXXD"};
+    private static final String[] TD3_LAYOUT = {
+            "XXLLLLLLLLLLLLLLLLLLLLLLLLLLLLLLLLLLLLLLLLLL",
+            "XXXXXXXXXDLLLDDDDDDDLDDDDDDDXXXXXXXXXXXXXXDD"};
+
+    /**
+     * OCR-B glyphs on the {@link #GRID_WIDTH} by {@link #GRID_HEIGHT} grid, in the order of
+     * {@link #SYMBOLS}. Zero is narrower than the letter O, as in the font.
+     */
+    static final String[][] GLYPHS = {
+            {"..####..", ".##..##.", ".##..##.", ".##..##.", ".##..##.", ".##..##.",
+                    ".##..##.", ".##..##.", ".##..##.", ".##..##.", ".##..##.", "..####.."},
+            {"....##..", "...###..", "..####..", ".##.##..", "....##..", "....##..",
+                    "....##..", "....##..", "....##..", "....##..", "....##..", "....##.."},
+            {".######.", "##....##", "......##", "......##", ".....##.", "....##..",
+                    "...##...", "..##....", ".##.....", "##......", "##......", "########"},
+            {".######.", ".....##.", "....##..", "...##...", "..####..", ".....##.",
+                    "......##", "......##", "......##", "##....##", ".##..##.", "..####.."},
+            {".....##.", "....###.", "...####.", "..##.##.", ".##..##.", "##...##.",
+                    "########", ".....##.", ".....##.", ".....##.", ".....##.", ".....##."},
+            {".######.", ".##.....", ".##.....", ".##.....", ".#####..", ".....##.",
+                    "......##", "......##", "......##", "##....##", ".##..##.", "..####.."},
+            {"...###..", "..##....", ".##.....", "##......", "##.###..", "###..##.",
+                    "##....##", "##....##", "##....##", "##....##", ".##..##.", "..####.."},
+            {"########", "......##", ".....##.", ".....##.", "....##..", "....##..",
+                    "...##...", "...##...", "..##....", "..##....", "..##....", "..##...."},
+            {"..####..", ".##..##.", "##....##", "##....##", ".##..##.", "..####..",
+                    ".##..##.", "##....##", "##....##", "##....##", ".##..##.", "..####.."},
+            {"..####..", ".##..##.", "##....##", "##....##", "##....##", ".##..###",
+                    "..###.##", "......##", ".....##.", "....##..", "...##...", "..##...."},
+            {"...##...", "..####..", "..####..", ".##..##.", ".##..##.", ".##..##.",
+                    "##....##", "########", "##....##", "##....##", "##....##", "##....##"},
+            {"######..", "##...##.", "##....##", "##....##", "##...##.", "######..",
+                    "##...##.", "##....##", "##....##", "##....##", "##...##.", "######.."},
+            {"..#####.", ".##...##", "##......", "##......", "##......", "##......",
+                    "##......", "##......", "##......", "##......", ".##...##", "..#####."},
+            {"#####...", "##..##..", "##...##.", "##....##", "##....##", "##....##",
+                    "##....##", "##....##", "##....##", "##...##.", "##..##..", "#####..."},
+            {"########", "##......", "##......", "##......", "##......", "#######.",
+                    "##......", "##......", "##......", "##......", "##......", "########"},
+            {"########", "##......", "##......", "##......", "##......", "#######.",
+                    "##......", "##......", "##......", "##......", "##......", "##......"},
+            {"..#####.", ".##...##", "##......", "##......", "##......", "##..####",
+                    "##....##", "##....##", "##....##", "##....##", ".##...##", "..#####."},
+            {"##....##", "##....##", "##....##", "##....##", "##....##", "########",
+                    "##....##", "##....##", "##....##", "##....##", "##....##", "##....##"},
+            {".######.", "...##...", "...##...", "...##...", "...##...", "...##...",
+                    "...##...", "...##...", "...##...", "...##...", "...##...", ".######."},
+            {"....####", "......##", "......##", "......##", "......##", "......##",
+                    "......##", "......##", "##....##", "##....##", ".##..##.", "..####.."},
+            {"##....##", "##...##.", "##..##..", "##.##...", "####....", "###.....",
+                    "####....", "##.##...", "##..##..", "##...##.", "##....##", "##....##"},
+            {"##......", "##......", "##......", "##......", "##......", "##......",
+                    "##......", "##......", "##......", "##......", "##......", "########"},
+            {"##....##", "###..###", "########", "##.##.##", "##.##.##", "##....##",
+                    "##....##", "##....##", "##....##", "##....##", "##....##", "##....##"},
+            {"##....##", "###...##", "###...##", "####..##", "##.#..##", "##.##.##",
+                    "##..#.##", "##..####", "##...###", "##...###", "##....##", "##....##"},
+            {"..####..", ".##..##.", "##....##", "##....##", "##....##", "##....##",
+                    "##....##", "##....##", "##....##", "##....##", ".##..##.", "..####.."},
+            {"#######.", "##....##", "##....##", "##....##", "##....##", "#######.",
+                    "##......", "##......", "##......", "##......", "##......", "##......"},
+            {"..####..", ".##..##.", "##....##", "##....##", "##....##", "##....##",
+                    "##....##", "##....##", "##.##.##", "##..###.", ".##..##.", "..###.##"},
+            {"#######.", "##....##", "##....##", "##....##", "##...##.", "######..",
+                    "##.##...", "##..##..", "##...##.", "##...##.", "##....##", "##....##"},
+            {".######.", "##....##", "##......", "##......", ".##.....", "..####..",
+                    ".....##.", "......##", "......##", "......##", "##....##", ".######."},
+            {"########", "...##...", "...##...", "...##...", "...##...", "...##...",
+                    "...##...", "...##...", "...##...", "...##...", "...##...", "...##..."},
+            {"##....##", "##....##", "##....##", "##....##", "##....##", "##....##",
+                    "##....##", "##....##", "##....##", "##....##", ".##..##.", "..####.."},
+            {"##....##", "##....##", "##....##", ".##..##.", ".##..##.", ".##..##.",
+                    ".##..##.", "..####..", "..####..", "..####..", "...##...", "...##..."},
+            {"##....##", "##....##", "##....##", "##....##", "##....##", "##....##",
+                    "##.##.##", "##.##.##", "##.##.##", "########", "###..###", "##....##"},
+            {"##....##", "##....##", ".##..##.", ".##..##.", "..####..", "...##...",
+                    "...##...", "..####..", ".##..##.", ".##..##.", "##....##", "##....##"},
+            {"##....##", "##....##", ".##..##.", ".##..##.", "..####..", "...##...",
+                    "...##...", "...##...", "...##...", "...##...", "...##...", "...##..."},
+            {"########", "......##", ".....##.", ".....##.", "....##..", "...##...",
+                    "...##...", "..##....", ".##.....", ".##.....", "##......", "########"},
+            {"........", "........", ".....##.", "....##..", "...##...", "..##....",
+                    ".##.....", "..##....", "...##...", "....##..", ".....##.", "........"},
+    };
+
+    /** Blurred, zero mean, unit length templates, so that a dot product is a correlation. */
+    private static final float[][] TEMPLATES = buildTemplates();
+
+    /** Upright band, one byte of ink level (0 paper, 255 full ink) per pixel. */
+    private byte[] ink = new byte[0];
+    private int width;
+    private int height;
+    private final int[] histogram = new int[256];
+
+    private int[] rowProfile = new int[0];
+    private int[] columnProfile = new int[0];
+    private int[] inkPixels = new int[0];
+    private int[] boundaries = new int[0];
+    private int[] glyphWidths = new int[0];
+    private int[] sortedWidths = new int[0];
+    private final int[] lineTop = new int[MAX_LINES];
+    private final int[] lineBottom = new int[MAX_LINES];
+    private final float[] glyph = new float[GRID_WIDTH * GRID_HEIGHT];
+
+    private float scoreSum;
+    private int scoredGlyphs;
+
+    /** See {@link #getLineHeight()}. */
+    private int lineHeight;
+
+    /**
+     * Reads the MRZ in {@code band}, in sensor pixels of {@code frame}, and returns its lines
+     * separated by newlines, or null if the band does not look like an MRZ.
+     */
+    public String recognize(Frame frame, Rect band) {
+        FrameMetadata metadata = frame.getMetadata();
+        ImageProxy image = frame.getImage();
+        if (image != null) {
+            ImageProxy.PlaneProxy plane = image.getPlanes()[0];
+            return recognize(plane.getBuffer(), plane.getRowStride(), metadata.getRotation(), band);
+        }
+        return recognize(frame.getNv21(), metadata.getWidth(), metadata.getRotation(), band);
+    }
+
+    /** As {@link #recognize(Frame, Rect)}, for a luma plane with the given row stride. */
+    public synchronized String recognize(ByteBuffer luma, int rowStride, int rotation, Rect band) {
+        lineHeight = 0;
+        readUpright(luma, rowStride, rotation, band);
+        if (!binarize()) {
+            return null;
+        }
+        int lineCount = findLines();
+        if (lineCount < 2) {
+            return null;
+        }
+        int length = chooseLineLength(lineCount);
+        if (length == 0) {
+            return null;
+        }
+
+        scoreSum = 0;
+        scoredGlyphs = 0;
+        String[] layout = length == 30 ? TD1_LAYOUT : length == 36 ? TD2_LAYOUT : TD3_LAYOUT;
+        StringBuilder text = new StringBuilder(lineCount * (length + 1));
+        for (int line = 0; line < lineCount; line++) {
+            if (line > 0) {
+                text.append('\n');
+            }
+            readLine(line, length, layout[line], text);
+        }
+        if (scoredGlyphs == 0 || scoreSum / scoredGlyphs < MIN_MEAN_SCORE) {
+            return null;
+        }
+        for (int line = 0; line < lineCount; line++) {
+            lineHeight = Math.max(lineHeight, lineBottom[line] - lineTop[line]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Height in pixels of the tallest line of the band last passed to {@link #recognize}, 0 if it
+     * was not read as an MRZ.
+     */
+    public synchronized int getLineHeight() {
+        return lineHeight;
+    }
+
+    /** Copies the band into {@link #ink} as luma, turned so that the text runs left to right. */
+    private void readUpright(ByteBuffer luma, int rowStride, int rotation, Rect band) {
+        boolean transposed = rotation == 90 || rotation == 270;
+        width = transposed ? band.height() : band.width();
+        height = transposed ? band.width() : band.height();
+        if (ink.length < width * height) {
+            ink = new byte[width * height];
+        }
+        int index = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int sensorX;
+                int sensorY;
+                switch (rotation) {
+                    case 90:
+                        sensorX = band.left + y;
+                        sensorY = band.bottom - 1 - x;
+                        break;
+                    case 180:
+                        sensorX = band.right - 1 - x;
+                        sensorY = band.bottom - 1 - y;
+                        break;
+                    case 270:
+                        sensorX = band.right - 1 - y;
+                        sensorY = band.top + x;
+                        break;
+                    default:
+                        sensorX = band.left + x;
+                        sensorY = band.top + y;
+                        break;
+                }
+                ink[index++] = luma.get(sensorY * rowStride + sensorX);
+            }
+        }
+    }
+
+    /**
+     * Replaces luma by ink level between the mean of the paper and the mean of the print, split by
+     * Otsu's threshold. Returns false if the band has no contrast.
+     */
+    private boolean binarize() {
+        int count = width * height;
+        if (count == 0) {
+            return false;
+        }
+        Arrays.fill(histogram, 0);
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            int value = ink[i] & 0xFF;
+            histogram[value]++;
+            total += value;
+        }
+
+        long darkSum = 0;
+        int darkCount = 0;
+        double bestVariance = -1;
+        float printMean = 0;
+        float paperMean = 0;
+        for (int t = 0; t < 255; t++) {
+            darkCount += histogram[t];
+            darkSum += (long) t * histogram[t];
+            int lightCount = count - darkCount;
+            if (darkCount == 0 || lightCount == 0) {
+                continue;
+            }
+            float darkMean = (float) darkSum / darkCount;
+            float lightMean = (float) (total - darkSum) / lightCount;
+            double variance = (double) darkCount * lightCount * (lightMean - darkMean) * (lightMean - darkMean);
+            if (variance > bestVariance) {
+                bestVariance = variance;
+                printMean = darkMean;
+                paperMean = lightMean;
+            }
+        }
+        if (paperMean - printMean < 24) {
+            return false;
+        }
+
+        float scale = 255f / (paperMean - printMean);
+        for (int i = 0; i < count; i++) {
+            float level = (paperMean - (ink[i] & 0xFF)) * scale;
+            ink[i] = (byte) (level <= 0 ? 0 : level >= 255 ? 255 : (int) level);
+        }
+        return true;
+    }
+
+    private boolean isInk(int x, int y) {
+        return (ink[y * width + x] & 0xFF) >= 128;
+    }
+
+    /** Finds the runs of inked rows and keeps the last three of a similar height. */
+    private int findLines() {
+        if (rowProfile.length < height) {
+            rowProfile = new int[height];
+        }
+        int maxRow = 0;
+        for (int y = 0; y < height; y++) {
+            int sum = 0;
+            for (int x = 0; x < width; x++) {
+                if (isInk(x, y)) {
+                    sum++;
+                }
+            }
+            rowProfile[y] = sum;
+            maxRow = Math.max(maxRow, sum);
+        }
+        int threshold = Math.max(2, maxRow / 8);
+
+        int count = 0;
+        int maxHeight = 0;
+        int y = 0;
+        while (y < height && count < MAX_LINES) {
+            if (rowProfile[y] < threshold) {
+                y++;
+                continue;
+            }
+            int top = y;
+            while (y < height && rowProfile[y] >= threshold) {
+                y++;
+            }
+            lineTop[count] = top;
+            lineBottom[count] = y;
+            maxHeight = Math.max(maxHeight, y - top);
+            count++;
+        }
+        if (maxHeight < MIN_LINE_HEIGHT) {
+            return 0;
+        }
+
+        // The MRZ is the bottom of the document, anything above it that made it into the band is dropped
+        int kept = 0;
+        int minHeight = (int) (maxHeight * MIN_LINE_HEIGHT_RATIO);
+        for (int i = 0; i < count; i++) {
+            if (lineBottom[i] - lineTop[i] >= minHeight) {
+                lineTop[kept] = lineTop[i];
+                lineBottom[kept] = lineBottom[i];
+                kept++;
+            }
+        }
+        if (kept > 3) {
+            System.arraycopy(lineTop, kept - 3, lineTop, 0, 3);
+            System.arraycopy(lineBottom, kept - 3, lineBottom, 0, 3);
+            kept = 3;
+        }
+        return kept;
+    }
+
+    /**
+     * Sums the ink of the columns of a line into {@link #columnProfile} and counts their inked pixels
+     * into {@link #inkPixels}. Glyphs are bounded by the counts, so that blurred edges and paper a
+     * little darker on one side of the band do not make them wider.
+     */
+    private void buildColumnProfile(int line) {
+        if (columnProfile.length < width) {
+            columnProfile = new int[width];
+            inkPixels = new int[width];
+        }
+        for (int x = 0; x < width; x++) {
+            int sum = 0;
+            int pixels = 0;
+            for (int y = lineTop[line]; y < lineBottom[line]; y++) {
+                int level = ink[y * width + x] & 0xFF;
+                sum += level;
+                if (isInk(x, y)) {
+                    pixels++;
+                }
+            }
+            columnProfile[x] = sum;
+            inkPixels[x] = pixels;
+        }
+    }
+
+    private int firstInkColumn(int from, int to) {
+        for (int x = from; x < to; x++) {
+            if (inkPixels[x] > 0) {
+                return x;
+            }
+        }
+        return -1;
+    }
+
+    private int lastInkColumn(int from, int to) {
+        for (int x = to - 1; x >= from; x--) {
+            if (inkPixels[x] > 0) {
+                return x;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Picks the number of characters per line: three lines are a TD1 document with 30, two lines
+     * a TD2 or TD3 document with 36 or 44. Returns 0 if no length gives a plausible pitch.
+     */
+    private int chooseLineLength(int lineCount) {
+        int[] candidates = lineCount == 3 ? THREE_LINE_LENGTHS : TWO_LINE_LENGTHS;
+        int best = 0;
+        float bestScore = Float.MAX_VALUE;
+        for (int length : candidates) {
+            float score = 0;
+            for (int line = 0; line < lineCount && score < Float.MAX_VALUE; line++) {
+                score += boundaryInk(line, length);
+            }
+            if (score < bestScore) {
+                bestScore = score;
+                best = length;
+            }
+        }
+        return best;
+    }
+
+    /** Mean ink on the cell boundaries of a line split into {@code length} cells. */
+    private float boundaryInk(int line, int length) {
+        buildColumnProfile(line);
+        int first = firstInkColumn(0, width);
+        int last = lastInkColumn(0, width);
+        float pitch = (last - first + 1) / (length - GAP_RATIO);
+        int lineHeight = lineBottom[line] - lineTop[line];
+        if (first < 0 || pitch < MIN_PITCH_RATIO * lineHeight || pitch > MAX_PITCH_RATIO * lineHeight) {
+            return Float.MAX_VALUE;
+        }
+        long sum = 0;
+        for (int i = 1; i < length; i++) {
+            int x = Math.round(first + (i - GAP_RATIO / 2) * pitch);
+            sum += columnProfile[Math.min(width - 1, x)];
+        }
+        return (float) sum / ((length - 1) * 255f * lineHeight);
+    }
+
+    /** Splits a line into {@code length} cells and appends the symbol of each. */
+    private void readLine(int line, int length, String layout, StringBuilder text) {
+        buildColumnProfile(line);
+        int first = firstInkColumn(0, width);
+        int last = lastInkColumn(0, width);
+        float pitch = (last - first + 1) / (length - GAP_RATIO);
+        int slack = Math.max(1, Math.round(pitch / 4));
+
+        if (boundaries.length < length + 1) {
+            boundaries = new int[length + 1];
+            glyphWidths = new int[length];
+            sortedWidths = new int[length];
+        }
+        boundaries[0] = Math.max(0, first - slack);
+        boundaries[length] = Math.min(width, last + 1 + slack);
+        for (int i = 1; i < length; i++) {
+            int expected = Math.round(first + (i - GAP_RATIO / 2) * pitch);
+            int from = Math.max(boundaries[i - 1] + 1, expected - slack);
+            int to = Math.min(width - 1, expected + slack);
+            int boundary = Math.min(from, width - 1);
+            for (int x = from + 1; x <= to; x++) {
+                if (columnProfile[x] < columnProfile[boundary]) {
+                    boundary = x;
+                }
+            }
+            boundaries[i] = boundary;
+        }
+
+        // Narrow glyphs are sampled as wide as the typical one so that 1, I and < keep their shape
+        for (int i = 0; i < length; i++) {
+            int left = firstInkColumn(boundaries[i], boundaries[i + 1]);
+            glyphWidths[i] = left < 0 ? 0 : lastInkColumn(boundaries[i], boundaries[i + 1]) - left + 1;
+        }
+        System.arraycopy(glyphWidths, 0, sortedWidths, 0, length);
+        Arrays.sort(sortedWidths, 0, length);
+        int typicalWidth = Math.max(1, sortedWidths[length * 3 / 4]);
+
+        for (int i = 0; i < length; i++) {
+            text.append(classify(line, boundaries[i], boundaries[i + 1], typicalWidth, layout.charAt(i)));
+        }
+    }
+
+    private char classify(int line, int from, int to, int typicalWidth, char allowed) {
+        int left = firstInkColumn(from, to);
+        if (left < 0) {
+            return FILLER;
+        }
+        int right = lastInkColumn(from, to);
+        float sampleWidth = Math.max(right - left + 1, typicalWidth);
+        float center = (left + right + 1) / 2f;
+        // A narrow glyph sits off the middle of its cell in some symbols, such as 1, so it is also
+        // tried half a grid column to either side
+        int shifts = right - left + 1 < typicalWidth ? 1 : 0;
+
+        int best = SYMBOLS.length - 1;
+        float bestScore = -1;
+        for (int shift = -shifts; shift <= shifts; shift++) {
+            float shiftedCenter = center + shift * sampleWidth / (2 * GRID_WIDTH);
+            sample(shiftedCenter - sampleWidth / 2, sampleWidth, lineTop[line], lineBottom[line] - lineTop[line]);
+            if (!normalize(glyph)) {
+                return FILLER;
+            }
+            for (int s = 0; s < SYMBOLS.length; s++) {
+                boolean digit = s < FIRST_LETTER;
+                boolean letter = s >= FIRST_LETTER && SYMBOLS[s] != FILLER;
+                if ((allowed == 'D' && letter) || (allowed == 'L' && digit)) {
+                    continue;
+                }
+                float[] template = TEMPLATES[s];
+                float score = 0;
+                for (int i = 0; i < glyph.length; i++) {
+                    score += glyph[i] * template[i];
+                }
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = s;
+                }
+            }
+        }
+        scoreSum += bestScore;
+        scoredGlyphs++;
+        return SYMBOLS[best];
+    }
+
+    /** Averages the ink of the given area onto the glyph grid, treating pixels outside as paper. */
+    private void sample(float left, float sampleWidth, int top, int sampleHeight) {
+        float cellWidth = sampleWidth / GRID_WIDTH;
+        float cellHeight = (float) sampleHeight / GRID_HEIGHT;
+        for (int gy = 0; gy < GRID_HEIGHT; gy++) {
+            int y0 = top + (int) Math.floor(gy * cellHeight);
+            int y1 = Math.max(y0 + 1, top + (int) Math.floor((gy + 1) * cellHeight));
+            for (int gx = 0; gx < GRID_WIDTH; gx++) {
+                int x0 = (int) Math.floor(left + gx * cellWidth);
+                int x1 = Math.max(x0 + 1, (int) Math.floor(left + (gx + 1) * cellWidth));
+                int sum = 0;
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        if (x >= 0 && x < width && y < height) {
+                            sum += ink[y * width + x] & 0xFF;
+                        }
+                    }
+                }
+                glyph[gy * GRID_WIDTH + gx] = (float) sum / ((x1 - x0) * (y1 - y0));
+            }
+        }
+    }
+
+    /** Shifts to zero mean and scales to unit length; returns false for a blank glyph. */
+    private static boolean normalize(float[] values) {
+        float mean = 0;
+        for (float value : values) {
+            mean += value;
+        }
+        mean /= values.length;
+        float norm = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] -= mean;
+            norm += values[i] * values[i];
+        }
+        if (norm < 1e-6f) {
+            return false;
+        }
+        norm = (float) Math.sqrt(norm);
+        for (int i = 0; i < values.length; i++) {
+            values[i] /= norm;
+        }
+        return true;
+    }
+
+    /** Blurs each glyph with a 1-2-1 kernel so that thin strokes a pixel off still correlate. */
+    private static float[][] buildTemplates() {
+        float[][] templates = new float[GLYPHS.length][];
+        for (int s = 0; s < GLYPHS.length; s++) {
+            float[] template = new float[GRID_WIDTH * GRID_HEIGHT];
+            for (int y = 0; y < GRID_HEIGHT; y++) {
+                for (int x = 0; x < GRID_WIDTH; x++) {
+                    float sum = 0;
+                    float weights = 0;
+                    for (int dy = -1; dy <= 1; dy++) {
+                        for (int dx = -1; dx <= 1; dx++) {
+                            int sx = x + dx;
+                            int sy = y + dy;
+                            float weight = (dx == 0 ? 2 : 1) * (dy == 0 ? 2 : 1);
+                            weights += weight;
+                            if (sx >= 0 && sx < GRID_WIDTH && sy >= 0 && sy < GRID_HEIGHT
+                                    && GLYPHS[s][sy].charAt(sx) == '#') {
+                                sum += weight;
+                            }
+                        }
+                    }
+                    template[y * GRID_WIDTH + x] = sum / weights;
+                }
+            }
+            normalize(template);
+            templates[s] = template;
+        }
+        return templates;
+    }
+}
@@ -0,0 +1,98 @@
+package com.forumonline.nfcpass.mlkit.text;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Collects the text of one frame, element by element, and searches it for MRZ lines as it grows.
+ *
+ * <p>Each tracked line remembers where its search can resume: a match that was not in the text
+ * before an append has to reach into the appended part, so it starts at most {@code span - 1}
+ * characters before it. Every character is therefore looked at by each pattern about once per
+ * frame, instead of the whole text being searched again after every element. Once found, a line
+ * keeps its match, which is also the leftmost match in the complete text because the lines have a
+ * fixed length. The text lives in one builder that is reused from frame to frame.
+ */
+final class MrzTextAccumulator {
+    private final StringBuilder text = new StringBuilder(256);
+    private final List<Line> lines = new ArrayList<>();
+
+    /**
+     * Starts looking for {@code regex}. {@code span} is the length of its matches, or for a pattern
+     * without a fixed length, the length of the shortest text that already makes it match.
+     */
+    Line track(String regex, int span) {
+        Line line = new Line(Pattern.compile(regex), span);
+        lines.add(line);
+        return line;
+    }
+
+    /** Forgets the text and the matches of the previous frame. */
+    void reset() {
+        text.setLength(0);
+        for (int i = 0; i < lines.size(); i++) {
+            lines.get(i).reset();
+        }
+    }
+
+    /** Appends the text of one element; returns whether a tracked line has now been found for the first time. */
+    boolean append(CharSequence elementText) {
+        text.append(elementText);
+        boolean found = false;
+        for (int i = 0; i < lines.size(); i++) {
+            found |= lines.get(i).search();
+        }
+        return found;
+    }
+
+    int length() {
+        return text.length();
+    }
+
+    String substring(int start, int end) {
+        return text.substring(start, end);
+    }
+
+    final class Line {
+        private final Matcher matcher;
+        private final int span;
+        private int searchFrom;
+        private int start = -1;
+        private int end;
+
+        private Line(Pattern pattern, int span) {
+            this.matcher = pattern.matcher(text);
+            this.span = span;
+        }
+
+        private void reset() {
+            searchFrom = 0;
+            start = -1;
+        }
+
+        private boolean search() {
+            if (start >= 0) {
+                return false;
+            }
+            // find(int) resets the matcher, which picks up the current length of the builder
+            if (matcher.find(searchFrom)) {
+                start = matcher.start();
+                end = matcher.end();
+                return true;
+            }
+            searchFrom = Math.max(searchFrom, text.length() - span + 1);
+            return false;
+        }
+
+        boolean isFound() {
+            return start >= 0;
+        }
+
+        /** The matched text, or null if the line has not been found. */
+        String getText() {
+            return start >= 0 ? text.substring(start, end) : null;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.forumonline.nfcpass.mlkit.text;
+
+import java.util.function.Consumer;
+
+/**
+ * Passes results of concurrent recognitions on in the order the frames were submitted.
+ *
+ * <p>Each submitted frame reserves a ticket; a result that completes early is held until the
+ * results of all earlier tickets have been passed on. Outstanding tickets are kept in a ring indexed
+ * by ticket number. It starts with room for the number of concurrent recognitions and grows when a
+ * slow recognition holds back more results than that, since the recognizers of held results are
+ * already free again. Failed recognitions complete with null, which is passed on too so that later
+ * results are not held back.
+ */
+final class OrderedResultMerger<T> {
+    private final Consumer<T> consumer;
+    private Object[] results;
+    private boolean[] completed;
+
+    private long nextTicket;
+    private long nextToDeliver;
+
+    OrderedResultMerger(int capacity, Consumer<T> consumer) {
+        this.consumer = consumer;
+        results = new Object[capacity];
+        completed = new boolean[capacity];
+    }
+
+    synchronized long reserve() {
+        if (nextTicket - nextToDeliver >= results.length) {
+            grow();
+        }
+        return nextTicket++;
+    }
+
+    private void grow() {
+        Object[] grownResults = new Object[results.length * 2];
+        boolean[] grownCompleted = new boolean[results.length * 2];
+        for (long ticket = nextToDeliver; ticket < nextTicket; ticket++) {
+            int index = (int) (ticket % results.length);
+            int grownIndex = (int) (ticket % grownResults.length);
+            grownResults[grownIndex] = results[index];
+            grownCompleted[grownIndex] = completed[index];
+        }
+        results = grownResults;
+        completed = grownCompleted;
+    }
+
+    /** Stores the result of {@code ticket} and passes on every result that is now in order. */
+    @SuppressWarnings("unchecked")
+    synchronized void complete(long ticket, T result) {
+        int index = (int) (ticket % results.length);
+        results[index] = result;
+        completed[index] = true;
+        while (true) {
+            index = (int) (nextToDeliver % results.length);
+            if (!completed[index]) {
+                return;
+            }
+            T next = (T) results[index];
+            results[index] = null;
+            completed[index] = false;
+            nextToDeliver++;
+            consumer.accept(next);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.forumonline.nfcpass.mlkit.text;
+
+import com.google.mlkit.vision.text.TextRecognition;
+import com.google.mlkit.vision.text.TextRecognizer;
+import com.google.mlkit.vision.text.latin.TextRecognizerOptions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Text recognizers for concurrent recognition, shared through {@link TextRecognizerHolder}. A single ML Kit client runs one image at a time on
+ * its executor, so each slot has a client with an executor of its own. A pool of one uses the
+ * default executor like a plain client. A slot also owns the buffer its input image is copied to,
+ * which must stay untouched until the recognition has finished.
+ */
+class RecognizerPool {
+
+    /** Upper bound on concurrent recognitions; every client holds its own model state. */
+    static final int MAX_SIZE = 4;
+
+    static final class Slot {
+        final TextRecognizer recognizer;
+        private byte[] buffer = new byte[0];
+
+        Slot(TextRecognizer recognizer) {
+            this.recognizer = recognizer;
+        }
+
+        /** The slot's copy buffer, grown to at least {@code length} bytes. */
+        byte[] buffer(int length) {
+            if (buffer.length < length) {
+                buffer = new byte[length];
+            }
+            return buffer;
+        }
+    }
+
+    private final List<Slot> slots = new ArrayList<>();
+    private final ConcurrentLinkedQueue<Slot> freeSlots = new ConcurrentLinkedQueue<>();
+
+    RecognizerPool(int size) {
+        if (size == 1) {
+            slots.add(new Slot(TextRecognition.getClient(TextRecognizerOptions.DEFAULT_OPTIONS)));
+        } else {
+            for (int i = 0; i < size; i++) {
+                int index = i;
+                ExecutorService executor = Executors.newSingleThreadExecutor(
+                        runnable -> new Thread(runnable, "TextRecognizer-" + index));
+                slots.add(new Slot(TextRecognition.getClient(
+                        new TextRecognizerOptions.Builder().setExecutor(executor).build())));
+            }
+        }
+        freeSlots.addAll(slots);
+    }
+
+    /** Concurrent recognitions to run by default: half the cores, at least 1, at most {@link #MAX_SIZE}. */
+    static int defaultSize() {
+        return Math.max(1, Math.min(MAX_SIZE, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    Slot get(int index) {
+        return slots.get(index);
+    }
+
+    /** Returns an idle slot, or null while all of them are recognizing. */
+    Slot tryAcquire() {
+        return freeSlots.poll();
+    }
+
+    void release(Slot slot) {
+        freeSlots.offer(slot);
+    }
+}
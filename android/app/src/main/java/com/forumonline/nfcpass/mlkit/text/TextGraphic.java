@@ -18,6 +18,10 @@ public class TextGraphic extends GraphicOverlay.Graphic {
     private final Paint textPaint;
     private final Text.Element text;
 
+    /** Position of the recognized image in the frame, when only a crop of it was recognized. */
+    private int offsetX;
+    private int offsetY;
+
     public TextGraphic(GraphicOverlay overlay, Text.Element text) {
         super(overlay);
 
@@ -44,6 +48,12 @@ public class TextGraphic extends GraphicOverlay.Graphic {
         postInvalidate();
     }
 
+    public TextGraphic(GraphicOverlay overlay, Text.Element text, int textColor, int offsetX, int offsetY) {
+        this(overlay, text, textColor);
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+    }
+
     /** Draws the text block annotations for position, size, and raw value on the supplied canvas. */
     @Override
     public void draw(Canvas canvas) {
@@ -53,6 +63,7 @@ public class TextGraphic extends GraphicOverlay.Graphic {
 
         // Draws the bounding box around the TextBlock.
         RectF rect = new RectF(text.getBoundingBox());
+        rect.offset(offsetX, offsetY);
         rect.left = translateX(rect.left);
         rect.top = translateY(rect.top);
         rect.right = translateX(rect.right);
@@ -1,13 +1,23 @@
 package com.forumonline.nfcpass.mlkit.text;
 
 import android.graphics.Color;
+import android.graphics.Point;
+import android.graphics.Rect;
 import android.os.Handler;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
-
+import androidx.annotation.Nullable;
+import androidx.annotation.OptIn;
+import androidx.camera.core.ExperimentalGetImage;
+import androidx.camera.core.ImageProxy;
+
+import com.forumonline.nfcpass.mlkit.camera.MrzBandLocalizer;
+import com.forumonline.nfcpass.mlkit.camera.StartupTrace;
+import com.forumonline.nfcpass.mlkit.other.Frame;
 import com.forumonline.nfcpass.mlkit.other.FrameMetadata;
 import com.forumonline.nfcpass.mlkit.other.GraphicOverlay;
+import com.forumonline.nfcpass.mlkit.other.ScanLog;
 import com.forumonline.nfcpass.model.DocType;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
@@ -15,9 +25,7 @@ import com.google.android.gms.tasks.Task;
 import com.google.mlkit.common.MlKitException;
 import com.google.mlkit.vision.common.InputImage;
 import com.google.mlkit.vision.text.Text;
-import com.google.mlkit.vision.text.TextRecognition;
 import com.google.mlkit.vision.text.TextRecognizer;
-import com.google.mlkit.vision.text.latin.TextRecognizerOptions;
 
 import net.sf.scuba.data.Gender;
 
@@ -26,18 +34,27 @@ import org.jmrtd.lds.icao.MRZInfo;
 import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class TextRecognitionProcessor {
 
     private static final String TAG = TextRecognitionProcessor.class.getName();
 
+    /** Lines shorter than this are not taken for MRZ lines. */
+    private static final int MIN_MRZ_LINE_LENGTH = 25;
+
     private final TextRecognizer textRecognizer;
 
     private ResultListener resultListener;
 
-    private String scannedTextBuffer;
+    // Text of the current frame, searched for the MRZ lines of docType as elements are appended
+    private final MrzTextAccumulator scannedText = new MrzTextAccumulator();
+    private final MrzTextAccumulator.Line passportLine1;
+    private final MrzTextAccumulator.Line passportLine2;
+    private final MrzTextAccumulator.Line td1Line1;
+    private final MrzTextAccumulator.Line td1Line2;
+    private final MrzTextAccumulator.Line td1Line3;
+    private final MrzTextAccumulator.Line td2Line1;
+    private final MrzTextAccumulator.Line td2Line2;
 
     private DocType docType;
 
@@ -64,17 +81,37 @@ public class TextRecognitionProcessor {
     // Whether we have already found and processed a valid MRZ
     private final AtomicBoolean mrzProcessed = new AtomicBoolean(false);
 
+    private volatile RecognitionObserver recognitionObserver;
+
+    private volatile StartupTrace startupTrace;
+
+    private final MrzBandLocalizer bandLocalizer = new MrzBandLocalizer();
+    private final Rect band = new Rect();
+    // Holds the band copied out of a frame until recognition completes; one recognition at a time
+    private final RecognizerPool.Slot recognizerSlot;
+
     public TextRecognitionProcessor(DocType docType, ResultListener resultListener) {
         this.docType = docType;
         this.resultListener = resultListener;
-        textRecognizer = TextRecognition.getClient(TextRecognizerOptions.DEFAULT_OPTIONS);
+        textRecognizer = TextRecognizerHolder.getRecognizer();
+        recognizerSlot = new RecognizerPool.Slot(textRecognizer);
+        boolean passport = docType == DocType.PASSPORT;
+        boolean idCard = docType == DocType.ID_CARD;
+        passportLine1 = passport ? scannedText.track(PASSPORT_TD_3_LINE_1_REGEX, 44) : null;
+        passportLine2 = passport ? scannedText.track(PASSPORT_TD_3_LINE_2_REGEX, 44) : null;
+        td1Line1 = idCard ? scannedText.track(ID_TD_1_LINE_1_REGEX, 30) : null;
+        td1Line2 = idCard ? scannedText.track(ID_TD_1_LINE_2_REGEX, 31) : null;
+        // Matches as soon as there are two letters; only whether it matched is used
+        td1Line3 = idCard ? scannedText.track(ID_TD_1_LINE_3_REGEX, 2) : null;
+        td2Line1 = idCard ? scannedText.track(ID_TD_2_LINE_1_REGEX, 36) : null;
+        td2Line2 = idCard ? scannedText.track(ID_TD_2_LINE_2_REGEX, 36) : null;
     }
 
     //region ----- Exposed Methods -----
 
 
+    /** The recognizer is shared through {@link TextRecognizerHolder} and stays open for the next scan. */
     public void stop() {
-        textRecognizer.close();
     }
 
 
@@ -94,7 +131,178 @@ public class TextRecognitionProcessor {
                 frameMetadata.getRotation(),
                 InputImage.IMAGE_FORMAT_NV21);
 
-        detectInVisionImage(inputImage, frameMetadata, graphicOverlay);
+        detectInVisionImage(inputImage, frameMetadata, graphicOverlay, new Point());
+    }
+
+    /**
+     * Recognizes text in a frame from any {@link com.forumonline.nfcpass.mlkit.camera.FrameSource}.
+     * Only the MRZ band is recognized when it can be found, otherwise camera frames are passed on
+     * whole and without copying. The frame is closed once recognition has finished, or right away
+     * if it is dropped.
+     */
+    public void process(Frame frame, GraphicOverlay graphicOverlay) {
+
+        if (shouldThrottle.get()) {
+            notifyFrameDropped(frame);
+            frame.close();
+            return;
+        }
+
+        Point offset = new Point();
+        InputImage inputImage = mrzProcessed.get() ? null : toInputImage(frame, offset, recognizerSlot, false);
+        if (inputImage == null) {
+            frame.close();
+            return;
+        }
+
+        markMilestone(StartupTrace.Milestone.FIRST_RECOGNITION_STARTED);
+        long startNanos = System.nanoTime();
+        detectInVisionImage(inputImage, frame.getMetadata(), graphicOverlay, offset).addOnCompleteListener(task -> {
+            notifyFrameRecognized(frame, startNanos, task);
+            frame.close();
+        });
+    }
+
+    /** Number of frames recognized at the same time; the base processor recognizes one at a time. */
+    public int getConcurrentRecognitions() {
+        return 1;
+    }
+
+    /** Sets the observer told about every frame processed or dropped, e.g. a capture governor. */
+    public void setRecognitionObserver(RecognitionObserver observer) {
+        recognitionObserver = observer;
+    }
+
+    /** Sets the trace in which the first recognition milestones of a scan are recorded. */
+    public void setStartupTrace(StartupTrace trace) {
+        startupTrace = trace;
+    }
+
+    protected void markMilestone(StartupTrace.Milestone milestone) {
+        StartupTrace trace = startupTrace;
+        if (trace != null) {
+            trace.mark(milestone);
+        }
+    }
+
+    protected void notifyFrameDropped(Frame frame) {
+        RecognitionObserver observer = recognitionObserver;
+        if (observer != null) {
+            observer.onFrameDropped(frame);
+        }
+    }
+
+    protected void notifyFrameRecognized(Frame frame, long startNanos, Task<Text> task) {
+        notifyFrameRecognized(frame, startNanos, task.isSuccessful() ? task.getResult() : null);
+    }
+
+    protected void notifyFrameRecognized(Frame frame, long startNanos, @Nullable Text text) {
+        notifyFrameRecognized(frame, startNanos, mrzLineHeight(text));
+        if (text != null && !text.getText().isEmpty()) {
+            markMilestone(StartupTrace.Milestone.FIRST_TEXT);
+        }
+    }
+
+    /** As above, for an engine that measures the height of the MRZ lines it read itself. */
+    protected void notifyFrameRecognized(Frame frame, long startNanos, int textHeight) {
+        markMilestone(StartupTrace.Milestone.FIRST_RECOGNITION_DONE);
+        RecognitionObserver observer = recognitionObserver;
+        if (observer != null) {
+            observer.onFrameRecognized(frame, System.nanoTime() - startNanos, textHeight);
+        }
+    }
+
+    /** Height in pixels of the tallest line long enough to be an MRZ line, 0 if there is none. */
+    private static int mrzLineHeight(@Nullable Text text) {
+        if (text == null) {
+            return 0;
+        }
+        int height = 0;
+        List<Text.TextBlock> blocks = text.getTextBlocks();
+        for (int i = 0; i < blocks.size(); i++) {
+            List<Text.Line> lines = blocks.get(i).getLines();
+            for (int j = 0; j < lines.size(); j++) {
+                Text.Line line = lines.get(j);
+                Rect box = line.getBoundingBox();
+                if (box != null && line.getText().length() >= MIN_MRZ_LINE_LENGTH) {
+                    height = Math.max(height, box.height());
+                }
+            }
+        }
+        return height;
+    }
+
+    /** Looks for the MRZ band of a frame, see {@link MrzBandLocalizer#locate(Frame, Rect)}. */
+    protected boolean locateBand(Frame frame, Rect band) {
+        return bandLocalizer.locate(frame, band);
+    }
+
+    /**
+     * Wraps a frame for ML Kit, or returns null if its camera image is no longer available. If the
+     * MRZ band is found only the band is copied out and wrapped, and {@code offset} is set to its
+     * position in the upright frame so that results can be drawn in frame coordinates. Copies go to
+     * the buffer of {@code slot}; with {@code copy} the whole frame is copied if there is no band,
+     * so that the frame can be closed before recognition.
+     */
+    @OptIn(markerClass = ExperimentalGetImage.class)
+    protected InputImage toInputImage(Frame frame, Point offset, RecognizerPool.Slot slot, boolean copy) {
+        FrameMetadata metadata = frame.getMetadata();
+        ImageProxy image = frame.getImage();
+        if (image != null && image.getImage() == null) {
+            return null;
+        }
+
+        if (bandLocalizer.locate(frame, band)) {
+            int length = band.width() * band.height() * 3 / 2;
+            byte[] buffer = slot.buffer(length);
+            frame.copyNv21(band, buffer);
+            setUprightOffset(band, metadata, offset);
+            return InputImage.fromByteBuffer(ByteBuffer.wrap(buffer, 0, length),
+                    band.width(),
+                    band.height(),
+                    metadata.getRotation(),
+                    InputImage.IMAGE_FORMAT_NV21);
+        }
+
+        offset.set(0, 0);
+        if (copy) {
+            int length = metadata.getWidth() * metadata.getHeight() * 3 / 2;
+            byte[] buffer = slot.buffer(length);
+            frame.copyNv21(null, buffer);
+            return InputImage.fromByteBuffer(ByteBuffer.wrap(buffer, 0, length),
+                    metadata.getWidth(),
+                    metadata.getHeight(),
+                    metadata.getRotation(),
+                    InputImage.IMAGE_FORMAT_NV21);
+        }
+        if (image != null) {
+            return InputImage.fromMediaImage(image.getImage(), metadata.getRotation());
+        }
+        return InputImage.fromByteBuffer(frame.getNv21(),
+                metadata.getWidth(),
+                metadata.getHeight(),
+                metadata.getRotation(),
+                InputImage.IMAGE_FORMAT_NV21);
+    }
+
+    /** Position of the top left corner of {@code crop} once the frame is rotated upright. */
+    private static void setUprightOffset(Rect crop, FrameMetadata metadata, Point offset) {
+        int width = metadata.getWidth();
+        int height = metadata.getHeight();
+        switch (metadata.getRotation()) {
+            case 90:
+                offset.set(height - crop.bottom, crop.left);
+                break;
+            case 180:
+                offset.set(width - crop.right, height - crop.bottom);
+                break;
+            case 270:
+                offset.set(crop.top, width - crop.right);
+                break;
+            default:
+                offset.set(crop.left, crop.top);
+                break;
+        }
     }
 
     //endregion
@@ -106,11 +314,13 @@ public class TextRecognitionProcessor {
     }
 
 
-    protected void onSuccess(@NonNull Text results, @NonNull FrameMetadata frameMetadata, @NonNull GraphicOverlay graphicOverlay) {
+    protected void onSuccess(@NonNull Text results, @NonNull FrameMetadata frameMetadata, @Nullable GraphicOverlay graphicOverlay, @NonNull Point offset) {
 
-        graphicOverlay.clear();
+        if (graphicOverlay != null) {
+            graphicOverlay.clear();
+        }
 
-        scannedTextBuffer = "";
+        scannedText.reset();
 
         List<Text.TextBlock> blocks = results.getTextBlocks();
 
@@ -119,25 +329,29 @@ public class TextRecognitionProcessor {
             for (int j = 0; j < lines.size(); j++) {
                 List<Text.Element> elements = lines.get(j).getElements();
                 for (int k = 0; k < elements.size(); k++) {
-                    filterScannedText(graphicOverlay, elements.get(k));
+                    filterScannedText(graphicOverlay, elements.get(k), offset);
                 }
             }
         }
     }
 
-    private void filterScannedText(GraphicOverlay graphicOverlay, Text.Element element) {
+    private void filterScannedText(GraphicOverlay graphicOverlay, Text.Element element, Point offset) {
         try {
-            GraphicOverlay.Graphic textGraphic = new TextGraphic(graphicOverlay, element, Color.GREEN);
-            graphicOverlay.add(textGraphic);
+            if (graphicOverlay != null) {
+                graphicOverlay.add(new TextGraphic(graphicOverlay, element, Color.GREEN, offset.x, offset.y));
+            }
             
             // Safe text extraction
             String elementText = "";
             try {
                 elementText = element.getText();
-                if (elementText != null) {
-                    scannedTextBuffer += elementText;
-                } else {
-                    Log.w(TAG, "Element text is null");
+                if (elementText == null) {
+                    ScanLog.w(TAG, "Element text is null");
+                    return;
+                }
+                // Lines that were already found were handled when they were found
+                if (!scannedText.append(elementText)) {
+                    return;
                 }
             } catch (Exception textError) {
                 Log.e(TAG, "Error getting element text: " + textError.getMessage(), textError);
@@ -161,24 +375,18 @@ public class TextRecognitionProcessor {
 
     private void processPassportMRZ() {
         try {
-            Pattern patternPassportTD3Line1 = Pattern.compile(PASSPORT_TD_3_LINE_1_REGEX);
-            Matcher matcherPassportTD3Line1 = patternPassportTD3Line1.matcher(scannedTextBuffer);
-
-            Pattern patternPassportTD3Line2 = Pattern.compile(PASSPORT_TD_3_LINE_2_REGEX);
-            Matcher matcherPassportTD3Line2 = patternPassportTD3Line2.matcher(scannedTextBuffer);
-
-            if(matcherPassportTD3Line1.find() && matcherPassportTD3Line2.find()) {
+            if (passportLine1.isFound() && passportLine2.isFound()) {
                 try {
-                    String line2 = matcherPassportTD3Line2.group(0);
+                    String line2 = passportLine2.getText();
                     
                     // Add comprehensive bounds checking
                     if (line2 == null) {
-                        Log.w(TAG, "Passport line2 is null");
+                        ScanLog.w(TAG, "Passport line2 is null");
                         return;
                     }
                     
                     if (line2.length() < 27) {
-                        Log.w(TAG, "Passport line2 too short: " + line2.length() + " chars: '" + line2 + "'");
+                        ScanLog.w(TAG, "Passport line2 too short: " + line2.length() + " chars: '" + line2 + "'");
                         return;
                     }
                     
@@ -200,7 +408,7 @@ public class TextRecognitionProcessor {
                         
                         // Validate extracted data
                         if (documentNumber.trim().isEmpty() || dateOfBirthDay.trim().isEmpty() || expiryDate.trim().isEmpty()) {
-                            Log.w(TAG, "Extracted data is empty - Doc: '" + documentNumber + "' DOB: '" + dateOfBirthDay + "' Exp: '" + expiryDate + "'");
+                            ScanLog.w(TAG, "Extracted data is empty - Doc: '" + documentNumber + "' DOB: '" + dateOfBirthDay + "' Exp: '" + expiryDate + "'");
                             return;
                         }
                         
@@ -209,7 +417,7 @@ public class TextRecognitionProcessor {
                         return;
                     }
 
-                    Log.d(TAG, "Scanned Text Buffer Passport ->>>> " + "Doc Number: " + documentNumber + " DateOfBirth: " + dateOfBirthDay + " ExpiryDate: " + expiryDate);
+                    ScanLog.d(TAG, "Scanned Text Buffer Passport ->>>> " + "Doc Number: " + documentNumber + " DateOfBirth: " + dateOfBirthDay + " ExpiryDate: " + expiryDate);
 
                     try {
                         MRZInfo mrzInfo = buildTempMrz(documentNumber, dateOfBirthDay, expiryDate);
@@ -217,10 +425,10 @@ public class TextRecognitionProcessor {
                         if (mrzInfo != null) {
                             // Set flag to prevent duplicate processing
                             if (mrzProcessed.compareAndSet(false, true)) {
-                                Log.d(TAG, "MRZInfo created successfully, finishing scan");
+                                ScanLog.d(TAG, "MRZInfo created successfully, finishing scan");
                                 finishScanning(mrzInfo);
                             } else {
-                                Log.d(TAG, "MRZ already processed, ignoring duplicate");
+                                ScanLog.d(TAG, "MRZ already processed, ignoring duplicate");
                             }
                         } else {
                             Log.w(TAG, "MRZInfo is null, cannot finish scanning");
@@ -246,42 +454,27 @@ public class TextRecognitionProcessor {
     private void processIDCardMRZ() {
         try {
             // Log the scanned buffer for debugging
-            Log.d(TAG, "Processing ID Card MRZ. Buffer length: " + scannedTextBuffer.length());
-            if (scannedTextBuffer.length() > 0) {
+            ScanLog.d(TAG, "Processing ID Card MRZ. Buffer length: " + scannedText.length());
+            if (scannedText.length() > 0) {
                 // Log first 100 chars or full buffer if shorter
-                String preview = scannedTextBuffer.substring(0, Math.min(scannedTextBuffer.length(), 100));
-                Log.d(TAG, "Buffer preview: " + preview);
+                ScanLog.d(TAG, "Buffer preview: " + scannedText.substring(0, Math.min(scannedText.length(), 100)));
             }
             
             // Try TD1 format (3 lines, 30 chars each)
-            Pattern patternTD1Line1 = Pattern.compile(ID_TD_1_LINE_1_REGEX);
-            Pattern patternTD1Line2 = Pattern.compile(ID_TD_1_LINE_2_REGEX);
-            Pattern patternTD1Line3 = Pattern.compile(ID_TD_1_LINE_3_REGEX);
+            boolean line1Found = td1Line1.isFound();
+            boolean line2Found = td1Line2.isFound();
+            boolean line3Found = td1Line3.isFound();
             
-            Matcher matcherTD1Line1 = patternTD1Line1.matcher(scannedTextBuffer);
-            Matcher matcherTD1Line2 = patternTD1Line2.matcher(scannedTextBuffer);
-            Matcher matcherTD1Line3 = patternTD1Line3.matcher(scannedTextBuffer);
-
-            boolean line1Found = matcherTD1Line1.find();
-            boolean line2Found = matcherTD1Line2.find();
-            boolean line3Found = matcherTD1Line3.find();
-            
-            Log.d(TAG, "TD1 detection - Line1: " + line1Found + ", Line2: " + line2Found + ", Line3: " + line3Found);
+            ScanLog.d(TAG, "TD1 detection - Line1: " + line1Found + ", Line2: " + line2Found + ", Line3: " + line3Found);
             
             if (line1Found && line2Found && line3Found) {
-                processTD1Format(matcherTD1Line1, matcherTD1Line2, matcherTD1Line3);
+                processTD1Format(td1Line1.getText(), td1Line2.getText());
                 return;
             }
 
             // Try TD2 format (2 lines, 36 chars each)
-            Pattern patternTD2Line1 = Pattern.compile(ID_TD_2_LINE_1_REGEX);
-            Pattern patternTD2Line2 = Pattern.compile(ID_TD_2_LINE_2_REGEX);
-            
-            Matcher matcherTD2Line1 = patternTD2Line1.matcher(scannedTextBuffer);
-            Matcher matcherTD2Line2 = patternTD2Line2.matcher(scannedTextBuffer);
-
-            if (matcherTD2Line1.find() && matcherTD2Line2.find()) {
-                processTD2Format(matcherTD2Line1, matcherTD2Line2);
+            if (td2Line1.isFound() && td2Line2.isFound()) {
+                processTD2Format(td2Line2.getText());
                 return;
             }
 
@@ -293,21 +486,18 @@ public class TextRecognitionProcessor {
         }
     }
 
-    private void processTD1Format(Matcher line1, Matcher line2, Matcher line3) {
+    private void processTD1Format(String line1Text, String line2Text) {
         try {
-            String line1Text = line1.group(0);
-            String line2Text = line2.group(0);
-            
             if (line1Text == null || line2Text == null) {
-                Log.w(TAG, "TD1 line data is null");
+                ScanLog.w(TAG, "TD1 line data is null");
                 return;
             }
             
-            Log.d(TAG, "TD1 Line 1: " + line1Text);
-            Log.d(TAG, "TD1 Line 2: " + line2Text);
+            ScanLog.d(TAG, "TD1 Line 1: " + line1Text);
+            ScanLog.d(TAG, "TD1 Line 2: " + line2Text);
             
             if (line1Text.length() < 30 || line2Text.length() < 30) {
-                Log.w(TAG, "TD1 lines too short - Line1: " + line1Text.length() + " Line2: " + line2Text.length());
+                ScanLog.w(TAG, "TD1 lines too short - Line1: " + line1Text.length() + " Line2: " + line2Text.length());
                 return;
             }
             
@@ -339,11 +529,11 @@ public class TextRecognitionProcessor {
             
             // Validate extracted data
             if (documentNumber.isEmpty() || dateOfBirth.isEmpty() || dateOfExpiry.isEmpty()) {
-                Log.w(TAG, "TD1 extracted data is empty - Doc: '" + documentNumber + "' DOB: '" + dateOfBirth + "' Exp: '" + dateOfExpiry + "'");
+                ScanLog.w(TAG, "TD1 extracted data is empty - Doc: '" + documentNumber + "' DOB: '" + dateOfBirth + "' Exp: '" + dateOfExpiry + "'");
                 return;
             }
             
-            Log.d(TAG, "Scanned TD1 ID Card ->>>> Doc Number: " + documentNumber + " DateOfBirth: " + dateOfBirth + " ExpiryDate: " + dateOfExpiry);
+            ScanLog.d(TAG, "Scanned TD1 ID Card ->>>> Doc Number: " + documentNumber + " DateOfBirth: " + dateOfBirth + " ExpiryDate: " + dateOfExpiry);
             
             processMRZData(documentNumber, dateOfBirth, dateOfExpiry);
             
@@ -355,17 +545,15 @@ public class TextRecognitionProcessor {
         }
     }
 
-    private void processTD2Format(Matcher line1, Matcher line2) {
+    private void processTD2Format(String line2Text) {
         try {
-            String line2Text = line2.group(0);
-            
             if (line2Text == null) {
-                Log.w(TAG, "TD2 line2 data is null");
+                ScanLog.w(TAG, "TD2 line2 data is null");
                 return;
             }
             
             if (line2Text.length() < 27) {
-                Log.w(TAG, "TD2 line2 too short: " + line2Text.length() + " chars");
+                ScanLog.w(TAG, "TD2 line2 too short: " + line2Text.length() + " chars");
                 return;
             }
             
@@ -376,11 +564,11 @@ public class TextRecognitionProcessor {
             
             // Validate extracted data
             if (documentNumber.trim().isEmpty() || dateOfBirth.trim().isEmpty() || dateOfExpiry.trim().isEmpty()) {
-                Log.w(TAG, "TD2 extracted data is empty");
+                ScanLog.w(TAG, "TD2 extracted data is empty");
                 return;
             }
             
-            Log.d(TAG, "Scanned TD2 ID Card ->>>> Doc Number: " + documentNumber + " DateOfBirth: " + dateOfBirth + " ExpiryDate: " + dateOfExpiry);
+            ScanLog.d(TAG, "Scanned TD2 ID Card ->>>> Doc Number: " + documentNumber + " DateOfBirth: " + dateOfBirth + " ExpiryDate: " + dateOfExpiry);
             
             processMRZData(documentNumber, dateOfBirth, dateOfExpiry);
             
@@ -399,10 +587,10 @@ public class TextRecognitionProcessor {
             if (mrzInfo != null) {
                 // Set flag to prevent duplicate processing
                 if (mrzProcessed.compareAndSet(false, true)) {
-                    Log.d(TAG, "MRZInfo created successfully, finishing scan");
+                    ScanLog.d(TAG, "MRZInfo created successfully, finishing scan");
                     finishScanning(mrzInfo);
                 } else {
-                    Log.d(TAG, "MRZ already processed, ignoring duplicate");
+                    ScanLog.d(TAG, "MRZ already processed, ignoring duplicate");
                 }
             } else {
                 Log.w(TAG, "MRZInfo is null, cannot finish scanning");
@@ -420,15 +608,15 @@ public class TextRecognitionProcessor {
         resultListener.onError(e);
     }
 
-    private void detectInVisionImage(InputImage image, final FrameMetadata metadata, final GraphicOverlay graphicOverlay) {
+    private Task<Text> detectInVisionImage(InputImage image, final FrameMetadata metadata, final GraphicOverlay graphicOverlay, final Point offset) {
 
-        detectInImage(image)
+        Task<Text> task = detectInImage(image)
                 .addOnSuccessListener(
                         new OnSuccessListener<Text>() {
                             @Override
                             public void onSuccess(Text results) {
                                 shouldThrottle.set(false);
-                                TextRecognitionProcessor.this.onSuccess(results, metadata, graphicOverlay);
+                                TextRecognitionProcessor.this.onSuccess(results, metadata, graphicOverlay, offset);
                             }
                         })
                 .addOnFailureListener(
@@ -442,6 +630,7 @@ public class TextRecognitionProcessor {
         // Begin throttling until this frame of input has been processed, either in onSuccess or
         // onFailure.
         shouldThrottle.set(true);
+        return task;
     }
 
     private void finishScanning(final MRZInfo mrzInfo) {
@@ -457,7 +646,8 @@ public class TextRecognitionProcessor {
             }
             
             if(isMrzValid(mrzInfo)) {
-                Log.d(TAG, "MRZ is valid, scheduling success callback");
+                ScanLog.d(TAG, "MRZ is valid, scheduling success callback");
+                markMilestone(StartupTrace.Milestone.MRZ_FOUND);
                 // Delay returning result 1 sec. in order to make mrz text become visible on graphicOverlay by user
                 // You want to call 'resultListener.onSuccess(mrzInfo)' without no delay
                 new Handler().postDelayed(() -> {
@@ -486,7 +676,7 @@ public class TextRecognitionProcessor {
         try {
             mrzInfo = new MRZInfo("P","NNN", "", "", documentNumber, "NNN", dateOfBirth, Gender.UNSPECIFIED, expiryDate, "");
         } catch (Exception e) {
-            Log.d(TAG, "MRZInfo error : " + e.getLocalizedMessage());
+            ScanLog.d(TAG, "MRZInfo error : " + e.getLocalizedMessage());
         }
 
         return mrzInfo;
@@ -498,6 +688,18 @@ public class TextRecognitionProcessor {
                 mrzInfo.getDateOfExpiry() != null && mrzInfo.getDateOfExpiry().length() == 6;
     }
 
+    /** Told about the frames given to {@link #process(Frame, GraphicOverlay)}. */
+    public interface RecognitionObserver {
+        /** The frame arrived while the previous one was still being recognized. */
+        void onFrameDropped(Frame frame);
+
+        /**
+         * Recognition of the frame has finished; {@code textHeight} is the height in pixels of the
+         * tallest MRZ line read, 0 if there was none or recognition failed.
+         */
+        void onFrameRecognized(Frame frame, long latencyNanos, int textHeight);
+    }
+
     public interface ResultListener {
         void onSuccess(MRZInfo mrzInfo);
         void onError(Exception exp);
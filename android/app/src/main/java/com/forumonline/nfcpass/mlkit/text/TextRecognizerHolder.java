@@ -0,0 +1,87 @@
+package com.forumonline.nfcpass.mlkit.text;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.mlkit.vision.common.InputImage;
+import com.google.mlkit.vision.text.TextRecognizer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Application wide ML Kit text recognizers, so that opening the scanner does not load a model.
+ *
+ * <p>The recognizers are created on first use and kept for the life of the process; processors
+ * borrow them and leave them open when they stop. {@link #warmUp()} creates them in the background
+ * at app start and runs a blank frame through each, which makes ML Kit load and initialise its
+ * model before the first camera frame arrives.
+ */
+public final class TextRecognizerHolder {
+    private static final String TAG = "TextRecognizerHolder";
+
+    /** Smallest image ML Kit's text recognizer accepts is 32x32; a blank one is enough to load the model. */
+    private static final int WARM_UP_SIZE = 64;
+
+    /** How long warming one recognizer may take, e.g. while the unbundled model is still downloading. */
+    private static final long WARM_UP_TIMEOUT_MS = 10000;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TextRecognizerWarmUp");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+
+    private static RecognizerPool pool;
+    private static boolean warmUpStarted = false;
+    private static volatile long warmUpMillis = -1;
+
+    private TextRecognizerHolder() {}
+
+    /** Creates and warms the recognizers in the background. Calling this again is a no-op. */
+    public static synchronized void warmUp() {
+        if (warmUpStarted) {
+            return;
+        }
+        warmUpStarted = true;
+        executor.execute(() -> {
+            long start = SystemClock.elapsedRealtime();
+            RecognizerPool recognizers = getPool();
+            byte[] blank = new byte[WARM_UP_SIZE * WARM_UP_SIZE * 3 / 2];
+            for (int i = 0; i < recognizers.size(); i++) {
+                InputImage image = InputImage.fromByteBuffer(ByteBuffer.wrap(blank),
+                        WARM_UP_SIZE, WARM_UP_SIZE, 0, InputImage.IMAGE_FORMAT_NV21);
+                try {
+                    Tasks.await(recognizers.get(i).recognizer.process(image), WARM_UP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (Exception e) {
+                    Log.w(TAG, "Warming text recognizer " + i + " failed: " + e.getMessage());
+                    return;
+                }
+            }
+            warmUpMillis = SystemClock.elapsedRealtime() - start;
+            Log.d(TAG, "Warmed " + recognizers.size() + " text recognizers in " + warmUpMillis + " ms");
+        });
+    }
+
+    /** Time the warm-up took, or -1 if it has not finished (or failed). */
+    public static long getWarmUpMillis() {
+        return warmUpMillis;
+    }
+
+    /** The shared recognizer for single images, the first one of the pool. */
+    public static TextRecognizer getRecognizer() {
+        return getPool().get(0).recognizer;
+    }
+
+    /** The shared recognizers for camera frames, {@link RecognizerPool#defaultSize()} of them. */
+    static synchronized RecognizerPool getPool() {
+        if (pool == null) {
+            pool = new RecognizerPool(RecognizerPool.defaultSize());
+        }
+        return pool;
+    }
+}
@@ -1,49 +1,58 @@
 package com.forumonline.nfcpass.mlkit.text;
 
-import android.graphics.Color;
 import android.os.Handler;
-import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
-import com.forumonline.nfcpass.mlkit.other.FrameMetadata;
+import com.forumonline.nfcpass.mlkit.camera.StartupTrace;
+import com.forumonline.nfcpass.mlkit.other.Frame;
 import com.forumonline.nfcpass.mlkit.other.GraphicOverlay;
+import com.forumonline.nfcpass.mlkit.other.ScanLog;
 import com.forumonline.nfcpass.model.DocType;
 
 // Google ML Kit imports
-import com.google.android.gms.tasks.OnFailureListener;
-import com.google.android.gms.tasks.OnSuccessListener;
-import com.google.android.gms.tasks.Task;
 import com.google.mlkit.common.MlKitException;
 import com.google.mlkit.vision.common.InputImage;
 import com.google.mlkit.vision.text.Text;
-import com.google.mlkit.vision.text.TextRecognition;
-import com.google.mlkit.vision.text.TextRecognizer;
-import com.google.mlkit.vision.text.latin.TextRecognizerOptions;
 
 // HMS ML Kit imports removed - not available in Google flavor build
 
 import net.sf.scuba.data.Gender;
 import org.jmrtd.lds.icao.MRZInfo;
 
-import java.nio.ByteBuffer;
-import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import java.util.ArrayList;
-import com.forumonline.nfcpass.mlkit.text.TextRecognitionProcessor;
-
 public class UnifiedTextRecognitionProcessor extends TextRecognitionProcessor {
 
     private static final String TAG = "UnifiedTextProcessor";
 
-    private final TextRecognizer googleTextRecognizer;
+    /** How camera frames are turned into text. */
+    public enum Engine {
+        /** ML Kit's Latin text recognizer. */
+        ML_KIT,
+        /** {@link MrzTemplateRecognizer}, which only reads the OCR-B symbols of an MRZ band. */
+        OCR_B_TEMPLATES
+    }
+
+    /** Recognizers for camera frames, several of which may be recognized at once. */
+    private final RecognizerPool recognizerPool;
+    private final int concurrentRecognitions;
+    private final AtomicInteger pendingRecognitions = new AtomicInteger();
+    private final OrderedResultMerger<Text> resultMerger;
+
+    private volatile Engine engine = Engine.ML_KIT;
+    private final MrzTemplateRecognizer templateRecognizer = new MrzTemplateRecognizer();
+    private final Rect templateBand = new Rect();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final MrzLineAssembler lineAssembler = new MrzLineAssembler();
 
     private ResultListener resultListener;
-    private String scannedTextBuffer;
     private DocType docType;
 
     public static final String TYPE_PASSPORT = "P<";
@@ -65,25 +74,42 @@ public class UnifiedTextRecognitionProcessor extends TextRecognitionProcessor {
     public static final String ID_TD_2_LINE_1_REGEX = "([AI][A-Z0-9<])([A-Z]{3})([A-Z<]+<<[A-Z<]+)([A-Z0-9<]*)";
     public static final String ID_TD_2_LINE_2_REGEX = "([A-Z0-9<]{9})([0-9]{1})([A-Z]{3})([0-9]{6})([0-9]{1})([M|F|X|<]{1})([0-9]{6})([0-9]{1})([A-Z0-9<]{7})([0-9]{1})";
 
-    private final AtomicBoolean shouldThrottle = new AtomicBoolean(false);
-
     public UnifiedTextRecognitionProcessor() {
+        this(RecognizerPool.defaultSize());
+    }
+
+    /**
+     * Creates a processor recognizing up to {@code concurrentRecognitions} frames at the same
+     * time, at most as many as {@link TextRecognizerHolder} has recognizers. Results are still
+     * parsed in frame order.
+     */
+    public UnifiedTextRecognitionProcessor(int concurrentRecognitions) {
         super(null, null); // Pass null for DocType and ResultListener, as they are managed within this class
 
         Log.d(TAG, "Initializing UnifiedTextRecognitionProcessor");
 
         // Log the regex patterns being used for debugging
-        Log.d(TAG, "[DEBUG] === MRZ PATTERNS CONFIGURED ===");
-        Log.d(TAG, "[DEBUG] Passport TD3 Line 2: " + PASSPORT_TD_3_LINE_2_REGEX);
-        Log.d(TAG, "[DEBUG] ID TD1 Line 1: " + ID_TD_1_LINE_1_REGEX);
-        Log.d(TAG, "[DEBUG] ID TD1 Line 2: " + ID_TD_1_LINE_2_REGEX);
-        Log.d(TAG, "[DEBUG] ID TD2 Line 2: " + ID_TD_2_LINE_2_REGEX);
-        Log.d(TAG, "[DEBUG] ================================");
-
-        // Initialize Google ML Kit only
-        googleTextRecognizer = TextRecognition.getClient(TextRecognizerOptions.DEFAULT_OPTIONS);
+        ScanLog.d(TAG, "[DEBUG] === MRZ PATTERNS CONFIGURED ===");
+        ScanLog.d(TAG, "[DEBUG] Passport TD3 Line 2: " + PASSPORT_TD_3_LINE_2_REGEX);
+        ScanLog.d(TAG, "[DEBUG] ID TD1 Line 1: " + ID_TD_1_LINE_1_REGEX);
+        ScanLog.d(TAG, "[DEBUG] ID TD1 Line 2: " + ID_TD_1_LINE_2_REGEX);
+        ScanLog.d(TAG, "[DEBUG] ID TD2 Line 2: " + ID_TD_2_LINE_2_REGEX);
+        ScanLog.d(TAG, "[DEBUG] ================================");
+
+        // Google ML Kit recognizers are shared between scans and usually warm already
+        recognizerPool = TextRecognizerHolder.getPool();
+        this.concurrentRecognitions = Math.max(1, Math.min(recognizerPool.size(), concurrentRecognitions));
+        resultMerger = new OrderedResultMerger<>(this.concurrentRecognitions, text -> {
+            if (text != null) {
+                processTextResult(text, mergedOverlay);
+            }
+        });
+        Log.d(TAG, "Recognizing up to " + this.concurrentRecognitions + " frames concurrently");
     }
 
+    /** Overlay of the frames whose results are merged; the same for every camera frame. */
+    private volatile GraphicOverlay mergedOverlay;
+
 
     public interface ResultListener {
         void onSuccess(@NonNull MRZInfo mrzInfo);
@@ -94,73 +120,167 @@ public class UnifiedTextRecognitionProcessor extends TextRecognitionProcessor {
         this.resultListener = resultListener;
     }
 
-    public void process(ByteBuffer data, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay) {
-        if (shouldThrottle.get()) {
+    /**
+     * Selects how camera frames are recognized. ML Kit is used by default; the processor switches
+     * to the OCR-B templates by itself while ML Kit's model is unavailable, e.g. not yet downloaded.
+     */
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Process a frame from any FrameSource. Up to {@link #getConcurrentRecognitions()} frames are
+     * recognized at once, each on a recognizer of its own, and their results are parsed in frame
+     * order. With more than one recognizer the frame is copied and closed right away, as the camera
+     * only delivers the next frame once the current one is closed. Otherwise it is closed once
+     * recognition has finished.
+     */
+    @Override
+    public void process(Frame frame, GraphicOverlay graphicOverlay) {
+        if (engine == Engine.OCR_B_TEMPLATES) {
+            processWithTemplates(frame, graphicOverlay);
             return;
         }
 
-        processWithGoogle(data, frameMetadata, graphicOverlay);
-    }
+        RecognizerPool.Slot slot = pendingRecognitions.get() < concurrentRecognitions
+                ? recognizerPool.tryAcquire() : null;
+        if (slot == null) {
+            notifyFrameDropped(frame);
+            frame.close();
+            return;
+        }
 
+        boolean copy = concurrentRecognitions > 1;
+        InputImage inputImage = toInputImage(frame, new Point(), slot, copy);
+        if (inputImage == null) {
+            recognizerPool.release(slot);
+            frame.close();
+            return;
+        }
+        pendingRecognitions.incrementAndGet();
+        if (copy) {
+            frame.close();
+        }
+
+        mergedOverlay = graphicOverlay;
+        markMilestone(StartupTrace.Milestone.FIRST_RECOGNITION_STARTED);
+        long ticket = resultMerger.reserve();
+        long startNanos = System.nanoTime();
+        slot.recognizer.process(inputImage).addOnCompleteListener(task -> {
+            recognizerPool.release(slot);
+            pendingRecognitions.decrementAndGet();
+            notifyFrameRecognized(frame, startNanos, task);
+            frame.close();
+            if (!task.isSuccessful()) {
+                Exception e = task.getException();
+                if (e instanceof MlKitException
+                        && ((MlKitException) e).getErrorCode() == MlKitException.UNAVAILABLE) {
+                    Log.w(TAG, "ML Kit text recognition unavailable, switching to OCR-B templates", e);
+                    engine = Engine.OCR_B_TEMPLATES;
+                } else {
+                    Log.e(TAG, "Google Text recognition failed", e);
+                    if (resultListener != null && e != null) {
+                        resultListener.onError(e);
+                    }
+                }
+            }
+            resultMerger.complete(ticket, task.isSuccessful() ? task.getResult() : null);
+        });
+    }
 
     /**
-     * Process using Google ML Kit (Standard Android)
+     * Reads the MRZ band of the frame with {@link MrzTemplateRecognizer} on the calling thread,
+     * which takes a few milliseconds, and parses the result on the main thread like ML Kit results.
+     * Frames without a band are skipped, the templates only know the MRZ symbols. The height of the
+     * lines read goes to the observer as ML Kit's line boxes do, so the capture resolution follows
+     * the MRZ on this engine too.
      */
-    private void processWithGoogle(ByteBuffer data, FrameMetadata frameMetadata, GraphicOverlay graphicOverlay) {
-        InputImage inputImage = InputImage.fromByteBuffer(data,
-            frameMetadata.getWidth(),
-            frameMetadata.getHeight(),
-            frameMetadata.getRotation(),
-            InputImage.IMAGE_FORMAT_NV21);
-
-        googleTextRecognizer.process(inputImage)
-            .addOnSuccessListener(text -> {
-                shouldThrottle.set(false);
-                processTextResult(text, graphicOverlay);
-            })
-            .addOnFailureListener(e -> {
-                shouldThrottle.set(false);
-                Log.e(TAG, "Google Text recognition failed", e);
-                if (resultListener != null) {
-                    resultListener.onError(e);
-                }
-            });
-        
-        shouldThrottle.set(true);
+    private void processWithTemplates(Frame frame, GraphicOverlay graphicOverlay) {
+        long startNanos = System.nanoTime();
+        String text = null;
+        int textHeight = 0;
+        try {
+            if (locateBand(frame, templateBand)) {
+                markMilestone(StartupTrace.Milestone.FIRST_RECOGNITION_STARTED);
+                text = templateRecognizer.recognize(frame, templateBand);
+                textHeight = templateRecognizer.getLineHeight();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Template text recognition failed", e);
+        }
+        notifyFrameRecognized(frame, startNanos, textHeight);
+        frame.close();
+
+        if (text != null) {
+            markMilestone(StartupTrace.Milestone.FIRST_TEXT);
+            String recognizedText = text;
+            mainHandler.post(() -> processRecognizedText(recognizedText, graphicOverlay));
+        }
+    }
+
+    @Override
+    public int getConcurrentRecognitions() {
+        return concurrentRecognitions;
     }
 
 
     /**
-     * Process the recognized text (common logic for both engines)
+     * Rebuilds the MRZ lines of an ML Kit result from its geometry and parses them. Falls back to
+     * ML Kit's own text when the result has no bounding boxes.
      */
     private void processTextResult(Text text, GraphicOverlay graphicOverlay) {
         if (text == null || text.getText().isEmpty()) {
-            Log.d(TAG, "[DEBUG] No text detected or text is empty");
+            ScanLog.d(TAG, "[DEBUG] No text detected or text is empty");
             return;
         }
 
-        String recognizedText = text.getText();
-        Log.d(TAG, "[DEBUG] ========== RAW OCR TEXT START ==========");
-        Log.d(TAG, "[DEBUG] Raw text length: " + recognizedText.length() + " chars");
-        
-        // Log each line separately for better debugging
-        String[] lines = recognizedText.split("\n");
-        for (int i = 0; i < lines.length; i++) {
-            Log.d(TAG, "[DEBUG] Line " + i + " [" + lines[i].length() + " chars]: '" + lines[i] + "'");
+        String mrzLines = lineAssembler.assemble(text);
+        if (mrzLines == null) {
+            processRecognizedText(text.getText(), graphicOverlay);
+        } else if (mrzLines.isEmpty()) {
+            ScanLog.d(TAG, "[DEBUG] No rows of MRZ length in %d chars of text", text.getText().length());
+            if (graphicOverlay != null) {
+                graphicOverlay.clear();
+            }
+        } else {
+            processRecognizedText(mrzLines, graphicOverlay);
+        }
+    }
+
+    /**
+     * Parses recognized text, from either engine, for an MRZ
+     */
+    private void processRecognizedText(String recognizedText, GraphicOverlay graphicOverlay) {
+        if (ScanLog.isEnabled()) {
+            ScanLog.d(TAG, "[DEBUG] ========== RAW OCR TEXT START ==========");
+            ScanLog.d(TAG, "[DEBUG] Raw text length: " + recognizedText.length() + " chars");
+
+            // Log each line separately for better debugging
+            String[] lines = recognizedText.split("\n");
+            for (int i = 0; i < lines.length; i++) {
+                ScanLog.d(TAG, "[DEBUG] Line " + i + " [" + lines[i].length() + " chars]: '" + lines[i] + "'");
+            }
+            ScanLog.d(TAG, "[DEBUG] ========== RAW OCR TEXT END ==========");
         }
-        Log.d(TAG, "[DEBUG] ========== RAW OCR TEXT END ==========");
 
         // Clear previous graphics
-        graphicOverlay.clear();
+        if (graphicOverlay != null) {
+            graphicOverlay.clear();
+        }
 
         // Process MRZ text
         try {
             MRZInfo mrzInfo = parseMRZFromText(recognizedText);
             if (mrzInfo != null && resultListener != null) {
-                Log.d(TAG, "[DEBUG] MRZ successfully parsed!");
+                ScanLog.d(TAG, "[DEBUG] MRZ successfully parsed!");
+                markMilestone(StartupTrace.Milestone.MRZ_FOUND);
                 resultListener.onSuccess(mrzInfo);
             } else {
-                Log.d(TAG, "[DEBUG] MRZ parsing returned null");
+                ScanLog.d(TAG, "[DEBUG] MRZ parsing returned null");
             }
         } catch (Exception e) {
             Log.e(TAG, "[DEBUG] Failed to parse MRZ: " + e.getMessage(), e);
@@ -174,24 +294,24 @@ public class UnifiedTextRecognitionProcessor extends TextRecognitionProcessor {
      * Parse MRZ information from recognized text
      */
     private MRZInfo parseMRZFromText(String text) {
-        Log.d(TAG, "[DEBUG] parseMRZFromText started");
+        ScanLog.d(TAG, "[DEBUG] parseMRZFromText started");
         
         // Store original text for debugging
         String originalText = text;
         
         // Clean and normalize text
         text = text.toUpperCase().replace("O", "0");
-        Log.d(TAG, "[DEBUG] Text after normalization: " + text.substring(0, Math.min(100, text.length())) + "...");
+        ScanLog.d(TAG, "[DEBUG] Text after normalization: %.100s...", text);
         
         String[] lines = text.split("\\n");
-        Log.d(TAG, "[DEBUG] Number of lines after split: " + lines.length);
+        ScanLog.d(TAG, "[DEBUG] Number of lines after split: %d", lines.length);
         
         // First check for passport MRZ
         for (int i = 0; i < lines.length; i++) {
             String line = lines[i];
-            Log.d(TAG, "[DEBUG] Checking line " + i + " for passport: starts with 'P<'? " + line.startsWith(TYPE_PASSPORT));
+            ScanLog.d(TAG, "[DEBUG] Checking line %d for passport: starts with 'P<'? %b", i, line.startsWith(TYPE_PASSPORT));
             if (line.startsWith(TYPE_PASSPORT)) {
-                Log.d(TAG, "[DEBUG] ✓ Detected passport MRZ at line " + i);
+                ScanLog.d(TAG, "[DEBUG] ✓ Detected passport MRZ at line %d", i);
                 return parsePassportMRZ(lines);
             }
         }
@@ -201,27 +321,27 @@ public class UnifiedTextRecognitionProcessor extends TextRecognitionProcessor {
             String line = lines[i];
             boolean startsWithI = line.startsWith(TYPE_ID_CARD);
             boolean startsWithID = line.startsWith(TYPE_ID_CARD_ALT);
-            Log.d(TAG, "[DEBUG] Checking line " + i + " for ID card: starts with 'I<'? " + startsWithI + ", starts with 'ID'? " + startsWithID);
+            ScanLog.d(TAG, "[DEBUG] Checking line %d for ID card: starts with 'I<'? %b, starts with 'ID'? %b", i, startsWithI, startsWithID);
             
             if (startsWithI || startsWithID) {
-                Log.d(TAG, "[DEBUG] ✓ Detected ID card MRZ at line " + i);
+                ScanLog.d(TAG, "[DEBUG] ✓ Detected ID card MRZ at line %d", i);
                 return parseIDCardMRZ(text);
             }
         }
         
         // Try to detect ID card without explicit type marker
-        Log.d(TAG, "[DEBUG] No explicit type markers found, checking for ID card patterns...");
+        ScanLog.d(TAG, "[DEBUG] No explicit type markers found, checking for ID card patterns...");
         if (containsIDCardPattern(text)) {
-            Log.d(TAG, "[DEBUG] ✓ Detected possible ID card pattern without type marker");
+            ScanLog.d(TAG, "[DEBUG] ✓ Detected possible ID card pattern without type marker");
             return parseIDCardMRZ(text);
         }
         
-        Log.d(TAG, "[DEBUG] ✗ No MRZ patterns detected in text");
+        ScanLog.d(TAG, "[DEBUG] ✗ No MRZ patterns detected in text");
         return null;
     }
 
     private boolean containsIDCardPattern(String text) {
-        Log.d(TAG, "[DEBUG] Checking for ID card patterns in text");
+        ScanLog.d(TAG, "[DEBUG] Checking for ID card patterns in text");
         
         // Check if text contains patterns typical of ID cards
         Pattern td1Pattern = Pattern.compile(ID_TD_1_LINE_2_REGEX);
@@ -230,26 +350,26 @@ public class UnifiedTextRecognitionProcessor extends TextRecognitionProcessor {
         boolean td1Found = td1Pattern.matcher(text).find();
         boolean td2Found = td2Pattern.matcher(text).find();
         
-        Log.d(TAG, "[DEBUG] TD1 pattern (3-line ID) found: " + td1Found);
-        Log.d(TAG, "[DEBUG] TD2 pattern (2-line ID) found: " + td2Found);
+        ScanLog.d(TAG, "[DEBUG] TD1 pattern (3-line ID) found: %b", td1Found);
+        ScanLog.d(TAG, "[DEBUG] TD2 pattern (2-line ID) found: %b", td2Found);
         
         // Only return true if we found actual MRZ patterns, not just any text
         return td1Found || td2Found;
     }
     
     private MRZInfo parsePassportMRZ(String[] lines) {
-        Log.d(TAG, "[DEBUG] parsePassportMRZ started with " + lines.length + " lines");
+        ScanLog.d(TAG, "[DEBUG] parsePassportMRZ started with %d lines", lines.length);
         try {
             for (int i = 0; i < lines.length; i++) {
                 String line = lines[i].trim().toUpperCase();
-                Log.d(TAG, "[DEBUG] Checking passport line " + i + " [" + line.length() + " chars]: '" + line + "'");
+                ScanLog.d(TAG, "[DEBUG] Checking passport line %d [%d chars]: '%s'", i, line.length(), line);
                 
                 // Look for passport MRZ pattern
                 Pattern patternPassportTD3Line2 = Pattern.compile(PASSPORT_TD_3_LINE_2_REGEX);
                 Matcher matcherPassportTD3Line2 = patternPassportTD3Line2.matcher(line);
                 
                 boolean found = matcherPassportTD3Line2.find();
-                Log.d(TAG, "[DEBUG] Passport TD3 Line 2 pattern match: " + found);
+                ScanLog.d(TAG, "[DEBUG] Passport TD3 Line 2 pattern match: %b", found);
                 
                 if (found) {
                     String documentNumber = matcherPassportTD3Line2.group(1);
@@ -267,19 +387,19 @@ public class UnifiedTextRecognitionProcessor extends TextRecognitionProcessor {
                         expiryDate = expiryDate.replace("O", "0").trim();
                     }
                     
-                    Log.d(TAG, "[DEBUG] Passport extracted - Doc: '" + documentNumber + "', DOB: '" + dateOfBirth + "', Exp: '" + expiryDate + "'");
+                    ScanLog.d(TAG, "[DEBUG] Passport extracted - Doc: '%s', DOB: '%s', Exp: '%s'", documentNumber, dateOfBirth, expiryDate);
                     
                     // Validate extracted data with proper MRZ validation
                     if (documentNumber != null && !documentNumber.isEmpty() &&
                         isValidMRZDate(dateOfBirth) && isValidMRZDate(expiryDate)) {
                         
-                        Log.d(TAG, "[DEBUG] ✓✓✓ Passport MRZ parsed - Doc: " + documentNumber + ", DOB: " + dateOfBirth + ", Exp: " + expiryDate);
+                        ScanLog.d(TAG, "[DEBUG] ✓✓✓ Passport MRZ parsed - Doc: %s, DOB: %s, Exp: %s", documentNumber, dateOfBirth, expiryDate);
                         
                         // Create MRZInfo
                         return new MRZInfo("P", "NNN", "", "", documentNumber, "NNN", 
                                          dateOfBirth, net.sf.scuba.data.Gender.UNSPECIFIED, expiryDate, "");
                     } else {
-                        Log.d(TAG, "[DEBUG] ✗ Passport MRZ validation failed");
+                        ScanLog.d(TAG, "[DEBUG] ✗ Passport MRZ validation failed");
                     }
                 }
             }
@@ -291,11 +411,11 @@ public class UnifiedTextRecognitionProcessor extends TextRecognitionProcessor {
     }
     
     private MRZInfo parseIDCardMRZ(String text) {
-        Log.d(TAG, "[DEBUG] parseIDCardMRZ started");
+        ScanLog.d(TAG, "[DEBUG] parseIDCardMRZ started");
         
         try {
             // Try TD1 format first (3 lines, 30 chars each)
-            Log.d(TAG, "[DEBUG] Trying TD1 format (3-line ID card)...");
+            ScanLog.d(TAG, "[DEBUG] Trying TD1 format (3-line ID card)...");
             Pattern patternTD1Line1 = Pattern.compile(ID_TD_1_LINE_1_REGEX);
             Pattern patternTD1Line2 = Pattern.compile(ID_TD_1_LINE_2_REGEX);
             
@@ -305,13 +425,13 @@ public class UnifiedTextRecognitionProcessor extends TextRecognitionProcessor {
             boolean td1Line1Found = matcherTD1Line1.find();
             boolean td1Line2Found = matcherTD1Line2.find();
             
-            Log.d(TAG, "[DEBUG] TD1 Line 1 found: " + td1Line1Found);
-            Log.d(TAG, "[DEBUG] TD1 Line 2 found: " + td1Line2Found);
+            ScanLog.d(TAG, "[DEBUG] TD1 Line 1 found: %b", td1Line1Found);
+            ScanLog.d(TAG, "[DEBUG] TD1 Line 2 found: %b", td1Line2Found);
             
             if (td1Line2Found) {
                 // We mainly need line 2 for the essential data
                 String line2Text = matcherTD1Line2.group(0);
-                Log.d(TAG, "[DEBUG] TD1 Line 2 text: '" + line2Text + "'");
+                ScanLog.d(TAG, "[DEBUG] TD1 Line 2 text: '%s'", line2Text);
                 
                 // Extract document number from line 1 if available
                 String documentNumber = "";
@@ -320,18 +440,18 @@ public class UnifiedTextRecognitionProcessor extends TextRecognitionProcessor {
                     matcherTD1Line1.reset();
                     matcherTD1Line1.find();
                     String line1Text = matcherTD1Line1.group(0);
-                    Log.d(TAG, "[DEBUG] TD1 Line 1 text: '" + line1Text + "'");
+                    ScanLog.d(TAG, "[DEBUG] TD1 Line 1 text: '%s'", line1Text);
                     
                     // Document number is at positions 5-14 in line 1
                     if (line1Text.length() >= 14) {
                         documentNumber = line1Text.substring(5, 14).replace("<", "").replace("O", "0").trim();
-                        Log.d(TAG, "[DEBUG] Extracted doc number from line 1: '" + documentNumber + "'");
+                        ScanLog.d(TAG, "[DEBUG] Extracted doc number from line 1: '%s'", documentNumber);
                     }
                 }
                 
                 // If we couldn't extract from line 1, the MRZ is likely invalid
                 if (documentNumber.isEmpty()) {
-                    Log.d(TAG, "[DEBUG] Doc number empty from proper MRZ line 1 - invalid format");
+                    ScanLog.d(TAG, "[DEBUG] Doc number empty from proper MRZ line 1 - invalid format");
                     return null; // Reject if no proper document number in MRZ
                 }
                 
@@ -344,39 +464,41 @@ public class UnifiedTextRecognitionProcessor extends TextRecognitionProcessor {
                 if (matcherTD1Line2.groupCount() >= 4) {
                     dateOfBirth = matcherTD1Line2.group(1).replace("O", "0");
                     dateOfExpiry = matcherTD1Line2.group(4).replace("O", "0");
-                    Log.d(TAG, "[DEBUG] Extracted DOB: '" + dateOfBirth + "', Expiry: '" + dateOfExpiry + "'");
+                    ScanLog.d(TAG, "[DEBUG] Extracted DOB: '%s', Expiry: '%s'", dateOfBirth, dateOfExpiry);
                 } else {
-                    Log.d(TAG, "[DEBUG] Failed to extract dates from TD1 line 2");
+                    ScanLog.d(TAG, "[DEBUG] Failed to extract dates from TD1 line 2");
                     return null; // Invalid MRZ format
                 }
                 
                 // Validate that we have proper MRZ data
                 if (!isValidMRZDate(dateOfBirth) || !isValidMRZDate(dateOfExpiry)) {
-                    Log.d(TAG, "[DEBUG] Invalid date format in MRZ");
+                    ScanLog.d(TAG, "[DEBUG] Invalid date format in MRZ");
                     return null;
                 }
                 
                 // Validate and return
-                Log.d(TAG, "[DEBUG] Final validation - Doc: '" + documentNumber + "' (" + documentNumber.length() + " chars), DOB: '" + dateOfBirth + "' (" + dateOfBirth.length() + " chars), Exp: '" + dateOfExpiry + "' (" + dateOfExpiry.length() + " chars)");
+                if (ScanLog.isEnabled()) {
+                    ScanLog.d(TAG, "[DEBUG] Final validation - Doc: '" + documentNumber + "' (" + documentNumber.length() + " chars), DOB: '" + dateOfBirth + "' (" + dateOfBirth.length() + " chars), Exp: '" + dateOfExpiry + "' (" + dateOfExpiry.length() + " chars)");
+                }
                 
                 if (!documentNumber.isEmpty() && dateOfBirth.length() == 6 && dateOfExpiry.length() == 6) {
-                    Log.d(TAG, "[DEBUG] ✓✓✓ TD1 ID Card successfully parsed - Doc: " + documentNumber + ", DOB: " + dateOfBirth + ", Exp: " + dateOfExpiry);
+                    ScanLog.d(TAG, "[DEBUG] ✓✓✓ TD1 ID Card successfully parsed - Doc: %s, DOB: %s, Exp: %s", documentNumber, dateOfBirth, dateOfExpiry);
                     
                     // Use workaround: Create as passport then change type
                     return new MRZInfo("P", "NNN", "", "", documentNumber, "NNN",
                                      dateOfBirth, net.sf.scuba.data.Gender.UNSPECIFIED, dateOfExpiry, "");
                 } else {
-                    Log.d(TAG, "[DEBUG] ✗ TD1 validation failed - missing or invalid data");
+                    ScanLog.d(TAG, "[DEBUG] ✗ TD1 validation failed - missing or invalid data");
                 }
             }
             
             // Try TD2 format (2 lines, 36 chars each)
-            Log.d(TAG, "[DEBUG] Trying TD2 format (2-line ID card)...");
+            ScanLog.d(TAG, "[DEBUG] Trying TD2 format (2-line ID card)...");
             Pattern patternTD2Line2 = Pattern.compile(ID_TD_2_LINE_2_REGEX);
             Matcher matcherTD2Line2 = patternTD2Line2.matcher(text);
             
             boolean td2Found = matcherTD2Line2.find();
-            Log.d(TAG, "[DEBUG] TD2 pattern found: " + td2Found);
+            ScanLog.d(TAG, "[DEBUG] TD2 pattern found: %b", td2Found);
             
             if (td2Found) {
                 String documentNumber = matcherTD2Line2.group(1).replace("<", "").replace("O", "0").trim();
@@ -384,27 +506,27 @@ public class UnifiedTextRecognitionProcessor extends TextRecognitionProcessor {
                 String dateOfExpiry = matcherTD2Line2.group(7).replace("O", "0");
                 
                 // Validate and return
-                Log.d(TAG, "[DEBUG] TD2 validation - Doc: '" + documentNumber + "', DOB: '" + dateOfBirth + "', Exp: '" + dateOfExpiry + "'");
+                ScanLog.d(TAG, "[DEBUG] TD2 validation - Doc: '%s', DOB: '%s', Exp: '%s'", documentNumber, dateOfBirth, dateOfExpiry);
                 
                 if (!documentNumber.isEmpty() && dateOfBirth.length() == 6 && dateOfExpiry.length() == 6) {
-                    Log.d(TAG, "[DEBUG] ✓✓✓ TD2 ID Card successfully parsed - Doc: " + documentNumber + ", DOB: " + dateOfBirth + ", Exp: " + dateOfExpiry);
+                    ScanLog.d(TAG, "[DEBUG] ✓✓✓ TD2 ID Card successfully parsed - Doc: %s, DOB: %s, Exp: %s", documentNumber, dateOfBirth, dateOfExpiry);
                     
                     // Use workaround: Create as passport then change type
                     return new MRZInfo("P", "NNN", "", "", documentNumber, "NNN",
                                      dateOfBirth, net.sf.scuba.data.Gender.UNSPECIFIED, dateOfExpiry, "");
                 } else {
-                    Log.d(TAG, "[DEBUG] ✗ TD2 validation failed");
+                    ScanLog.d(TAG, "[DEBUG] ✗ TD2 validation failed");
                 }
             }
             
             // No loose pattern matching - only accept proper MRZ formats
-            Log.d(TAG, "[DEBUG] No valid MRZ pattern found - rejecting");
+            ScanLog.d(TAG, "[DEBUG] No valid MRZ pattern found - rejecting");
             
         } catch (Exception e) {
             Log.e(TAG, "[DEBUG] Error parsing ID card MRZ: " + e.getMessage(), e);
         }
         
-        Log.d(TAG, "[DEBUG] Failed to parse ID card MRZ - returning null");
+        ScanLog.d(TAG, "[DEBUG] Failed to parse ID card MRZ - returning null");
         return null;
     }
 
@@ -413,7 +535,7 @@ public class UnifiedTextRecognitionProcessor extends TextRecognitionProcessor {
      */
     private boolean isValidMRZDate(String date) {
         if (date == null || date.length() != 6) {
-            Log.d(TAG, "[DEBUG] Date validation failed - null or wrong length: " + (date == null ? "null" : date.length()));
+            ScanLog.d(TAG, "[DEBUG] Date validation failed - null or wrong length: %s", date == null ? null : date.length());
             return false;
         }
         
@@ -424,29 +546,25 @@ public class UnifiedTextRecognitionProcessor extends TextRecognitionProcessor {
             
             // Basic validation
             if (month < 1 || month > 12) {
-                Log.d(TAG, "[DEBUG] Date validation failed - invalid month: " + month + " in date: " + date);
+                ScanLog.d(TAG, "[DEBUG] Date validation failed - invalid month: %d in date: %s", month, date);
                 return false;
             }
             if (day < 1 || day > 31) {
-                Log.d(TAG, "[DEBUG] Date validation failed - invalid day: " + day + " in date: " + date);
+                ScanLog.d(TAG, "[DEBUG] Date validation failed - invalid day: %d in date: %s", day, date);
                 return false;
             }
             
-            Log.d(TAG, "[DEBUG] Date validation passed for: " + date);
+            ScanLog.d(TAG, "[DEBUG] Date validation passed for: %s", date);
             return true;
         } catch (NumberFormatException e) {
-            Log.d(TAG, "[DEBUG] Date validation failed - not numeric: " + date);
+            ScanLog.d(TAG, "[DEBUG] Date validation failed - not numeric: %s", date);
             return false;
         }
     }
     
+    /** Recognizers belong to {@link TextRecognizerHolder} and stay open for the next scan. */
+    @Override
     public void stop() {
-        try {
-            if (googleTextRecognizer != null) {
-                googleTextRecognizer.close();
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to stop text recognizer", e);
-        }
+        Log.d(TAG, "Stopped, " + pendingRecognitions.get() + " recognitions still pending");
     }
 }
\ No newline at end of file
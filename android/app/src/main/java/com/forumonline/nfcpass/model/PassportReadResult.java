@@ -0,0 +1,242 @@
+package com.forumonline.nfcpass.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything one chip read produced: the personal data of DG1, the face image of DG2, how each data
+ * group went and how long the steps took. Filled in by the read engine and turned into a React Native
+ * map in one place.
+ */
+public class PassportReadResult {
+
+    /** Why a data group could not be read. */
+    public enum ErrorCode {
+        /** The chip does not have the file. */
+        NOT_PRESENT,
+        /** The file needs an access control the read did not perform, e.g. DG7 behind EAC. */
+        ACCESS_DENIED,
+        /** Reading the file from the chip failed, e.g. the document was moved away. */
+        READ_FAILED,
+        /** The file was read but its contents could not be parsed. */
+        PARSE_FAILED
+    }
+
+    /** Outcome of reading one data group. */
+    public static class DataGroupStatus {
+        private final String name;
+        private final ErrorCode error;
+        private final String errorMessage;
+        private final long readMillis;
+
+        public DataGroupStatus(String name, ErrorCode error, String errorMessage, long readMillis) {
+            this.name = name;
+            this.error = error;
+            this.errorMessage = errorMessage;
+            this.readMillis = readMillis;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** Null if the data group was read. */
+        public ErrorCode getError() {
+            return error;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+
+        public long getReadMillis() {
+            return readMillis;
+        }
+    }
+
+    private String readId;
+
+    private String documentNumber;
+    private String firstName;
+    private String lastName;
+    private String nationality;
+    private String issuingState;
+    private String dateOfBirth;
+    private String dateOfExpiry;
+    private String gender;
+    private String documentType;
+
+    private String faceImage;
+    private String faceImageUri;
+    private String faceImageMimeType;
+    private int pendingImages;
+
+    /** "PACE" or "BAC". */
+    private String accessControl;
+    private long accessControlMillis;
+    private long totalMillis;
+    private final List<DataGroupStatus> dataGroups = new ArrayList<>();
+
+    /** Whether DG1 was read, i.e. the personal data fields are set. */
+    public boolean hasPersonalData() {
+        return documentNumber != null;
+    }
+
+    /** Identifies the read in the image events that follow the result. */
+    public String getReadId() {
+        return readId;
+    }
+
+    public void setReadId(String readId) {
+        this.readId = readId;
+    }
+
+    public String getDocumentNumber() {
+        return documentNumber;
+    }
+
+    public void setDocumentNumber(String documentNumber) {
+        this.documentNumber = documentNumber;
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public void setFirstName(String firstName) {
+        this.firstName = firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public void setLastName(String lastName) {
+        this.lastName = lastName;
+    }
+
+    public String getNationality() {
+        return nationality;
+    }
+
+    public void setNationality(String nationality) {
+        this.nationality = nationality;
+    }
+
+    public String getIssuingState() {
+        return issuingState;
+    }
+
+    public void setIssuingState(String issuingState) {
+        this.issuingState = issuingState;
+    }
+
+    public String getDateOfBirth() {
+        return dateOfBirth;
+    }
+
+    public void setDateOfBirth(String dateOfBirth) {
+        this.dateOfBirth = dateOfBirth;
+    }
+
+    public String getDateOfExpiry() {
+        return dateOfExpiry;
+    }
+
+    public void setDateOfExpiry(String dateOfExpiry) {
+        this.dateOfExpiry = dateOfExpiry;
+    }
+
+    public String getGender() {
+        return gender;
+    }
+
+    public void setGender(String gender) {
+        this.gender = gender;
+    }
+
+    public String getDocumentType() {
+        return documentType;
+    }
+
+    public void setDocumentType(String documentType) {
+        this.documentType = documentType;
+    }
+
+    /** Base64 of the face image as stored on the chip, for the JS callers that read it inline. */
+    public String getFaceImage() {
+        return faceImage;
+    }
+
+    public void setFaceImage(String faceImage) {
+        this.faceImage = faceImage;
+    }
+
+    public String getFaceImageUri() {
+        return faceImageUri;
+    }
+
+    public void setFaceImageUri(String faceImageUri) {
+        this.faceImageUri = faceImageUri;
+    }
+
+    public String getFaceImageMimeType() {
+        return faceImageMimeType;
+    }
+
+    public void setFaceImageMimeType(String faceImageMimeType) {
+        this.faceImageMimeType = faceImageMimeType;
+    }
+
+    /** Number of images decoded after the result is handed out, each reported on its own. */
+    public int getPendingImages() {
+        return pendingImages;
+    }
+
+    public void setPendingImages(int pendingImages) {
+        this.pendingImages = pendingImages;
+    }
+
+    public String getAccessControl() {
+        return accessControl;
+    }
+
+    public void setAccessControl(String accessControl) {
+        this.accessControl = accessControl;
+    }
+
+    public long getAccessControlMillis() {
+        return accessControlMillis;
+    }
+
+    public void setAccessControlMillis(long accessControlMillis) {
+        this.accessControlMillis = accessControlMillis;
+    }
+
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public void setTotalMillis(long totalMillis) {
+        this.totalMillis = totalMillis;
+    }
+
+    /** In the order they were read. */
+    public List<DataGroupStatus> getDataGroups() {
+        return dataGroups;
+    }
+
+    public void addDataGroup(DataGroupStatus status) {
+        dataGroups.add(status);
+    }
+
+    /** The status of data group {@code name}, or null if it was not attempted. */
+    public DataGroupStatus getDataGroup(String name) {
+        for (DataGroupStatus status : dataGroups) {
+            if (status.getName().equals(name)) {
+                return status;
+            }
+        }
+        return null;
+    }
+}
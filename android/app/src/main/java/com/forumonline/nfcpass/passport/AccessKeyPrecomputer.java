@@ -0,0 +1,114 @@
+package com.forumonline.nfcpass.passport;
+
+import android.util.Log;
+
+import org.jmrtd.BACKey;
+import org.jmrtd.Util;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Derives the access keys for a document in the background as soon as the MRZ is known, so that
+ * the tap itself only has to pay for the card round trips.
+ *
+ * <p>This covers the SHA-1 key seed and the derived K_enc / K_mac. PACE only reuses the BAC key: JMRTD
+ * generates its ephemeral key pairs inside {@code doPACE} and does not accept pre-generated ones, and
+ * the key pair of the key agreement step lies on domain parameters mapped with the chip's nonce, so
+ * it cannot exist before the tap.
+ */
+public final class AccessKeyPrecomputer {
+    private static final String TAG = "AccessKeyPrecomputer";
+
+    /** How long a tap waits for a pending precomputation before deriving the keys inline. */
+    private static final long WAIT_TIMEOUT_MS = 2000;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "AccessKeyPrecomputer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+
+    private static BACKey pendingKey;
+    private static Future<AccessKeys> pendingKeys;
+
+    private AccessKeyPrecomputer() {}
+
+    /**
+     * Starts deriving the access keys for the given MRZ fields. Calling this again with the same
+     * values is a no-op.
+     */
+    public static synchronized void prepare(String documentNumber, String dateOfBirth, String dateOfExpiry) {
+        final BACKey bacKey = new BACKey(documentNumber, dateOfBirth, dateOfExpiry);
+        if (bacKey.equals(pendingKey) && pendingKeys != null) {
+            return;
+        }
+
+        pendingKey = bacKey;
+        pendingKeys = executor.submit(() -> AccessKeys.derive(bacKey));
+    }
+
+    /**
+     * Returns the access keys for the given MRZ fields, using the precomputed ones when available and
+     * deriving them on the calling thread otherwise.
+     */
+    public static AccessKeys get(String documentNumber, String dateOfBirth, String dateOfExpiry)
+            throws GeneralSecurityException {
+        BACKey bacKey = new BACKey(documentNumber, dateOfBirth, dateOfExpiry);
+
+        Future<AccessKeys> future;
+        synchronized (AccessKeyPrecomputer.class) {
+            future = bacKey.equals(pendingKey) ? pendingKeys : null;
+        }
+
+        if (future != null) {
+            try {
+                return future.get(WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                Log.w(TAG, "Precomputed access keys not available, deriving inline: " + e.getMessage());
+            }
+        }
+        return AccessKeys.derive(bacKey);
+    }
+
+    /** The BAC key together with the session-independent keys derived from it. */
+    public static final class AccessKeys {
+        private final BACKey bacKey;
+        private final SecretKey encryptionKey;
+        private final SecretKey macKey;
+
+        private AccessKeys(BACKey bacKey, SecretKey encryptionKey, SecretKey macKey) {
+            this.bacKey = bacKey;
+            this.encryptionKey = encryptionKey;
+            this.macKey = macKey;
+        }
+
+        static AccessKeys derive(BACKey bacKey) throws GeneralSecurityException {
+            // K_seed is the truncated SHA-1 over the MRZ information (ICAO 9303 part 11, 9.7.1).
+            byte[] keySeed = bacKey.getKey();
+            return new AccessKeys(
+                bacKey,
+                Util.deriveKey(keySeed, Util.ENC_MODE),
+                Util.deriveKey(keySeed, Util.MAC_MODE)
+            );
+        }
+
+        public BACKey getBACKey() {
+            return bacKey;
+        }
+
+        public SecretKey getEncryptionKey() {
+            return encryptionKey;
+        }
+
+        public SecretKey getMacKey() {
+            return macKey;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.forumonline.nfcpass.passport;
 
 import android.nfc.tech.IsoDep;
+import android.util.Log;
+
 import net.sf.scuba.smartcards.CardService;
 import net.sf.scuba.smartcards.CardServiceException;
 import net.sf.scuba.smartcards.ISO7816;
@@ -9,9 +11,14 @@ import net.sf.scuba.smartcards.ResponseAPDU;
 
 import java.io.IOException;
 
-public class AndroidNfcCardService extends CardService {
+public class AndroidNfcCardService extends CardService implements ApduChannel {
+    private static final String TAG = "AndroidNfcCardService";
+
     private IsoDep isoDep;
     private int apduCount = 0;
+    private final CommandTimeouts timeouts = new CommandTimeouts();
+    /** The timeout last set on the IsoDep; setting it is a call into the NFC service. */
+    private int currentTimeoutMillis = -1;
 
     public AndroidNfcCardService(IsoDep isoDep) {
         this.isoDep = isoDep;
@@ -24,8 +31,7 @@ public class AndroidNfcCardService extends CardService {
                 if (!isoDep.isConnected()) {
                     isoDep.connect();
                 }
-                // Set timeout to 10 seconds for passport operations
-                isoDep.setTimeout(10000);
+                // Each command sets the timeout of its class in transmit()
             } catch (IOException e) {
                 throw new CardServiceException("Failed to connect to card: " + e.getMessage(), e);
             }
@@ -36,19 +42,35 @@ public class AndroidNfcCardService extends CardService {
         return isoDep != null && isoDep.isConnected();
     }
 
+    @Override
     public byte[] transmit(byte[] commandData) throws CardServiceException {
         if (!isOpen()) {
             throw new CardServiceException("Card service is not open");
         }
 
+        CommandTimeouts.CommandClass commandClass = CommandTimeouts.classify(commandData);
+        int timeoutMillis = timeouts.getTimeoutMillis(commandClass);
+        if (timeoutMillis != currentTimeoutMillis) {
+            isoDep.setTimeout(timeoutMillis);
+            currentTimeoutMillis = timeoutMillis;
+        }
+
+        long start = System.nanoTime();
         try {
             apduCount++;
             byte[] responseData = isoDep.transceive(commandData);
+            timeouts.onResponse(commandClass, (System.nanoTime() - start) / 1e6);
             if (responseData == null || responseData.length < 2) {
                 throw new CardServiceException("Invalid response from card");
             }
             return responseData;
         } catch (IOException e) {
+            // IsoDep reports a timeout like any other lost tag, so tell them apart by the time taken
+            long elapsedMillis = (System.nanoTime() - start) / 1000000;
+            if (elapsedMillis >= timeoutMillis) {
+                timeouts.onTimeout(commandClass);
+                Log.w(TAG, commandClass + " timed out after " + timeoutMillis + " ms");
+            }
             throw new CardServiceException("Failed to transmit APDU: " + e.getMessage(), e);
         }
     }
@@ -76,6 +98,7 @@ public class AndroidNfcCardService extends CardService {
 
     @Override
     public void close() {
+        Log.d(TAG, "Command timeouts: " + timeouts);
         if (isoDep != null) {
             try {
                 isoDep.close();
@@ -0,0 +1,9 @@
+package com.forumonline.nfcpass.passport;
+
+import net.sf.scuba.smartcards.CardServiceException;
+
+/** Raw APDU transport to the chip, implemented by {@link AndroidNfcCardService}. */
+public interface ApduChannel {
+    /** Sends an encoded command APDU and returns the complete response including the status word. */
+    byte[] transmit(byte[] command) throws CardServiceException;
+}
@@ -0,0 +1,109 @@
+package com.forumonline.nfcpass.passport;
+
+import android.os.SystemClock;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayDeque;
+
+/**
+ * A run of reads at a registration desk, during which {@link PassportNFCActivity} stays open and
+ * reads every document tapped against the device instead of finishing after one.
+ *
+ * <p>Each tap is read with the access key at the head of a queue. JS can queue keys up front, add
+ * them as it goes, or they are added by each MRZ scan done while the session is active. A key is
+ * used up by a successful read; after a failed one it stays at the head so the same document can be
+ * tapped again. The keys of the next document are derived by {@link AccessKeyPrecomputer} while the
+ * current one is being read.
+ *
+ * <p>Documents per minute over the whole session is the throughput figure reported with every read.
+ */
+final class BatchReadSession {
+
+    /** The MRZ fields BAC and PACE keys are derived from. */
+    static final class MrzKey {
+        final String documentNumber;
+        final String dateOfBirth;
+        final String dateOfExpiry;
+
+        MrzKey(String documentNumber, String dateOfBirth, String dateOfExpiry) {
+            this.documentNumber = documentNumber;
+            this.dateOfBirth = dateOfBirth;
+            this.dateOfExpiry = dateOfExpiry;
+        }
+    }
+
+    private static BatchReadSession active;
+
+    private final ArrayDeque<MrzKey> keys = new ArrayDeque<>();
+    private final long startedAt = SystemClock.elapsedRealtime();
+    private int documentsRead;
+    private int failures;
+    private long readMillis;
+
+    private BatchReadSession() {}
+
+    /** Starts a new session, replacing any active one. */
+    static synchronized BatchReadSession start() {
+        active = new BatchReadSession();
+        return active;
+    }
+
+    /** The active session, or null outside batch mode. */
+    static synchronized BatchReadSession getActive() {
+        return active;
+    }
+
+    /** Ends the active session and returns it, or null if there was none. */
+    static synchronized BatchReadSession stop() {
+        BatchReadSession session = active;
+        active = null;
+        return session;
+    }
+
+    synchronized void addKey(MrzKey key) {
+        keys.addLast(key);
+        if (keys.size() == 1) {
+            AccessKeyPrecomputer.prepare(key.documentNumber, key.dateOfBirth, key.dateOfExpiry);
+        }
+    }
+
+    /** The key the next tap is read with, or null if none is queued. */
+    synchronized MrzKey peekKey() {
+        return keys.peekFirst();
+    }
+
+    /** Counts a successful read with {@code key}, moves on to the next key and starts deriving it. */
+    synchronized void onRead(MrzKey key, long millis) {
+        documentsRead++;
+        readMillis += millis;
+        if (keys.peekFirst() == key) {
+            keys.removeFirst();
+        }
+        MrzKey next = keys.peekFirst();
+        if (next != null) {
+            AccessKeyPrecomputer.prepare(next.documentNumber, next.dateOfBirth, next.dateOfExpiry);
+        }
+    }
+
+    synchronized void onFailure() {
+        failures++;
+    }
+
+    synchronized double getDocumentsPerMinute() {
+        long elapsed = SystemClock.elapsedRealtime() - startedAt;
+        return elapsed > 0 ? documentsRead * 60000.0 / elapsed : 0;
+    }
+
+    synchronized WritableMap toWritableMap() {
+        WritableMap stats = Arguments.createMap();
+        stats.putInt("documentsRead", documentsRead);
+        stats.putInt("failures", failures);
+        stats.putInt("queuedKeys", keys.size());
+        stats.putDouble("elapsedMillis", SystemClock.elapsedRealtime() - startedAt);
+        stats.putDouble("meanReadMillis", documentsRead > 0 ? (double) readMillis / documentsRead : 0);
+        stats.putDouble("documentsPerMinute", getDocumentsPerMinute());
+        return stats;
+    }
+}
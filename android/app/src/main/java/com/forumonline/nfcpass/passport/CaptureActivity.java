@@ -7,18 +7,11 @@ import android.graphics.Color;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Gravity;
-import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.FrameLayout;
 import android.widget.LinearLayout;
 import android.widget.TextView;
-import android.graphics.Canvas;
-import android.graphics.DashPathEffect;
-import android.graphics.Paint;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
-import android.graphics.RectF;
 
 import androidx.appcompat.app.AppCompatActivity;
 
@@ -28,14 +21,18 @@ import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 import com.forumonline.nfcpass.mlkit.camera.CameraSource;
 import com.forumonline.nfcpass.mlkit.camera.CameraSourcePreview;
+import com.forumonline.nfcpass.mlkit.camera.CaptureGovernor;
+import com.forumonline.nfcpass.mlkit.camera.FrameQualityFilter;
+import com.forumonline.nfcpass.mlkit.camera.MrzFrameView;
+import com.forumonline.nfcpass.mlkit.camera.StartupTrace;
 import com.forumonline.nfcpass.mlkit.other.GraphicOverlay;
 import com.forumonline.nfcpass.mlkit.text.TextRecognitionProcessor;
+import com.forumonline.nfcpass.mlkit.text.TextRecognizerHolder;
 import com.forumonline.nfcpass.mlkit.text.UnifiedTextRecognitionProcessor;
 import com.forumonline.nfcpass.model.DocType;
 
 import org.jmrtd.lds.icao.MRZInfo;
 
-import java.io.IOException;
 
 public class CaptureActivity extends AppCompatActivity implements 
         UnifiedTextRecognitionProcessor.ResultListener {
@@ -43,13 +40,18 @@ public class CaptureActivity extends AppCompatActivity implements
     private CameraSource cameraSource = null;
     private CameraSourcePreview preview;
     private GraphicOverlay graphicOverlay;
+    private MrzFrameView mrzFrame;
 
     public static final String MRZ_RESULT = "MRZ_RESULT";
     public static final String DOC_TYPE = "DOC_TYPE";
+    /** {@code SystemClock.elapsedRealtimeNanos()} when the scan was requested, the origin of the startup trace. */
+    public static final String SCAN_REQUESTED_AT = "SCAN_REQUESTED_AT";
 
     private DocType docType = DocType.PASSPORT;
     private static ReactApplicationContext reactContext;
     private boolean isProcessingMRZ = false;
+    private StartupTrace startupTrace;
+    private boolean recognizerWarm;
 
     private static String TAG = CaptureActivity.class.getSimpleName();
     
@@ -60,6 +62,10 @@ public class CaptureActivity extends AppCompatActivity implements
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        startupTrace = getIntent().hasExtra(SCAN_REQUESTED_AT)
+            ? new StartupTrace(getIntent().getLongExtra(SCAN_REQUESTED_AT, 0))
+            : new StartupTrace();
+        startupTrace.mark(StartupTrace.Milestone.ACTIVITY_CREATED);
         
         // Create layout programmatically
         FrameLayout layout = new FrameLayout(this);
@@ -83,65 +89,7 @@ public class CaptureActivity extends AppCompatActivity implements
         layout.addView(graphicOverlay);
         
         // Create MRZ frame overlay - optimized for portrait
-        View mrzFrame = new View(this) {
-            @Override
-            protected void onDraw(Canvas canvas) {
-                super.onDraw(canvas);
-                
-                int width = getWidth();
-                int height = getHeight();
-                
-                // Create semi-transparent overlay
-                Paint darkPaint = new Paint();
-                darkPaint.setColor(0x88000000);
-                
-                // Draw dark overlay on entire screen
-                canvas.drawRect(0, 0, width, height, darkPaint);
-                
-                // Calculate MRZ scanning area (optimized for portrait MRZ)
-                int frameWidth = (int)(width * 0.9);
-                int frameHeight = (int)(height * 0.2);
-                int left = (width - frameWidth) / 2;
-                int top = (height - frameHeight) / 2;
-                int right = left + frameWidth;
-                int bottom = top + frameHeight;
-                
-                // Clear the scanning area (make it transparent)
-                Paint clearPaint = new Paint();
-                clearPaint.setColor(0x00000000);
-                clearPaint.setXfermode(new android.graphics.PorterDuffXfermode(android.graphics.PorterDuff.Mode.CLEAR));
-                canvas.drawRect(left, top, right, bottom, clearPaint);
-                
-                // Draw frame border
-                Paint borderPaint = new Paint();
-                borderPaint.setColor(0xFF00FF00); // Green color
-                borderPaint.setStyle(Paint.Style.STROKE);
-                borderPaint.setStrokeWidth(4);
-                canvas.drawRect(left, top, right, bottom, borderPaint);
-                
-                // Draw corner highlights
-                Paint cornerPaint = new Paint();
-                cornerPaint.setColor(0xFF00FF00);
-                cornerPaint.setStrokeWidth(8);
-                int cornerLength = 40;
-                
-                // Top-left corner
-                canvas.drawLine(left, top, left + cornerLength, top, cornerPaint);
-                canvas.drawLine(left, top, left, top + cornerLength, cornerPaint);
-                
-                // Top-right corner
-                canvas.drawLine(right - cornerLength, top, right, top, cornerPaint);
-                canvas.drawLine(right, top, right, top + cornerLength, cornerPaint);
-                
-                // Bottom-left corner
-                canvas.drawLine(left, bottom - cornerLength, left, bottom, cornerPaint);
-                canvas.drawLine(left, bottom, left + cornerLength, bottom, cornerPaint);
-                
-                // Bottom-right corner
-                canvas.drawLine(right - cornerLength, bottom, right, bottom, cornerPaint);
-                canvas.drawLine(right, bottom - cornerLength, right, bottom, cornerPaint);
-            }
-        };
+        mrzFrame = new MrzFrameView(this);
         mrzFrame.setLayoutParams(new ViewGroup.LayoutParams(
             ViewGroup.LayoutParams.MATCH_PARENT,
             ViewGroup.LayoutParams.MATCH_PARENT));
@@ -205,11 +153,15 @@ public class CaptureActivity extends AppCompatActivity implements
         super.onResume();
         Log.d(TAG, "onResume");
         startCameraSource();
+        if (!isProcessingMRZ) {
+            mrzFrame.startScanning();
+        }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        mrzFrame.stopScanning();
         if (preview != null) {
             preview.stop();
         }
@@ -232,10 +184,13 @@ public class CaptureActivity extends AppCompatActivity implements
         if (cameraSource == null) {
             cameraSource = new CameraSource(this, graphicOverlay);
             cameraSource.setFacing(CameraSource.CAMERA_FACING_BACK);
+            cameraSource.setStartupTrace(startupTrace);
         }
 
         // Use unified processor that supports both Google ML Kit and HMS ML Kit
+        recognizerWarm = TextRecognizerHolder.getWarmUpMillis() >= 0;
         UnifiedTextRecognitionProcessor unifiedProcessor = new UnifiedTextRecognitionProcessor();
+        startupTrace.mark(StartupTrace.Milestone.PROCESSOR_CREATED);
         unifiedProcessor.setResultListener(this);
         cameraSource.setMachineLearningFrameProcessor(unifiedProcessor);
     }
@@ -250,7 +205,7 @@ public class CaptureActivity extends AppCompatActivity implements
                     Log.d(TAG, "resume: graphOverlay is null");
                 }
                 preview.start(cameraSource, graphicOverlay);
-            } catch (IOException e) {
+            } catch (Exception e) {
                 Log.e(TAG, "Unable to start camera source.", e);
                 cameraSource.release();
                 cameraSource = null;
@@ -270,6 +225,9 @@ public class CaptureActivity extends AppCompatActivity implements
         
         isProcessingMRZ = true;
         Log.d(TAG, "Starting MRZ processing");
+        mrzFrame.showDetected();
+        WritableMap scanStats = createScanStats();
+        Log.i(TAG, startupTrace.toString());
         
         // Stop camera first with error handling
         try {
@@ -303,6 +261,13 @@ public class CaptureActivity extends AppCompatActivity implements
             cameraSource = null; // Set to null even if release failed
         }
         
+        // During a batch session the scanned document is read next, without a round trip through JS
+        BatchReadSession batchSession = BatchReadSession.getActive();
+        if (batchSession != null) {
+            batchSession.addKey(new BatchReadSession.MrzKey(
+                mrzInfo.getDocumentNumber(), mrzInfo.getDateOfBirth(), mrzInfo.getDateOfExpiry()));
+        }
+
         // Send result back to React Native immediately
         if (reactContext != null) {
             Log.d(TAG, "Preparing to send MRZ data to React Native");
@@ -310,6 +275,10 @@ public class CaptureActivity extends AppCompatActivity implements
             result.putString("documentNumber", mrzInfo.getDocumentNumber());
             result.putString("dateOfBirth", mrzInfo.getDateOfBirth());
             result.putString("dateOfExpiry", mrzInfo.getDateOfExpiry());
+            if (scanStats != null) {
+                result.putMap("scanStats", scanStats);
+            }
+            result.putMap("startupTrace", createStartupTraceSummary());
             
             Log.d(TAG, "Emitting mrzScanSuccess event");
             reactContext
@@ -342,6 +311,11 @@ public class CaptureActivity extends AppCompatActivity implements
             WritableMap error = Arguments.createMap();
             error.putString("code", "SCAN_ERROR");
             error.putString("message", exp.getMessage());
+            WritableMap scanStats = createScanStats();
+            if (scanStats != null) {
+                error.putMap("scanStats", scanStats);
+            }
+            error.putMap("startupTrace", createStartupTraceSummary());
             
             reactContext
                 .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
@@ -360,4 +334,46 @@ public class CaptureActivity extends AppCompatActivity implements
             }
         }, 1000); // 1000ms delay
     }
+
+    /** Frame counters and camera settings of this scan, or null without a camera source. */
+    private WritableMap createScanStats() {
+        if (cameraSource == null) {
+            return null;
+        }
+        CaptureGovernor.Stats stats = cameraSource.getGovernor().getStats();
+        WritableMap map = Arguments.createMap();
+        map.putDouble("deliveredFrames", stats.deliveredFrames);
+        map.putDouble("droppedFrames", stats.droppedFrames);
+        map.putDouble("recognizedFrames", stats.recognizedFrames);
+        map.putDouble("averageLatencyMs", stats.averageLatencyMillis);
+        map.putDouble("maxLatencyMs", stats.maxLatencyMillis);
+        map.putDouble("deliveredFps", stats.deliveredFps);
+        map.putInt("frameRate", stats.frameRate);
+        map.putInt("analysisWidth", stats.analysisSize.getWidth());
+        map.putInt("analysisHeight", stats.analysisSize.getHeight());
+        map.putInt("frameRateChanges", stats.frameRateChanges);
+        map.putInt("resolutionChanges", stats.resolutionChanges);
+        map.putInt("textHeight", stats.textHeight);
+
+        FrameQualityFilter qualityFilter = cameraSource.getQualityFilter();
+        map.putDouble("blurryFrames", qualityFilter.getBlurryFrames());
+        map.putDouble("glaredFrames", qualityFilter.getGlaredFrames());
+        map.putDouble("movingFrames", qualityFilter.getMovingFrames());
+        return map;
+    }
+
+    /**
+     * Milliseconds from the scan request to each startup milestone reached, and whether the text
+     * recognizers had been warmed up when the processor was created.
+     */
+    private WritableMap createStartupTraceSummary() {
+        WritableMap map = Arguments.createMap();
+        for (StartupTrace.Milestone milestone : StartupTrace.Milestone.values()) {
+            if (startupTrace.isReached(milestone)) {
+                map.putDouble(milestone.getKey(), startupTrace.getMillis(milestone));
+            }
+        }
+        map.putBoolean("recognizerWarm", recognizerWarm);
+        return map;
+    }
 }
\ No newline at end of file
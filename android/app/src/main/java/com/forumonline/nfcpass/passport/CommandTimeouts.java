@@ -0,0 +1,135 @@
+package com.forumonline.nfcpass.passport;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Timeouts for the APDUs of one session, per class of command and learned from how long the chip
+ * took to answer the earlier commands of that class.
+ *
+ * <p>Each class starts at a conservative timeout. File commands then move down to a few times the
+ * observed latency, estimated the way TCP estimates its retransmission timeout (RFC 6298), so that a
+ * document moved away is noticed within about a second during a long read instead of after ten.
+ * Authentication commands only ever move up: the steps of PACE differ widely in cost, and a fast
+ * nonce exchange says nothing about the key agreement that follows. A timeout doubles the timeout
+ * of its class, so that after a slow command ends one data group the next ones get more time.
+ *
+ * <p>Plain Java and not thread-safe; a card service uses one instance from its transmitting thread.
+ */
+public final class CommandTimeouts {
+
+    /** Commands with similar cost on the chip, told apart by their instruction byte. */
+    public enum CommandClass {
+        SELECT(1000, 1000, 3000, true),
+        READ_BINARY(1500, 1000, 5000, true),
+        GET_CHALLENGE(1000, 1000, 3000, true),
+        /** BAC. */
+        MUTUAL_AUTHENTICATE(5000, 5000, 15000, false),
+        /** PACE, chip and terminal authentication; key agreement takes over ten seconds on some chips. */
+        GENERAL_AUTHENTICATE(20000, 20000, 40000, false),
+        OTHER(5000, 5000, 15000, false);
+
+        final int initialMillis;
+        final int minMillis;
+        final int maxMillis;
+        final boolean adaptsDown;
+
+        CommandClass(int initialMillis, int minMillis, int maxMillis, boolean adaptsDown) {
+            this.initialMillis = initialMillis;
+            this.minMillis = minMillis;
+            this.maxMillis = maxMillis;
+            this.adaptsDown = adaptsDown;
+        }
+    }
+
+    /** Latency estimate of one command class, in milliseconds. */
+    private static final class Estimate {
+        double smoothed;
+        double variation;
+        int samples;
+    }
+
+    private final Map<CommandClass, Estimate> estimates = new EnumMap<>(CommandClass.class);
+
+    public CommandTimeouts() {
+        for (CommandClass commandClass : CommandClass.values()) {
+            estimates.put(commandClass, new Estimate());
+        }
+    }
+
+    /** The class of an encoded command APDU, plain or wrapped in secure messaging. */
+    public static CommandClass classify(byte[] command) {
+        if (command.length < 4) {
+            return CommandClass.OTHER;
+        }
+        switch (command[1] & 0xFF) {
+            case 0xA4:
+                return CommandClass.SELECT;
+            case 0xB0:
+            case 0xB1:
+                return CommandClass.READ_BINARY;
+            case 0x84:
+                return CommandClass.GET_CHALLENGE;
+            case 0x82:
+                return CommandClass.MUTUAL_AUTHENTICATE;
+            case 0x86:
+            case 0x87:
+                return CommandClass.GENERAL_AUTHENTICATE;
+            default:
+                return CommandClass.OTHER;
+        }
+    }
+
+    public int getTimeoutMillis(CommandClass commandClass) {
+        Estimate estimate = estimates.get(commandClass);
+        if (estimate.samples == 0) {
+            return commandClass.initialMillis;
+        }
+        // The usual RTO, but never below three times the typical latency for chips with little jitter
+        double timeout = Math.max(estimate.smoothed + 4 * estimate.variation, 3 * estimate.smoothed);
+        if (!commandClass.adaptsDown) {
+            timeout = Math.max(timeout, commandClass.initialMillis);
+        }
+        return (int) Math.min(commandClass.maxMillis, Math.max(commandClass.minMillis, Math.ceil(timeout)));
+    }
+
+    /** Records that a command of {@code commandClass} was answered after {@code latencyMillis}. */
+    public void onResponse(CommandClass commandClass, double latencyMillis) {
+        Estimate estimate = estimates.get(commandClass);
+        if (estimate.samples == 0) {
+            estimate.smoothed = latencyMillis;
+            estimate.variation = latencyMillis / 2;
+        } else {
+            estimate.variation = 0.75 * estimate.variation + 0.25 * Math.abs(estimate.smoothed - latencyMillis);
+            estimate.smoothed = 0.875 * estimate.smoothed + 0.125 * latencyMillis;
+        }
+        estimate.samples++;
+    }
+
+    /** Records that a command of {@code commandClass} timed out; the next one of the class waits longer. */
+    public void onTimeout(CommandClass commandClass) {
+        Estimate estimate = estimates.get(commandClass);
+        double timeout = getTimeoutMillis(commandClass);
+        // Restart the estimate from twice the timeout that was too short
+        estimate.smoothed = Math.min(commandClass.maxMillis, 2 * timeout) / 3;
+        estimate.variation = 0;
+        estimate.samples = Math.max(estimate.samples, 1);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (CommandClass commandClass : CommandClass.values()) {
+            Estimate estimate = estimates.get(commandClass);
+            if (estimate.samples > 0) {
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(String.format(Locale.ROOT, "%s %d ms (%.0f ms over %d)", commandClass,
+                    getTimeoutMillis(commandClass), estimate.smoothed, estimate.samples));
+            }
+        }
+        return builder.toString();
+    }
+}
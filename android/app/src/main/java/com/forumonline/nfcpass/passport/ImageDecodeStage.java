@@ -0,0 +1,258 @@
+package com.forumonline.nfcpass.passport;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.alimert.passportreader.util.ImageUtil;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import org.jmrtd.lds.AbstractImageInfo;
+import org.jmrtd.lds.DisplayedImageInfo;
+import org.jmrtd.lds.icao.DG2File;
+import org.jmrtd.lds.icao.DG7File;
+import org.jmrtd.lds.iso19794.FaceInfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes the images of DG2 and DG7, so that the text of DG1 can be handed out without waiting for
+ * pixel work.
+ *
+ * <p>Images are collected with {@link #add} while the chip is read and only decoded once {@link
+ * #start} is called after the read, so that decoding neither competes with the NFC transfer nor
+ * reports an image before the result it belongs to. JPEG 2000 decoding is slow, so images are then
+ * fanned out over a pool with one thread per core and every image is reported to the {@link
+ * Listener} on its own as soon as it is done. Decoded images are also written to files for JS, see
+ * {@link PassportImageStore}.
+ */
+public final class ImageDecodeStage {
+    private static final String TAG = "ImageDecodeStage";
+
+    private static final int JPEG_QUALITY = 90;
+
+    private static final ExecutorService pool = createPool();
+
+    /** Receives each image on the decoding thread once it is done or has failed. */
+    public interface Listener {
+        void onImageDecoded(DecodedImage image);
+    }
+
+    /** One decoded image, or the reason it could not be decoded. */
+    public static final class DecodedImage {
+        private final String readId;
+        private final String dataGroup;
+        private final int index;
+        private final String mimeType;
+        private final Bitmap bitmap;
+        private final String uri;
+        private final String error;
+
+        DecodedImage(String readId, String dataGroup, int index, String mimeType, Bitmap bitmap, String uri, String error) {
+            this.readId = readId;
+            this.dataGroup = dataGroup;
+            this.index = index;
+            this.mimeType = mimeType;
+            this.bitmap = bitmap;
+            this.uri = uri;
+            this.error = error;
+        }
+
+        /** The read the image was taken from, see {@link ImageDecodeStage#getReadId()}. */
+        public String getReadId() {
+            return readId;
+        }
+
+        public String getDataGroup() {
+            return dataGroup;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /** MIME type of the image as stored on the chip. */
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public Bitmap getBitmap() {
+            return bitmap;
+        }
+
+        /** {@code file://} URI of the image as JPEG, or null if it could not be decoded or written. */
+        public String getUri() {
+            return uri;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * Event payload for React Native. The image is re-encoded as JPEG because JPEG 2000 and WSQ
+         * cannot be displayed there, and passed as the URI of that file.
+         */
+        public WritableMap toWritableMap() {
+            WritableMap map = Arguments.createMap();
+            map.putString("readId", readId);
+            map.putString("dataGroup", dataGroup);
+            map.putInt("index", index);
+            map.putString("sourceMimeType", mimeType);
+            if (bitmap != null && uri != null) {
+                map.putString("imageUri", uri);
+                map.putString("mimeType", "image/jpeg");
+                map.putInt("width", bitmap.getWidth());
+                map.putInt("height", bitmap.getHeight());
+            } else {
+                map.putString("error", error != null ? error : "Image could not be stored");
+            }
+            return map;
+        }
+    }
+
+    private final Context context;
+    private final Listener listener;
+    private final List<PendingImage> pending = new ArrayList<>();
+    /**
+     * Tells the images of one read from those of another in events, and names the directory their
+     * files are written to, so that React Native does not show a cached image of an earlier read.
+     */
+    private final String readId = Long.toString(System.currentTimeMillis());
+    private boolean started;
+
+    /** An image as stored on the chip, waiting for {@link #start}. */
+    private static final class PendingImage {
+        final String dataGroup;
+        final int index;
+        final String mimeType;
+        final byte[] bytes;
+
+        PendingImage(String dataGroup, int index, String mimeType, byte[] bytes) {
+            this.dataGroup = dataGroup;
+            this.index = index;
+            this.mimeType = mimeType;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Starts a read. The image files of earlier reads are left alone, since in a batch session JS may
+     * still be showing them.
+     */
+    public ImageDecodeStage(Context context, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+    }
+
+    public String getReadId() {
+        return readId;
+    }
+
+    /** Keeps the images of one data group for decoding once the read is done. */
+    public synchronized void add(String dataGroup, List<? extends AbstractImageInfo> images) {
+        for (int i = 0; i < images.size(); i++) {
+            add(dataGroup, i, images.get(i));
+        }
+    }
+
+    public synchronized void add(String dataGroup, int index, AbstractImageInfo imageInfo) {
+        if (started) {
+            throw new IllegalStateException("Images are already being decoded");
+        }
+        // Copy the encoded bytes now; the image info is not ours to share
+        byte[] bytes;
+        try {
+            bytes = readImage(imageInfo);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + dataGroup + " image " + index, e);
+            bytes = null;
+        }
+        pending.add(new PendingImage(dataGroup, index, imageInfo.getMimeType(), bytes));
+    }
+
+    /** Number of images added, i.e. the number of callbacks to expect after {@link #start}. */
+    public synchronized int getImageCount() {
+        return pending.size();
+    }
+
+    /** Decodes the images added so far in the background. Call once, after the result was handed out. */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        for (PendingImage image : pending) {
+            pool.execute(() -> {
+                DecodedImage decoded = decode(image.dataGroup, image.index, image.mimeType, image.bytes);
+                if (listener != null) {
+                    listener.onImageDecoded(decoded);
+                }
+            });
+        }
+        pending.clear();
+    }
+
+    private DecodedImage decode(String dataGroup, int index, String mimeType, byte[] bytes) {
+        if (bytes == null) {
+            return new DecodedImage(readId, dataGroup, index, mimeType, null, null, "Image data could not be read");
+        }
+        long start = System.nanoTime();
+        try {
+            Bitmap bitmap = ImageUtil.decodeImage(context, mimeType, new ByteArrayInputStream(bytes));
+            if (bitmap == null) {
+                return new DecodedImage(readId, dataGroup, index, mimeType, null, null, "Unsupported image data");
+            }
+            String uri = PassportImageStore.write(context, readId, dataGroup + "-" + index, bitmap, JPEG_QUALITY);
+            Log.d(TAG, "Decoded " + dataGroup + " image " + index + " (" + mimeType + ") in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+            return new DecodedImage(readId, dataGroup, index, mimeType, bitmap, uri, null);
+        } catch (Exception e) {
+            Log.e(TAG, "Error decoding " + dataGroup + " image " + index, e);
+            return new DecodedImage(readId, dataGroup, index, mimeType, null, null, String.valueOf(e.getMessage()));
+        }
+    }
+
+    private static byte[] readImage(AbstractImageInfo imageInfo) throws IOException {
+        byte[] buffer = new byte[imageInfo.getImageLength()];
+        new DataInputStream(imageInfo.getImageInputStream()).readFully(buffer);
+        return buffer;
+    }
+
+    public static List<AbstractImageInfo> getImages(DG2File dg2) {
+        List<AbstractImageInfo> images = new ArrayList<>();
+        for (FaceInfo faceInfo : dg2.getFaceInfos()) {
+            images.addAll(faceInfo.getFaceImageInfos());
+        }
+        return images;
+    }
+
+    public static List<DisplayedImageInfo> getImages(DG7File dg7) {
+        return dg7.getImages();
+    }
+
+    private static ExecutorService createPool() {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "ImageDecode-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            });
+        // Decoding happens once per read, don't keep the threads around in between
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,102 @@
+package com.forumonline.nfcpass.passport;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Hands images read from the chip to JS as {@code file://} URIs, which React Native's Image loads
+ * directly, instead of as base64 strings that are copied through the bridge and held in the JS heap.
+ *
+ * <p>The files are in a private cache directory, one subdirectory per read named after its read
+ * id, so that a batch session can show the images of earlier documents while the next one is read.
+ * They hold biometric data: starting a single read or a batch session deletes those of earlier
+ * sessions, and JS deletes them with {@code clearPassportImages()} or {@code clearReadImages(readId)}
+ * once it no longer shows them.
+ */
+final class PassportImageStore {
+    private static final String TAG = "PassportImageStore";
+
+    private static final String DIRECTORY = "passport-images";
+
+    private PassportImageStore() {}
+
+    /** Writes {@code bitmap} as JPEG and returns its URI, or null if it could not be written. */
+    static String write(Context context, String readId, String name, Bitmap bitmap, int jpegQuality) {
+        File file = new File(getReadDirectory(context, readId), name + ".jpg");
+        try (OutputStream out = new FileOutputStream(file)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, jpegQuality, out);
+            return Uri.fromFile(file).toString();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + file, e);
+            return null;
+        }
+    }
+
+    /** Writes encoded image bytes as they are and returns their URI, or null if they could not be written. */
+    static String write(Context context, String readId, String name, String extension, byte[] bytes) {
+        File file = new File(getReadDirectory(context, readId), name + "." + extension);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+            return Uri.fromFile(file).toString();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + file, e);
+            return null;
+        }
+    }
+
+    /** Deletes the images of every read. */
+    static void clear(Context context) {
+        File[] reads = getDirectory(context).listFiles();
+        if (reads == null) {
+            return;
+        }
+        for (File read : reads) {
+            delete(read);
+        }
+    }
+
+    /** Deletes the images of one read. */
+    static void clear(Context context, String readId) {
+        // Read ids are timestamps; anything else must not name a path outside the directory
+        if (readId == null || !readId.matches("[0-9]+")) {
+            Log.w(TAG, "Not a read id: " + readId);
+            return;
+        }
+        delete(new File(getDirectory(context), readId));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Could not delete " + file);
+        }
+    }
+
+    private static File getReadDirectory(Context context, String readId) {
+        File directory = new File(getDirectory(context), readId);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Could not create " + directory);
+        }
+        return directory;
+    }
+
+    private static File getDirectory(Context context) {
+        File directory = new File(context.getCacheDir(), DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Could not create " + directory);
+        }
+        return directory;
+    }
+}
@@ -1,45 +1,42 @@
 package com.forumonline.nfcpass.passport;
 
 import android.app.Activity;
-import android.app.PendingIntent;
 import android.content.Intent;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
-import android.nfc.tech.IsoDep;
 import android.os.Bundle;
-import android.util.Base64;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.forumonline.nfcpass.model.PassportReadResult;
 
-import net.sf.scuba.smartcards.CardService;
-import net.sf.scuba.smartcards.CardServiceException;
-import net.sf.scuba.smartcards.ISO7816;
-
-import org.jmrtd.BACKey;
-import org.jmrtd.BACKeySpec;
-import org.jmrtd.PassportService;
-import org.jmrtd.lds.CardSecurityFile;
-import org.jmrtd.lds.PACEInfo;
-import org.jmrtd.lds.SecurityInfo;
-import org.jmrtd.lds.icao.DG1File;
-import org.jmrtd.lds.icao.DG2File;
-import org.jmrtd.lds.icao.MRZInfo;
-import org.jmrtd.lds.iso19794.FaceImageInfo;
-import org.jmrtd.lds.iso19794.FaceInfo;
+/**
+ * Reads passports and ID cards tapped against the device. While resumed it holds the NFC adapter in
+ * reader mode for ISO-DEP documents: tags reach {@link #onTagDiscovered} directly on a binder
+ * thread instead of as intents through the main thread, the platform does not look for NDEF
+ * messages on them first, and its presence checks are spaced out so that they interfere less with
+ * long data group reads.
+ */
+public class PassportNFCActivity extends Activity implements NfcAdapter.ReaderCallback {
+    private static final String TAG = "PassportNFCActivity";
+    /** Finishes the activity that stayed open for a batch session. */
+    static final String ACTION_STOP_BATCH = "com.forumonline.nfcpass.action.STOP_BATCH";
 
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
-import java.util.Collection;
-import java.util.List;
+    // ISO-DEP runs over NFC-A or NFC-B; passports do not carry NDEF messages worth checking for
+    private static final int READER_FLAGS = NfcAdapter.FLAG_READER_NFC_A
+        | NfcAdapter.FLAG_READER_NFC_B
+        | NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK;
+    // The platform default of 125 ms checks for the tag several times during a DG2 read
+    private static final int PRESENCE_CHECK_DELAY_MS = 1000;
 
-public class PassportNFCActivity extends Activity {
-    private static final String TAG = "PassportNFCActivity";
     private NfcAdapter nfcAdapter;
-    private PendingIntent pendingIntent;
+    /** Set once a single read is done, so that taps while the activity finishes are ignored. */
+    private volatile boolean singleReadDone;
     private static ReactApplicationContext reactContext;
     private static String documentNumber;
     private static String dateOfBirth;
@@ -52,15 +49,16 @@ public class PassportNFCActivity extends Activity {
         dateOfExpiry = doe;
     }
     
+    /** Sets the context to send batch events to; the keys come from the active {@link BatchReadSession}. */
+    public static void setBatchContext(ReactApplicationContext context) {
+        reactContext = context;
+    }
+    
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         
         nfcAdapter = NfcAdapter.getDefaultAdapter(this);
-        pendingIntent = PendingIntent.getActivity(
-            this, 0, new Intent(this, getClass()).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP),
-            PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE
-        );
         
         // Check if launched from NFC intent
         handleIntent(getIntent());
@@ -70,7 +68,9 @@ public class PassportNFCActivity extends Activity {
     protected void onResume() {
         super.onResume();
         if (nfcAdapter != null) {
-            nfcAdapter.enableForegroundDispatch(this, pendingIntent, null, null);
+            Bundle options = new Bundle();
+            options.putInt(NfcAdapter.EXTRA_READER_PRESENCE_CHECK_DELAY, PRESENCE_CHECK_DELAY_MS);
+            nfcAdapter.enableReaderMode(this, this, READER_FLAGS, options);
         }
     }
     
@@ -78,7 +78,7 @@ public class PassportNFCActivity extends Activity {
     protected void onPause() {
         super.onPause();
         if (nfcAdapter != null) {
-            nfcAdapter.disableForegroundDispatch(this);
+            nfcAdapter.disableReaderMode(this);
         }
     }
     
@@ -88,178 +88,105 @@ public class PassportNFCActivity extends Activity {
         handleIntent(intent);
     }
     
+    @Override
+    protected void onDestroy() {
+        // Leaving the activity ends a batch session as well
+        if (isFinishing()) {
+            BatchReadSession session = BatchReadSession.stop();
+            if (session != null) {
+                sendEvent("batchScanStopped", session.toWritableMap());
+            }
+        }
+        super.onDestroy();
+    }
+    
+    /** Called on a binder thread, which the read may block until it is done. */
+    @Override
+    public void onTagDiscovered(Tag tag) {
+        readTag(tag);
+    }
+    
     private void handleIntent(Intent intent) {
         String action = intent.getAction();
-        if (NfcAdapter.ACTION_TECH_DISCOVERED.equals(action) || 
+        if (ACTION_STOP_BATCH.equals(action)) {
+            finish();
+        } else if (NfcAdapter.ACTION_TECH_DISCOVERED.equals(action) || 
             NfcAdapter.ACTION_TAG_DISCOVERED.equals(action)) {
             
             Tag tag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
             if (tag != null) {
-                readPassport(tag);
+                // Off the main thread, like a tag from reader mode
+                new Thread(() -> readTag(tag), "PassportReader").start();
             }
         }
     }
     
-    private void readPassport(Tag tag) {
+    private void readTag(Tag tag) {
+        BatchReadSession session = BatchReadSession.getActive();
+        if (session != null) {
+            readBatchDocument(session, tag);
+        } else if (!singleReadDone) {
+            singleReadDone = true;
+            readPassport(tag);
+        }
+    }
+    
+    /** Reads one document of a batch session and keeps the activity open for the next tap. */
+    private void readBatchDocument(BatchReadSession session, Tag tag) {
+        BatchReadSession.MrzKey key = session.peekKey();
+        if (key == null) {
+            session.onFailure();
+            sendBatchError(session, "NO_KEY", "No MRZ key queued for this document");
+            return;
+        }
         try {
-            Log.d(TAG, "Reading passport with JMRTD");
-            
-            // Create BAC key from MRZ data
-            BACKeySpec bacKey = new BACKey(documentNumber, dateOfBirth, dateOfExpiry);
-            
-            // Open ISO-DEP connection
-            IsoDep isoDep = IsoDep.get(tag);
-            if (isoDep == null) {
-                sendError("NO_ISODEP", "Tag doesn't support IsoDep");
-                // Add delay before finishing to prevent crash
-                new android.os.Handler().postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        finish();
-                    }
-                }, 500); // 500ms delay
+            PassportReadEngine engine = new PassportReadEngine(this,
+                image -> sendEvent("passportImageDecoded", image.toWritableMap()));
+            PassportReadResult result = engine.read(tag, key.documentNumber, key.dateOfBirth, key.dateOfExpiry);
+            if (!result.hasPersonalData()) {
+                // Without DG1 the document is not read; keep its key for the next tap
+                PassportReadResult.DataGroupStatus dg1 = result.getDataGroup("DG1");
+                session.onFailure();
+                sendBatchError(session, "DG1_FAILED", dg1 != null && dg1.getError() != null
+                    ? dg1.getError() + ": " + dg1.getErrorMessage() : "DG1 was not read");
                 return;
             }
+            session.onRead(key, result.getTotalMillis());
             
-            // Create Android-specific card service
-            AndroidNfcCardService cardService = new AndroidNfcCardService(isoDep);
-            cardService.open();
-            
-            // Create passport service
-            PassportService passportService = new PassportService(
-                cardService,
-                PassportService.NORMAL_MAX_TRANCEIVE_LENGTH,
-                PassportService.DEFAULT_MAX_BLOCKSIZE,
-                true,  // shouldCheckMAC
-                false  // shouldCheckAA
-            );
-            passportService.open();
-            
-            // Try PACE first if available
-            boolean paceSucceeded = false;
-            try {
-                CardSecurityFile cardSecurityFile = new CardSecurityFile(
-                    passportService.getInputStream(PassportService.EF_CARD_SECURITY)
-                );
-                Collection<SecurityInfo> securityInfos = cardSecurityFile.getSecurityInfos();
-                for (SecurityInfo securityInfo : securityInfos) {
-                    if (securityInfo instanceof PACEInfo) {
-                        PACEInfo paceInfo = (PACEInfo) securityInfo;
-                        passportService.doPACE(
-                            bacKey,
-                            paceInfo.getObjectIdentifier(),
-                            PACEInfo.toParameterSpec(paceInfo.getParameterId()),
-                            null
-                        );
-                        paceSucceeded = true;
-                        Log.d(TAG, "PACE succeeded");
-                        break;
-                    }
-                }
-            } catch (Exception e) {
-                Log.d(TAG, "PACE not supported or failed: " + e.getMessage());
-            }
-            
-            // Select passport application
-            passportService.sendSelectApplet(paceSucceeded);
-            
-            // If PACE didn't succeed, do BAC
-            if (!paceSucceeded) {
-                try {
-                    // Try to read COM to check if BAC is needed
-                    passportService.getInputStream(PassportService.EF_COM).read();
-                } catch (Exception e) {
-                    // BAC required
-                    Log.d(TAG, "Performing BAC authentication");
-                    passportService.doBAC(bacKey);
-                    Log.d(TAG, "BAC authentication successful");
-                }
-            }
-            
-            // Now read the data
-            WritableMap result = Arguments.createMap();
-            
-            // Read DG1 (MRZ data)
-            try {
-                DG1File dg1 = new DG1File(passportService.getInputStream(PassportService.EF_DG1));
-                MRZInfo mrzInfo = dg1.getMRZInfo();
-                
-                WritableMap personalData = Arguments.createMap();
-                personalData.putString("documentNumber", mrzInfo.getDocumentNumber());
-                personalData.putString("firstName", mrzInfo.getSecondaryIdentifier().replace("<", " ").trim());
-                personalData.putString("lastName", mrzInfo.getPrimaryIdentifier().replace("<", " ").trim());
-                personalData.putString("nationality", mrzInfo.getNationality());
-                personalData.putString("issuingState", mrzInfo.getIssuingState());
-                personalData.putString("dateOfBirth", mrzInfo.getDateOfBirth());
-                personalData.putString("dateOfExpiry", mrzInfo.getDateOfExpiry());
-                personalData.putString("gender", mrzInfo.getGender().toString());
-                personalData.putString("documentType", mrzInfo.getDocumentCode());
-                
-                result.putMap("personalData", personalData);
-                Log.d(TAG, "Successfully read personal data");
-            } catch (Exception e) {
-                Log.e(TAG, "Error reading DG1", e);
-                result.putString("dg1Error", e.getMessage());
-            }
-            
-            // Read DG2 (Face image) if needed
-            try {
-                DG2File dg2 = new DG2File(passportService.getInputStream(PassportService.EF_DG2));
-                List<FaceInfo> faceInfos = dg2.getFaceInfos();
-                
-                if (!faceInfos.isEmpty()) {
-                    FaceInfo faceInfo = faceInfos.get(0);
-                    List<FaceImageInfo> faceImageInfos = faceInfo.getFaceImageInfos();
-                    
-                    if (!faceImageInfos.isEmpty()) {
-                        FaceImageInfo faceImageInfo = faceImageInfos.get(0);
-                        
-                        // Read image data
-                        InputStream imageStream = faceImageInfo.getImageInputStream();
-                        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                        int nRead;
-                        byte[] data = new byte[1024];
-                        while ((nRead = imageStream.read(data, 0, data.length)) != -1) {
-                            buffer.write(data, 0, nRead);
-                        }
-                        
-                        // Convert to base64
-                        String base64Image = Base64.encodeToString(buffer.toByteArray(), Base64.NO_WRAP);
-                        result.putString("faceImage", base64Image);
-                        result.putString("faceImageMimeType", faceImageInfo.getMimeType());
-                        Log.d(TAG, "Successfully read face image");
-                    }
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Error reading DG2", e);
-                result.putString("dg2Error", e.getMessage());
-            }
-            
-            // Close services
-            passportService.close();
-            cardService.close();
+            WritableMap event = PassportReadResultMapper.toWritableMap(result);
+            event.putString("keyDocumentNumber", key.documentNumber);
+            event.putMap("batch", session.toWritableMap());
+            sendEvent("batchReadSuccess", event);
+            engine.decodeImages();
+        } catch (PassportReadEngine.ReadException e) {
+            Log.e(TAG, "Error reading batch document " + key.documentNumber, e);
+            session.onFailure();
+            sendBatchError(session, e.getCode(), e.getMessage());
+        }
+    }
+    
+    private void readPassport(Tag tag) {
+        try {
+            Log.d(TAG, "Reading passport with JMRTD");
             
-            // Send result back to React Native
-            sendEvent("passportReadSuccess", result);
-            // Add delay before finishing to prevent crash
-            new android.os.Handler().postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    finish();
-                }
-            }, 500); // 500ms delay
+            PassportReadEngine engine = new PassportReadEngine(this,
+                image -> sendEvent("passportImageDecoded", image.toWritableMap()));
+            PassportReadResult result = engine.read(tag, documentNumber, dateOfBirth, dateOfExpiry);
             
-        } catch (Exception e) {
+            // Send result back to React Native, then decode the images and report them one by one
+            sendEvent("passportReadSuccess", PassportReadResultMapper.toWritableMap(result));
+            engine.decodeImages();
+        } catch (PassportReadEngine.ReadException e) {
             Log.e(TAG, "Error reading passport", e);
-            sendError("READ_ERROR", e.getMessage());
-            // Add delay before finishing to prevent crash
-            new android.os.Handler().postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    finish();
-                }
-            }, 500); // 500ms delay
+            sendError(e.getCode(), e.getMessage());
         }
+        // Add delay before finishing to prevent crash
+        new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                finish();
+            }
+        }, 500); // 500ms delay
     }
     
     private void sendEvent(String eventName, WritableMap params) {
@@ -277,4 +204,12 @@ public class PassportNFCActivity extends Activity {
         sendEvent("passportReadError", error);
     }
     
+    private void sendBatchError(BatchReadSession session, String code, String message) {
+        WritableMap error = Arguments.createMap();
+        error.putString("code", code);
+        error.putString("message", message);
+        error.putMap("batch", session.toWritableMap());
+        sendEvent("batchReadError", error);
+    }
+    
 }
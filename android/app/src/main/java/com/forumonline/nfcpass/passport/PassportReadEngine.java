@@ -0,0 +1,269 @@
+package com.forumonline.nfcpass.passport;
+
+import android.content.Context;
+import android.nfc.Tag;
+import android.nfc.tech.IsoDep;
+import android.os.SystemClock;
+import android.util.Base64;
+import android.util.Log;
+
+import com.forumonline.nfcpass.model.PassportReadResult;
+
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.ISO7816;
+
+import org.jmrtd.BACKeySpec;
+import org.jmrtd.PassportService;
+import org.jmrtd.lds.CardSecurityFile;
+import org.jmrtd.lds.LDSFile;
+import org.jmrtd.lds.PACEInfo;
+import org.jmrtd.lds.SecurityInfo;
+import org.jmrtd.lds.icao.COMFile;
+import org.jmrtd.lds.icao.DG1File;
+import org.jmrtd.lds.icao.DG2File;
+import org.jmrtd.lds.icao.DG7File;
+import org.jmrtd.lds.icao.MRZInfo;
+import org.jmrtd.lds.iso19794.FaceImageInfo;
+import org.jmrtd.lds.iso19794.FaceInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Reads a passport or ID card over NFC: access control with PACE or BAC, then DG1, DG2 and, if
+ * EF.COM lists it, DG7. A data group that cannot be read is recorded in the result with its {@link
+ * PassportReadResult.ErrorCode} and the read goes on; only failing to talk to the chip at all ends
+ * it with a {@link ReadException}.
+ *
+ * <p>Images are only collected during the read. Once the caller has handed out the result it calls
+ * {@link #decodeImages()}, after which they are decoded in the background and reported to the given
+ * listener one by one, tagged with the {@link PassportReadResult#getReadId() read id} of the result.
+ */
+final class PassportReadEngine {
+    private static final String TAG = "PassportReadEngine";
+
+    /** The read could not start or broke off before any data group was read. */
+    static final class ReadException extends Exception {
+        private final String code;
+
+        ReadException(String code, String message, Throwable cause) {
+            super(message, cause);
+            this.code = code;
+        }
+
+        /** Error code for JS, e.g. {@code NO_ISODEP}. */
+        String getCode() {
+            return code;
+        }
+    }
+
+    private interface DataGroupReader {
+        void read(InputStream in) throws Exception;
+    }
+
+    private final Context context;
+    private final ImageDecodeStage.Listener imageListener;
+    private ImageDecodeStage decodeStage;
+
+    PassportReadEngine(Context context, ImageDecodeStage.Listener imageListener) {
+        this.context = context.getApplicationContext();
+        this.imageListener = imageListener;
+    }
+
+    PassportReadResult read(Tag tag, String documentNumber, String dateOfBirth, String dateOfExpiry) throws ReadException {
+        long start = SystemClock.elapsedRealtime();
+
+        IsoDep isoDep = IsoDep.get(tag);
+        if (isoDep == null) {
+            throw new ReadException("NO_ISODEP", "Tag doesn't support IsoDep", null);
+        }
+
+        AndroidNfcCardService cardService = new AndroidNfcCardService(isoDep);
+        PassportService passportService = null;
+        try {
+            // Use the access keys derived in the background since startPassportScan
+            AccessKeyPrecomputer.AccessKeys accessKeys =
+                AccessKeyPrecomputer.get(documentNumber, dateOfBirth, dateOfExpiry);
+
+            cardService.open();
+            passportService = new PassportService(
+                cardService,
+                PassportService.NORMAL_MAX_TRANCEIVE_LENGTH,
+                PassportService.DEFAULT_MAX_BLOCKSIZE,
+                true,  // shouldCheckMAC
+                false  // shouldCheckAA
+            );
+            passportService.open();
+
+            PassportReadResult result = new PassportReadResult();
+            long accessStart = SystemClock.elapsedRealtime();
+            boolean paceSucceeded = doPACE(passportService, accessKeys.getBACKey());
+            passportService.sendSelectApplet(paceSucceeded);
+            if (!paceSucceeded) {
+                try {
+                    // Try to read COM to check if BAC is needed
+                    passportService.getInputStream(PassportService.EF_COM).read();
+                } catch (Exception e) {
+                    Log.d(TAG, "Performing BAC authentication");
+                    passportService.doBAC(accessKeys.getEncryptionKey(), accessKeys.getMacKey());
+                }
+            }
+            result.setAccessControl(paceSucceeded ? "PACE" : "BAC");
+            result.setAccessControlMillis(SystemClock.elapsedRealtime() - accessStart);
+
+            // Take over the secure messaging session for the data group reads
+            SecureFileSystem fileSystem = SecureFileSystem.forSession(cardService, passportService);
+            ImageDecodeStage images = new ImageDecodeStage(context, imageListener);
+            result.setReadId(images.getReadId());
+            PassportService service = passportService;
+
+            readDataGroup(result, "DG1", service, fileSystem, PassportService.EF_DG1, in -> {
+                MRZInfo mrzInfo = new DG1File(in).getMRZInfo();
+                result.setDocumentNumber(mrzInfo.getDocumentNumber());
+                result.setFirstName(mrzInfo.getSecondaryIdentifier().replace("<", " ").trim());
+                result.setLastName(mrzInfo.getPrimaryIdentifier().replace("<", " ").trim());
+                result.setNationality(mrzInfo.getNationality());
+                result.setIssuingState(mrzInfo.getIssuingState());
+                result.setDateOfBirth(mrzInfo.getDateOfBirth());
+                result.setDateOfExpiry(mrzInfo.getDateOfExpiry());
+                result.setGender(mrzInfo.getGender().toString());
+                result.setDocumentType(mrzInfo.getDocumentCode());
+            });
+            readDataGroup(result, "DG2", service, fileSystem, PassportService.EF_DG2, in -> {
+                DG2File dg2 = new DG2File(in);
+                images.add("DG2", ImageDecodeStage.getImages(dg2));
+                storeFaceImage(dg2, result, images.getReadId());
+            });
+            // DG7 (signature) is optional, don't spend a round trip on documents without it
+            if (listsDataGroup(service, fileSystem, LDSFile.EF_DG7_TAG)) {
+                readDataGroup(result, "DG7", service, fileSystem, PassportService.EF_DG7,
+                    in -> images.add("DG7", ImageDecodeStage.getImages(new DG7File(in))));
+            }
+
+            decodeStage = images;
+            result.setPendingImages(images.getImageCount());
+            result.setTotalMillis(SystemClock.elapsedRealtime() - start);
+            return result;
+        } catch (Exception e) {
+            throw new ReadException("READ_ERROR", e.getMessage(), e);
+        } finally {
+            if (passportService != null) {
+                passportService.close();
+            }
+            cardService.close();
+        }
+    }
+
+    /**
+     * Decodes the images of the last successful {@link #read}. Call after handing out its result, so
+     * that every image event follows the result it belongs to.
+     */
+    void decodeImages() {
+        if (decodeStage != null) {
+            decodeStage.start();
+            decodeStage = null;
+        }
+    }
+
+    /** Runs PACE if the chip offers it; false if it does not or PACE failed, so BAC is next. */
+    private static boolean doPACE(PassportService passportService, BACKeySpec bacKey) {
+        try {
+            CardSecurityFile cardSecurityFile = new CardSecurityFile(
+                passportService.getInputStream(PassportService.EF_CARD_SECURITY)
+            );
+            Collection<SecurityInfo> securityInfos = cardSecurityFile.getSecurityInfos();
+            for (SecurityInfo securityInfo : securityInfos) {
+                if (securityInfo instanceof PACEInfo) {
+                    PACEInfo paceInfo = (PACEInfo) securityInfo;
+                    passportService.doPACE(
+                        bacKey,
+                        paceInfo.getObjectIdentifier(),
+                        PACEInfo.toParameterSpec(paceInfo.getParameterId()),
+                        null
+                    );
+                    Log.d(TAG, "PACE succeeded");
+                    return true;
+                }
+            }
+        } catch (Exception e) {
+            Log.d(TAG, "PACE not supported or failed: " + e.getMessage());
+        }
+        return false;
+    }
+
+    /** Whether EF.COM lists the data group with the given tag; false if EF.COM cannot be read. */
+    private static boolean listsDataGroup(PassportService passportService, SecureFileSystem fileSystem, int tag) {
+        try {
+            InputStream in = fileSystem != null
+                ? fileSystem.getInputStream(PassportService.EF_COM)
+                : passportService.getInputStream(PassportService.EF_COM);
+            for (int listed : new COMFile(in).getTagList()) {
+                if (listed == tag) {
+                    return true;
+                }
+            }
+        } catch (Exception e) {
+            Log.d(TAG, "EF.COM not read: " + e.getMessage());
+        }
+        return false;
+    }
+
+    private static void readDataGroup(PassportReadResult result, String name, PassportService passportService,
+                                      SecureFileSystem fileSystem, short fid, DataGroupReader reader) {
+        long start = SystemClock.elapsedRealtime();
+        PassportReadResult.ErrorCode error = null;
+        String message = null;
+        try {
+            InputStream in = fileSystem != null ? fileSystem.getInputStream(fid) : passportService.getInputStream(fid);
+            reader.read(in);
+        } catch (Exception e) {
+            error = classify(e);
+            message = String.valueOf(e.getMessage());
+            Log.d(TAG, name + " not read (" + error + "): " + message);
+        }
+        result.addDataGroup(new PassportReadResult.DataGroupStatus(name, error, message,
+            SystemClock.elapsedRealtime() - start));
+    }
+
+    /** Chip errors are told apart by their status word; anything else happened while parsing. */
+    private static PassportReadResult.ErrorCode classify(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CardServiceException) {
+                int sw = ((CardServiceException) cause).getSW() & 0xFFFF;
+                if (sw == (ISO7816.SW_FILE_NOT_FOUND & 0xFFFF)) {
+                    return PassportReadResult.ErrorCode.NOT_PRESENT;
+                }
+                if (sw == (ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED & 0xFFFF)) {
+                    return PassportReadResult.ErrorCode.ACCESS_DENIED;
+                }
+                return PassportReadResult.ErrorCode.READ_FAILED;
+            }
+        }
+        return PassportReadResult.ErrorCode.PARSE_FAILED;
+    }
+
+    /** Hands the first face image to JS in its original encoding, as base64 and as a file. */
+    private void storeFaceImage(DG2File dg2, PassportReadResult result, String readId) throws java.io.IOException {
+        List<FaceInfo> faceInfos = dg2.getFaceInfos();
+        if (faceInfos.isEmpty() || faceInfos.get(0).getFaceImageInfos().isEmpty()) {
+            return;
+        }
+        FaceImageInfo faceImageInfo = faceInfos.get(0).getFaceImageInfos().get(0);
+        InputStream imageStream = faceImageInfo.getImageInputStream();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        int nRead;
+        byte[] data = new byte[1024];
+        while ((nRead = imageStream.read(data, 0, data.length)) != -1) {
+            buffer.write(data, 0, nRead);
+        }
+
+        byte[] image = buffer.toByteArray();
+        String mimeType = faceImageInfo.getMimeType();
+        String extension = mimeType != null && mimeType.contains("jp2") ? "jp2" : "jpg";
+        result.setFaceImage(Base64.encodeToString(image, Base64.NO_WRAP));
+        result.setFaceImageUri(PassportImageStore.write(context, readId, "face", extension, image));
+        result.setFaceImageMimeType(mimeType);
+    }
+}
@@ -0,0 +1,75 @@
+package com.forumonline.nfcpass.passport;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.forumonline.nfcpass.model.PassportReadResult;
+
+import java.util.Locale;
+
+/**
+ * Turns a {@link PassportReadResult} into the map JS receives, the only place that knows its keys.
+ * Besides {@code readId}, {@code dataGroups} and {@code timings} it keeps the keys JS has been
+ * reading all along: {@code personalData}, {@code faceImage}, {@code faceImageMimeType}, {@code
+ * pendingImages} and {@code dg1Error}/{@code dg2Error}, next to {@code faceImageUri}.
+ */
+final class PassportReadResultMapper {
+
+    private PassportReadResultMapper() {}
+
+    static WritableMap toWritableMap(PassportReadResult result) {
+        WritableMap map = Arguments.createMap();
+        if (result.getReadId() != null) {
+            map.putString("readId", result.getReadId());
+        }
+
+        if (result.hasPersonalData()) {
+            WritableMap personalData = Arguments.createMap();
+            personalData.putString("documentNumber", result.getDocumentNumber());
+            personalData.putString("firstName", result.getFirstName());
+            personalData.putString("lastName", result.getLastName());
+            personalData.putString("nationality", result.getNationality());
+            personalData.putString("issuingState", result.getIssuingState());
+            personalData.putString("dateOfBirth", result.getDateOfBirth());
+            personalData.putString("dateOfExpiry", result.getDateOfExpiry());
+            personalData.putString("gender", result.getGender());
+            personalData.putString("documentType", result.getDocumentType());
+            map.putMap("personalData", personalData);
+        }
+        if (result.getFaceImage() != null) {
+            map.putString("faceImage", result.getFaceImage());
+        }
+        if (result.getFaceImageUri() != null) {
+            map.putString("faceImageUri", result.getFaceImageUri());
+        }
+        if (result.getFaceImageMimeType() != null) {
+            map.putString("faceImageMimeType", result.getFaceImageMimeType());
+        }
+        map.putInt("pendingImages", result.getPendingImages());
+
+        WritableArray dataGroups = Arguments.createArray();
+        for (PassportReadResult.DataGroupStatus status : result.getDataGroups()) {
+            WritableMap dataGroup = Arguments.createMap();
+            dataGroup.putString("name", status.getName());
+            if (status.getError() != null) {
+                dataGroup.putString("error", status.getError().name());
+                dataGroup.putString("errorMessage", status.getErrorMessage());
+                if ("DG1".equals(status.getName()) || "DG2".equals(status.getName())) {
+                    map.putString(status.getName().toLowerCase(Locale.ROOT) + "Error", status.getErrorMessage());
+                }
+            }
+            dataGroup.putDouble("readMillis", status.getReadMillis());
+            dataGroups.pushMap(dataGroup);
+        }
+        map.putArray("dataGroups", dataGroups);
+
+        WritableMap timings = Arguments.createMap();
+        if (result.getAccessControl() != null) {
+            timings.putString("accessControl", result.getAccessControl());
+        }
+        timings.putDouble("accessControlMillis", result.getAccessControlMillis());
+        timings.putDouble("totalMillis", result.getTotalMillis());
+        map.putMap("timings", timings);
+        return map;
+    }
+}
@@ -2,9 +2,10 @@ package com.forumonline.nfcpass.passport;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.nfc.NfcAdapter;
 import android.nfc.Tag;
-import android.nfc.tech.IsoDep;
-import android.util.Base64;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.facebook.react.bridge.ActivityEventListener;
@@ -14,29 +15,15 @@ import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.forumonline.nfcpass.mlkit.other.ScanLog;
+import com.forumonline.nfcpass.mlkit.text.TextRecognizerHolder;
 import com.forumonline.nfcpass.model.DocType;
-
-import net.sf.scuba.smartcards.CardService;
-
-import org.jmrtd.BACKey;
-import org.jmrtd.BACKeySpec;
-import org.jmrtd.PassportService;
-import org.jmrtd.lds.CardSecurityFile;
-import org.jmrtd.lds.PACEInfo;
-import org.jmrtd.lds.SecurityInfo;
-import org.jmrtd.lds.icao.DG1File;
-import org.jmrtd.lds.icao.DG2File;
-import org.jmrtd.lds.icao.MRZInfo;
-import org.jmrtd.lds.iso19794.FaceImageInfo;
-import org.jmrtd.lds.iso19794.FaceInfo;
-
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.InputStream;
-import java.util.Collection;
-import java.util.List;
+import com.forumonline.nfcpass.model.PassportReadResult;
 
 public class PassportReaderModule extends ReactContextBaseJavaModule implements ActivityEventListener, LifecycleEventListener {
     private static final String TAG = "PassportReader";
@@ -59,7 +46,11 @@ public class PassportReaderModule extends ReactContextBaseJavaModule implements
         try {
             Log.d(TAG, "Starting passport scan with MRZ: " + documentNumber);
             currentPromise = promise;
-            
+
+            // Derive the access keys while the user is still bringing the document to the phone
+            AccessKeyPrecomputer.prepare(documentNumber, dateOfBirth, dateOfExpiry);
+            PassportImageStore.clear(getReactApplicationContext());
+
             // Set parameters for the activity
             PassportNFCActivity.setParameters(getReactApplicationContext(), documentNumber, dateOfBirth, dateOfExpiry);
             
@@ -78,6 +69,83 @@ public class PassportReaderModule extends ReactContextBaseJavaModule implements
         }
     }
     
+    /**
+     * Opens the NFC screen for a batch session: it stays open and reads every document tapped, each
+     * with the next of the queued keys, reporting {@code batchReadSuccess} or {@code batchReadError}
+     * per tap until {@link #stopBatchScan}. {@code keys} holds {@code documentNumber},
+     * {@code dateOfBirth} and {@code dateOfExpiry} maps and may be empty; more can be queued with
+     * {@link #addBatchKeys} or by MRZ scans during the session.
+     */
+    @ReactMethod
+    public void startBatchScan(ReadableArray keys, Promise promise) {
+        try {
+            Log.d(TAG, "Starting batch scan with " + keys.size() + " keys");
+            
+            BatchReadSession session = BatchReadSession.start();
+            addKeys(session, keys);
+            PassportImageStore.clear(getReactApplicationContext());
+            PassportNFCActivity.setBatchContext(getReactApplicationContext());
+            
+            Activity currentActivity = getCurrentActivity();
+            if (currentActivity != null) {
+                Intent intent = new Intent(currentActivity, PassportNFCActivity.class);
+                currentActivity.startActivity(intent);
+                promise.resolve(true);
+            } else {
+                BatchReadSession.stop();
+                promise.reject("NO_ACTIVITY", "No current activity");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error starting batch scan", e);
+            BatchReadSession.stop();
+            promise.reject("START_ERROR", e.getMessage());
+        }
+    }
+    
+    @ReactMethod
+    public void addBatchKeys(ReadableArray keys, Promise promise) {
+        BatchReadSession session = BatchReadSession.getActive();
+        if (session == null) {
+            promise.reject("NO_BATCH", "No batch scan is active");
+            return;
+        }
+        addKeys(session, keys);
+        promise.resolve(session.toWritableMap());
+    }
+    
+    /** Ends the batch session, closes the NFC screen and resolves with the session's statistics. */
+    @ReactMethod
+    public void stopBatchScan(Promise promise) {
+        BatchReadSession session = BatchReadSession.stop();
+        if (session == null) {
+            promise.reject("NO_BATCH", "No batch scan is active");
+            return;
+        }
+        Activity currentActivity = getCurrentActivity();
+        if (currentActivity != null) {
+            // Brings the NFC screen back on top, closing a scanner opened over it, and finishes it
+            Intent intent = new Intent(currentActivity, PassportNFCActivity.class)
+                .setAction(PassportNFCActivity.ACTION_STOP_BATCH)
+                .addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+            currentActivity.startActivity(intent);
+        }
+        promise.resolve(session.toWritableMap());
+    }
+    
+    @ReactMethod
+    public void getBatchStats(Promise promise) {
+        BatchReadSession session = BatchReadSession.getActive();
+        promise.resolve(session != null ? session.toWritableMap() : null);
+    }
+    
+    private static void addKeys(BatchReadSession session, ReadableArray keys) {
+        for (int i = 0; i < keys.size(); i++) {
+            ReadableMap key = keys.getMap(i);
+            session.addKey(new BatchReadSession.MrzKey(
+                key.getString("documentNumber"), key.getString("dateOfBirth"), key.getString("dateOfExpiry")));
+        }
+    }
+    
     @ReactMethod
     public void startMRZScanner(Promise promise) {
         try {
@@ -91,6 +159,7 @@ public class PassportReaderModule extends ReactContextBaseJavaModule implements
             if (currentActivity != null) {
                 Intent intent = new Intent(currentActivity, CaptureActivity.class);
                 intent.putExtra(CaptureActivity.DOC_TYPE, DocType.PASSPORT);
+                intent.putExtra(CaptureActivity.SCAN_REQUESTED_AT, SystemClock.elapsedRealtimeNanos());
                 currentActivity.startActivity(intent);
                 
                 // Resolve the promise immediately since we're using events for results
@@ -118,6 +187,7 @@ public class PassportReaderModule extends ReactContextBaseJavaModule implements
             if (currentActivity != null) {
                 Intent intent = new Intent(currentActivity, CaptureActivity.class);
                 intent.putExtra(CaptureActivity.DOC_TYPE, DocType.ID_CARD);
+                intent.putExtra(CaptureActivity.SCAN_REQUESTED_AT, SystemClock.elapsedRealtimeNanos());
                 currentActivity.startActivity(intent);
                 
                 // Resolve the promise immediately since we're using events for results
@@ -132,6 +202,59 @@ public class PassportReaderModule extends ReactContextBaseJavaModule implements
         }
     }
     
+    /** Starts or stops keeping the scanner's debug messages in memory, e.g. to attach to a support report. */
+    @ReactMethod
+    public void setScanDiagnosticsEnabled(boolean enabled) {
+        ScanLog.setDiagnosticsEnabled(enabled);
+    }
+
+    /**
+     * What this device can do, answered synchronously so that JS can decide which screens to show
+     * without waiting for a promise.
+     */
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public WritableMap getCapabilities() {
+        ReactApplicationContext context = getReactApplicationContext();
+        NfcAdapter nfcAdapter = NfcAdapter.getDefaultAdapter(context);
+        WritableMap capabilities = Arguments.createMap();
+        capabilities.putBoolean("nfcSupported", nfcAdapter != null);
+        capabilities.putBoolean("nfcEnabled", nfcAdapter != null && nfcAdapter.isEnabled());
+        capabilities.putBoolean("cameraAvailable",
+            context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_CAMERA_ANY));
+        capabilities.putBoolean("recognizerWarm", TextRecognizerHolder.getWarmUpMillis() >= 0);
+        return capabilities;
+    }
+
+    // Required by NativeEventEmitter; events are sent whether or not JS listens
+    @ReactMethod
+    public void addListener(String eventName) {
+    }
+
+    @ReactMethod
+    public void removeListeners(Integer count) {
+    }
+
+    /** Deletes the image files of every read once JS no longer shows them. */
+    @ReactMethod
+    public void clearPassportImages() {
+        PassportImageStore.clear(getReactApplicationContext());
+    }
+
+    /** Deletes the image files of one read, e.g. of a batch document the operator has moved past. */
+    @ReactMethod
+    public void clearReadImages(String readId) {
+        PassportImageStore.clear(getReactApplicationContext(), readId);
+    }
+
+    @ReactMethod
+    public void getScanDiagnostics(Promise promise) {
+        WritableArray messages = Arguments.createArray();
+        for (String message : ScanLog.getDiagnostics()) {
+            messages.pushString(message);
+        }
+        promise.resolve(messages);
+    }
+    
     @Override
     public void onActivityResult(Activity activity, int requestCode, int resultCode, Intent data) {
         // Not used for this implementation
@@ -162,139 +285,21 @@ public class PassportReaderModule extends ReactContextBaseJavaModule implements
         try {
             Log.d(TAG, "Reading passport with tag");
             
-            // Create BAC key from MRZ data
-            BACKeySpec bacKey = new BACKey(documentNumber, dateOfBirth, dateOfExpiry);
-            
-            // Open ISO-DEP connection
-            IsoDep isoDep = IsoDep.get(tag);
-            if (isoDep == null) {
-                promise.reject("NO_ISODEP", "Tag doesn't support IsoDep");
-                return;
-            }
-            
-            // Create card service
-            CardService cardService = CardService.getInstance(isoDep);
-            cardService.open();
-            
-            // Create passport service - this is the key JMRTD component
-            PassportService passportService = new PassportService(
-                cardService,
-                PassportService.NORMAL_MAX_TRANCEIVE_LENGTH,
-                PassportService.DEFAULT_MAX_BLOCKSIZE,
-                true,  // shouldCheckMAC
-                false  // shouldCheckAA
-            );
-            passportService.open();
-            
-            // Try PACE first if available
-            boolean paceSucceeded = false;
-            try {
-                CardSecurityFile cardSecurityFile = new CardSecurityFile(
-                    passportService.getInputStream(PassportService.EF_CARD_SECURITY)
-                );
-                Collection<SecurityInfo> securityInfos = cardSecurityFile.getSecurityInfos();
-                for (SecurityInfo securityInfo : securityInfos) {
-                    if (securityInfo instanceof PACEInfo) {
-                        PACEInfo paceInfo = (PACEInfo) securityInfo;
-                        passportService.doPACE(
-                            bacKey,
-                            paceInfo.getObjectIdentifier(),
-                            PACEInfo.toParameterSpec(paceInfo.getParameterId()),
-                            null
-                        );
-                        paceSucceeded = true;
-                        Log.d(TAG, "PACE succeeded");
-                        break;
-                    }
-                }
-            } catch (Exception e) {
-                Log.d(TAG, "PACE not supported or failed: " + e.getMessage());
-            }
-            
-            // Select passport application
-            passportService.sendSelectApplet(paceSucceeded);
-            
-            // If PACE didn't succeed, do BAC
-            if (!paceSucceeded) {
-                try {
-                    // Try to read COM to check if BAC is needed
-                    passportService.getInputStream(PassportService.EF_COM).read();
-                } catch (Exception e) {
-                    // BAC required - this is the magic that handles all secure messaging!
-                    Log.d(TAG, "Performing BAC authentication");
-                    passportService.doBAC(bacKey);
-                    Log.d(TAG, "BAC authentication successful");
-                }
-            }
-            
-            // Now we can read the data - JMRTD handles all secure messaging transparently!
-            WritableMap result = Arguments.createMap();
-            
-            // Read DG1 (MRZ data)
-            try {
-                DG1File dg1 = new DG1File(passportService.getInputStream(PassportService.EF_DG1));
-                MRZInfo mrzInfo = dg1.getMRZInfo();
-                
-                WritableMap personalData = Arguments.createMap();
-                personalData.putString("documentNumber", mrzInfo.getDocumentNumber());
-                personalData.putString("firstName", mrzInfo.getSecondaryIdentifier().replace("<", " ").trim());
-                personalData.putString("lastName", mrzInfo.getPrimaryIdentifier().replace("<", " ").trim());
-                personalData.putString("nationality", mrzInfo.getNationality());
-                personalData.putString("issuingState", mrzInfo.getIssuingState());
-                personalData.putString("dateOfBirth", mrzInfo.getDateOfBirth());
-                personalData.putString("dateOfExpiry", mrzInfo.getDateOfExpiry());
-                personalData.putString("gender", mrzInfo.getGender().toString());
-                personalData.putString("documentType", mrzInfo.getDocumentCode());
-                
-                result.putMap("personalData", personalData);
-                Log.d(TAG, "Successfully read personal data");
-            } catch (Exception e) {
-                Log.e(TAG, "Error reading DG1", e);
-                result.putString("dg1Error", e.getMessage());
-            }
-            
-            // Read DG2 (Face image) if needed
-            try {
-                DG2File dg2 = new DG2File(passportService.getInputStream(PassportService.EF_DG2));
-                List<FaceInfo> faceInfos = dg2.getFaceInfos();
-                
-                if (!faceInfos.isEmpty()) {
-                    FaceInfo faceInfo = faceInfos.get(0);
-                    List<FaceImageInfo> faceImageInfos = faceInfo.getFaceImageInfos();
-                    
-                    if (!faceImageInfos.isEmpty()) {
-                        FaceImageInfo faceImageInfo = faceImageInfos.get(0);
-                        
-                        // Read image data
-                        InputStream imageStream = faceImageInfo.getImageInputStream();
-                        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                        int nRead;
-                        byte[] data = new byte[1024];
-                        while ((nRead = imageStream.read(data, 0, data.length)) != -1) {
-                            buffer.write(data, 0, nRead);
-                        }
-                        
-                        // Convert to base64
-                        String base64Image = Base64.encodeToString(buffer.toByteArray(), Base64.NO_WRAP);
-                        result.putString("faceImage", base64Image);
-                        result.putString("faceImageMimeType", faceImageInfo.getMimeType());
-                        Log.d(TAG, "Successfully read face image");
-                    }
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Error reading DG2", e);
-                result.putString("dg2Error", e.getMessage());
-            }
-            
-            // Close services
-            passportService.close();
-            cardService.close();
-            
-            promise.resolve(result);
-            
-        } catch (Exception e) {
+            PassportReadEngine engine = new PassportReadEngine(getReactApplicationContext(),
+                image -> sendEvent("passportImageDecoded", image.toWritableMap()));
+            PassportReadResult result = engine.read(tag, documentNumber, dateOfBirth, dateOfExpiry);
+            promise.resolve(PassportReadResultMapper.toWritableMap(result));
+            // Images are decoded once the result is out and reported one by one
+            engine.decodeImages();
+        } catch (PassportReadEngine.ReadException e) {
             Log.e(TAG, "Error reading passport", e);
-            promise.reject("READ_ERROR", e.getMessage(), e);
+            promise.reject(e.getCode(), e.getMessage(), e);
         }
     }
-}
\ No newline at end of file
+
+    private void sendEvent(String eventName, WritableMap params) {
+        getReactApplicationContext()
+            .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+            .emit(eventName, params);
+    }
+}
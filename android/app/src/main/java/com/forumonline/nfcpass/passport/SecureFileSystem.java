@@ -0,0 +1,227 @@
+package com.forumonline.nfcpass.passport;
+
+import com.forumonline.nfcpass.passport.crypto.SecureMessagingCodec;
+
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.FileInfo;
+import net.sf.scuba.smartcards.FileSystemStructured;
+import net.sf.scuba.smartcards.ISO7816;
+
+import org.jmrtd.PassportService;
+import org.jmrtd.protocol.SecureMessagingWrapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Reads elementary files over an established secure messaging session using
+ * {@link SecureMessagingCodec} instead of JMRTD's wrapper.
+ *
+ * <p>Once this takes over the session, the send sequence counter of the {@code PassportService}
+ * wrapper is stale, so every later APDU has to go through the same instance. Command buffers are
+ * kept per APDU length and reused, which leaves the response array returned by
+ * {@code IsoDep.transceive} as the only allocation per READ BINARY besides the returned data.
+ *
+ * <p>Files are read in one go, one READ BINARY after the other. Wrapping and unwrapping a block
+ * takes well under a millisecond against tens of milliseconds on the air, so overlapping them with
+ * the transceive on another thread does not shorten a read.
+ */
+public class SecureFileSystem implements FileSystemStructured {
+    /** Bytes read to learn the length of a file from its TLV header, as JMRTD does. */
+    private static final int PREFIX_LENGTH = 8;
+
+    private static final int SW_NO_ERROR = 0x9000;
+    private static final int SW_END_OF_FILE = 0x6282;
+
+    /** Largest offset READ BINARY can encode in P1/P2. */
+    private static final int MAX_SHORT_OFFSET = 0x7FFF;
+
+    private final ApduChannel channel;
+    private final SecureMessagingCodec codec;
+    private final int maxBlockSize;
+
+    private final byte[] commandBuffer = new byte[SecureMessagingCodec.MAX_COMMAND_LENGTH];
+    private final byte[][] commandsByLength = new byte[SecureMessagingCodec.MAX_COMMAND_LENGTH + 1][];
+    private final byte[] responseData = new byte[256 + 16];
+    private final byte[] commandData = new byte[4];
+
+    private short selectedFID;
+    private SecureFileInfo selectedFile;
+    private byte[] selectedPrefix;
+
+    public SecureFileSystem(ApduChannel channel, SecureMessagingCodec codec, int maxBlockSize) {
+        this.channel = channel;
+        this.codec = codec;
+        this.maxBlockSize = maxBlockSize;
+    }
+
+    /**
+     * Takes over the secure messaging session established on the given service, or returns null if
+     * the document does not use secure messaging.
+     */
+    public static SecureFileSystem forSession(AndroidNfcCardService cardService, PassportService passportService)
+            throws GeneralSecurityException {
+        SecureMessagingWrapper wrapper = passportService.getWrapper();
+        if (wrapper == null) {
+            return null;
+        }
+        return new SecureFileSystem(cardService, SecureMessagingCodec.fromWrapper(wrapper), PassportService.DEFAULT_MAX_BLOCKSIZE);
+    }
+
+    /** Selects the given file and returns a stream over its contents, which are read right away. */
+    public synchronized InputStream getInputStream(short fid) throws CardServiceException {
+        selectFile(fid);
+        return new ByteArrayInputStream(readSelectedFile());
+    }
+
+    /** Reads the complete selected file. */
+    public synchronized byte[] readSelectedFile() throws CardServiceException {
+        int fileLength = getSelectedPath()[0].getFileLength();
+        byte[] contents = new byte[fileLength];
+        int offset = Math.min(selectedPrefix.length, fileLength);
+        System.arraycopy(selectedPrefix, 0, contents, 0, offset);
+
+        while (offset < fileLength) {
+            byte[] block = readBinary(offset, Math.min(maxBlockSize, fileLength - offset));
+            if (block.length == 0) {
+                throw new CardServiceException("Unexpected end of file at offset " + offset);
+            }
+            int length = Math.min(block.length, fileLength - offset);
+            System.arraycopy(block, 0, contents, offset, length);
+            offset += length;
+        }
+        return contents;
+    }
+
+    @Override
+    public synchronized void selectFile(short fid) throws CardServiceException {
+        if (fid == selectedFID && selectedFile != null) {
+            return;
+        }
+
+        commandData[0] = (byte) ((fid >> 8) & 0xFF);
+        commandData[1] = (byte) (fid & 0xFF);
+        transmit(ISO7816.INS_SELECT_FILE, 0x02, 0x0C, commandData, 2, 0);
+        checkStatusWord("SELECT FILE");
+
+        selectedFID = fid;
+        selectedFile = null;
+        selectedPrefix = null;
+    }
+
+    @Override
+    public synchronized FileInfo[] getSelectedPath() throws CardServiceException {
+        if (selectedFID == 0) {
+            throw new CardServiceException("No file selected");
+        }
+        if (selectedFile == null) {
+            selectedPrefix = readBinary(0, PREFIX_LENGTH);
+            selectedFile = new SecureFileInfo(selectedFID, getEncodedLength(selectedPrefix));
+        }
+        return new FileInfo[] {selectedFile};
+    }
+
+    @Override
+    public synchronized byte[] readBinary(int offset, int length) throws CardServiceException {
+        int dataLength;
+        if (offset <= MAX_SHORT_OFFSET) {
+            dataLength = transmit(ISO7816.INS_READ_BINARY, (offset >> 8) & 0x7F, offset & 0xFF, commandData, 0, length);
+            checkStatusWord("READ BINARY");
+            return Arrays.copyOf(responseData, dataLength);
+        }
+
+        // Offsets beyond 15 bits go into an offset data object, the data comes back wrapped in DO'53'
+        commandData[0] = 0x54;
+        commandData[1] = 0x02;
+        commandData[2] = (byte) (offset >> 8);
+        commandData[3] = (byte) offset;
+        int le = length < 128 ? length + 2 : length < 256 ? length + 3 : length;
+        dataLength = transmit(ISO7816.INS_READ_BINARY2, 0x00, 0x00, commandData, 4, Math.min(le, 256));
+        checkStatusWord("READ BINARY");
+        if (dataLength < 2 || responseData[0] != 0x53) {
+            throw new CardServiceException("Malformed read binary long response data");
+        }
+        int valueStart = 2;
+        int valueLength = responseData[1] & 0xFF;
+        if (valueLength == 0x81) {
+            valueLength = responseData[2] & 0xFF;
+            valueStart = 3;
+        } else if (valueLength == 0x82) {
+            valueLength = ((responseData[2] & 0xFF) << 8) | (responseData[3] & 0xFF);
+            valueStart = 4;
+        }
+        return Arrays.copyOfRange(responseData, valueStart, valueStart + Math.min(valueLength, dataLength - valueStart));
+    }
+
+    /** Wraps, sends and unwraps one command. Returns the length of the response data. */
+    private int transmit(byte ins, int p1, int p2, byte[] data, int dataLength, int ne) throws CardServiceException {
+        try {
+            int length = codec.wrap(ISO7816.CLA_ISO7816, ins, p1, p2, data, 0, dataLength, ne, commandBuffer);
+            byte[] command = commandsByLength[length];
+            if (command == null) {
+                command = new byte[length];
+                commandsByLength[length] = command;
+            }
+            System.arraycopy(commandBuffer, 0, command, 0, length);
+
+            byte[] response = channel.transmit(command);
+            return codec.unwrap(response, response.length, responseData, 0);
+        } catch (GeneralSecurityException e) {
+            throw new CardServiceException("Secure messaging failure: " + e.getMessage(), e);
+        }
+    }
+
+    private void checkStatusWord(String command) throws CardServiceException {
+        int sw = codec.getStatusWord();
+        if (sw != SW_NO_ERROR && sw != SW_END_OF_FILE) {
+            throw new CardServiceException(command + " failed", sw);
+        }
+    }
+
+    /** Returns the total length (header and value) of the BER-TLV object that starts the file. */
+    private static int getEncodedLength(byte[] prefix) throws CardServiceException {
+        if (prefix.length < 2) {
+            throw new CardServiceException("File prefix too short");
+        }
+
+        int pos = 0;
+        if ((prefix[pos++] & 0x1F) == 0x1F) {
+            while (pos < prefix.length && (prefix[pos] & 0x80) != 0) {
+                pos++;
+            }
+            pos++;
+        }
+
+        int length = prefix[pos++] & 0xFF;
+        if ((length & 0x80) != 0) {
+            int lengthBytes = length & 0x7F;
+            length = 0;
+            for (int i = 0; i < lengthBytes; i++) {
+                length = (length << 8) | (prefix[pos++] & 0xFF);
+            }
+        }
+        return pos + length;
+    }
+
+    private static class SecureFileInfo extends FileInfo {
+        private final short fid;
+        private final int length;
+
+        SecureFileInfo(short fid, int length) {
+            this.fid = fid;
+            this.length = length;
+        }
+
+        @Override
+        public short getFID() {
+            return fid;
+        }
+
+        @Override
+        public int getFileLength() {
+            return length;
+        }
+    }
+}
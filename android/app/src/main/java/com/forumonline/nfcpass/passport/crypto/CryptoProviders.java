@@ -0,0 +1,116 @@
+package com.forumonline.nfcpass.passport.crypto;
+
+import android.util.Log;
+
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+/**
+ * Chooses the security provider used for secure messaging cipher and MAC work.
+ *
+ * <p>The platform BoringSSL-backed provider (Conscrypt, registered as "AndroidOpenSSL" on Android)
+ * is preferred for every algorithm it implements; anything it lacks, such as AES-CMAC, falls back to
+ * SpongyCastle. The ISO 9797-1 retail MAC is not looked up here at all: {@link RetailMac} builds it
+ * from DESede ciphers, which the native provider has. The choice is made once per algorithm and
+ * cached.
+ */
+public final class CryptoProviders {
+    private static final String TAG = "CryptoProviders";
+
+    /** Names under which the platform native provider may be registered, in order of preference. */
+    private static final String[] NATIVE_PROVIDER_NAMES = {"AndroidOpenSSL", "Conscrypt"};
+
+    private static final Provider SPONGY_CASTLE = new BouncyCastleProvider();
+
+    private static final Map<String, Provider> cipherProviders = new ConcurrentHashMap<>();
+    private static final Map<String, Provider> macProviders = new ConcurrentHashMap<>();
+
+    private static volatile boolean preferNative = true;
+
+    private CryptoProviders() {}
+
+    /**
+     * Enables or disables the native provider. Used by the tests that compare the providers, and for
+     * working around a broken platform provider on a specific device.
+     */
+    public static void setPreferNative(boolean preferNative) {
+        CryptoProviders.preferNative = preferNative;
+        cipherProviders.clear();
+        macProviders.clear();
+    }
+
+    /** Returns the platform native provider, or null if none is registered. */
+    public static Provider getNativeProvider() {
+        for (String name : NATIVE_PROVIDER_NAMES) {
+            Provider provider = Security.getProvider(name);
+            if (provider != null) {
+                return provider;
+            }
+        }
+        return null;
+    }
+
+    public static Provider getSpongyCastleProvider() {
+        return SPONGY_CASTLE;
+    }
+
+    /** Returns the providers that are tried for each algorithm, in order of preference. */
+    public static List<Provider> getCandidates() {
+        List<Provider> candidates = new ArrayList<>();
+        Provider nativeProvider = getNativeProvider();
+        if (preferNative && nativeProvider != null) {
+            candidates.add(nativeProvider);
+        }
+        candidates.add(SPONGY_CASTLE);
+        return candidates;
+    }
+
+    public static Cipher getCipher(String transformation) throws GeneralSecurityException {
+        Provider cached = cipherProviders.get(transformation);
+        if (cached != null) {
+            return Cipher.getInstance(transformation, cached);
+        }
+
+        for (Provider provider : getCandidates()) {
+            try {
+                Cipher cipher = Cipher.getInstance(transformation, provider);
+                cipherProviders.put(transformation, provider);
+                Log.d(TAG, "Using " + provider.getName() + " for " + transformation);
+                return cipher;
+            } catch (GeneralSecurityException e) {
+                Log.d(TAG, provider.getName() + " does not provide " + transformation);
+            }
+        }
+        throw new NoSuchAlgorithmException("No provider for cipher " + transformation);
+    }
+
+    public static Mac getMac(String algorithm) throws GeneralSecurityException {
+        Provider cached = macProviders.get(algorithm);
+        if (cached != null) {
+            return Mac.getInstance(algorithm, cached);
+        }
+
+        for (Provider provider : getCandidates()) {
+            try {
+                Mac mac = Mac.getInstance(algorithm, provider);
+                macProviders.put(algorithm, provider);
+                Log.d(TAG, "Using " + provider.getName() + " for " + algorithm);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                Log.d(TAG, provider.getName() + " does not provide " + algorithm);
+            }
+        }
+        throw new NoSuchAlgorithmException("No provider for MAC " + algorithm);
+    }
+}
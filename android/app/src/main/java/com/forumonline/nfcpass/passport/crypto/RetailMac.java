@@ -0,0 +1,78 @@
+package com.forumonline.nfcpass.passport.crypto;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ISO/IEC 9797-1 MAC algorithm 3 with DES ("retail MAC"), as used by 3DES secure messaging.
+ *
+ * <p>Native providers do not ship this MAC, so it is composed from two "DESede/CBC/NoPadding"
+ * ciphers: one keyed with K1|K1|K1 (single DES) that chains all but the last block, and one keyed
+ * with K1|K2|K3 that performs the final encrypt-decrypt-encrypt step. Both are initialised once;
+ * {@code doFinal} resets them to the zero IV, so computing a MAC does not allocate.
+ */
+public final class RetailMac {
+    public static final int BLOCK_SIZE = 8;
+    public static final int MAC_LENGTH = 8;
+
+    private static final String TRANSFORMATION = "DESede/CBC/NoPadding";
+
+    private final Cipher chainCipher;
+    private final Cipher finalCipher;
+    private final byte[] lastBlock = new byte[BLOCK_SIZE];
+    private byte[] scratch = new byte[256];
+
+    public RetailMac(SecretKey key) throws GeneralSecurityException {
+        byte[] encoded = key.getEncoded();
+        if (encoded == null || (encoded.length != 16 && encoded.length != 24)) {
+            throw new GeneralSecurityException("Retail MAC needs a 16 or 24 byte key");
+        }
+
+        byte[] singleKey = new byte[24];
+        byte[] tripleKey = new byte[24];
+        for (int i = 0; i < 8; i++) {
+            singleKey[i] = encoded[i];
+            singleKey[i + 8] = encoded[i];
+            singleKey[i + 16] = encoded[i];
+            tripleKey[i] = encoded[i];
+            tripleKey[i + 8] = encoded[i + 8];
+            tripleKey[i + 16] = encoded.length == 24 ? encoded[i + 16] : encoded[i];
+        }
+
+        IvParameterSpec zeroIv = new IvParameterSpec(new byte[BLOCK_SIZE]);
+        chainCipher = CryptoProviders.getCipher(TRANSFORMATION);
+        chainCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(singleKey, "DESede"), zeroIv);
+        finalCipher = CryptoProviders.getCipher(TRANSFORMATION);
+        finalCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(tripleKey, "DESede"), zeroIv);
+    }
+
+    /**
+     * Computes the MAC over an already padded message and writes the 8 byte result to {@code out}.
+     *
+     * @param len message length, a non-zero multiple of {@link #BLOCK_SIZE}
+     */
+    public void doFinal(byte[] in, int off, int len, byte[] out, int outOff) throws GeneralSecurityException {
+        if (len == 0 || len % BLOCK_SIZE != 0) {
+            throw new GeneralSecurityException("Message is not block aligned: " + len);
+        }
+
+        int chainedLength = len - BLOCK_SIZE;
+        if (chainedLength > 0) {
+            if (scratch.length < chainedLength) {
+                scratch = new byte[chainedLength];
+            }
+            chainCipher.doFinal(in, off, chainedLength, scratch, 0);
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                lastBlock[i] = (byte) (in[off + chainedLength + i] ^ scratch[chainedLength - BLOCK_SIZE + i]);
+            }
+        } else {
+            System.arraycopy(in, off, lastBlock, 0, BLOCK_SIZE);
+        }
+
+        finalCipher.doFinal(lastBlock, 0, BLOCK_SIZE, out, outOff);
+    }
+}
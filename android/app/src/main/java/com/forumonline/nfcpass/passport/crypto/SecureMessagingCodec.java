@@ -0,0 +1,282 @@
+package com.forumonline.nfcpass.passport.crypto;
+
+import org.jmrtd.protocol.SecureMessagingWrapper;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Encodes command APDUs into secure messaging APDUs and decodes protected responses, producing the
+ * same bytes as JMRTD's {@link SecureMessagingWrapper} for short APDUs.
+ *
+ * <p>Unlike the JMRTD wrapper, which re-initialises its cipher and MAC and builds the APDU through
+ * streams and temporary arrays, a codec keeps its {@link SecureMessagingCrypto} and scratch buffers
+ * for the whole session: {@link #wrap} and {@link #unwrap} write into caller supplied buffers and do
+ * not allocate themselves. Instances are not thread safe.
+ */
+public final class SecureMessagingCodec {
+    /** Largest command data field a short protected APDU can carry. */
+    public static final int MAX_COMMAND_DATA_LENGTH = 223;
+
+    /** Largest protected command APDU produced by {@link #wrap}. */
+    public static final int MAX_COMMAND_LENGTH = 5 + 255 + 1;
+
+    private static final int STATUS_WORD_LENGTH = 2;
+
+    private final SecureMessagingCrypto crypto;
+    private final int blockSize;
+    private long ssc;
+    private int statusWord;
+
+    private final byte[] macInput = new byte[16 + 512];
+    private final byte[] mac = new byte[SecureMessagingCrypto.MAC_LENGTH];
+    private final byte[] dataBlock = new byte[MAX_COMMAND_DATA_LENGTH + 16];
+
+    public SecureMessagingCodec(SecretKey ksEnc, SecretKey ksMac, long ssc) throws GeneralSecurityException {
+        this.crypto = SecureMessagingCrypto.getInstance(ksEnc, ksMac);
+        this.blockSize = crypto.getBlockSize();
+        this.ssc = ssc;
+    }
+
+    /** Takes over the session keys and counter of an established JMRTD wrapper. */
+    public static SecureMessagingCodec fromWrapper(SecureMessagingWrapper wrapper) throws GeneralSecurityException {
+        return new SecureMessagingCodec(wrapper.getEncryptionKey(), wrapper.getMACKey(), wrapper.getSendSequenceCounter());
+    }
+
+    public long getSendSequenceCounter() {
+        return ssc;
+    }
+
+    /** Status word of the last response passed to {@link #unwrap}, taken from DO'99' when present. */
+    public int getStatusWord() {
+        return statusWord;
+    }
+
+    /**
+     * Protects a short command APDU and writes it to {@code out}.
+     *
+     * @param ne expected response length, 0 for none and at most 256
+     * @return the length of the protected APDU
+     */
+    public int wrap(int cla, int ins, int p1, int p2, byte[] data, int dataOff, int dataLen, int ne, byte[] out)
+            throws GeneralSecurityException {
+        return wrapAt(++ssc, cla, ins, p1, p2, data, dataOff, dataLen, ne, out);
+    }
+
+    private int wrapAt(long ssc, int cla, int ins, int p1, int p2, byte[] data, int dataOff, int dataLen, int ne, byte[] out)
+            throws GeneralSecurityException {
+        if (dataLen > MAX_COMMAND_DATA_LENGTH || ne > 256) {
+            throw new GeneralSecurityException("Extended length APDUs are not supported");
+        }
+
+        int pos = crypto.encodeSendSequenceCounter(ssc, macInput, 0);
+        macInput[pos++] = (byte) (cla | 0x0C);
+        macInput[pos++] = (byte) ins;
+        macInput[pos++] = (byte) p1;
+        macInput[pos++] = (byte) p2;
+        pos = pad(macInput, pos, blockSize);
+
+        int objectsStart = pos;
+        if (dataLen > 0) {
+            // Odd INS (READ BINARY with offset DO) carries its data in DO'85' without padding indicator
+            boolean isDO85 = (byte) ins == (byte) 0xB1;
+            System.arraycopy(data, dataOff, dataBlock, 0, dataLen);
+            int paddedLength = pad(dataBlock, dataLen, blockSize);
+            int valueLength = paddedLength + (isDO85 ? 0 : 1);
+
+            macInput[pos++] = isDO85 ? (byte) 0x85 : (byte) 0x87;
+            pos = writeLength(valueLength, macInput, pos);
+            if (!isDO85) {
+                macInput[pos++] = 0x01;
+            }
+            pos += crypto.encrypt(ssc, dataBlock, 0, paddedLength, macInput, pos);
+        }
+        if (ne > 0) {
+            macInput[pos++] = (byte) 0x97;
+            macInput[pos++] = 0x01;
+            macInput[pos++] = (byte) ne;
+        }
+        int objectsEnd = pos;
+
+        crypto.mac(macInput, 0, pad(macInput, objectsEnd, blockSize), mac, 0);
+
+        int objectsLength = objectsEnd - objectsStart;
+        int lc = objectsLength + 2 + SecureMessagingCrypto.MAC_LENGTH;
+        if (lc > 255) {
+            throw new GeneralSecurityException("Protected command data too long: " + lc);
+        }
+
+        int length = 0;
+        out[length++] = (byte) (cla | 0x0C);
+        out[length++] = (byte) ins;
+        out[length++] = (byte) p1;
+        out[length++] = (byte) p2;
+        out[length++] = (byte) lc;
+        System.arraycopy(macInput, objectsStart, out, length, objectsLength);
+        length += objectsLength;
+        out[length++] = (byte) 0x8E;
+        out[length++] = SecureMessagingCrypto.MAC_LENGTH;
+        System.arraycopy(mac, 0, out, length, SecureMessagingCrypto.MAC_LENGTH);
+        length += SecureMessagingCrypto.MAC_LENGTH;
+        // JMRTD always asks for the maximum response length
+        out[length++] = 0x00;
+        return length;
+    }
+
+    /**
+     * Verifies the MAC of a protected response and writes the decrypted data to {@code out}. A
+     * response that consists of a status word only is passed through without data and, as with
+     * JMRTD, which never hands such a response to its wrapper, leaves the counter where it is. A
+     * malformed response fails with a {@link GeneralSecurityException} like one with a wrong MAC.
+     *
+     * @return the length of the response data; the status word is available from {@link #getStatusWord()}
+     */
+    public int unwrap(byte[] response, int responseLen, byte[] out, int outOff) throws GeneralSecurityException {
+        long responseSsc = responseLen > STATUS_WORD_LENGTH ? ++ssc : ssc;
+        return unwrapAt(responseSsc, response, responseLen, out, outOff);
+    }
+
+    private int unwrapAt(long ssc, byte[] response, int responseLen, byte[] out, int outOff) throws GeneralSecurityException {
+        if (responseLen < STATUS_WORD_LENGTH) {
+            throw new GeneralSecurityException("Invalid response APDU");
+        }
+
+        int end = responseLen - STATUS_WORD_LENGTH;
+        if (end == 0) {
+            statusWord = ((response[0] & 0xFF) << 8) | (response[1] & 0xFF);
+            return 0;
+        }
+
+        int dataStart = -1;
+        int dataLength = 0;
+        boolean hasPaddingIndicator = false;
+        int macObjectStart = -1;
+        int macStart = -1;
+        statusWord = 0;
+
+        int pos = 0;
+        while (pos < end) {
+            if (end - pos < 2) {
+                throw new GeneralSecurityException("Truncated data object at " + pos);
+            }
+            int objectStart = pos;
+            int tag = response[pos++] & 0xFF;
+            int length = response[pos++] & 0xFF;
+            if (length == 0x81) {
+                if (pos >= end) {
+                    throw new GeneralSecurityException("Truncated length at " + pos);
+                }
+                length = response[pos++] & 0xFF;
+            } else if (length == 0x82) {
+                if (end - pos < 2) {
+                    throw new GeneralSecurityException("Truncated length at " + pos);
+                }
+                length = ((response[pos] & 0xFF) << 8) | (response[pos + 1] & 0xFF);
+                pos += 2;
+            } else if (length >= 0x80) {
+                throw new GeneralSecurityException("Unsupported length encoding " + Integer.toHexString(length));
+            }
+            if (length > end - pos) {
+                throw new GeneralSecurityException("Data object " + Integer.toHexString(tag) + " of length "
+                    + length + " overruns the response");
+            }
+
+            switch (tag) {
+                case 0x87:
+                case 0x85:
+                    hasPaddingIndicator = tag == 0x87;
+                    if (hasPaddingIndicator && length == 0) {
+                        throw new GeneralSecurityException("DO'87' without padding indicator");
+                    }
+                    dataStart = pos;
+                    dataLength = length;
+                    break;
+                case 0x99:
+                    if (length != 2) {
+                        throw new GeneralSecurityException("DO'99' of length " + length);
+                    }
+                    statusWord = ((response[pos] & 0xFF) << 8) | (response[pos + 1] & 0xFF);
+                    break;
+                case 0x8E:
+                    if (length != SecureMessagingCrypto.MAC_LENGTH) {
+                        throw new GeneralSecurityException("DO'8E' of length " + length);
+                    }
+                    macObjectStart = objectStart;
+                    macStart = pos;
+                    break;
+                default:
+                    break;
+            }
+            if (tag == 0x8E) {
+                break;
+            }
+            pos += length;
+        }
+
+        if (macStart < 0) {
+            throw new GeneralSecurityException("Response carries no MAC");
+        }
+
+        // The MAC covers every data object in front of DO'8E'
+        int protectedLength = macObjectStart;
+        if (protectedLength > macInput.length - 16 - blockSize) {
+            throw new GeneralSecurityException("Protected response too long: " + protectedLength);
+        }
+        int macLength = crypto.encodeSendSequenceCounter(ssc, macInput, 0);
+        System.arraycopy(response, 0, macInput, macLength, protectedLength);
+        macLength = pad(macInput, macLength + protectedLength, blockSize);
+        crypto.mac(macInput, 0, macLength, mac, 0);
+        int difference = 0;
+        for (int i = 0; i < SecureMessagingCrypto.MAC_LENGTH; i++) {
+            difference |= mac[i] ^ response[macStart + i];
+        }
+        if (difference != 0) {
+            throw new GeneralSecurityException("Invalid MAC");
+        }
+
+        if (dataStart < 0) {
+            return 0;
+        }
+        if (hasPaddingIndicator) {
+            dataStart++;
+            dataLength--;
+        }
+        int decrypted = crypto.decrypt(ssc, response, dataStart, dataLength, out, outOff);
+        return unpad(out, outOff, decrypted);
+    }
+
+    private static int writeLength(int length, byte[] out, int pos) {
+        if (length < 0x80) {
+            out[pos++] = (byte) length;
+        } else if (length <= 0xFF) {
+            out[pos++] = (byte) 0x81;
+            out[pos++] = (byte) length;
+        } else {
+            out[pos++] = (byte) 0x82;
+            out[pos++] = (byte) (length >> 8);
+            out[pos++] = (byte) length;
+        }
+        return pos;
+    }
+
+    /** Applies ISO/IEC 9797-1 padding method 2 in place and returns the padded length. */
+    static int pad(byte[] buffer, int length, int blockSize) {
+        buffer[length++] = (byte) 0x80;
+        while (length % blockSize != 0) {
+            buffer[length++] = 0x00;
+        }
+        return length;
+    }
+
+    private static int unpad(byte[] buffer, int offset, int length) throws GeneralSecurityException {
+        int i = offset + length - 1;
+        while (i >= offset && buffer[i] == 0x00) {
+            i--;
+        }
+        if (i < offset || buffer[i] != (byte) 0x80) {
+            throw new GeneralSecurityException("Invalid padding");
+        }
+        return i - offset;
+    }
+}
@@ -0,0 +1,179 @@
+package com.forumonline.nfcpass.passport.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * The cipher and MAC primitives of a secure messaging session (ICAO 9303 part 11, 9.8), bound to
+ * one pair of session keys.
+ *
+ * <p>All {@link Cipher} and {@link Mac} instances are obtained through {@link CryptoProviders} and
+ * initialised once, so per-APDU calls neither look up providers nor re-run the key schedule.
+ * Callers pass already padded input; instances are not thread safe.
+ */
+public abstract class SecureMessagingCrypto {
+    /** Length of the truncated MAC carried in DO'8E'. */
+    public static final int MAC_LENGTH = 8;
+
+    public static SecureMessagingCrypto getInstance(SecretKey ksEnc, SecretKey ksMac) throws GeneralSecurityException {
+        String algorithm = ksEnc.getAlgorithm();
+        if ("DESede".equalsIgnoreCase(algorithm) || "3DES".equalsIgnoreCase(algorithm)) {
+            return new DESede(ksEnc, ksMac);
+        }
+        if ("AES".equalsIgnoreCase(algorithm)) {
+            return new AES(ksEnc, ksMac);
+        }
+        throw new NoSuchAlgorithmException("Unsupported secure messaging algorithm: " + algorithm);
+    }
+
+    /** Block size used for padding, 8 for 3DES and 16 for AES. */
+    public abstract int getBlockSize();
+
+    /** Writes the send sequence counter as used in MAC input and returns the number of bytes written. */
+    public abstract int encodeSendSequenceCounter(long ssc, byte[] out, int outOff);
+
+    /** Computes the {@link #MAC_LENGTH} byte MAC over a padded message. */
+    public abstract void mac(byte[] in, int off, int len, byte[] out, int outOff) throws GeneralSecurityException;
+
+    /** Encrypts padded data for the given counter value and returns the number of bytes written. */
+    public abstract int encrypt(long ssc, byte[] in, int off, int len, byte[] out, int outOff) throws GeneralSecurityException;
+
+    /** Decrypts padded data for the given counter value and returns the number of bytes written. */
+    public abstract int decrypt(long ssc, byte[] in, int off, int len, byte[] out, int outOff) throws GeneralSecurityException;
+
+    static void writeLong(long value, byte[] out, int outOff) {
+        for (int i = 7; i >= 0; i--) {
+            out[outOff + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /** 3DES secure messaging as set up by BAC: CBC with a zero IV and the retail MAC. */
+    static final class DESede extends SecureMessagingCrypto {
+        private static final String TRANSFORMATION = "DESede/CBC/NoPadding";
+
+        private final Cipher encryptCipher;
+        private final Cipher decryptCipher;
+        private final RetailMac retailMac;
+
+        DESede(SecretKey ksEnc, SecretKey ksMac) throws GeneralSecurityException {
+            IvParameterSpec zeroIv = new IvParameterSpec(new byte[8]);
+            encryptCipher = CryptoProviders.getCipher(TRANSFORMATION);
+            encryptCipher.init(Cipher.ENCRYPT_MODE, ksEnc, zeroIv);
+            decryptCipher = CryptoProviders.getCipher(TRANSFORMATION);
+            decryptCipher.init(Cipher.DECRYPT_MODE, ksEnc, zeroIv);
+            retailMac = new RetailMac(ksMac);
+        }
+
+        @Override
+        public int getBlockSize() {
+            return 8;
+        }
+
+        @Override
+        public int encodeSendSequenceCounter(long ssc, byte[] out, int outOff) {
+            writeLong(ssc, out, outOff);
+            return 8;
+        }
+
+        @Override
+        public void mac(byte[] in, int off, int len, byte[] out, int outOff) throws GeneralSecurityException {
+            retailMac.doFinal(in, off, len, out, outOff);
+        }
+
+        @Override
+        public int encrypt(long ssc, byte[] in, int off, int len, byte[] out, int outOff) throws GeneralSecurityException {
+            return encryptCipher.doFinal(in, off, len, out, outOff);
+        }
+
+        @Override
+        public int decrypt(long ssc, byte[] in, int off, int len, byte[] out, int outOff) throws GeneralSecurityException {
+            return decryptCipher.doFinal(in, off, len, out, outOff);
+        }
+    }
+
+    /**
+     * AES secure messaging as set up by PACE: CBC with IV = E(K_enc, SSC) and AES-CMAC truncated to
+     * 8 bytes.
+     *
+     * <p>Rather than re-initialising the CBC ciphers with a fresh IV for every APDU, they keep a zero
+     * IV and the per-APDU IV is folded into the first block by hand, which is equivalent.
+     */
+    static final class AES extends SecureMessagingCrypto {
+        private static final int BLOCK_SIZE = 16;
+
+        private final Cipher ivCipher;
+        private final Cipher encryptCipher;
+        private final Cipher decryptCipher;
+        private final Mac cmac;
+
+        private final byte[] sscBlock = new byte[BLOCK_SIZE];
+        private final byte[] ivBlock = new byte[BLOCK_SIZE];
+        private final byte[] firstBlock = new byte[BLOCK_SIZE];
+        private final byte[] macBlock;
+
+        AES(SecretKey ksEnc, SecretKey ksMac) throws GeneralSecurityException {
+            IvParameterSpec zeroIv = new IvParameterSpec(new byte[BLOCK_SIZE]);
+            ivCipher = CryptoProviders.getCipher("AES/ECB/NoPadding");
+            ivCipher.init(Cipher.ENCRYPT_MODE, ksEnc);
+            encryptCipher = CryptoProviders.getCipher("AES/CBC/NoPadding");
+            encryptCipher.init(Cipher.ENCRYPT_MODE, ksEnc, zeroIv);
+            decryptCipher = CryptoProviders.getCipher("AES/CBC/NoPadding");
+            decryptCipher.init(Cipher.DECRYPT_MODE, ksEnc, zeroIv);
+            cmac = CryptoProviders.getMac("AESCMAC");
+            cmac.init(ksMac);
+            macBlock = new byte[cmac.getMacLength()];
+        }
+
+        @Override
+        public int getBlockSize() {
+            return BLOCK_SIZE;
+        }
+
+        @Override
+        public int encodeSendSequenceCounter(long ssc, byte[] out, int outOff) {
+            for (int i = 0; i < 8; i++) {
+                out[outOff + i] = 0;
+            }
+            writeLong(ssc, out, outOff + 8);
+            return BLOCK_SIZE;
+        }
+
+        @Override
+        public void mac(byte[] in, int off, int len, byte[] out, int outOff) throws GeneralSecurityException {
+            cmac.update(in, off, len);
+            cmac.doFinal(macBlock, 0);
+            System.arraycopy(macBlock, 0, out, outOff, MAC_LENGTH);
+        }
+
+        @Override
+        public int encrypt(long ssc, byte[] in, int off, int len, byte[] out, int outOff) throws GeneralSecurityException {
+            computeIv(ssc);
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                firstBlock[i] = (byte) (in[off + i] ^ ivBlock[i]);
+            }
+            int written = encryptCipher.update(firstBlock, 0, BLOCK_SIZE, out, outOff);
+            return written + encryptCipher.doFinal(in, off + BLOCK_SIZE, len - BLOCK_SIZE, out, outOff + written);
+        }
+
+        @Override
+        public int decrypt(long ssc, byte[] in, int off, int len, byte[] out, int outOff) throws GeneralSecurityException {
+            computeIv(ssc);
+            int written = decryptCipher.doFinal(in, off, len, out, outOff);
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                out[outOff + i] ^= ivBlock[i];
+            }
+            return written;
+        }
+
+        private void computeIv(long ssc) throws GeneralSecurityException {
+            encodeSendSequenceCounter(ssc, sscBlock, 0);
+            ivCipher.doFinal(sscBlock, 0, BLOCK_SIZE, ivBlock, 0);
+        }
+    }
+}
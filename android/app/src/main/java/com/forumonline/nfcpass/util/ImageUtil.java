@@ -74,72 +74,55 @@ public class ImageUtil {
 
         if (mimeType.equalsIgnoreCase("image/jp2") || mimeType.equalsIgnoreCase("image/jpeg2000")) {
 
-            // Save jp2 file
-
-            OutputStream output = new FileOutputStream(new File(context.getCacheDir(), "temp.jp2"));
-            byte[] buffer = new byte[1024];
-            int read;
-            while ((read = inputStream.read(buffer)) != -1) {
-                output.write(buffer, 0, read);
-            }
-            output.close();
-
-            // Decode jp2 file
-
-            String pinfo[][] = Decoder.getAllParameters();
-            ParameterList parameters, defaults;
-
-            defaults = new ParameterList();
-            for (int i = pinfo.length - 1; i >= 0; i--) {
-                if(pinfo[i][3] != null) {
-                    defaults.put(pinfo[i][0], pinfo[i][3]);
+            // Save jp2 file, under a name of its own so that several images can be decoded at once
+
+            File jp2File = File.createTempFile("image", ".jp2", context.getCacheDir());
+            File ppmFile = new File(context.getCacheDir(), jp2File.getName().replace(".jp2", ".ppm"));
+            try {
+                OutputStream output = new FileOutputStream(jp2File);
+                byte[] buffer = new byte[1024];
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
                 }
-            }
+                output.close();
 
-            parameters = new ParameterList(defaults);
+                // Decode jp2 file
 
-            parameters.setProperty("rate", "3");
-            parameters.setProperty("o", context.getCacheDir().toString() + "/temp.ppm");
-            parameters.setProperty("debug", "on");
+                String pinfo[][] = Decoder.getAllParameters();
+                ParameterList parameters, defaults;
 
-            parameters.setProperty("i", context.getCacheDir().toString() + "/temp.jp2");
+                defaults = new ParameterList();
+                for (int i = pinfo.length - 1; i >= 0; i--) {
+                    if(pinfo[i][3] != null) {
+                        defaults.put(pinfo[i][0], pinfo[i][3]);
+                    }
+                }
 
-            Decoder decoder = new Decoder(parameters);
-            decoder.run();
+                parameters = new ParameterList(defaults);
 
-            // Read ppm file
+                parameters.setProperty("rate", "3");
+                parameters.setProperty("o", ppmFile.getPath());
+                parameters.setProperty("debug", "on");
 
-            BufferedInputStream reader = new BufferedInputStream(
-                    new FileInputStream(new File(context.getCacheDir().toString() + "/temp.ppm")));
-            if (reader.read() != 'P' || reader.read() != '6') return null;
+                parameters.setProperty("i", jp2File.getPath());
 
-            reader.read();
-            String widths = "" , heights = "";
-            char temp;
-            while ((temp = (char) reader.read()) != ' ') widths += temp;
-            while ((temp = (char) reader.read()) >= '0' && temp <= '9') heights += temp;
-            if (reader.read() != '2' || reader.read() != '5' || reader.read() != '5') return null;
-            reader.read();
+                Decoder decoder = new Decoder(parameters);
+                decoder.run();
 
-            int width = Integer.valueOf(widths);
-            int height = Integer.valueOf(heights);
-            int[] colors = new int[width * height];
+                // Read ppm file
 
-            byte [] pixel = new byte[3];
-            int len, cnt = 0, total = 0;
-            int[] rgb = new int[3];
-            while ((len = reader.read(pixel)) > 0) {
-                for (int i = 0; i < len; i ++) {
-                    rgb[cnt] = pixel[i]>=0?pixel[i]:(pixel[i] + 255);
-                    if ((++cnt) == 3) {
-                        cnt = 0;
-                        colors[total++] = Color.rgb(rgb[0], rgb[1], rgb[2]);
-                    }
+                BufferedInputStream reader = new BufferedInputStream(new FileInputStream(ppmFile));
+                try {
+                    return readPpm(reader);
+                } finally {
+                    reader.close();
                 }
+            } finally {
+                jp2File.delete();
+                ppmFile.delete();
             }
 
-            return Bitmap.createBitmap(colors, width, height, Bitmap.Config.ARGB_8888);
-
         } else if (mimeType.equalsIgnoreCase("image/x-wsq")) {
 
             WsqDecoder wsqDecoder = new WsqDecoder();
@@ -159,4 +142,35 @@ public class ImageUtil {
 
     }
 
+    private static Bitmap readPpm(BufferedInputStream reader) throws IOException {
+        if (reader.read() != 'P' || reader.read() != '6') return null;
+
+        reader.read();
+        String widths = "" , heights = "";
+        char temp;
+        while ((temp = (char) reader.read()) != ' ') widths += temp;
+        while ((temp = (char) reader.read()) >= '0' && temp <= '9') heights += temp;
+        if (reader.read() != '2' || reader.read() != '5' || reader.read() != '5') return null;
+        reader.read();
+
+        int width = Integer.valueOf(widths);
+        int height = Integer.valueOf(heights);
+        int[] colors = new int[width * height];
+
+        byte [] pixel = new byte[3];
+        int len, cnt = 0, total = 0;
+        int[] rgb = new int[3];
+        while ((len = reader.read(pixel)) > 0) {
+            for (int i = 0; i < len; i ++) {
+                rgb[cnt] = pixel[i] & 0xFF;
+                if ((++cnt) == 3) {
+                    cnt = 0;
+                    colors[total++] = Color.rgb(rgb[0], rgb[1], rgb[2]);
+                }
+            }
+        }
+
+        return Bitmap.createBitmap(colors, width, height, Bitmap.Config.ARGB_8888);
+    }
+
 }
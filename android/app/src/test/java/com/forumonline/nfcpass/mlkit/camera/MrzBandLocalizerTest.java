@@ -0,0 +1,186 @@
+package com.forumonline.nfcpass.mlkit.camera;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link MrzBandLocalizer} on synthetic luma planes: a light page with lines of dark glyph
+ * strokes standing in for OCR-B text.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MrzBandLocalizerTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int PAPER = 200;
+    private static final int INK = 40;
+
+    private static final int GLYPH_WIDTH = 10;
+    private static final int GLYPH_PITCH = 13;
+    private static final int LINE_HEIGHT = 16;
+    private static final int LINE_PITCH = 26;
+
+    private final MrzBandLocalizer localizer = new MrzBandLocalizer();
+
+    @Test
+    public void findsTwoLineMrz() {
+        byte[] luma = blankPage(WIDTH, HEIGHT);
+        Rect mrz = drawLines(luma, WIDTH, 30, 380, 2, 44);
+        drawLines(luma, WIDTH, 200, 60, 1, 12);
+
+        Rect band = new Rect();
+        assertTrue(localizer.locate(ByteBuffer.wrap(luma), WIDTH, WIDTH, HEIGHT, 0, band));
+        assertContains(band, mrz);
+        assertTrue("band should not reach the heading", band.top > 60 + LINE_HEIGHT);
+        assertEvenCoordinates(band);
+    }
+
+    @Test
+    public void findsThreeLineMrz() {
+        byte[] luma = blankPage(WIDTH, HEIGHT);
+        Rect mrz = drawLines(luma, WIDTH, 100, 330, 3, 30);
+
+        Rect band = new Rect();
+        assertTrue(localizer.locate(ByteBuffer.wrap(luma), WIDTH, WIDTH, HEIGHT, 0, band));
+        assertContains(band, mrz);
+        assertEvenCoordinates(band);
+    }
+
+    /** In portrait the text runs down the sensor image, which a rotation of 90 says. */
+    @Test
+    public void findsMrzInRotatedFrame() {
+        byte[] landscape = blankPage(WIDTH, HEIGHT);
+        Rect mrz = drawLines(landscape, WIDTH, 30, 380, 2, 44);
+
+        // Sensor image of the same page held in portrait: HEIGHT wide, WIDTH high
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                luma[x * HEIGHT + (HEIGHT - 1 - y)] = landscape[y * WIDTH + x];
+            }
+        }
+        Rect rotated = new Rect(HEIGHT - mrz.bottom, mrz.left, HEIGHT - mrz.top, mrz.right);
+
+        Rect band = new Rect();
+        assertTrue(localizer.locate(ByteBuffer.wrap(luma), HEIGHT, HEIGHT, WIDTH, 90, band));
+        assertContains(band, rotated);
+        assertFalse(localizer.locate(ByteBuffer.wrap(luma), HEIGHT, HEIGHT, WIDTH, 0, new Rect()));
+    }
+
+    @Test
+    public void honoursRowStride() {
+        int rowStride = WIDTH + 64;
+        byte[] page = blankPage(WIDTH, HEIGHT);
+        Rect mrz = drawLines(page, WIDTH, 30, 380, 2, 44);
+        byte[] luma = new byte[rowStride * HEIGHT];
+        new Random(3).nextBytes(luma);
+        for (int y = 0; y < HEIGHT; y++) {
+            System.arraycopy(page, y * WIDTH, luma, y * rowStride, WIDTH);
+        }
+
+        Rect band = new Rect();
+        assertTrue(localizer.locate(ByteBuffer.wrap(luma), rowStride, WIDTH, HEIGHT, 0, band));
+        assertContains(band, mrz);
+    }
+
+    @Test
+    public void rejectsBlankFrame() {
+        assertFalse(localizer.locate(ByteBuffer.wrap(blankPage(WIDTH, HEIGHT)), WIDTH, WIDTH, HEIGHT, 0, new Rect()));
+    }
+
+    /** Short lines such as a heading and a name are not an MRZ. */
+    @Test
+    public void rejectsShortLines() {
+        byte[] luma = blankPage(WIDTH, HEIGHT);
+        drawLines(luma, WIDTH, 200, 60, 1, 12);
+        drawLines(luma, WIDTH, 200, 200, 2, 10);
+        assertFalse(localizer.locate(ByteBuffer.wrap(luma), WIDTH, WIDTH, HEIGHT, 0, new Rect()));
+    }
+
+    @Test
+    public void rejectsLinesOfDifferentHeight() {
+        byte[] luma = blankPage(WIDTH, HEIGHT);
+        drawLines(luma, WIDTH, 30, 300, 1, 44);
+        drawGlyphs(luma, WIDTH, 30, 300 + LINE_PITCH, 44, 3 * LINE_HEIGHT, new Random(9));
+        assertFalse(localizer.locate(ByteBuffer.wrap(luma), WIDTH, WIDTH, HEIGHT, 0, new Rect()));
+    }
+
+    @Test
+    public void reusesBuffersAcrossFrameSizes() {
+        Rect band = new Rect();
+        byte[] small = blankPage(320, 240);
+        Rect smallMrz = drawLines(small, 320, 10, 180, 2, 22);
+        byte[] large = blankPage(WIDTH, HEIGHT);
+        Rect largeMrz = drawLines(large, WIDTH, 30, 380, 2, 44);
+
+        assertTrue(localizer.locate(ByteBuffer.wrap(large), WIDTH, WIDTH, HEIGHT, 0, band));
+        assertContains(band, largeMrz);
+        assertTrue(localizer.locate(ByteBuffer.wrap(small), 320, 320, 240, 0, band));
+        assertContains(band, smallMrz);
+    }
+
+    @Test
+    public void rejectsTinyFrame() {
+        assertFalse(localizer.locate(ByteBuffer.wrap(blankPage(24, 24)), 24, 24, 24, 0, new Rect()));
+    }
+
+    private static byte[] blankPage(int width, int height) {
+        byte[] luma = new byte[width * height];
+        Random random = new Random(width);
+        for (int i = 0; i < luma.length; i++) {
+            // A little sensor noise, well below the edge threshold
+            luma[i] = (byte) (PAPER + random.nextInt(7) - 3);
+        }
+        return luma;
+    }
+
+    /** Draws {@code lines} lines of {@code characters} glyphs and returns the area they cover. */
+    private static Rect drawLines(byte[] luma, int width, int left, int top, int lines, int characters) {
+        Random random = new Random(left * 31 + top);
+        for (int line = 0; line < lines; line++) {
+            drawGlyphs(luma, width, left, top + line * LINE_PITCH, characters, LINE_HEIGHT, random);
+        }
+        return new Rect(left, top, left + (characters - 1) * GLYPH_PITCH + GLYPH_WIDTH,
+            top + (lines - 1) * LINE_PITCH + LINE_HEIGHT);
+    }
+
+    /** A glyph is a frame of strokes with a random bar inside, enough to look like text to edges. */
+    private static void drawGlyphs(byte[] luma, int width, int left, int top, int characters, int height, Random random) {
+        for (int c = 0; c < characters; c++) {
+            int x0 = left + c * GLYPH_PITCH;
+            int bar = 3 + random.nextInt(GLYPH_WIDTH - 5);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < GLYPH_WIDTH; x++) {
+                    boolean stroke = x < 2 || x >= GLYPH_WIDTH - 2 || y < 2 || y >= height - 2
+                        || (x >= bar && x < bar + 2 && (y & 4) == 0);
+                    if (stroke) {
+                        luma[(top + y) * width + x0 + x] = (byte) INK;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void assertContains(Rect band, Rect text) {
+        assertTrue(band + " should contain " + text, band.contains(text));
+        // Not much more than a line height of margin around the text
+        assertTrue(band + " is too large for " + text, band.width() <= text.width() + 4 * LINE_HEIGHT);
+        assertTrue(band + " is too large for " + text, band.height() <= text.height() + 4 * LINE_HEIGHT);
+    }
+
+    private static void assertEvenCoordinates(Rect band) {
+        assertEquals(0, band.left & 1);
+        assertEquals(0, band.top & 1);
+        assertEquals(0, band.right & 1);
+        assertEquals(0, band.bottom & 1);
+    }
+}
@@ -0,0 +1,200 @@
+package com.forumonline.nfcpass.mlkit.camera;
+
+import android.graphics.Rect;
+
+import com.forumonline.nfcpass.mlkit.other.Frame;
+import com.forumonline.nfcpass.mlkit.other.FrameMetadata;
+import com.forumonline.nfcpass.mlkit.text.MrzRendering;
+import com.forumonline.nfcpass.mlkit.text.MrzTemplateRecognizer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Records frames of a page with a rendered MRZ with {@link Nv21FrameRecorder} and replays them
+ * through the template engine, {@link MrzBandLocalizer} and {@link MrzTemplateRecognizer}, which run
+ * without ML Kit.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RecordedFrameSourceTest {
+    private static final int WIDTH = 800;
+    private static final int HEIGHT = 600;
+    private static final int PAPER = 200;
+
+    private static final String[] TD3 = {
+            "P<UTOERIKSSON<<ANNA<MARIA<<<<<<<<<<<<<<<<<<<",
+            "L898902C36UTO7408122F1204159ZE184226B<<<<<10"};
+    private static final String MRZ = String.join("\n", TD3);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsUpToMaxFramesAndPassesAllOn() throws IOException {
+        File dump = folder.newFile("scan.nv21");
+        List<Long> passedOn = new ArrayList<>();
+        Nv21FrameRecorder recorder = new Nv21FrameRecorder(dump, 2, new FrameSource.FrameListener() {
+            @Override
+            public void onFrame(Frame frame) {
+                passedOn.add(frame.getSequenceNumber());
+                frame.close();
+            }
+        });
+        byte[][] pages = {page(1), page(2), page(3)};
+        for (int i = 0; i < pages.length; i++) {
+            recorder.onFrame(frame(i, pages[i]));
+        }
+        recorder.close();
+
+        assertEquals(Arrays.asList(0L, 1L, 2L), passedOn);
+        assertEquals(2, new Nv21FileFrameSource(dump, WIDTH, HEIGHT, 0).getFrameCount());
+        byte[] recorded = Files.readAllBytes(dump.toPath());
+        assertArrayEquals(pages[1], Arrays.copyOfRange(recorded, pages[0].length, recorded.length));
+    }
+
+    @Test
+    public void replaysRecordingThroughTemplateEngine() throws Exception {
+        File dump = record(blankPage(), page(1), page(2), blankPage());
+
+        Replay replay = replay(new Nv21FileFrameSource(dump, WIDTH, HEIGHT, 0));
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L), replay.sequenceNumbers);
+        assertEquals(Arrays.asList(null, MRZ, MRZ, null), replay.results);
+        assertEquals(Collections.nCopies(4, WIDTH + "x" + HEIGHT), replay.sizes);
+        assertEquals(1, replay.ends);
+        assertEquals(4, replay.source.getDeliveredFrames());
+        assertEquals(0, replay.source.getDroppedFrames());
+    }
+
+    @Test
+    public void replaysIntoDirectBuffers() throws Exception {
+        File dump = record(page(3), page(4));
+
+        Nv21FileFrameSource source = new Nv21FileFrameSource(dump, WIDTH, HEIGHT, 0);
+        source.setDirectBuffers(true);
+        assertEquals(Arrays.asList(MRZ, MRZ), replay(source).results);
+    }
+
+    /** PGM images are read without Android, cropped to even dimensions and converted to NV21. */
+    @Test
+    public void replaysImageDirectory() throws Exception {
+        File directory = folder.newFolder("images");
+        writePgm(new File(directory, "1.pgm"), blankPage(), WIDTH + 1, HEIGHT + 1);
+        writePgm(new File(directory, "2.pgm"), page(5), WIDTH + 1, HEIGHT + 1);
+        new File(directory, "notes.txt").createNewFile();
+
+        Replay replay = replay(new ImageDirectoryFrameSource(directory));
+        assertEquals(Arrays.asList(null, MRZ), replay.results);
+        assertEquals(Collections.nCopies(2, WIDTH + "x" + HEIGHT), replay.sizes);
+    }
+
+    private static final class Replay {
+        RecordedFrameSource source;
+        final List<Long> sequenceNumbers = new ArrayList<>();
+        final List<String> results = new ArrayList<>();
+        final List<String> sizes = new ArrayList<>();
+        int ends;
+    }
+
+    /** Runs every frame of {@code source} through the localizer and the recognizer. */
+    private static Replay replay(RecordedFrameSource source) throws Exception {
+        MrzBandLocalizer localizer = new MrzBandLocalizer();
+        MrzTemplateRecognizer recognizer = new MrzTemplateRecognizer();
+        Replay replay = new Replay();
+        replay.source = source;
+        source.start(new FrameSource.FrameListener() {
+            @Override
+            public void onFrame(Frame frame) {
+                try {
+                    Rect band = new Rect();
+                    FrameMetadata metadata = frame.getMetadata();
+                    replay.sequenceNumbers.add(frame.getSequenceNumber());
+                    replay.sizes.add(metadata.getWidth() + "x" + metadata.getHeight());
+                    replay.results.add(localizer.locate(frame, band) ? recognizer.recognize(frame, band) : null);
+                } finally {
+                    frame.close();
+                }
+            }
+
+            @Override
+            public void onEnd() {
+                replay.ends++;
+            }
+        });
+        source.awaitEnd();
+        return replay;
+    }
+
+    private File record(byte[]... pages) throws IOException {
+        File dump = folder.newFile();
+        Nv21FrameRecorder recorder = new Nv21FrameRecorder(dump, pages.length, Frame::close);
+        for (int i = 0; i < pages.length; i++) {
+            recorder.onFrame(frame(i, pages[i]));
+        }
+        recorder.onEnd();
+        assertEquals((long) pages.length * pages[0].length, dump.length());
+        return dump;
+    }
+
+    private static Frame frame(long sequenceNumber, byte[] nv21) {
+        FrameMetadata metadata = new FrameMetadata.Builder()
+                .setWidth(WIDTH)
+                .setHeight(HEIGHT)
+                .setRotation(0)
+                .setCameraFacing(CameraSource.CAMERA_FACING_BACK)
+                .build();
+        return Frame.fromNv21(sequenceNumber, 0, ByteBuffer.wrap(nv21), metadata, null);
+    }
+
+    /** A gray NV21 page without any print. */
+    private static byte[] blankPage() {
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        Arrays.fill(nv21, 0, WIDTH * HEIGHT, (byte) PAPER);
+        Arrays.fill(nv21, WIDTH * HEIGHT, nv21.length, (byte) 128);
+        return nv21;
+    }
+
+    /** A page with the MRZ near its bottom, with sensor noise from {@code seed}. */
+    private static byte[] page(long seed) {
+        byte[] nv21 = blankPage();
+        MrzRendering mrz = new MrzRendering(TD3, 20, 4, seed);
+        int left = 24;
+        int top = 460;
+        for (int y = 0; y < mrz.height; y++) {
+            System.arraycopy(mrz.luma, y * mrz.width, nv21, (top + y) * WIDTH + left, mrz.width);
+        }
+        return nv21;
+    }
+
+    /** Writes the luma of {@code nv21} as a PGM of the given size, padded with paper. */
+    private static void writePgm(File file, byte[] nv21, int width, int height) throws IOException {
+        try (OutputStream output = new FileOutputStream(file)) {
+            output.write(("P5\n# Recorded page\n" + width + " " + height + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+            byte[] row = new byte[width];
+            for (int y = 0; y < height; y++) {
+                Arrays.fill(row, (byte) PAPER);
+                if (y < HEIGHT) {
+                    System.arraycopy(nv21, y * WIDTH, row, 0, WIDTH);
+                }
+                output.write(row);
+            }
+        }
+    }
+}
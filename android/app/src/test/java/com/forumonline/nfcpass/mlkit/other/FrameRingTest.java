@@ -0,0 +1,276 @@
+package com.forumonline.nfcpass.mlkit.other;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameRingTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void movesSlotThroughItsStates() {
+        FrameRing ring = new FrameRing(2, false);
+        int slot = ring.tryAcquire();
+        assertEquals(FrameRing.FILLING, ring.getState(slot));
+
+        ByteBuffer buffer = ring.prepare(slot, 16);
+        assertEquals(0, buffer.position());
+        assertEquals(16, buffer.limit());
+        assertTrue(buffer.hasArray());
+        buffer.put(0, (byte) 7);
+
+        ring.publish(slot);
+        assertEquals(FrameRing.PENDING, ring.getState(slot));
+        assertEquals(slot, ring.take());
+        assertEquals(FrameRing.PROCESSING, ring.getState(slot));
+        assertEquals(7, ring.getBuffer(slot).get(0));
+        assertEquals(-1, ring.take());
+
+        ring.release(slot);
+        assertTrue(ring.isIdle());
+        assertEquals(0, ring.getDroppedFrames());
+    }
+
+    @Test
+    public void usesSlotsRoundRobin() {
+        FrameRing ring = new FrameRing(3, true);
+        int first = ring.tryAcquire();
+        ring.cancel(first);
+        int second = ring.tryAcquire();
+        assertEquals((first + 1) % 3, second);
+        assertTrue(ring.prepare(second, 8).isDirect());
+    }
+
+    @Test
+    public void newerFrameReplacesPendingOne() {
+        FrameRing ring = new FrameRing(3, false);
+        int older = ring.tryAcquire();
+        ring.publish(older);
+        int newer = ring.tryAcquire();
+        ring.publish(newer);
+
+        assertEquals(FrameRing.FREE, ring.getState(older));
+        assertEquals(1, ring.getDroppedFrames());
+        assertEquals(newer, ring.take());
+    }
+
+    @Test
+    public void dropsFrameWhenEverySlotIsHeld() {
+        FrameRing ring = new FrameRing(2, false);
+        int processing = ring.tryAcquire();
+        ring.publish(processing);
+        ring.take();
+        ring.tryAcquire();
+
+        assertEquals(-1, ring.tryAcquire());
+        assertEquals(-1, ring.acquire(TimeUnit.MILLISECONDS.toNanos(20)));
+    }
+
+    @Test
+    public void growsBufferOnlyWhenNeeded() {
+        FrameRing ring = new FrameRing(1, false);
+        int slot = ring.tryAcquire();
+        ByteBuffer large = ring.prepare(slot, 1024);
+        ByteBuffer small = ring.prepare(slot, 100);
+        assertTrue(large == small);
+        assertEquals(100, small.limit());
+        assertEquals(2048, ring.prepare(slot, 2048).capacity());
+    }
+
+    @Test
+    public void rejectsWrongTransitions() {
+        FrameRing ring = new FrameRing(1, false);
+        int slot = ring.tryAcquire();
+        expectIllegalState(() -> ring.release(slot));
+        ring.publish(slot);
+        expectIllegalState(() -> ring.publish(slot));
+        expectIllegalState(() -> ring.cancel(slot));
+        expectIllegalState(() -> ring.prepare(slot, 1));
+        ring.take();
+        expectIllegalState(() -> ring.publish(slot));
+        ring.release(slot);
+        expectIllegalState(() -> ring.release(slot));
+    }
+
+    @Test
+    public void releaseWakesWaitingProducer() throws Exception {
+        FrameRing ring = new FrameRing(1, false);
+        int slot = ring.tryAcquire();
+        ring.publish(slot);
+        ring.take();
+
+        AtomicLong acquired = new AtomicLong(Long.MIN_VALUE);
+        CountDownLatch waiting = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            waiting.countDown();
+            acquired.set(ring.acquire(10 * SECOND));
+        });
+        producer.start();
+        waiting.await();
+        Thread.sleep(20);
+        ring.release(slot);
+        producer.join(5000);
+
+        assertFalse(producer.isAlive());
+        assertEquals(slot, acquired.get());
+    }
+
+    @Test
+    public void awaitIdleReturnsOnceLastSlotIsReleased() throws Exception {
+        FrameRing ring = new FrameRing(2, false);
+        int slot = ring.tryAcquire();
+        ring.publish(slot);
+        assertFalse(ring.awaitIdle(TimeUnit.MILLISECONDS.toNanos(10)));
+
+        Thread consumer = new Thread(() -> {
+            int taken = ring.take();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            ring.release(taken);
+        });
+        consumer.start();
+        assertTrue(ring.awaitIdle(10 * SECOND));
+        consumer.join();
+    }
+
+    /**
+     * One producer fills frames with their sequence number while several consumers take and check
+     * them. A frame changed while a consumer holds it, a frame seen twice or out of order, or a lost
+     * count fails the test.
+     */
+    @Test
+    public void survivesConcurrentProducerAndConsumers() throws Exception {
+        for (boolean direct : new boolean[] {false, true}) {
+            stress(new FrameRing(3, direct), 3, 20000);
+        }
+    }
+
+    @Test
+    public void survivesMoreConsumersThanSlots() throws Exception {
+        stress(new FrameRing(2, false), 4, 20000);
+    }
+
+    private static void stress(FrameRing ring, int consumerCount, int frames) throws Exception {
+        int frameLength = 256;
+        AtomicBoolean producing = new AtomicBoolean(true);
+        AtomicLong taken = new AtomicLong();
+        AtomicLong producedFrames = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        List<Thread> consumers = new ArrayList<>();
+        for (int i = 0; i < consumerCount; i++) {
+            Thread consumer = new Thread(() -> {
+                long lastSequence = -1;
+                try {
+                    while (true) {
+                        int slot = ring.take();
+                        if (slot < 0) {
+                            if (!producing.get()) {
+                                break;
+                            }
+                            Thread.yield();
+                            continue;
+                        }
+                        ByteBuffer buffer = ring.getBuffer(slot);
+                        long sequence = buffer.getLong(0);
+                        if (sequence <= lastSequence) {
+                            throw new AssertionError("Frame " + sequence + " after " + lastSequence);
+                        }
+                        lastSequence = sequence;
+                        for (int j = 0; j < 3; j++) {
+                            checkFrame(buffer, sequence, frameLength);
+                            Thread.yield();
+                        }
+                        taken.incrementAndGet();
+                        ring.release(slot);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "Consumer-" + i);
+            consumers.add(consumer);
+            consumer.start();
+        }
+
+        Thread producer = new Thread(() -> {
+            try {
+                for (long sequence = 0; sequence < frames; sequence++) {
+                    // Alternate between dropping and waiting, as the camera and a recording do
+                    int slot = (sequence & 1) == 0 ? ring.tryAcquire() : ring.acquire(SECOND);
+                    if (slot < 0) {
+                        continue;
+                    }
+                    ByteBuffer buffer = ring.prepare(slot, frameLength);
+                    buffer.putLong(0, sequence);
+                    for (int i = 8; i < frameLength; i++) {
+                        buffer.put(i, (byte) (sequence + i));
+                    }
+                    if (sequence % 97 == 0) {
+                        ring.cancel(slot);
+                        continue;
+                    }
+                    ring.publish(slot);
+                    producedFrames.incrementAndGet();
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                producing.set(false);
+            }
+        }, "Producer");
+        producer.start();
+        producer.join(60000);
+
+        // Drain what is still pending so that every published frame is either taken or dropped
+        for (Thread consumer : consumers) {
+            consumer.join(10000);
+            assertFalse(consumer.isAlive());
+        }
+        int slot = ring.take();
+        if (slot >= 0) {
+            taken.incrementAndGet();
+            ring.release(slot);
+        }
+
+        assertNull(failure.get());
+        assertTrue(ring.awaitIdle(SECOND));
+        assertEquals(producedFrames.get(), taken.get() + ring.getDroppedFrames());
+        assertTrue("no frame was consumed", taken.get() > 0);
+    }
+
+    private static void checkFrame(ByteBuffer buffer, long sequence, int frameLength) {
+        if (buffer.getLong(0) != sequence) {
+            throw new AssertionError("Frame " + sequence + " was overwritten");
+        }
+        for (int i = 8; i < frameLength; i++) {
+            if (buffer.get(i) != (byte) (sequence + i)) {
+                throw new AssertionError("Frame " + sequence + " is torn at byte " + i);
+            }
+        }
+    }
+
+    private static void expectIllegalState(Runnable action) {
+        try {
+            action.run();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+            // The slot was in a different state
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.forumonline.nfcpass.mlkit.other;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScanLogTest {
+
+    @Test
+    public void masksExtractedFields() {
+        assertEquals("Passport extracted - Doc: '*********', DOB: '******', Exp: '******'",
+            ScanLog.redact("Passport extracted - Doc: 'L898902C3', DOB: '740812', Exp: '120415'"));
+    }
+
+    @Test
+    public void masksMrzLinesButKeepsFillers() {
+        assertEquals("Line 1 [44 chars]: '*************************************<<<<<**'",
+            ScanLog.redact("Line 1 [44 chars]: 'L898902C36UTO7408122F1204159ZE184226B<<<<<10'"));
+    }
+
+    @Test
+    public void masksDatesInsideMessages() {
+        assertEquals("Date validation failed - invalid month: 13 in date: ******",
+            ScanLog.redact("Date validation failed - invalid month: 13 in date: 741312"));
+    }
+
+    @Test
+    public void formatsAndMasksCollectedMessages() {
+        ScanLog.setDiagnosticsEnabled(true);
+        try {
+            ScanLog.d("Scan", "Checking passport line %d [%d chars]: '%s'", 1, 44,
+                "L898902C36UTO7408122F1204159ZE184226B<<<<<10");
+            ScanLog.d("Scan", "Text after normalization: %.10s...", "P<UTOERIKSSON<<ANNA");
+            List<String> diagnostics = ScanLog.getDiagnostics();
+            assertEquals(2, diagnostics.size());
+            assertTrue(diagnostics.get(0), diagnostics.get(0).endsWith(
+                "Scan: Checking passport line 1 [44 chars]: '*************************************<<<<<**'"));
+            assertTrue(diagnostics.get(1), diagnostics.get(1).endsWith("Scan: Text after normalization: P<UTOERIKS..."));
+        } finally {
+            ScanLog.setDiagnosticsEnabled(false);
+        }
+    }
+
+    @Test
+    public void keepsMessagesWithoutMrzData() {
+        String message = "No rows of MRZ length in 1234 chars of text, TD3 pattern found: false";
+        assertSame(message, ScanLog.redact(message));
+    }
+}
@@ -0,0 +1,154 @@
+package com.forumonline.nfcpass.mlkit.text;
+
+import android.graphics.Rect;
+
+import com.google.mlkit.vision.text.Text;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Feeds {@link MrzLineAssembler} ML Kit results laid out the way ML Kit tends to return an MRZ: lines
+ * split into several elements, grouped into blocks that do not follow the rows on the document.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MrzLineAssemblerTest {
+
+    private static final String LINE_1 = "P<UTOERIKSSON<<ANNA<MARIA<<<<<<<<<<<<<<<<<<<";
+    private static final String LINE_2 = "L898902C36UTO7408122F1204159ZE184226B<<<<<10";
+
+    /** Width of one character on the simulated frame, and height of a line. */
+    private static final int CHAR_WIDTH = 10;
+    private static final int LINE_HEIGHT = 16;
+
+    private final MrzLineAssembler assembler = new MrzLineAssembler();
+
+    @Test
+    public void rebuildsRowsFromBlocksOutOfOrder() {
+        // Both lines split in three, with the start of line 2 and the end of line 1 in one ML Kit line
+        Text.Element[] line1 = split(LINE_1, 100, 0, 14, 30);
+        Text.Element[] line2 = split(LINE_2, 130, 0, 20, 37);
+        Text text = text(
+            block(line(line2[0], line1[2])),
+            block(line(line2[2]), line(line1[0], line1[1])),
+            block(line(line2[1])));
+
+        assertEquals(LINE_1 + "\n" + LINE_2 + "\n", assembler.assemble(text));
+    }
+
+    @Test
+    public void followsRowsOfATiltedDocument() {
+        // Each element sits 6 px lower than the one to its left; over a whole line that is more
+        // than the distance between the rows
+        Text.Element[] line1 = split(LINE_1, 100, 6, 8, 16, 24, 32, 40);
+        Text.Element[] line2 = split(LINE_2, 124, 6, 8, 16, 24, 32, 40);
+        List<Text.Element> all = new ArrayList<>(Arrays.asList(line1));
+        all.addAll(Arrays.asList(line2));
+
+        assertEquals(LINE_1 + "\n" + LINE_2 + "\n",
+            assembler.assemble(text(block(line(all.toArray(new Text.Element[0]))))));
+    }
+
+    @Test
+    public void keepsOnlyRowsOfMrzLength() {
+        Text.Element title = element("PASSPORT", 0, 20);
+        Text.Element name = element("ERIKSSON", 20, 60);
+        Text.Element sentence = element("Surname, given names and date of birth", 0, 80);
+        Text.Element[] line1 = split(LINE_1, 130, 0, 22);
+        Text.Element[] line2 = split(LINE_2, 160, 0, 22);
+
+        assertEquals(LINE_1 + "\n" + LINE_2 + "\n", assembler.assemble(text(
+            block(line(title), line(name), line(sentence)),
+            block(line(line1)),
+            block(line(line2)))));
+    }
+
+    @Test
+    public void repairsFillersAndCase() {
+        // Two trailing fillers lost, two others read as a guillemet and a lower case letter
+        String line1 = LINE_1.substring(0, 26) + "«" + LINE_1.substring(28, 42);
+        String line2 = LINE_2.substring(0, 10) + "uto" + LINE_2.substring(13);
+
+        assertEquals(LINE_1 + "\n" + LINE_2 + "\n", assembler.assemble(text(
+            block(line(element(line1, 0, 100))),
+            block(line(element(line2, 0, 130))))));
+    }
+
+    @Test
+    public void returnsEmptyWithoutCandidates() {
+        assertEquals("", assembler.assemble(text(
+            block(line(element("PASSPORT", 0, 20), element("PASSEPORT", 100, 20))),
+            block(line(element("ERIKSSON", 0, 60))))));
+    }
+
+    @Test
+    public void returnsNullWithoutBoundingBoxes() {
+        Text.Element noBox = element(LINE_1, 0, 100);
+        when(noBox.getBoundingBox()).thenReturn(null);
+        Text.Element flat = element(LINE_2, 0, 130);
+        when(flat.getBoundingBox()).thenReturn(new Rect(0, 130, 440, 130));
+
+        assertNull(assembler.assemble(text(block(line(noBox), line(flat)))));
+    }
+
+    @Test
+    public void canBeReusedForTheNextFrame() {
+        Text first = text(block(line(split(LINE_1, 100, 0, 22)), line(split(LINE_2, 130, 0, 22))));
+        Text second = text(block(line(element(LINE_2, 0, 40))));
+
+        assertEquals(LINE_1 + "\n" + LINE_2 + "\n", assembler.assemble(first));
+        assertEquals(LINE_2 + "\n", assembler.assemble(second));
+        assertEquals(LINE_1 + "\n" + LINE_2 + "\n", assembler.assemble(first));
+    }
+
+    /**
+     * Splits {@code line} into elements at the given character positions, with the baseline at
+     * {@code baseline} plus {@code drop} pixels for every element further right.
+     */
+    private static Text.Element[] split(String line, int baseline, int drop, int... cuts) {
+        Text.Element[] elements = new Text.Element[cuts.length + 1];
+        int from = 0;
+        for (int i = 0; i <= cuts.length; i++) {
+            int to = i < cuts.length ? cuts[i] : line.length();
+            elements[i] = element(line.substring(from, to), from * CHAR_WIDTH, baseline + i * drop);
+            from = to;
+        }
+        return elements;
+    }
+
+    private static Text.Element element(String text, int left, int baseline) {
+        Text.Element element = mock(Text.Element.class);
+        when(element.getText()).thenReturn(text);
+        when(element.getBoundingBox()).thenReturn(
+            new Rect(left, baseline - LINE_HEIGHT, left + text.length() * CHAR_WIDTH, baseline));
+        return element;
+    }
+
+    private static Text.Line line(Text.Element... elements) {
+        Text.Line line = mock(Text.Line.class);
+        when(line.getElements()).thenReturn(Arrays.asList(elements));
+        return line;
+    }
+
+    private static Text.TextBlock block(Text.Line... lines) {
+        Text.TextBlock block = mock(Text.TextBlock.class);
+        when(block.getLines()).thenReturn(Arrays.asList(lines));
+        return block;
+    }
+
+    private static Text text(Text.TextBlock... blocks) {
+        Text text = mock(Text.class);
+        when(text.getTextBlocks()).thenReturn(Arrays.asList(blocks));
+        return text;
+    }
+}
@@ -0,0 +1,109 @@
+package com.forumonline.nfcpass.mlkit.text;
+
+import java.util.Random;
+
+/**
+ * An upright MRZ band as luma, for tests of the template engine. No OCR-B font can be shipped with
+ * the tests, so the glyphs are drawn from the OCR-B shapes on the recognizer's own grid,
+ * anti-aliased at non-integer sizes, blurred, lit unevenly and given sensor noise.
+ */
+public final class MrzRendering {
+    private static final int SUPERSAMPLING = 4;
+
+    /** OCR-B shapes on the grid the recognizer builds its templates from. */
+    private static final class Ocrb {
+        static final int WIDTH = 8;
+        static final int HEIGHT = 12;
+
+        static String[] outline(char symbol) {
+            for (int s = 0; s < MrzTemplateRecognizer.SYMBOLS.length; s++) {
+                if (MrzTemplateRecognizer.SYMBOLS[s] == symbol) {
+                    return MrzTemplateRecognizer.GLYPHS[s];
+                }
+            }
+            throw new IllegalArgumentException("Not an MRZ symbol: " + symbol);
+        }
+    }
+
+    public final int width;
+    public final int height;
+    public final byte[] luma;
+
+    public MrzRendering(String[] lines, int glyphHeight, int noise, long seed) {
+        float glyphWidth = glyphHeight * 0.64f;
+        float pitch = glyphWidth / 0.8f;
+        float linePitch = glyphHeight * 1.9f;
+        int margin = Math.round(pitch);
+        int characters = lines[0].length();
+        width = Math.round(2 * margin + characters * pitch);
+        height = Math.round(2 * margin + (lines.length - 1) * linePitch + glyphHeight);
+
+        float[] coverage = new float[width * height];
+        for (int line = 0; line < lines.length; line++) {
+            float top = margin + line * linePitch;
+            for (int c = 0; c < characters; c++) {
+                draw(coverage, lines[line].charAt(c), margin + c * pitch, top, glyphWidth, glyphHeight);
+            }
+        }
+
+        // Slight defocus, light falling off across the band and sensor noise
+        float[] blurred = blur(coverage);
+        Random random = new Random(seed);
+        luma = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float paper = 215 - 40f * x / Math.max(1, width);
+                float value = paper - blurred[y * width + x] * (paper - 45) + (noise > 0 ? random.nextInt(2 * noise + 1) - noise : 0);
+                luma[y * width + x] = (byte) Math.max(0, Math.min(255, Math.round(value)));
+            }
+        }
+    }
+
+    private void draw(float[] coverage, char symbol, float left, float top, float glyphWidth, float glyphHeight) {
+        String[] outline = Ocrb.outline(symbol);
+        int x0 = (int) Math.floor(left);
+        int y0 = (int) Math.floor(top);
+        int x1 = (int) Math.ceil(left + glyphWidth);
+        int y1 = (int) Math.ceil(top + glyphHeight);
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                int inked = 0;
+                for (int sy = 0; sy < SUPERSAMPLING; sy++) {
+                    for (int sx = 0; sx < SUPERSAMPLING; sx++) {
+                        float u = (x + (sx + 0.5f) / SUPERSAMPLING - left) / glyphWidth * Ocrb.WIDTH;
+                        float v = (y + (sy + 0.5f) / SUPERSAMPLING - top) / glyphHeight * Ocrb.HEIGHT;
+                        if (u >= 0 && v >= 0 && u < Ocrb.WIDTH && v < Ocrb.HEIGHT
+                                && outline[(int) v].charAt((int) u) == '#') {
+                            inked++;
+                        }
+                    }
+                }
+                coverage[y * width + x] = Math.max(coverage[y * width + x],
+                    (float) inked / (SUPERSAMPLING * SUPERSAMPLING));
+            }
+        }
+    }
+
+    private float[] blur(float[] coverage) {
+        float[] blurred = new float[coverage.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                float weights = 0;
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        int sx = x + dx;
+                        int sy = y + dy;
+                        if (sx >= 0 && sx < width && sy >= 0 && sy < height) {
+                            float weight = (dx == 0 ? 2 : 1) * (dy == 0 ? 2 : 1);
+                            sum += coverage[sy * width + sx] * weight;
+                            weights += weight;
+                        }
+                    }
+                }
+                blurred[y * width + x] = sum / weights;
+            }
+        }
+        return blurred;
+    }
+}
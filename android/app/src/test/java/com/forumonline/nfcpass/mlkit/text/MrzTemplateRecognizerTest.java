@@ -0,0 +1,153 @@
+package com.forumonline.nfcpass.mlkit.text;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link MrzTemplateRecognizer} on MRZ bands rendered from the specimen documents of ICAO
+ * 9303, drawn by {@link MrzRendering} and turned the way the camera sees them.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MrzTemplateRecognizerTest {
+
+    private static final String[] TD3 = {
+            "P<UTOERIKSSON<<ANNA<MARIA<<<<<<<<<<<<<<<<<<<",
+            "L898902C36UTO7408122F1204159ZE184226B<<<<<10"};
+    private static final String[] TD2 = {
+            "I<UTOERIKSSON<<ANNA<MARIA<<<<<<<<<<<",
+            "D231458907UTO7408122F1204159<<<<<<<6"};
+    private static final String[] TD1 = {
+            "I<UTOD231458907<<<<<<<<<<<<<<<",
+            "7408122F1204159UTO<<<<<<<<<<<6",
+            "ERIKSSON<<ANNA<MARIA<<<<<<<<<<"};
+
+    private final MrzTemplateRecognizer recognizer = new MrzTemplateRecognizer();
+
+    @Test
+    public void readsCleanPassport() {
+        assertReads(TD3, 24, 0, 0, 0);
+    }
+
+    @Test
+    public void readsVisaSizedCardWithNoise() {
+        assertReads(TD2, 20, 0, 10, 7);
+    }
+
+    @Test
+    public void readsIdCardInPortrait() {
+        assertReads(TD1, 22, 90, 6, 3);
+    }
+
+    @Test
+    public void readsUpsideDownAndOtherPortraitRotation() {
+        assertReads(TD3, 26, 180, 6, 11);
+        assertReads(TD1, 26, 270, 6, 12);
+    }
+
+    @Test
+    public void readsSmallNonIntegerScales() {
+        assertReads(TD3, 19, 0, 4, 5);
+        assertReads(TD1, 15, 90, 4, 6);
+    }
+
+    /** The height of the lines read sizes the camera frames, as ML Kit's line boxes do. */
+    @Test
+    public void reportsLineHeight() {
+        MrzRendering rendering = new MrzRendering(TD3, 24, 4, 8);
+        Rect band = new Rect(0, 0, rendering.width, rendering.height);
+        assertEquals(String.join("\n", TD3), recognizer.recognize(ByteBuffer.wrap(rendering.luma), rendering.width, 0, band));
+        int height = recognizer.getLineHeight();
+        assertTrue(String.valueOf(height), height >= 22 && height <= 27);
+
+        MrzRendering line = new MrzRendering(new String[] {TD3[1]}, 24, 0, 1);
+        assertNull(recognizer.recognize(ByteBuffer.wrap(line.luma), line.width, 0, new Rect(0, 0, line.width, line.height)));
+        assertEquals(0, recognizer.getLineHeight());
+    }
+
+    @Test
+    public void rejectsBandWithoutContrast() {
+        Rect band = new Rect(0, 0, 400, 100);
+        byte[] luma = new byte[400 * 100];
+        Arrays.fill(luma, (byte) 200);
+        assertNull(recognizer.recognize(ByteBuffer.wrap(luma), 400, 0, band));
+    }
+
+    @Test
+    public void rejectsSingleLineOfText() {
+        MrzRendering rendering = new MrzRendering(new String[] {TD3[1]}, 24, 0, 1);
+        assertNull(recognizer.recognize(ByteBuffer.wrap(rendering.luma), rendering.width, 0,
+            new Rect(0, 0, rendering.width, rendering.height)));
+    }
+
+    @Test
+    public void rejectsLinesTooSmallToRead() {
+        MrzRendering rendering = new MrzRendering(TD3, 8, 0, 2);
+        assertNull(recognizer.recognize(ByteBuffer.wrap(rendering.luma), rendering.width, 0,
+            new Rect(0, 0, rendering.width, rendering.height)));
+    }
+
+    /** Speckle noise instead of print looks nothing like OCR-B. */
+    @Test
+    public void rejectsNonTextBand() {
+        int width = 600;
+        int height = 80;
+        byte[] luma = new byte[width * height];
+        Random random = new Random(4);
+        for (int i = 0; i < luma.length; i++) {
+            luma[i] = (byte) (random.nextInt(8) == 0 ? 40 : 200);
+        }
+        assertNull(recognizer.recognize(ByteBuffer.wrap(luma), width, 0, new Rect(0, 0, width, height)));
+    }
+
+    private void assertReads(String[] lines, int glyphHeight, int rotation, int noise, long seed) {
+        MrzRendering upright = new MrzRendering(lines, glyphHeight, noise, seed);
+        int sensorWidth = rotation == 90 || rotation == 270 ? upright.height : upright.width;
+        int sensorHeight = rotation == 90 || rotation == 270 ? upright.width : upright.height;
+        // Put the band into a larger frame with a row stride, as a camera would deliver it
+        int left = 6;
+        int top = 4;
+        int rowStride = sensorWidth + 2 * left + 16;
+        byte[] luma = new byte[rowStride * (sensorHeight + 2 * top)];
+        Arrays.fill(luma, (byte) 90);
+        for (int y = 0; y < upright.height; y++) {
+            for (int x = 0; x < upright.width; x++) {
+                int sensorX;
+                int sensorY;
+                switch (rotation) {
+                    case 90:
+                        sensorX = y;
+                        sensorY = sensorHeight - 1 - x;
+                        break;
+                    case 180:
+                        sensorX = sensorWidth - 1 - x;
+                        sensorY = sensorHeight - 1 - y;
+                        break;
+                    case 270:
+                        sensorX = sensorWidth - 1 - y;
+                        sensorY = x;
+                        break;
+                    default:
+                        sensorX = x;
+                        sensorY = y;
+                        break;
+                }
+                luma[(top + sensorY) * rowStride + left + sensorX] = upright.luma[y * upright.width + x];
+            }
+        }
+
+        Rect band = new Rect(left, top, left + sensorWidth, top + sensorHeight);
+        String text = recognizer.recognize(ByteBuffer.wrap(luma), rowStride, rotation, band);
+        assertEquals(String.join("\n", lines), text);
+    }
+}
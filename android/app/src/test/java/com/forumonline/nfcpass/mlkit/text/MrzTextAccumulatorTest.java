@@ -0,0 +1,138 @@
+package com.forumonline.nfcpass.mlkit.text;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link MrzTextAccumulator} against searching the whole text again after every element, the
+ * way the processor used to, on frames of data page words with the MRZ lines split at random.
+ */
+public class MrzTextAccumulatorTest {
+
+    private static final String LINE_1 = "P<UTOERIKSSON<<ANNA<MARIA<<<<<<<<<<<<<<<<<<<";
+    private static final String LINE_2 = "L898902C36UTO7408122F1204159ZE184226B<<<<<10";
+
+    private static final String[] WORDS = {
+        "PASSPORT", "PASSEPORT", "Type", "P", "Code", "UTO", "Surname", "ERIKSSON", "Given", "names",
+        "ANNA", "MARIA", "Nationality", "Utopian", "Date", "of", "birth", "12", "AUG", "1974", "Sex",
+        "F", "Place", "ZENITH", "issue", "expiry", "16", "APR", "2012", "Authority", "L898902C3",
+        "<<<<", "7408122", "P<", "UTO<<",
+    };
+
+    @Test
+    public void findsLinesSplitAcrossElements() {
+        MrzTextAccumulator text = new MrzTextAccumulator();
+        MrzTextAccumulator.Line line1 = text.track(TextRecognitionProcessor.PASSPORT_TD_3_LINE_1_REGEX, 44);
+        MrzTextAccumulator.Line line2 = text.track(TextRecognitionProcessor.PASSPORT_TD_3_LINE_2_REGEX, 44);
+
+        assertFalse(text.append("Surname"));
+        assertFalse(text.append(LINE_1.substring(0, 20)));
+        assertNull(line1.getText());
+        assertTrue(text.append(LINE_1.substring(20)));
+        assertEquals(LINE_1, line1.getText());
+        assertFalse(line2.isFound());
+
+        assertFalse(text.append(LINE_2.substring(0, 43)));
+        assertTrue(text.append(LINE_2.substring(43)));
+        assertEquals(LINE_2, line2.getText());
+
+        // A line is reported as found only once per frame
+        assertFalse(text.append(LINE_2));
+        assertEquals(LINE_1, line1.getText());
+    }
+
+    @Test
+    public void resetForgetsThePreviousFrame() {
+        MrzTextAccumulator text = new MrzTextAccumulator();
+        MrzTextAccumulator.Line line2 = text.track(TextRecognitionProcessor.PASSPORT_TD_3_LINE_2_REGEX, 44);
+        assertTrue(text.append(LINE_2));
+
+        text.reset();
+        assertFalse(line2.isFound());
+        assertEquals(0, text.length());
+        assertFalse(text.append(LINE_2.substring(0, 30)));
+        assertTrue(text.append(LINE_2.substring(30)));
+        assertEquals(LINE_2, line2.getText());
+    }
+
+    @Test
+    public void agreesWithRescanningOnRandomFrames() {
+        String[] regexes = {
+            TextRecognitionProcessor.PASSPORT_TD_3_LINE_1_REGEX,
+            TextRecognitionProcessor.PASSPORT_TD_3_LINE_2_REGEX,
+            TextRecognitionProcessor.ID_TD_1_LINE_1_REGEX,
+            TextRecognitionProcessor.ID_TD_1_LINE_2_REGEX,
+            TextRecognitionProcessor.ID_TD_1_LINE_3_REGEX,
+        };
+        int[] spans = {44, 44, 30, 31, 2};
+        MrzTextAccumulator text = new MrzTextAccumulator();
+        List<MrzTextAccumulator.Line> lines = new ArrayList<>();
+        List<Pattern> patterns = new ArrayList<>();
+        for (int i = 0; i < regexes.length; i++) {
+            lines.add(text.track(regexes[i], spans[i]));
+            patterns.add(Pattern.compile(regexes[i]));
+        }
+
+        Random random = new Random(42);
+        for (int frame = 0; frame < 300; frame++) {
+            text.reset();
+            StringBuilder rescanned = new StringBuilder();
+            int[] foundAt = new int[regexes.length];
+            Arrays.fill(foundAt, -1);
+            List<String> elements = createFrame(random);
+            for (int e = 0; e < elements.size(); e++) {
+                boolean found = text.append(elements.get(e));
+                rescanned.append(elements.get(e));
+
+                boolean newlyFound = false;
+                for (int i = 0; i < regexes.length; i++) {
+                    Matcher matcher = patterns.get(i).matcher(rescanned);
+                    boolean expected = matcher.find();
+                    assertEquals("frame " + frame + ", element " + e + ", pattern " + i,
+                        expected, lines.get(i).isFound());
+                    if (expected && foundAt[i] < 0) {
+                        foundAt[i] = e;
+                        newlyFound = true;
+                        // Fixed-length lines match exactly what a search of the text so far finds
+                        if (spans[i] > 2) {
+                            assertEquals(matcher.group(), lines.get(i).getText());
+                        }
+                    }
+                }
+                assertEquals(newlyFound, found);
+            }
+            assertEquals(rescanned.toString(), text.substring(0, text.length()));
+            assertTrue(lines.get(0).isFound());
+            assertEquals(LINE_2, lines.get(1).getText());
+        }
+    }
+
+    /** Data page words followed by the MRZ, each line split into pieces as ML Kit tends to. */
+    private static List<String> createFrame(Random random) {
+        List<String> elements = new ArrayList<>();
+        int words = 4 + random.nextInt(40);
+        for (int i = 0; i < words; i++) {
+            elements.add(WORDS[random.nextInt(WORDS.length)]);
+        }
+        for (String line : new String[] {LINE_1, LINE_2}) {
+            int from = 0;
+            while (from < line.length()) {
+                int to = Math.min(line.length(), from + 1 + random.nextInt(30));
+                elements.add(line.substring(from, to));
+                from = to;
+            }
+        }
+        return elements;
+    }
+}
@@ -0,0 +1,140 @@
+package com.forumonline.nfcpass.mlkit.text;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OrderedResultMergerTest {
+
+    @Test
+    public void holdsEarlyResultsUntilEarlierOnesComplete() {
+        List<String> delivered = new ArrayList<>();
+        OrderedResultMerger<String> merger = new OrderedResultMerger<>(4, delivered::add);
+        long first = merger.reserve();
+        long second = merger.reserve();
+        long third = merger.reserve();
+
+        merger.complete(third, "c");
+        merger.complete(second, "b");
+        assertTrue(delivered.isEmpty());
+        merger.complete(first, "a");
+        assertEquals(list("a", "b", "c"), delivered);
+    }
+
+    @Test
+    public void passesFailedRecognitionsOnAsNull() {
+        List<String> delivered = new ArrayList<>();
+        OrderedResultMerger<String> merger = new OrderedResultMerger<>(2, delivered::add);
+        long first = merger.reserve();
+        long second = merger.reserve();
+
+        merger.complete(second, "b");
+        merger.complete(first, null);
+        assertEquals(list(null, "b"), delivered);
+    }
+
+    @Test
+    public void growsWhenSlowTicketHoldsBackMoreThanCapacity() {
+        List<Integer> delivered = new ArrayList<>();
+        OrderedResultMerger<Integer> merger = new OrderedResultMerger<>(2, delivered::add);
+        long slow = merger.reserve();
+        for (int i = 1; i < 10; i++) {
+            merger.complete(merger.reserve(), i);
+        }
+        assertTrue(delivered.isEmpty());
+        merger.complete(slow, 0);
+        assertEquals(list(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), delivered);
+    }
+
+    /**
+     * Reserves and completes tickets in random interleavings, with a share of failed (null)
+     * recognitions and a few slow ones, and checks that everything comes out once and in order.
+     */
+    @Test
+    public void deliversInTicketOrderForRandomCompletionOrder() {
+        for (int seed = 0; seed < 200; seed++) {
+            Random random = new Random(seed);
+            int capacity = 1 + random.nextInt(4);
+            int tickets = 1 + random.nextInt(300);
+            List<Integer> delivered = new ArrayList<>();
+            OrderedResultMerger<Integer> merger = new OrderedResultMerger<>(capacity, delivered::add);
+
+            List<Long> outstanding = new ArrayList<>();
+            boolean[] failed = new boolean[tickets];
+            int reserved = 0;
+            while (reserved < tickets || !outstanding.isEmpty()) {
+                // Keep a few recognitions in flight, sometimes many more than the capacity
+                int inFlight = random.nextInt(10) == 0 ? 4 * capacity : capacity;
+                if (reserved < tickets && (outstanding.size() < inFlight || random.nextBoolean())) {
+                    long ticket = merger.reserve();
+                    assertEquals(reserved, ticket);
+                    failed[reserved] = random.nextInt(5) == 0;
+                    outstanding.add(ticket);
+                    reserved++;
+                } else if (!outstanding.isEmpty()) {
+                    long ticket = outstanding.remove(random.nextInt(outstanding.size()));
+                    merger.complete(ticket, failed[(int) ticket] ? null : (int) ticket);
+                }
+            }
+
+            assertEquals("seed " + seed, tickets, delivered.size());
+            for (int i = 0; i < tickets; i++) {
+                assertEquals("seed " + seed + ", ticket " + i, failed[i] ? null : (Integer) i, delivered.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void deliversInOrderWhenCompletedFromManyThreads() throws Exception {
+        int tickets = 5000;
+        List<Integer> delivered = Collections.synchronizedList(new ArrayList<>());
+        OrderedResultMerger<Integer> merger = new OrderedResultMerger<>(3, delivered::add);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        CountDownLatch done = new CountDownLatch(tickets);
+        Random random = new Random(1);
+        boolean[] failed = new boolean[tickets];
+        try {
+            for (int i = 0; i < tickets; i++) {
+                long ticket = merger.reserve();
+                boolean fails = random.nextInt(7) == 0;
+                failed[i] = fails;
+                long delayNanos = random.nextInt(20) == 0 ? 200000 : 0;
+                pool.execute(() -> {
+                    if (delayNanos > 0) {
+                        long end = System.nanoTime() + delayNanos;
+                        while (System.nanoTime() < end) {
+                            Thread.yield();
+                        }
+                    }
+                    merger.complete(ticket, fails ? null : (int) ticket);
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(tickets, delivered.size());
+        for (int i = 0; i < tickets; i++) {
+            assertEquals("ticket " + i, failed[i] ? null : (Integer) i, delivered.get(i));
+        }
+    }
+
+    @SafeVarargs
+    private static <T> List<T> list(T... values) {
+        List<T> list = new ArrayList<>();
+        Collections.addAll(list, values);
+        return list;
+    }
+}
@@ -0,0 +1,255 @@
+package com.forumonline.nfcpass.passport;
+
+import com.forumonline.nfcpass.passport.CommandTimeouts.CommandClass;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CommandTimeoutsTest {
+
+    private static final int FLAT_TIMEOUT_MILLIS = 10000;
+
+    private static final byte INS_MSE = 0x22;
+    private static final byte INS_GENERAL_AUTHENTICATE = (byte) 0x86;
+    private static final byte INS_SELECT = (byte) 0xA4;
+    private static final byte INS_READ_BINARY = (byte) 0xB0;
+    /** READ BINARY blocks of DG1, DG2 and DG7 at 223 bytes each. */
+    private static final int[] FILE_BLOCKS = {1, 90, 12};
+
+    private static final Chip FAST_CHIP = new Chip(25, 60, 30, new double[] {40, 350, 300, 40}, 0.2, 0.01, 300);
+    /** Takes twelve seconds for the PACE key agreement, longer than the flat timeout. */
+    private static final Chip SLOW_CHIP = new Chip(150, 280, 120, new double[] {300, 12000, 7000, 300}, 0.15, 0.01, 500);
+
+    private static final int READS = 500;
+
+    @Test
+    public void classifiesCommandsByInstruction() {
+        assertEquals(CommandClass.SELECT, CommandTimeouts.classify(new byte[] {0x00, (byte) 0xA4, 0x02, 0x0C}));
+        assertEquals(CommandClass.READ_BINARY, CommandTimeouts.classify(new byte[] {0x0C, (byte) 0xB0, 0, 0, 0}));
+        assertEquals(CommandClass.READ_BINARY, CommandTimeouts.classify(new byte[] {0x0C, (byte) 0xB1, 0, 0}));
+        assertEquals(CommandClass.GET_CHALLENGE, CommandTimeouts.classify(new byte[] {0x00, (byte) 0x84, 0, 0, 8}));
+        assertEquals(CommandClass.MUTUAL_AUTHENTICATE, CommandTimeouts.classify(new byte[] {0x00, (byte) 0x82, 0, 0}));
+        assertEquals(CommandClass.GENERAL_AUTHENTICATE, CommandTimeouts.classify(new byte[] {0x10, (byte) 0x86, 0, 0}));
+        assertEquals(CommandClass.OTHER, CommandTimeouts.classify(new byte[] {0x00, 0x22, (byte) 0xC1, (byte) 0xA4}));
+        assertEquals(CommandClass.OTHER, CommandTimeouts.classify(new byte[] {0x00, (byte) 0xB0}));
+    }
+
+    @Test
+    public void fileCommandsMoveDownToTheirMinimum() {
+        CommandTimeouts timeouts = new CommandTimeouts();
+        assertEquals(1500, timeouts.getTimeoutMillis(CommandClass.READ_BINARY));
+        for (int i = 0; i < 20; i++) {
+            timeouts.onResponse(CommandClass.READ_BINARY, 60);
+        }
+        assertEquals(1000, timeouts.getTimeoutMillis(CommandClass.READ_BINARY));
+
+        // A chip that is slow on every block gets three times its latency
+        for (int i = 0; i < 50; i++) {
+            timeouts.onResponse(CommandClass.READ_BINARY, 900);
+        }
+        int timeout = timeouts.getTimeoutMillis(CommandClass.READ_BINARY);
+        assertTrue(String.valueOf(timeout), timeout >= 2600 && timeout <= 3000);
+    }
+
+    @Test
+    public void authenticationOnlyMovesUp() {
+        CommandTimeouts fast = new CommandTimeouts();
+        fast.onResponse(CommandClass.GENERAL_AUTHENTICATE, 40);
+        assertEquals(20000, fast.getTimeoutMillis(CommandClass.GENERAL_AUTHENTICATE));
+
+        CommandTimeouts slow = new CommandTimeouts();
+        slow.onResponse(CommandClass.GENERAL_AUTHENTICATE, 12000);
+        assertEquals(36000, slow.getTimeoutMillis(CommandClass.GENERAL_AUTHENTICATE));
+        assertEquals(40000, capped(CommandClass.GENERAL_AUTHENTICATE));
+    }
+
+    @Test
+    public void timeoutDoublesTheTimeoutOfItsClass() {
+        CommandTimeouts timeouts = new CommandTimeouts();
+        for (int i = 0; i < 20; i++) {
+            timeouts.onResponse(CommandClass.READ_BINARY, 60);
+        }
+        timeouts.onTimeout(CommandClass.READ_BINARY);
+        assertEquals(2000, timeouts.getTimeoutMillis(CommandClass.READ_BINARY));
+        timeouts.onTimeout(CommandClass.READ_BINARY);
+        assertEquals(4000, timeouts.getTimeoutMillis(CommandClass.READ_BINARY));
+        timeouts.onTimeout(CommandClass.READ_BINARY);
+        assertEquals(5000, timeouts.getTimeoutMillis(CommandClass.READ_BINARY));
+
+        // Other classes are not affected
+        assertEquals(1000, timeouts.getTimeoutMillis(CommandClass.SELECT));
+    }
+
+    @Test
+    public void describesItselfWithAsciiDigitsInAnyLocale() {
+        Locale locale = Locale.getDefault();
+        try {
+            Locale.setDefault(Locale.forLanguageTag("ar"));
+            CommandTimeouts timeouts = new CommandTimeouts();
+            timeouts.onResponse(CommandClass.SELECT, 25);
+            timeouts.onResponse(CommandClass.READ_BINARY, 62.4);
+            assertEquals("SELECT 1000 ms (25 ms over 1), READ_BINARY 1000 ms (62 ms over 1)", timeouts.toString());
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    /** On a healthy chip neither strategy fails, and adaptive timeouts notice a lost document in about a second. */
+    @Test
+    public void fastChipNoticesLossTenTimesSooner() {
+        Outcome adaptive = simulate(FAST_CHIP, true);
+        Outcome flat = simulate(FAST_CHIP, false);
+
+        assertEquals(0, adaptive.failedReads);
+        assertEquals(0, flat.failedReads);
+        assertEquals(FLAT_TIMEOUT_MILLIS, flat.meanDetectionMillis, 0);
+        assertTrue(String.valueOf(adaptive.meanDetectionMillis), adaptive.meanDetectionMillis < 1200);
+    }
+
+    /** The flat timeout cuts off PACE on a slow chip; adaptive timeouts let it finish. */
+    @Test
+    public void slowChipCompletesWithAdaptiveTimeouts() {
+        Outcome adaptive = simulate(SLOW_CHIP, true);
+        Outcome flat = simulate(SLOW_CHIP, false);
+
+        assertTrue(String.valueOf(flat.failedReads), flat.failedReads > READS / 2);
+        assertTrue(String.valueOf(adaptive.failedReads), adaptive.failedReads <= READS / 100);
+        assertTrue(String.valueOf(adaptive.meanDetectionMillis), adaptive.meanDetectionMillis < 1500);
+    }
+
+    private static int capped(CommandClass commandClass) {
+        CommandTimeouts timeouts = new CommandTimeouts();
+        for (int i = 0; i < 20; i++) {
+            timeouts.onResponse(commandClass, 60000);
+        }
+        return timeouts.getTimeoutMillis(commandClass);
+    }
+
+    /** A chip model: typical latency per command and how much single commands vary. */
+    private static final class Chip {
+        final double selectMillis;
+        final double readMillis;
+        final double mseMillis;
+        final double[] paceStepMillis;
+        /** Standard deviation of the log of a latency. */
+        final double jitter;
+        /** Share of commands delayed by {@link #outlierMillis}, e.g. resent after a weak field. */
+        final double outlierRate;
+        final double outlierMillis;
+
+        Chip(double selectMillis, double readMillis, double mseMillis, double[] paceStepMillis,
+             double jitter, double outlierRate, double outlierMillis) {
+            this.selectMillis = selectMillis;
+            this.readMillis = readMillis;
+            this.mseMillis = mseMillis;
+            this.paceStepMillis = paceStepMillis;
+            this.jitter = jitter;
+            this.outlierRate = outlierRate;
+            this.outlierMillis = outlierMillis;
+        }
+
+        /** INS and latency of each command of one read: PACE, then DG1, DG2 and DG7. */
+        List<double[]> createRead(Random random) {
+            List<double[]> commands = new ArrayList<>();
+            commands.add(new double[] {INS_MSE, latency(mseMillis, random)});
+            for (double stepMillis : paceStepMillis) {
+                commands.add(new double[] {INS_GENERAL_AUTHENTICATE, latency(stepMillis, random)});
+            }
+            for (int blocks : FILE_BLOCKS) {
+                commands.add(new double[] {INS_SELECT, latency(selectMillis, random)});
+                for (int i = 0; i < blocks; i++) {
+                    commands.add(new double[] {INS_READ_BINARY, latency(readMillis, random)});
+                }
+            }
+            return commands;
+        }
+
+        private double latency(double typicalMillis, Random random) {
+            double latency = typicalMillis * Math.exp(jitter * random.nextGaussian());
+            if (random.nextDouble() < outlierRate) {
+                latency += outlierMillis;
+            }
+            return latency;
+        }
+    }
+
+    private static final class Outcome {
+        int failedReads;
+        double meanDetectionMillis;
+    }
+
+    /**
+     * Plays {@link #READS} reads of {@code chip} in simulated time, each twice: once with the document
+     * in the field throughout, counting reads that fail on a timeout, and once with the document moved
+     * away during a READ BINARY after PACE, measuring how long that command waits before it fails.
+     */
+    private static Outcome simulate(Chip chip, boolean adaptive) {
+        Random random = new Random(7);
+        Outcome outcome = new Outcome();
+        double detectionSum = 0;
+        for (int i = 0; i < READS; i++) {
+            List<double[]> commands = chip.createRead(random);
+            if (!completes(commands, adaptive ? new CommandTimeouts() : null)) {
+                outcome.failedReads++;
+            }
+
+            int lost = 1 + chip.paceStepMillis.length
+                + random.nextInt(commands.size() - 1 - chip.paceStepMillis.length);
+            while (commands.get(lost)[0] != INS_READ_BINARY) {
+                lost++;
+            }
+            detectionSum += detectLoss(commands, lost, adaptive ? new CommandTimeouts() : null);
+        }
+        outcome.meanDetectionMillis = detectionSum / READS;
+        return outcome;
+    }
+
+    /** Whether no command times out. With {@code timeouts} null every command waits the flat timeout. */
+    private static boolean completes(List<double[]> commands, CommandTimeouts timeouts) {
+        for (double[] command : commands) {
+            if (send(command, timeouts) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** How long the command at {@code lost}, which the chip no longer answers, waits before it fails. */
+    private static double detectLoss(List<double[]> commands, int lost, CommandTimeouts timeouts) {
+        for (int i = 0; i < lost; i++) {
+            double timeout = send(commands.get(i), timeouts);
+            if (timeout < 0) {
+                // Failed early on a healthy command, which also ends the read
+                return -timeout;
+            }
+        }
+        return getTimeoutMillis(commands.get(lost), timeouts);
+    }
+
+    /** Returns 0 if the chip answered within the timeout, minus the timeout otherwise. */
+    private static double send(double[] command, CommandTimeouts timeouts) {
+        int timeout = getTimeoutMillis(command, timeouts);
+        if (command[1] > timeout) {
+            return -timeout;
+        }
+        if (timeouts != null) {
+            timeouts.onResponse(classify(command), command[1]);
+        }
+        return 0;
+    }
+
+    private static int getTimeoutMillis(double[] command, CommandTimeouts timeouts) {
+        return timeouts != null ? timeouts.getTimeoutMillis(classify(command)) : FLAT_TIMEOUT_MILLIS;
+    }
+
+    private static CommandClass classify(double[] command) {
+        return CommandTimeouts.classify(new byte[] {0x0C, (byte) command[0], 0, 0});
+    }
+}
@@ -0,0 +1,192 @@
+package com.forumonline.nfcpass.passport;
+
+import com.forumonline.nfcpass.passport.crypto.SecureMessagingCodec;
+import com.forumonline.nfcpass.passport.crypto.SecureMessagingCrypto;
+
+import net.sf.scuba.smartcards.CardServiceException;
+
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Reads files through {@link SecureFileSystem} from a simulated chip that speaks real secure
+ * messaging and checks every command MAC, so a command wrapped for the wrong counter fails the read.
+ */
+public class SecureFileSystemTest {
+    private static final short FID = 0x0102;
+    private static final long INITIAL_SSC = 0x1234L;
+    private static final int MAX_BLOCK_SIZE = 223;
+
+    @Test
+    public void readsFile() throws Exception {
+        for (SecretKey key : keys()) {
+            assertReads(key, createFile(20 * 1024), MAX_BLOCK_SIZE);
+        }
+    }
+
+    @Test
+    public void readsFileEndingOnBlockBoundary() throws Exception {
+        assertReads(keys()[1], createFile(8 + 10 * MAX_BLOCK_SIZE), MAX_BLOCK_SIZE);
+    }
+
+    /** A chip that answers with less than asked for is read on from where its answer ended. */
+    @Test
+    public void readsFileFromChipWithSmallerBlocks() throws Exception {
+        for (SecretKey key : keys()) {
+            assertReads(key, createFile(5 * 1024), 200);
+        }
+    }
+
+    @Test(expected = CardServiceException.class)
+    public void failsOnMissingFile() throws Exception {
+        SecretKey key = keys()[0];
+        SimulatedChip chip = new SimulatedChip(key, createFile(1024), MAX_BLOCK_SIZE);
+        SecureFileSystem fileSystem = new SecureFileSystem(chip, new SecureMessagingCodec(key, key, INITIAL_SSC), MAX_BLOCK_SIZE);
+        fileSystem.selectFile((short) 0x0107);
+    }
+
+    private static void assertReads(SecretKey key, byte[] file, int chipBlockSize) throws Exception {
+        SimulatedChip chip = new SimulatedChip(key, file, chipBlockSize);
+        SecureFileSystem fileSystem = new SecureFileSystem(chip, new SecureMessagingCodec(key, key, INITIAL_SSC), MAX_BLOCK_SIZE);
+
+        fileSystem.selectFile(FID);
+        assertArrayEquals(file, fileSystem.readSelectedFile());
+        // The session counter still matches the chip's, so the next command is accepted
+        assertArrayEquals(Arrays.copyOf(file, 16), fileSystem.readBinary(0, 16));
+    }
+
+    private static SecretKey[] keys() {
+        Random random = new Random(7);
+        byte[] desedeKey = new byte[24];
+        byte[] aesKey = new byte[16];
+        random.nextBytes(desedeKey);
+        random.nextBytes(aesKey);
+        return new SecretKey[] {new SecretKeySpec(desedeKey, "DESede"), new SecretKeySpec(aesKey, "AES")};
+    }
+
+    /** A TLV encoded file shaped like DG2: tag 0x75 with a two byte length. */
+    private static byte[] createFile(int length) {
+        byte[] file = new byte[length];
+        new Random(length).nextBytes(file);
+        int valueLength = length - 4;
+        file[0] = 0x75;
+        file[1] = (byte) 0x82;
+        file[2] = (byte) (valueLength >> 8);
+        file[3] = (byte) valueLength;
+        return file;
+    }
+
+    /**
+     * Chip side of secure messaging for SELECT and READ BINARY on a single file, returning at most
+     * {@code chipBlockSize} bytes per READ BINARY.
+     */
+    private static final class SimulatedChip implements ApduChannel {
+        private final SecureMessagingCrypto crypto;
+        private final byte[] file;
+        private final int chipBlockSize;
+        private final byte[] macInput = new byte[1024];
+        private final byte[] mac = new byte[SecureMessagingCrypto.MAC_LENGTH];
+        private final byte[] block = new byte[256 + 16];
+        private long ssc = INITIAL_SSC;
+
+        SimulatedChip(SecretKey key, byte[] file, int chipBlockSize) throws GeneralSecurityException {
+            this.crypto = SecureMessagingCrypto.getInstance(key, key);
+            this.file = file;
+            this.chipBlockSize = chipBlockSize;
+        }
+
+        @Override
+        public byte[] transmit(byte[] command) throws CardServiceException {
+            try {
+                return process(command);
+            } catch (GeneralSecurityException e) {
+                throw new CardServiceException("Chip rejected command: " + e.getMessage(), e);
+            }
+        }
+
+        private byte[] process(byte[] command) throws GeneralSecurityException {
+            int blockSize = crypto.getBlockSize();
+
+            ssc++;
+            int lc = command[4] & 0xFF;
+            int objectsLength = lc - 2 - SecureMessagingCrypto.MAC_LENGTH;
+            int length = crypto.encodeSendSequenceCounter(ssc, macInput, 0);
+            System.arraycopy(command, 0, macInput, length, 4);
+            length = pad(macInput, length + 4, blockSize);
+            System.arraycopy(command, 5, macInput, length, objectsLength);
+            length = pad(macInput, length + objectsLength, blockSize);
+            crypto.mac(macInput, 0, length, mac, 0);
+            for (int i = 0; i < SecureMessagingCrypto.MAC_LENGTH; i++) {
+                if (mac[i] != command[5 + objectsLength + 2 + i]) {
+                    throw new GeneralSecurityException("Invalid command MAC");
+                }
+            }
+
+            int dataLength = 0;
+            int sw = 0x9000;
+            if (command[1] == (byte) 0xA4) {
+                // DO'87' holds the padding indicator and the encrypted FID
+                byte[] fid = new byte[blockSize];
+                crypto.decrypt(ssc, command, 5 + 3, blockSize, fid, 0);
+                if (fid[0] != (byte) (FID >> 8) || fid[1] != (byte) FID) {
+                    // Plain error, the chip drops secure messaging
+                    return new byte[] {0x6A, (byte) 0x82};
+                }
+            } else if (command[1] == (byte) 0xB0) {
+                int offset = ((command[2] & 0x7F) << 8) | (command[3] & 0xFF);
+                // DO'97' is the last object in front of DO'8E'
+                int le = command[5 + objectsLength - 1] & 0xFF;
+                le = Math.min(le == 0 ? 256 : le, chipBlockSize);
+                dataLength = Math.max(0, Math.min(le, file.length - offset));
+                if (dataLength < le) {
+                    sw = 0x6282;
+                }
+                System.arraycopy(file, offset, block, 0, dataLength);
+            }
+
+            ssc++;
+            byte[] response = new byte[4 + block.length + 4 + 10 + 2];
+            int pos = 0;
+            if (dataLength > 0) {
+                int paddedLength = pad(block, dataLength, blockSize);
+                response[pos++] = (byte) 0x87;
+                response[pos++] = (byte) 0x82;
+                response[pos++] = (byte) ((paddedLength + 1) >> 8);
+                response[pos++] = (byte) (paddedLength + 1);
+                response[pos++] = 0x01;
+                pos += crypto.encrypt(ssc, block, 0, paddedLength, response, pos);
+            }
+            response[pos++] = (byte) 0x99;
+            response[pos++] = 0x02;
+            response[pos++] = (byte) (sw >> 8);
+            response[pos++] = (byte) sw;
+
+            length = crypto.encodeSendSequenceCounter(ssc, macInput, 0);
+            System.arraycopy(response, 0, macInput, length, pos);
+            length = pad(macInput, length + pos, blockSize);
+            response[pos++] = (byte) 0x8E;
+            response[pos++] = SecureMessagingCrypto.MAC_LENGTH;
+            crypto.mac(macInput, 0, length, response, pos);
+            pos += SecureMessagingCrypto.MAC_LENGTH;
+            response[pos++] = (byte) 0x90;
+            response[pos++] = 0x00;
+            return Arrays.copyOf(response, pos);
+        }
+
+        private static int pad(byte[] buffer, int length, int blockSize) {
+            buffer[length++] = (byte) 0x80;
+            while (length % blockSize != 0) {
+                buffer[length++] = 0x00;
+            }
+            return length;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.forumonline.nfcpass.passport.crypto;
+
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ResponseAPDU;
+
+import org.jmrtd.protocol.AESSecureMessagingWrapper;
+import org.jmrtd.protocol.DESedeSecureMessagingWrapper;
+import org.conscrypt.Conscrypt;
+import org.jmrtd.protocol.SecureMessagingWrapper;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link SecureMessagingCodec} produces and accepts the same bytes as JMRTD's secure
+ * messaging wrappers, which {@code PassportService} uses for everything before the file reads.
+ */
+public class SecureMessagingCodecTest {
+    private static final int RESPONSE_DATA_LENGTH = 223;
+    private static final long INITIAL_SSC = 0x0123456789ABCDEFL;
+
+    /** The commands of the read path: SELECT, READ BINARY with short and long offsets. */
+    private static final CommandAPDU[] COMMANDS = {
+        new CommandAPDU(0x00, 0xA4, 0x02, 0x0C, new byte[] {0x01, 0x02}, 0),
+        new CommandAPDU(0x00, 0xB0, 0x00, 0x00, 8),
+        new CommandAPDU(0x00, 0xB0, 0x12, 0x34, RESPONSE_DATA_LENGTH),
+        new CommandAPDU(0x00, 0xB1, 0x00, 0x00, new byte[] {0x54, 0x02, (byte) 0x80, 0x00}, 226)
+    };
+
+    @Test
+    public void desedeMatchesJmrtd() throws GeneralSecurityException {
+        assertMatchesJmrtd(createKey("DESede", 24));
+    }
+
+    @Test
+    public void aesMatchesJmrtd() throws GeneralSecurityException {
+        assertMatchesJmrtd(createKey("AES", 16));
+    }
+
+    @Test
+    public void statusWordOnlyResponseLeavesCounterAlone() throws GeneralSecurityException {
+        for (SecretKey key : new SecretKey[] {createKey("DESede", 24), createKey("AES", 16)}) {
+            SecureMessagingWrapper jmrtd = createWrapper(key);
+            SecureMessagingCodec codec = new SecureMessagingCodec(key, key, INITIAL_SSC);
+            SimulatedCard card = new SimulatedCard(key);
+            byte[] buffer = new byte[SecureMessagingCodec.MAX_COMMAND_LENGTH];
+            byte[] data = new byte[256 + 16];
+
+            // SELECT of a file the chip does not have, answered without secure messaging. JMRTD's
+            // APDU sender raises the status word without passing the response to the wrapper.
+            CommandAPDU select = COMMANDS[0];
+            jmrtd.wrap(select);
+            wrap(codec, select, buffer);
+            assertEquals(0, codec.unwrap(new byte[] {0x6A, (byte) 0x82}, 2, data, 0));
+            assertEquals(0x6A82, codec.getStatusWord());
+            assertEquals(jmrtd.getSendSequenceCounter(), codec.getSendSequenceCounter());
+
+            // The next exchange has to use the same counter on both sides
+            CommandAPDU readBinary = COMMANDS[2];
+            int length = wrap(codec, readBinary, buffer);
+            assertArrayEquals(jmrtd.wrap(readBinary).getBytes(), Arrays.copyOf(buffer, length));
+            byte[] response = card.readBinaryResponse(jmrtd.getSendSequenceCounter() + 1);
+            ResponseAPDU plain = jmrtd.unwrap(new ResponseAPDU(response));
+            int dataLength = codec.unwrap(response, response.length, data, 0);
+            assertEquals(plain.getSW(), codec.getStatusWord());
+            assertArrayEquals(plain.getData(), Arrays.copyOf(data, dataLength));
+            assertEquals(jmrtd.getSendSequenceCounter(), codec.getSendSequenceCounter());
+        }
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void rejectsTamperedResponse() throws GeneralSecurityException {
+        SecretKey key = createKey("AES", 16);
+        SecureMessagingCodec codec = new SecureMessagingCodec(key, key, INITIAL_SSC);
+        byte[] response = new SimulatedCard(key).readBinaryResponse(INITIAL_SSC + 2);
+        response[10] ^= 0x01;
+        codec.wrap(0x00, 0xB0, 0x00, 0x00, null, 0, 0, RESPONSE_DATA_LENGTH, new byte[SecureMessagingCodec.MAX_COMMAND_LENGTH]);
+        codec.unwrap(response, response.length, new byte[256 + 16], 0);
+    }
+
+    @Test
+    public void rejectsTruncatedResponse() throws GeneralSecurityException {
+        SecretKey key = createKey("AES", 16);
+        byte[] response = new SimulatedCard(key).readBinaryResponse(INITIAL_SSC + 2);
+        // Cut inside DO'87', inside its length and inside the MAC, keeping a status word at the end
+        for (int cut : new int[] {40, 2, response.length - 7}) {
+            assertRejected(key, withStatusWord(Arrays.copyOf(response, cut)));
+        }
+    }
+
+    @Test
+    public void rejectsLengthBeyondResponse() throws GeneralSecurityException {
+        SecretKey key = createKey("AES", 16);
+        byte[] response = new SimulatedCard(key).readBinaryResponse(INITIAL_SSC + 2);
+        response[2] = (byte) 0xF0;
+        assertRejected(key, response);
+
+        // DO'87' of 600 bytes followed by a MAC, longer than any short response
+        byte[] oversized = new byte[4 + 600 + 2 + SecureMessagingCrypto.MAC_LENGTH];
+        oversized[0] = (byte) 0x87;
+        oversized[1] = (byte) 0x82;
+        oversized[2] = 0x02;
+        oversized[3] = 0x58;
+        oversized[4] = 0x01;
+        oversized[4 + 600] = (byte) 0x8E;
+        oversized[4 + 600 + 1] = SecureMessagingCrypto.MAC_LENGTH;
+        assertRejected(key, withStatusWord(oversized));
+    }
+
+    @Test
+    public void rejectsResponseWithoutMac() throws GeneralSecurityException {
+        SecretKey key = createKey("AES", 16);
+        byte[] response = new SimulatedCard(key).readBinaryResponse(INITIAL_SSC + 2);
+        assertRejected(key, withStatusWord(Arrays.copyOf(response, response.length - 4 - SecureMessagingCrypto.MAC_LENGTH)));
+    }
+
+    /**
+     * Counts the bytes allocated per READ BINARY exchange, wrap and unwrap, once warmed up. The codec
+     * allocates nothing itself; what remains comes from the provider's Cipher and Mac. On a desktop
+     * JVM with SpongyCastle this is about 1.5 KB for 3DES, all of it inside SpongyCastle's DESede
+     * cipher, and 64 bytes for AES, against 9 to 10 KB for the JMRTD wrappers.
+     */
+    @Test
+    public void allocatesFarLessThanJmrtd() throws GeneralSecurityException {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int exchanges = 2000;
+
+        for (SecretKey key : new SecretKey[] {createKey("DESede", 24), createKey("AES", 16)}) {
+            SimulatedCard card = new SimulatedCard(key);
+            byte[][] responses = new byte[exchanges][];
+            for (int i = 0; i < exchanges; i++) {
+                responses[i] = card.readBinaryResponse(INITIAL_SSC + 2 * i + 2);
+            }
+            byte[] buffer = new byte[SecureMessagingCodec.MAX_COMMAND_LENGTH];
+            byte[] data = new byte[256 + 16];
+            CommandAPDU readBinary = COMMANDS[2];
+
+            long codecBytes = 0;
+            for (int round = 0; round < 2; round++) {
+                SecureMessagingCodec codec = new SecureMessagingCodec(key, key, INITIAL_SSC);
+                long before = threads.getThreadAllocatedBytes(thread);
+                for (int i = 0; i < exchanges; i++) {
+                    codec.wrap(0x00, 0xB0, 0x12, 0x34, null, 0, 0, RESPONSE_DATA_LENGTH, buffer);
+                    codec.unwrap(responses[i], responses[i].length, data, 0);
+                }
+                codecBytes = (threads.getThreadAllocatedBytes(thread) - before) / exchanges;
+            }
+
+            SecureMessagingWrapper jmrtd = createWrapper(key);
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < exchanges; i++) {
+                jmrtd.wrap(readBinary);
+                jmrtd.unwrap(new ResponseAPDU(responses[i]));
+            }
+            long jmrtdBytes = (threads.getThreadAllocatedBytes(thread) - before) / exchanges;
+
+            assertTrue(key.getAlgorithm() + ": " + codecBytes + " against " + jmrtdBytes, codecBytes * 5 < jmrtdBytes);
+            if ("AES".equals(key.getAlgorithm())) {
+                assertTrue(codecBytes + " bytes per exchange", codecBytes <= 128);
+            }
+        }
+    }
+
+    /**
+     * Runs the codec once on Conscrypt, the provider Android registers as "AndroidOpenSSL", and once
+     * on SpongyCastle alone. AES-CMAC comes from SpongyCastle either way, as Conscrypt lacks it.
+     */
+    @Test
+    public void nativeProviderMatchesSpongyCastle() throws GeneralSecurityException {
+        Provider conscrypt = Conscrypt.newProvider();
+        Security.insertProviderAt(conscrypt, 1);
+        try {
+            for (SecretKey key : new SecretKey[] {createKey("DESede", 24), createKey("AES", 16)}) {
+                CryptoProviders.setPreferNative(true);
+                List<byte[]> nativeTranscript = transcript(key);
+                assertEquals(conscrypt.getName(),
+                    CryptoProviders.getCipher(key.getAlgorithm() + "/CBC/NoPadding").getProvider().getName());
+
+                CryptoProviders.setPreferNative(false);
+                List<byte[]> spongyTranscript = transcript(key);
+                assertEquals(CryptoProviders.getSpongyCastleProvider().getName(),
+                    CryptoProviders.getCipher(key.getAlgorithm() + "/CBC/NoPadding").getProvider().getName());
+
+                assertEquals(spongyTranscript.size(), nativeTranscript.size());
+                for (int i = 0; i < spongyTranscript.size(); i++) {
+                    assertArrayEquals(key.getAlgorithm() + " step " + i, spongyTranscript.get(i), nativeTranscript.get(i));
+                }
+            }
+        } finally {
+            Security.removeProvider(conscrypt.getName());
+            CryptoProviders.setPreferNative(true);
+        }
+    }
+
+    /** The wrapped commands and unwrapped response data of the read path, in order. */
+    private static List<byte[]> transcript(SecretKey key) throws GeneralSecurityException {
+        SecureMessagingCodec codec = new SecureMessagingCodec(key, key, INITIAL_SSC);
+        SimulatedCard card = new SimulatedCard(key);
+        byte[] buffer = new byte[SecureMessagingCodec.MAX_COMMAND_LENGTH];
+        byte[] data = new byte[256 + 16];
+        List<byte[]> transcript = new ArrayList<>();
+        for (CommandAPDU command : COMMANDS) {
+            transcript.add(Arrays.copyOf(buffer, wrap(codec, command, buffer)));
+            byte[] response = card.readBinaryResponse(codec.getSendSequenceCounter() + 1);
+            transcript.add(Arrays.copyOf(data, codec.unwrap(response, response.length, data, 0)));
+        }
+        return transcript;
+    }
+
+    private static void assertRejected(SecretKey key, byte[] response) throws GeneralSecurityException {
+        SecureMessagingCodec codec = new SecureMessagingCodec(key, key, INITIAL_SSC);
+        codec.wrap(0x00, 0xB0, 0x00, 0x00, null, 0, 0, RESPONSE_DATA_LENGTH, new byte[SecureMessagingCodec.MAX_COMMAND_LENGTH]);
+        try {
+            codec.unwrap(response, response.length, new byte[256 + 16], 0);
+            fail("Accepted " + response.length + " byte response");
+        } catch (GeneralSecurityException expected) {
+            // Rejected before or at the MAC check
+        }
+    }
+
+    private static byte[] withStatusWord(byte[] objects) {
+        byte[] response = Arrays.copyOf(objects, objects.length + 2);
+        response[objects.length] = (byte) 0x90;
+        return response;
+    }
+
+    private static void assertMatchesJmrtd(SecretKey key) throws GeneralSecurityException {
+        SecureMessagingWrapper jmrtd = createWrapper(key);
+        SecureMessagingCodec codec = new SecureMessagingCodec(key, key, INITIAL_SSC);
+        SimulatedCard card = new SimulatedCard(key);
+        byte[] buffer = new byte[SecureMessagingCodec.MAX_COMMAND_LENGTH];
+        byte[] data = new byte[256 + 16];
+
+        for (CommandAPDU command : COMMANDS) {
+            byte[] expected = jmrtd.wrap(command).getBytes();
+            int length = wrap(codec, command, buffer);
+            assertArrayEquals("wrap of INS " + Integer.toHexString(command.getINS()),
+                expected, Arrays.copyOf(buffer, length));
+
+            byte[] response = card.readBinaryResponse(codec.getSendSequenceCounter() + 1);
+            ResponseAPDU plain = jmrtd.unwrap(new ResponseAPDU(response));
+            int dataLength = codec.unwrap(response, response.length, data, 0);
+            assertEquals(plain.getSW(), codec.getStatusWord());
+            assertArrayEquals("unwrap after INS " + Integer.toHexString(command.getINS()),
+                plain.getData(), Arrays.copyOf(data, dataLength));
+            assertEquals(jmrtd.getSendSequenceCounter(), codec.getSendSequenceCounter());
+        }
+    }
+
+    private static int wrap(SecureMessagingCodec codec, CommandAPDU command, byte[] buffer) throws GeneralSecurityException {
+        byte[] data = command.getData();
+        return codec.wrap(command.getCLA(), command.getINS(), command.getP1(), command.getP2(),
+            data, 0, data.length, command.getNe(), buffer);
+    }
+
+    private static SecretKey createKey(String algorithm, int length) {
+        byte[] key = new byte[length];
+        new Random(length).nextBytes(key);
+        return new SecretKeySpec(key, algorithm);
+    }
+
+    private static SecureMessagingWrapper createWrapper(SecretKey key) throws GeneralSecurityException {
+        return "AES".equals(key.getAlgorithm())
+            ? new AESSecureMessagingWrapper(key, key, 256, true, INITIAL_SSC)
+            : new DESedeSecureMessagingWrapper(key, key, 256, true, INITIAL_SSC);
+    }
+
+    /** Produces protected READ BINARY responses the way a chip would. */
+    private static final class SimulatedCard {
+        private final SecureMessagingCrypto crypto;
+        private final byte[] data = new byte[256];
+        private final byte[] macInput = new byte[512];
+
+        SimulatedCard(SecretKey key) throws GeneralSecurityException {
+            crypto = SecureMessagingCrypto.getInstance(key, key);
+            new Random(42).nextBytes(data);
+        }
+
+        byte[] readBinaryResponse(long ssc) throws GeneralSecurityException {
+            int blockSize = crypto.getBlockSize();
+            int paddedLength = SecureMessagingCodec.pad(data, RESPONSE_DATA_LENGTH, blockSize);
+
+            // DO'87' (long form length) || DO'99' || DO'8E' || SW
+            byte[] response = new byte[3 + 1 + paddedLength + 4 + 2 + SecureMessagingCrypto.MAC_LENGTH + 2];
+            int length = 0;
+            response[length++] = (byte) 0x87;
+            response[length++] = (byte) 0x81;
+            response[length++] = (byte) (1 + paddedLength);
+            response[length++] = 0x01;
+            length += crypto.encrypt(ssc, data, 0, paddedLength, response, length);
+            response[length++] = (byte) 0x99;
+            response[length++] = 0x02;
+            response[length++] = (byte) 0x90;
+            response[length++] = 0x00;
+
+            int macLength = crypto.encodeSendSequenceCounter(ssc, macInput, 0);
+            System.arraycopy(response, 0, macInput, macLength, length);
+            macLength = SecureMessagingCodec.pad(macInput, macLength + length, blockSize);
+            response[length++] = (byte) 0x8E;
+            response[length++] = SecureMessagingCrypto.MAC_LENGTH;
+            crypto.mac(macInput, 0, macLength, response, length);
+            length += SecureMessagingCrypto.MAC_LENGTH;
+            response[length++] = (byte) 0x90;
+            response[length] = 0x00;
+            return response;
+        }
+    }
+}
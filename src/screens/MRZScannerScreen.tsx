@@ -23,6 +23,43 @@ interface MRZData {
   dateOfExpiry: string;
 }
 
+// Camera counters sent along with mrzScanSuccess and mrzScanError on Android
+interface MRZScanStats {
+  deliveredFrames: number;
+  droppedFrames: number;
+  recognizedFrames: number;
+  averageLatencyMs: number;
+  maxLatencyMs: number;
+  deliveredFps: number;
+  frameRate: number;
+  analysisWidth: number;
+  analysisHeight: number;
+  frameRateChanges: number;
+  resolutionChanges: number;
+  textHeight: number;
+  blurryFrames: number;
+  glaredFrames: number;
+  movingFrames: number;
+}
+
+// Milliseconds from the scan request to each startup milestone reached, sent along with
+// mrzScanSuccess and mrzScanError on Android
+interface MRZStartupTrace {
+  activityCreated?: number;
+  processorCreated?: number;
+  cameraStarting?: number;
+  cameraProviderReady?: number;
+  cameraBound?: number;
+  firstPreviewFrame?: number;
+  firstAnalysisFrame?: number;
+  firstAcceptedFrame?: number;
+  firstRecognitionStarted?: number;
+  firstRecognitionDone?: number;
+  firstText?: number;
+  mrzFound?: number;
+  recognizerWarm: boolean;
+}
+
 const MRZScannerScreen = () => {
   console.log('[MRZScannerScreen] Component initializing');
 
@@ -183,6 +220,14 @@ const MRZScannerScreen = () => {
           
           if (data && typeof data === 'object') {
             console.log('[MRZScannerScreen] Data keys:', Object.keys(data));
+            if (data.scanStats) {
+              const stats: MRZScanStats = data.scanStats;
+              console.log('[MRZScannerScreen] Scan stats:', stats);
+            }
+            if (data.startupTrace) {
+              const trace: MRZStartupTrace = data.startupTrace;
+              console.log('[MRZScannerScreen] Startup trace:', trace);
+            }
           } else {
             console.warn('[MRZScannerScreen] Data is not an object:', data);
             setIsScanning(false);
@@ -250,6 +295,14 @@ const MRZScannerScreen = () => {
         console.log('[MRZScannerScreen] Error keys:', Object.keys(error));
         console.log('[MRZScannerScreen] Error code:', error.code);
         console.log('[MRZScannerScreen] Error message:', error.message);
+        if (error.scanStats) {
+          const stats: MRZScanStats = error.scanStats;
+          console.log('[MRZScannerScreen] Scan stats:', stats);
+        }
+        if (error.startupTrace) {
+          const trace: MRZStartupTrace = error.startupTrace;
+          console.log('[MRZScannerScreen] Startup trace:', trace);
+        }
         
         successListener.remove();
         errorListener.remove();
@@ -1,21 +1,41 @@
 import { NativeModules, NativeEventEmitter, Platform } from 'react-native';
+import NativePassportReader, {
+  type BatchStats,
+  type Capabilities,
+  type MrzKey,
+  type Spec,
+} from '../specs/NativePassportReader';
 
-let PassportReader = NativeModules.PassportReader;
-
-if (!PassportReader) {
-  PassportReader = NativeModules.PassportReaderModule;
-  console.log('[PassportReaderService] Trying PassportReaderModule:', PassportReader);
-}
-
-if (!PassportReader) {
+/** The typed module, or the bridge module under a name it may be registered with instead. */
+function findPassportReader(): Spec | null {
+  if (NativePassportReader) {
+    return NativePassportReader;
+  }
+  if (NativeModules.PassportReader) {
+    return NativeModules.PassportReader as Spec;
+  }
+  if (NativeModules.PassportReaderModule) {
+    console.log('[PassportReaderService] Using PassportReaderModule');
+    return NativeModules.PassportReaderModule as Spec;
+  }
   const passportModules = Object.keys(NativeModules).filter(key => 
     key.toLowerCase().includes('passport') || key.toLowerCase().includes('reader')
   );
   console.log('[PassportReaderService] Found passport-related modules:', passportModules);
   if (passportModules.length > 0) {
-    PassportReader = NativeModules[passportModules[0]];
-    console.log('[PassportReaderService] Using module:', passportModules[0], PassportReader);
+    console.log('[PassportReaderService] Using module:', passportModules[0]);
+    return NativeModules[passportModules[0]] as Spec;
   }
+  return null;
+}
+
+const PassportReader = findPassportReader();
+
+function requirePassportReader(): Spec {
+  if (!PassportReader) {
+    throw new Error('PassportReader native module not found');
+  }
+  return PassportReader;
 }
 
 console.log('[PassportReaderService] Available modules:', Object.keys(NativeModules));
@@ -34,11 +54,73 @@ interface PersonalData {
 }
 
 interface PassportData {
+  /** Matches the readId of the passportImageDecoded events of this read; Android only. */
+  readId?: string;
   personalData?: PersonalData;
+  /** Base64 of the image as stored on the chip. */
   faceImage?: string;
+  /** The same image as a file:// URI, Android only; cheaper than faceImage where a URI will do. */
+  faceImageUri?: string;
   faceImageMimeType?: string;
   dg1Error?: string;
   dg2Error?: string;
+  pendingImages?: number;
+  /** How each data group went, in the order they were read; Android only. */
+  dataGroups?: DataGroupStatus[];
+  /** Android only. */
+  timings?: ReadTimings;
+}
+
+interface DataGroupStatus {
+  name: string;
+  /** Not set if the data group was read. */
+  error?: 'NOT_PRESENT' | 'ACCESS_DENIED' | 'READ_FAILED' | 'PARSE_FAILED';
+  errorMessage?: string;
+  readMillis: number;
+}
+
+interface ReadTimings {
+  accessControl?: 'PACE' | 'BAC';
+  accessControlMillis: number;
+  totalMillis: number;
+}
+
+interface BatchReadResult extends PassportData {
+  /** Document number of the queued key the document was read with. */
+  keyDocumentNumber: string;
+  batch: BatchStats;
+}
+
+interface BatchReadError {
+  /**
+   * NO_KEY when a document was tapped with no key queued; DG1_FAILED when its personal data could
+   * not be read, in which case the key stays queued for the next tap.
+   */
+  code: string;
+  message: string;
+  batch: BatchStats;
+}
+
+interface BatchListeners {
+  /** The image files of a document are deleted when the next one is read. */
+  onRead: (result: BatchReadResult) => void;
+  onError?: (error: BatchReadError) => void;
+  /** The operator left the NFC screen; not called after stopBatch(). */
+  onStopped?: (stats: BatchStats) => void;
+}
+
+interface DecodedPassportImage {
+  /** The readId of the result the image belongs to. */
+  readId: string;
+  dataGroup: 'DG2' | 'DG7';
+  index: number;
+  sourceMimeType: string;
+  /** file:// URI of the image re-encoded as JPEG. */
+  imageUri?: string;
+  mimeType?: string;
+  width?: number;
+  height?: number;
+  error?: string;
 }
 
 class PassportReaderService {
@@ -137,7 +219,7 @@ class PassportReaderService {
       );
 
       PassportReader.startPassportScan(documentNumber, dateOfBirth, dateOfExpiry)
-        .then((result: any) => {
+        .then((result) => {
           console.log('[PassportReaderService] Passport scan started successfully:', result);
         })
         .catch((error: any) => {
@@ -153,26 +235,67 @@ class PassportReaderService {
     });
   }
 
-  async testDirectRead(
-    tagData: string,
-    documentNumber: string,
-    dateOfBirth: string,
-    dateOfExpiry: string
-  ): Promise<PassportData> {
-    if (!PassportReader) {
-      throw new Error('PassportReader native module not found');
-    }
+  onImageDecoded(listener: (image: DecodedPassportImage) => void): { remove: () => void } | undefined {
+    // Images arrive after passportReadSuccess, one event per image (see pendingImages and readId)
+    return this.eventEmitter?.addListener('passportImageDecoded', listener);
+  }
 
-    console.log('[PassportReaderService] Testing direct read for platform:', Platform.OS);
-    
-    // This might not work due to Tag reconstruction issues
-    // But keeping it for testing purposes
+  /**
+   * Android only. Keeps the NFC screen open and reads every document tapped, each with the next
+   * queued key, until stopBatch(). Keys can be queued here, with addBatchKeys() or by MRZ scans
+   * during the session. Returns a function that removes the listeners.
+   */
+  async startBatch(keys: MrzKey[], listeners: BatchListeners): Promise<() => void> {
+    const reader = PassportReader;
+    if (typeof reader?.startBatchScan !== 'function') {
+      throw new Error('Batch scanning is not available on this platform');
+    }
+    const subscriptions = [
+      this.eventEmitter?.addListener('batchReadSuccess', listeners.onRead),
+      listeners.onError && this.eventEmitter?.addListener('batchReadError', listeners.onError),
+      listeners.onStopped && this.eventEmitter?.addListener('batchScanStopped', listeners.onStopped),
+    ];
+    const remove = () => subscriptions.forEach(subscription => subscription?.remove());
     try {
-      return await PassportReader.readPassport(tagData, documentNumber, dateOfBirth, dateOfExpiry);
+      await reader.startBatchScan(keys);
     } catch (error) {
-      console.error('[PassportReaderService] Direct read failed:', error);
+      remove();
       throw error;
     }
+    return remove;
+  }
+
+  addBatchKeys(keys: MrzKey[]): Promise<BatchStats> {
+    return requirePassportReader().addBatchKeys(keys);
+  }
+
+  /** Closes the NFC screen and resolves with the statistics of the session. */
+  stopBatch(): Promise<BatchStats> {
+    return requirePassportReader().stopBatchScan();
+  }
+
+  /** Null outside a batch session. */
+  getBatchStats(): Promise<BatchStats | null> {
+    return requirePassportReader().getBatchStats();
+  }
+
+  /** Synchronous; null where the native module does not provide it (iOS). */
+  getCapabilities(): Capabilities | null {
+    return typeof PassportReader?.getCapabilities === 'function' ? PassportReader.getCapabilities() : null;
+  }
+
+  /**
+   * Deletes the image files of the read with the given readId, or of every read without one; call
+   * once its images are no longer shown.
+   */
+  clearImages(readId?: string): void {
+    if (readId != null) {
+      if (typeof PassportReader?.clearReadImages === 'function') {
+        PassportReader.clearReadImages(readId);
+      }
+    } else if (typeof PassportReader?.clearPassportImages === 'function') {
+      PassportReader.clearPassportImages();
+    }
   }
 }
 
@@ -0,0 +1,68 @@
+import type { TurboModule } from 'react-native';
+import { TurboModuleRegistry } from 'react-native';
+
+/**
+ * Typed spec of the Android PassportReader native module, in the shape codegen expects, so the
+ * module can move to a TurboModule when the app enables the new architecture. Until then
+ * TurboModuleRegistry returns the bridge module registered under the same name.
+ *
+ * Images are passed as file:// URIs of files in the app's cache, which <Image> loads directly.
+ * They are kept per read until the next startPassportScan or startBatchScan; call
+ * clearReadImages(readId) or clearPassportImages() once they are no longer shown.
+ */
+
+export type Capabilities = {
+  nfcSupported: boolean;
+  nfcEnabled: boolean;
+  cameraAvailable: boolean;
+  /** Whether the text recognizers were loaded in the background, making the scanner open faster. */
+  recognizerWarm: boolean;
+};
+
+export type MrzKey = {
+  documentNumber: string;
+  /** YYMMDD */
+  dateOfBirth: string;
+  /** YYMMDD */
+  dateOfExpiry: string;
+};
+
+export type BatchStats = {
+  documentsRead: number;
+  failures: number;
+  queuedKeys: number;
+  elapsedMillis: number;
+  meanReadMillis: number;
+  /** Documents read per minute since the session started. */
+  documentsPerMinute: number;
+};
+
+export interface Spec extends TurboModule {
+  /**
+   * The read is reported with passportReadSuccess / passportReadError events. iOS also resolves with
+   * a status message once it is done; Android only rejects if the NFC screen cannot be opened.
+   */
+  startPassportScan(documentNumber: string, dateOfBirth: string, dateOfExpiry: string): Promise<string>;
+  startMRZScanner(): Promise<string>;
+  startIDCardScanner(): Promise<string>;
+
+  /** Results arrive as batchReadSuccess / batchReadError events, one per document tapped. */
+  startBatchScan(keys: MrzKey[]): Promise<boolean>;
+  addBatchKeys(keys: MrzKey[]): Promise<BatchStats>;
+  stopBatchScan(): Promise<BatchStats>;
+  getBatchStats(): Promise<BatchStats | null>;
+
+  /** Answered synchronously. */
+  getCapabilities(): Capabilities;
+  clearPassportImages(): void;
+  clearReadImages(readId: string): void;
+
+  setScanDiagnosticsEnabled(enabled: boolean): void;
+  getScanDiagnostics(): Promise<string[]>;
+
+  // Required by NativeEventEmitter
+  addListener(eventName: string): void;
+  removeListeners(count: number): void;
+}
+
+export default TurboModuleRegistry.get<Spec>('PassportReader');